@@ -0,0 +1,645 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package org.apache.manifoldcf.agents.output.elasticsearch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.HttpEntity;
+import org.apache.http.util.EntityUtils;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.Header;
+import org.apache.commons.io.IOUtils;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.apache.manifoldcf.agents.interfaces.IOutputHistoryActivity;
+import org.apache.manifoldcf.agents.interfaces.RepositoryDocument;
+import org.apache.manifoldcf.agents.interfaces.ServiceInterruption;
+import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
+import org.apache.manifoldcf.core.util.URLEncoder;
+import org.apache.manifoldcf.crawler.system.Logging;
+
+/** Sends adds and deletes to ElasticSearch in _bulk requests.
+*
+* Every add or delete joins the open batch for its index, and the calling thread waits until the batch has been
+* sent, so that the outcome of its own item can be reported for its document.  Before an item joins a batch, the
+* calling thread writes the item's lines of the request into memory, so a document whose content cannot be read
+* fails by itself instead of failing every other document in the batch; the connector sends documents too large
+* for a batch in requests of their own.
+*
+* A batch is sent when it reaches the most documents or bytes allowed, or when the first document in it has waited
+* for the linger time, by whichever thread gets there first; poll() and noteJobComplete() send batches too.
+* Batches are shared by all the connector instances of the process that write to the same index, so the threads
+* feeding a connection fill them together.
+*/
+public class ElasticSearchBulk extends ElasticSearchConnection
+{
+
+  /** The open batches, by bulk request url.  Guarded by itself. */
+  protected final static Map<String,Batch> openBatches = new HashMap<String,Batch>();
+
+  public ElasticSearchBulk(HttpClient client, ElasticSearchConfig config)
+  {
+    super(config, client);
+  }
+
+  /** Add an item to the open batch for its index, and wait until the batch has been sent.
+  *@param client is the client to send the batch with, if this thread ends up sending it.
+  *@param config is the connection configuration.
+  *@param item is the add or delete.  Its result is set when this method returns.
+  *@param maxDocuments is the most items in a batch.
+  *@param maxBytes is the approximate most bytes in a batch.
+  *@param lingerTime is the longest an item waits for others to join its batch, in milliseconds.
+  */
+  public static void submit(HttpClient client, ElasticSearchConfig config, Item item,
+    int maxDocuments, long maxBytes, long lingerTime)
+    throws ManifoldCFException, ServiceInterruption
+  {
+    try
+    {
+      item.prepare();
+    }
+    catch (IOException e)
+    {
+      // Only this item's document could not be read; it fails as it would have in a request of its own
+      ElasticSearchBulk connection = new ElasticSearchBulk(client, config);
+      try
+      {
+        connection.handleIOException(e);
+      }
+      finally
+      {
+        item.setResult(connection.getResultCode(), connection.getResult(), connection.getResultDescription());
+      }
+    }
+    String url = getBulkUrl(config);
+    Batch batch;
+    boolean send = false;
+    synchronized (openBatches)
+    {
+      batch = openBatches.get(url);
+      if (batch == null)
+      {
+        batch = new Batch(url, System.currentTimeMillis() + lingerTime);
+        openBatches.put(url, batch);
+      }
+      batch.items.add(item);
+      batch.bytes += item.getLength();
+      if (batch.items.size() >= maxDocuments || batch.bytes >= maxBytes)
+        send = close(batch);
+    }
+    if (send)
+      send(client, config, batch);
+    else
+      awaitBatch(client, config, batch);
+    item.finishUp(batch);
+  }
+
+  /** Send the open batches whose linger time has passed.
+  */
+  public static void flushExpired(HttpClient client, ElasticSearchConfig config)
+  {
+    flush(client, config, System.currentTimeMillis());
+  }
+
+  /** Send every open batch for an index.
+  */
+  public static void flushAll(HttpClient client, ElasticSearchConfig config)
+  {
+    flush(client, config, Long.MAX_VALUE);
+  }
+
+  /** Check whether there is an open batch for an index. */
+  public static boolean hasOpenBatch(ElasticSearchConfig config)
+  {
+    synchronized (openBatches)
+    {
+      return openBatches.get(getBulkUrl(config)) != null;
+    }
+  }
+
+  protected static void flush(HttpClient client, ElasticSearchConfig config, long currentTime)
+  {
+    String url = getBulkUrl(config);
+    Batch batch;
+    synchronized (openBatches)
+    {
+      batch = openBatches.get(url);
+      if (batch == null || batch.deadline > currentTime || !close(batch))
+        return;
+    }
+    // The items' threads get the outcome
+    send(client, config, batch);
+  }
+
+  /** Take a batch out of the open batches.  Call with openBatches locked.
+  *@return true if the caller is to send the batch.
+  */
+  protected static boolean close(Batch batch)
+  {
+    if (batch.closed)
+      return false;
+    batch.closed = true;
+    openBatches.remove(batch.url);
+    return true;
+  }
+
+  /** Wait until a batch has been sent, sending it if the linger time passes first. */
+  protected static void awaitBatch(HttpClient client, ElasticSearchConfig config, Batch batch)
+  {
+    boolean interrupted = false;
+    try
+    {
+      while (true)
+      {
+        synchronized (batch)
+        {
+          while (!batch.done)
+          {
+            long waitTime = 0L;
+            if (!batch.closed)
+            {
+              waitTime = batch.deadline - System.currentTimeMillis();
+              if (waitTime <= 0L)
+                break;
+            }
+            // Other threads' documents may be in the request, so we cannot leave until it is done
+            try
+            {
+              batch.wait(waitTime);
+            }
+            catch (InterruptedException e)
+            {
+              interrupted = true;
+            }
+          }
+          if (batch.done)
+            return;
+        }
+        boolean send;
+        synchronized (openBatches)
+        {
+          send = close(batch);
+        }
+        if (send)
+        {
+          send(client, config, batch);
+          return;
+        }
+      }
+    }
+    finally
+    {
+      if (interrupted)
+        Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Send a batch, and tell its items' threads. */
+  protected static void send(HttpClient client, ElasticSearchConfig config, Batch batch)
+  {
+    try
+    {
+      new ElasticSearchBulk(client, config).execute(batch);
+    }
+    catch (ManifoldCFException e)
+    {
+      batch.failure = e;
+    }
+    catch (ServiceInterruption e)
+    {
+      batch.failure = e;
+    }
+    catch (RuntimeException e)
+    {
+      batch.failure = e;
+    }
+    catch (Error e)
+    {
+      batch.failure = e;
+      throw e;
+    }
+    finally
+    {
+      synchronized (batch)
+      {
+        batch.sender = Thread.currentThread();
+        batch.done = true;
+        batch.notifyAll();
+      }
+    }
+  }
+
+  protected static String getBulkUrl(ElasticSearchConfig config)
+  {
+    StringBuilder url = new StringBuilder(config.getServerLocation());
+    if (url.length() == 0 || url.charAt(url.length() - 1) != '/')
+      url.append('/');
+    url.append(URLEncoder.encode(config.getIndexName())).append("/_bulk");
+    String pipelineName = config.getPipelineName();
+    if (pipelineName != null && pipelineName.length() > 0)
+      url.append("?pipeline=").append(URLEncoder.encode(pipelineName));
+    return url.toString();
+  }
+
+  /** Send a batch, and set the result of each of its items from the response.
+  */
+  protected void execute(Batch batch)
+    throws ManifoldCFException, ServiceInterruption
+  {
+    HttpPost post = new HttpPost(batch.url);
+    post.setEntity(new BulkRequestEntity(batch.items));
+    if (call(post) == false)
+    {
+      // The whole request was turned down
+      for (Item item : batch.items)
+      {
+        item.setResult(getResultCode(), Result.ERROR, getResultDescription());
+      }
+      return;
+    }
+    JSONArray responseItems;
+    try
+    {
+      Object parsed = new JSONParser().parse(getResponse());
+      if (!(parsed instanceof JSONObject) || !(((JSONObject)parsed).get("items") instanceof JSONArray))
+        throw new ManifoldCFException("Bulk response has no items: "+getResponse());
+      responseItems = (JSONArray)((JSONObject)parsed).get("items");
+    }
+    catch (ParseException e)
+    {
+      throw new ManifoldCFException("Unparseable bulk response: "+e.getMessage(),e);
+    }
+    if (responseItems.size() != batch.items.size())
+      throw new ManifoldCFException("Bulk response has "+responseItems.size()+" items for "+batch.items.size()+" requests");
+    for (int i = 0; i < responseItems.size(); i++)
+    {
+      Item item = batch.items.get(i);
+      Object responseItem = responseItems.get(i);
+      Object itemResult = null;
+      if (responseItem instanceof JSONObject)
+        itemResult = ((JSONObject)responseItem).get(item.getAction());
+      if (!(itemResult instanceof JSONObject) || !(((JSONObject)itemResult).get("status") instanceof Number))
+      {
+        item.setResult("JSONERROR", Result.ERROR, "Unexpected bulk response item: "+responseItem);
+        continue;
+      }
+      JSONObject result = (JSONObject)itemResult;
+      item.setStatus(((Number)result.get("status")).intValue(), describeError(result.get("error")));
+    }
+  }
+
+  /** Describe a bulk item's error, which is an object in current versions and a string in old ones */
+  protected static String describeError(Object error)
+  {
+    if (error == null)
+      return null;
+    if (error instanceof JSONObject)
+    {
+      JSONObject errorObject = (JSONObject)error;
+      Object type = errorObject.get("type");
+      Object reason = errorObject.get("reason");
+      if (type != null || reason != null)
+        return type+": "+reason;
+    }
+    return error.toString();
+  }
+
+  /** An open or sent batch */
+  protected static class Batch
+  {
+    protected final String url;
+    protected final long deadline;
+    /** Guarded by openBatches */
+    protected final List<Item> items = new ArrayList<Item>();
+    /** Guarded by openBatches */
+    protected long bytes = 0L;
+    /** Set once no more items may join.  Written with openBatches locked. */
+    protected volatile boolean closed = false;
+    /** Set once the batch has been sent or has failed.  Guarded by this. */
+    protected boolean done = false;
+    protected Thread sender = null;
+    protected Throwable failure = null;
+
+    public Batch(String url, long deadline)
+    {
+      this.url = url;
+      this.deadline = deadline;
+    }
+  }
+
+  /** One add or delete in a batch */
+  protected abstract static class Item
+  {
+    protected final String documentURI;
+    protected final String indexType;
+    protected Result result = Result.UNKNOWN;
+    protected String resultCode = null;
+    protected String resultDescription = "";
+    protected ServiceInterruption retry = null;
+    /** The item's lines of the request, once prepared */
+    protected byte[] lines = null;
+
+    public Item(String documentURI, String indexType)
+    {
+      this.documentURI = documentURI;
+      this.indexType = indexType;
+    }
+
+    /** Get the bulk action name */
+    public abstract String getAction();
+
+    /** Get the approximate size of the item in the request */
+    public abstract long getEstimatedLength();
+
+    /** Write the item's lines of the request into memory, reading the document's content if there is any.
+    */
+    public void prepare()
+      throws IOException
+    {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      PrintWriter pw = new PrintWriter(new OutputStreamWriter(bytes, StandardCharsets.UTF_8));
+      writeTo(pw);
+      pw.flush();
+      lines = bytes.toByteArray();
+    }
+
+    /** Get the item's lines of the request, as prepared */
+    public byte[] getLines()
+    {
+      return lines;
+    }
+
+    /** Get the length of the item's lines of the request, as prepared */
+    public int getLength()
+    {
+      return lines.length;
+    }
+
+    /** Write the item's lines of the request */
+    public void writeTo(PrintWriter pw)
+      throws IOException
+    {
+      pw.print("{"+ElasticSearchIndex.jsonStringEscape(getAction())+" : {\"_type\" : "+ElasticSearchIndex.jsonStringEscape(indexType)+
+        ", \"_id\" : "+ElasticSearchIndex.jsonStringEscape(documentURI)+"}}\n");
+    }
+
+    /** Set the result from the item's status in the bulk response */
+    public void setStatus(int status, String error)
+    {
+      if (status == 200 || status == 201)
+      {
+        setResult("OK", Result.OK, null);
+        return;
+      }
+      String description = "HTTP code = "+status+((error == null)?"":(", Error = "+error));
+      setResult(IOutputHistoryActivity.HTTP_ERROR, Result.ERROR, description);
+      if (status == 429 || (status >= 500 && status < 600))
+      {
+        // The cluster was too busy, or failed; try the document again later
+        long currentTime = System.currentTimeMillis();
+        retry = new ServiceInterruption("Server exception: "+description,
+          new ManifoldCFException(description),
+          currentTime + 300000L,
+          currentTime + 20L * 60000L,
+          -1,
+          false);
+      }
+      else
+        Logging.connectors.warn("ES: Bulk "+getAction()+" of '"+documentURI+"' failed: "+description);
+    }
+
+    public void setResult(String resultCode, Result result, String description)
+    {
+      this.resultCode = resultCode;
+      this.result = result;
+      if (description != null && description.length() > 0)
+        resultDescription = description;
+    }
+
+    /** Throw whatever went wrong with the batch or with this item, once the batch is done. */
+    protected void finishUp(Batch batch)
+      throws ManifoldCFException, ServiceInterruption
+    {
+      Throwable t = batch.failure;
+      if (t != null)
+      {
+        if (result == Result.UNKNOWN)
+          setResult(IOutputHistoryActivity.HTTP_ERROR, Result.ERROR, t.getMessage());
+        if (t instanceof ManifoldCFException)
+        {
+          ManifoldCFException e = (ManifoldCFException)t;
+          // Only the thread that was interrupted stops; the others try again
+          if (e.getErrorCode() == ManifoldCFException.INTERRUPTED && batch.sender != Thread.currentThread())
+          {
+            long currentTime = System.currentTimeMillis();
+            throw new ServiceInterruption("Bulk request interrupted: "+e.getMessage(), e,
+              currentTime + 60000L, -1L, -1, false);
+          }
+          throw e;
+        }
+        else if (t instanceof ServiceInterruption)
+          throw (ServiceInterruption)t;
+        else if (t instanceof RuntimeException)
+          throw (RuntimeException)t;
+        else if (t instanceof Error)
+          throw (Error)t;
+        else
+          throw new RuntimeException("Unexpected exception thrown: "+t.getMessage(),t);
+      }
+      if (retry != null)
+        throw retry;
+    }
+
+    public Result getResult()
+    {
+      return result;
+    }
+
+    public String getResultCode()
+    {
+      return resultCode;
+    }
+
+    public String getResultDescription()
+    {
+      return resultDescription;
+    }
+  }
+
+  /** Add or replace a document */
+  protected static class IndexItem extends Item
+  {
+    protected final ElasticSearchIndex.IndexRequestEntity source;
+
+    public IndexItem(String documentURI, ElasticSearchConfig config, RepositoryDocument document, InputStream inputStream,
+      String[] acls, String[] denyAcls, String[] shareAcls, String[] shareDenyAcls, String[] parentAcls, String[] parentDenyAcls)
+      throws ManifoldCFException
+    {
+      super(documentURI, config.getIndexType());
+      source = new ElasticSearchIndex.IndexRequestEntity(document, inputStream,
+        acls, denyAcls, shareAcls, shareDenyAcls, parentAcls, parentDenyAcls,
+        config.getUseMapperAttachments(),
+        config.getContentAttributeName(),
+        config.getCreatedDateAttributeName(),
+        config.getModifiedDateAttributeName(),
+        config.getIndexingDateAttributeName(),
+        config.getMimeTypeAttributeName());
+    }
+
+    @Override
+    public String getAction()
+    {
+      return "index";
+    }
+
+    @Override
+    public long getEstimatedLength()
+    {
+      return source.getEstimatedLength();
+    }
+
+    @Override
+    public void writeTo(PrintWriter pw)
+      throws IOException
+    {
+      super.writeTo(pw);
+      source.writeSource(pw);
+      pw.print("\n");
+    }
+  }
+
+  /** Delete a document */
+  protected static class DeleteItem extends Item
+  {
+    public DeleteItem(String documentURI, ElasticSearchConfig config)
+    {
+      super(documentURI, config.getIndexType());
+    }
+
+    @Override
+    public String getAction()
+    {
+      return "delete";
+    }
+
+    @Override
+    public long getEstimatedLength()
+    {
+      return 256L;
+    }
+
+    @Override
+    public void setStatus(int status, String error)
+    {
+      // Deleting a document that isn't there is fine
+      if (status == 404)
+        setResult("OK", Result.OK, null);
+      else
+        super.setStatus(status, error);
+    }
+  }
+
+  /** The body of a bulk request: two lines for each add, and one for each delete */
+  protected static class BulkRequestEntity implements HttpEntity
+  {
+    protected final List<Item> items;
+
+    public BulkRequestEntity(List<Item> items)
+    {
+      this.items = items;
+    }
+
+    @Override
+    public boolean isChunked() {
+      return false;
+    }
+
+    @Override
+    @Deprecated
+    public void consumeContent()
+      throws IOException {
+      EntityUtils.consume(this);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+      return false;
+    }
+
+    @Override
+    public boolean isStreaming() {
+      return false;
+    }
+
+    @Override
+    public InputStream getContent()
+      throws IOException, IllegalStateException {
+      return null;
+    }
+
+    @Override
+    public void writeTo(OutputStream out)
+      throws IOException {
+      try
+      {
+        // Every item was prepared before it joined the batch
+        for (Item item : items)
+        {
+          out.write(item.getLines());
+        }
+      } finally
+      {
+        out.flush();
+        IOUtils.closeQuietly(out);
+      }
+    }
+
+    @Override
+    public long getContentLength() {
+      // Unknown (chunked) length
+      return -1L;
+    }
+
+    @Override
+    public Header getContentType() {
+      return new BasicHeader("Content-type","application/x-ndjson");
+    }
+
+    @Override
+    public Header getContentEncoding() {
+      return null;
+    }
+  }
+
+}
@@ -58,6 +58,7 @@ import org.apache.manifoldcf.core.interfaces.ConfigurationNode;
 import org.apache.manifoldcf.core.interfaces.IHTTPOutput;
 import org.apache.manifoldcf.core.interfaces.IPostParameters;
 import org.apache.manifoldcf.core.interfaces.IThreadContext;
+import org.apache.manifoldcf.core.interfaces.LockManagerFactory;
 import org.apache.manifoldcf.core.interfaces.ManifoldCFException;
 import org.apache.manifoldcf.core.interfaces.SpecificationNode;
 import org.apache.manifoldcf.core.interfaces.VersionContext;
@@ -92,9 +93,22 @@ public class ElasticSearchConnector extends BaseOutputConnector
   /** Connection expiration interval */
   private static final long EXPIRATION_INTERVAL = 60000L;
 
+  /** The most documents in a _bulk request; 0 sends each document by itself */
+  public static final String PROPERTY_BULK_MAX_DOCUMENTS = "org.apache.manifoldcf.agents.output.elasticsearch.bulk.maxdocuments";
+  /** The approximate most bytes in a _bulk request */
+  public static final String PROPERTY_BULK_MAX_BYTES = "org.apache.manifoldcf.agents.output.elasticsearch.bulk.maxbytes";
+  /** The longest a document waits for others to join its _bulk request, in milliseconds */
+  public static final String PROPERTY_BULK_LINGER_TIME = "org.apache.manifoldcf.agents.output.elasticsearch.bulk.lingertime";
+  private static final int DEFAULT_BULK_MAX_BYTES = 10 * 1024 * 1024;
+  private static final int DEFAULT_BULK_LINGER_TIME = 100;
+
   private HttpClientConnectionManager connectionManager = null;
   private HttpClient client = null;
   private long expirationTime = -1L;
+  /** The bulk request limits, read when first needed */
+  private int bulkMaxDocuments = -1;
+  private long bulkMaxBytes;
+  private long bulkLingerTime;
   
   public ElasticSearchConnector()
   {
@@ -158,6 +172,21 @@ public class ElasticSearchConnector extends BaseOutputConnector
     client = null;
     expirationTime = -1L;
   }
+
+  /** Read the bulk request limits.
+  *@return true if documents are to be sent in _bulk requests.
+  */
+  protected boolean useBulk()
+    throws ManifoldCFException
+  {
+    if (bulkMaxDocuments == -1)
+    {
+      bulkMaxBytes = LockManagerFactory.getIntProperty(currentContext,PROPERTY_BULK_MAX_BYTES,DEFAULT_BULK_MAX_BYTES);
+      bulkLingerTime = LockManagerFactory.getIntProperty(currentContext,PROPERTY_BULK_LINGER_TIME,DEFAULT_BULK_LINGER_TIME);
+      bulkMaxDocuments = Math.max(0,LockManagerFactory.getIntProperty(currentContext,PROPERTY_BULK_MAX_DOCUMENTS,0));
+    }
+    return bulkMaxDocuments > 0;
+  }
   
   /** This method is called to assess whether to count this connector instance should
   * actually be counted as being connected.
@@ -183,6 +212,10 @@ public class ElasticSearchConnector extends BaseOutputConnector
     throws ManifoldCFException
   {
     super.poll();
+    // Send a _bulk request whose documents have waited long enough, in case their threads haven't yet
+    ElasticSearchConfig config = getConfigParameters(null);
+    if (ElasticSearchBulk.hasOpenBatch(config))
+      ElasticSearchBulk.flushExpired(getSession(), config);
     if (connectionManager != null)
     {
       if (System.currentTimeMillis() > expirationTime)
@@ -370,6 +403,27 @@ public class ElasticSearchConnector extends BaseOutputConnector
     }
     
     long startTime = System.currentTimeMillis();
+    ElasticSearchBulk.IndexItem item = null;
+    if (useBulk())
+      item = new ElasticSearchBulk.IndexItem(documentURI, config, document, inputStream,
+        acls, denyAcls, shareAcls, shareDenyAcls, parentAcls, parentDenyAcls);
+    // A batch item is held in memory until its batch is sent, so a document too large for a batch of its own is
+    // streamed in a request of its own instead
+    if (item != null && item.getEstimatedLength() <= bulkMaxBytes)
+    {
+      try
+      {
+        ElasticSearchBulk.submit(client, config, item, bulkMaxDocuments, bulkMaxBytes, bulkLingerTime);
+        if (item.getResult() != Result.OK)
+          return DOCUMENTSTATUS_REJECTED;
+        return DOCUMENTSTATUS_ACCEPTED;
+      }
+      finally
+      {
+        activities.recordActivity(startTime, ELASTICSEARCH_INDEXATION_ACTIVITY,
+          document.getBinaryLength(), documentURI, item.getResultCode(), item.getResultDescription());
+      }
+    }
     ElasticSearchIndex oi = new ElasticSearchIndex(client, config);
     try
     {
@@ -392,6 +446,20 @@ public class ElasticSearchConnector extends BaseOutputConnector
   {
     HttpClient client = getSession();
     long startTime = System.currentTimeMillis();
+    if (useBulk())
+    {
+      ElasticSearchBulk.DeleteItem item = new ElasticSearchBulk.DeleteItem(documentURI, getConfigParameters(null));
+      try
+      {
+        ElasticSearchBulk.submit(client, getConfigParameters(null), item, bulkMaxDocuments, bulkMaxBytes, bulkLingerTime);
+      }
+      finally
+      {
+        activities.recordActivity(startTime, ELASTICSEARCH_DELETION_ACTIVITY, null,
+          documentURI, item.getResultCode(), item.getResultDescription());
+      }
+      return;
+    }
     ElasticSearchDelete od = new ElasticSearchDelete(client, getConfigParameters(null));
     try
     {
@@ -429,6 +497,8 @@ public class ElasticSearchConnector extends BaseOutputConnector
   {
     ElasticSearchConfig config = getConfigParameters(null);
     HttpClient client = getSession();
+    // Anything still waiting to go should be in the index before it is optimized
+    ElasticSearchBulk.flushAll(client, config);
     long startTime = System.currentTimeMillis();
     ElasticSearchAction oo = new ElasticSearchAction(client, config);
     try
@@ -65,7 +65,7 @@ public class ElasticSearchIndex extends ElasticSearchConnection
   * so we have to do everything in the connector. */
   protected final static boolean useNullValue = false;
   
-  private class IndexRequestEntity implements HttpEntity
+  protected static class IndexRequestEntity implements HttpEntity
   {
 
     private final RepositoryDocument document;
@@ -142,6 +142,21 @@ public class ElasticSearchIndex extends ElasticSearchConnection
       throws IOException {
       PrintWriter pw = new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
       try
+      {
+        writeSource(pw);
+      } finally
+      {
+        pw.flush();
+        IOUtils.closeQuietly(pw);
+      }
+    }
+
+    /** Write the document as one line of JSON, reading the content from the input stream as it goes.
+    * The writer is not closed.
+    */
+    public void writeSource(PrintWriter pw)
+      throws IOException {
+      try
       {
         pw.print("{");
         Iterator<String> i = document.getFields();
@@ -210,16 +225,7 @@ public class ElasticSearchIndex extends ElasticSearchConnection
           if (contentAttributeName != null)
           {
             Reader r = new InputStreamReader(inputStream, Consts.UTF_8);
-            StringBuilder sb = new StringBuilder((int)document.getBinaryLength());
-            char[] buffer = new char[65536];
-            while (true)
-            {
-              int amt = r.read(buffer,0,buffer.length);
-              if (amt == -1)
-                break;
-              sb.append(buffer,0,amt);
-            }
-            needComma = writeField(pw, needComma, contentAttributeName, new String[]{sb.toString()});
+            needComma = writeField(pw, needComma, contentAttributeName, r);
           }
         }
         
@@ -227,13 +233,20 @@ public class ElasticSearchIndex extends ElasticSearchConnection
       } catch (ManifoldCFException e)
       {
         throw new IOException(e.getMessage());
-      } finally
-      {
-        pw.flush();
-        IOUtils.closeQuietly(pw);
       }
     }
 
+    /** Estimate the size of the JSON for the document, for limiting the size of bulk requests */
+    public long getEstimatedLength() {
+      long length = document.getBinaryLength();
+      if (length < 0L)
+        length = 0L;
+      // Base64 takes four characters for each three bytes
+      if (useMapperAttachments)
+        length = (length * 4L) / 3L;
+      return length + 1024L;
+    }
+
     @Override
     public long getContentLength() {
       // Unknown (chunked) length
@@ -283,6 +296,32 @@ public class ElasticSearchIndex extends ElasticSearchConnection
     return needComma;
   }
 
+  /** Write a field whose value is read from a reader, escaping it as it goes rather than reading it all first */
+  protected static boolean writeField(PrintWriter pw, boolean needComma,
+    String fieldName, Reader fieldValue)
+    throws IOException
+  {
+    if (needComma)
+      pw.print(",");
+    pw.print(jsonStringEscape(fieldName)+" : \"");
+    char[] buffer = new char[65536];
+    StringBuilder sb = new StringBuilder();
+    while (true)
+    {
+      int amt = fieldValue.read(buffer,0,buffer.length);
+      if (amt == -1)
+        break;
+      sb.setLength(0);
+      for (int i = 0; i < amt; i++)
+      {
+        jsonCharEscape(sb,buffer[i]);
+      }
+      pw.append(sb);
+    }
+    pw.print("\"");
+    return true;
+  }
+
   private final static SimpleDateFormat DATE_FORMATTER;
 
   static
@@ -352,31 +391,35 @@ public class ElasticSearchIndex extends ElasticSearchConnection
     StringBuilder sb = new StringBuilder("\"");
     for (int i = 0; i < value.length(); i++)
     {
-      char x = value.charAt(i);
-      if (x == '\n')
-        sb.append('\\').append('n');
-      else if (x == '\r')
-        sb.append('\\').append('r');
-      else if (x == '\t')
-        sb.append('\\').append('t');
-      else if (x == '\b')
-        sb.append('\\').append('b');
-      else if (x == '\f')
-        sb.append('\\').append('f');
-      else if (x < 32)
-      {
-        sb.append("\\u").append(String.format(Locale.ROOT, "%04x", (int)x));
-      }
-      else
-      {
-        if (x == '\"' || x == '\\' || x == '/')
-          sb.append('\\');
-        sb.append(x);
-      }
+      jsonCharEscape(sb,value.charAt(i));
     }
     sb.append("\"");
     return sb.toString();
   }
+
+  protected static void jsonCharEscape(StringBuilder sb, char x)
+  {
+    if (x == '\n')
+      sb.append('\\').append('n');
+    else if (x == '\r')
+      sb.append('\\').append('r');
+    else if (x == '\t')
+      sb.append('\\').append('t');
+    else if (x == '\b')
+      sb.append('\\').append('b');
+    else if (x == '\f')
+      sb.append('\\').append('f');
+    else if (x < 32)
+    {
+      sb.append("\\u").append(String.format(Locale.ROOT, "%04x", (int)x));
+    }
+    else
+    {
+      if (x == '\"' || x == '\\' || x == '/')
+        sb.append('\\');
+      sb.append(x);
+    }
+  }
   
 
   public ElasticSearchIndex(HttpClient client, ElasticSearchConfig config)
@@ -0,0 +1,444 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.agents.output.elasticsearch;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.apache.manifoldcf.agents.interfaces.RepositoryDocument;
+import org.apache.manifoldcf.agents.interfaces.ServiceInterruption;
+import org.apache.manifoldcf.agents.output.elasticsearch.ElasticSearchConnection.Result;
+import org.apache.manifoldcf.core.interfaces.ConfigParams;
+import org.apache.manifoldcf.crawler.system.Logging;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Sends documents to a stub ElasticSearch in _bulk requests from several threads, and checks that each document gets
+* the outcome of its own item.  When org.apache.manifoldcf.test.benchmark is true, it also checks that _bulk requests
+* index more documents per second than one request per document.
+*/
+public class ElasticSearchBulkTest
+{
+  static
+  {
+    if (Logging.connectors == null)
+      Logging.connectors = org.apache.log4j.Logger.getLogger("org.apache.manifoldcf.connectors");
+    // Otherwise the stub's small responses wait on delayed acknowledgements
+    System.setProperty("sun.net.httpserver.nodelay","true");
+  }
+
+  /** How long the stub takes to answer each request, in milliseconds */
+  protected final static long REQUEST_LATENCY = 5L;
+
+  protected HttpServer server;
+  protected final AtomicInteger bulkRequests = new AtomicInteger(0);
+  protected final AtomicInteger singleRequests = new AtomicInteger(0);
+  protected final List<String> indexedIds = Collections.synchronizedList(new ArrayList<String>());
+  protected ElasticSearchConfig config;
+  protected HttpClient client;
+
+  @Before
+  public void startServer()
+    throws Exception
+  {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1",0),0);
+    server.setExecutor(java.util.concurrent.Executors.newFixedThreadPool(16));
+    server.createContext("/",new StubHandler());
+    server.start();
+    ConfigParams params = new ConfigParams();
+    params.setParameter(ElasticSearchParam.ParameterEnum.SERVERLOCATION.name(),"http://127.0.0.1:"+server.getAddress().getPort()+"/");
+    config = new ElasticSearchConfig(params);
+    client = HttpClients.custom().setMaxConnPerRoute(32).setMaxConnTotal(32).build();
+  }
+
+  @After
+  public void stopServer()
+  {
+    server.stop(0);
+  }
+
+  @Test
+  public void itemResultsGoToTheirDocuments()
+    throws Exception
+  {
+    final String[] ids = new String[]{"http://host/good1","http://host/bad1","http://host/good2","http://host/busy1",
+      "http://host/good3","http://host/delete-missing","http://host/good4","http://host/good5"};
+    final Object[] outcomes = new Object[ids.length];
+    Thread[] threads = new Thread[ids.length];
+    for (int i = 0; i < ids.length; i++)
+    {
+      final int index = i;
+      threads[i] = new Thread()
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            ElasticSearchBulk.Item item;
+            if (ids[index].indexOf("delete") != -1)
+              item = new ElasticSearchBulk.DeleteItem(ids[index],config);
+            else
+              item = makeIndexItem(ids[index],"Content of "+ids[index]+"\nwith \"quotes\" and a second line");
+            ElasticSearchBulk.submit(client,config,item,100,10000000L,200L);
+            outcomes[index] = item;
+          }
+          catch (Throwable e)
+          {
+            outcomes[index] = e;
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads)
+    {
+      thread.join();
+    }
+    // Everything went in one request, sent when the linger time ran out
+    assertEquals(1,bulkRequests.get());
+    for (int i = 0; i < ids.length; i++)
+    {
+      if (ids[i].indexOf("busy") != -1)
+      {
+        assertTrue("Busy item should be retried: "+outcomes[i],outcomes[i] instanceof ServiceInterruption);
+        continue;
+      }
+      assertTrue("Unexpected outcome for "+ids[i]+": "+outcomes[i],outcomes[i] instanceof ElasticSearchBulk.Item);
+      ElasticSearchBulk.Item item = (ElasticSearchBulk.Item)outcomes[i];
+      if (ids[i].indexOf("bad") != -1)
+      {
+        assertEquals(Result.ERROR,item.getResult());
+        assertTrue(item.getResultDescription(),item.getResultDescription().indexOf("mapper_parsing_exception") != -1);
+      }
+      else
+        assertEquals(ids[i],Result.OK,item.getResult());
+    }
+    assertEquals(5,indexedIds.size());
+  }
+
+  @Test
+  public void unreadableDocumentFailsAlone()
+    throws Exception
+  {
+    final String[] ids = new String[]{"http://host/good1","http://host/unreadable","http://host/good2"};
+    final Object[] outcomes = new Object[ids.length];
+    final ElasticSearchBulk.Item[] items = new ElasticSearchBulk.Item[ids.length];
+    Thread[] threads = new Thread[ids.length];
+    for (int i = 0; i < ids.length; i++)
+    {
+      final int index = i;
+      threads[i] = new Thread()
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            if (ids[index].indexOf("unreadable") != -1)
+              items[index] = makeIndexItem(ids[index],new UnreadableInputStream(),100L);
+            else
+              items[index] = makeIndexItem(ids[index],"Content of "+ids[index]);
+            ElasticSearchBulk.submit(client,config,items[index],100,10000000L,200L);
+            outcomes[index] = items[index];
+          }
+          catch (Throwable e)
+          {
+            outcomes[index] = e;
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads)
+    {
+      thread.join();
+    }
+    // The other documents still went, in one well formed request
+    assertEquals(1,bulkRequests.get());
+    assertEquals(Arrays.asList("http://host/good1","http://host/good2"),sorted(indexedIds));
+    assertTrue("Unreadable document should be retried: "+outcomes[1],outcomes[1] instanceof ServiceInterruption);
+    assertEquals(Result.ERROR,items[1].getResult());
+    assertEquals("IOEXCEPTION",items[1].getResultCode());
+    assertSame(items[0],outcomes[0]);
+    assertEquals(Result.OK,items[0].getResult());
+    assertSame(items[2],outcomes[2]);
+    assertEquals(Result.OK,items[2].getResult());
+  }
+
+  @Test
+  public void batchesAreBounded()
+    throws Exception
+  {
+    final AtomicInteger failures = new AtomicInteger(0);
+    Thread[] threads = new Thread[12];
+    for (int i = 0; i < threads.length; i++)
+    {
+      final int index = i;
+      threads[i] = new Thread()
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            ElasticSearchBulk.Item item = makeIndexItem("http://host/doc"+index,"Some content");
+            ElasticSearchBulk.submit(client,config,item,4,10000000L,60000L);
+            if (item.getResult() != Result.OK)
+              failures.incrementAndGet();
+          }
+          catch (Throwable e)
+          {
+            failures.incrementAndGet();
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads)
+    {
+      thread.join(30000L);
+    }
+    // Four documents fill a batch, so nobody waits for the minute-long linger time
+    assertEquals(0,failures.get());
+    assertEquals(3,bulkRequests.get());
+    assertEquals(12,indexedIds.size());
+  }
+
+  @Test
+  public void throughput()
+    throws Exception
+  {
+    Assume.assumeTrue(Boolean.getBoolean("org.apache.manifoldcf.test.benchmark"));
+    final int threadCount = 32;
+    final int documentsPerThread = 50;
+    for (int pass = 0; pass < 2; pass++)
+    {
+      long[] times = new long[2];
+      for (int mode = 0; mode < 2; mode++)
+      {
+        final boolean bulk = (mode == 1);
+        final AtomicInteger failures = new AtomicInteger(0);
+        Thread[] threads = new Thread[threadCount];
+        long startTime = System.nanoTime();
+        for (int t = 0; t < threadCount; t++)
+        {
+          final int threadNumber = t;
+          threads[t] = new Thread()
+          {
+            @Override
+            public void run()
+            {
+              try
+              {
+                for (int i = 0; i < documentsPerThread; i++)
+                {
+                  String id = "http://host/t"+threadNumber+"/doc"+i;
+                  String content = "Document body "+i+" of thread "+threadNumber;
+                  if (bulk)
+                  {
+                    // A batch holds one document from each thread, so it fills without waiting for the linger time
+                    ElasticSearchBulk.Item item = makeIndexItem(id,content);
+                    ElasticSearchBulk.submit(client,config,item,threadCount,10000000L,20L);
+                    if (item.getResult() != Result.OK)
+                      failures.incrementAndGet();
+                  }
+                  else
+                  {
+                    byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+                    RepositoryDocument document = new RepositoryDocument();
+                    InputStream is = new ByteArrayInputStream(bytes);
+                    document.setBinary(is,bytes.length);
+                    ElasticSearchIndex oi = new ElasticSearchIndex(client,config);
+                    oi.execute(id,document,is,null,null,null,null,null,null);
+                    if (oi.getResult() != Result.OK)
+                      failures.incrementAndGet();
+                  }
+                }
+              }
+              catch (Throwable e)
+              {
+                failures.incrementAndGet();
+              }
+            }
+          };
+          threads[t].start();
+        }
+        for (Thread thread : threads)
+        {
+          thread.join();
+        }
+        times[mode] = System.nanoTime() - startTime;
+        assertEquals(0,failures.get());
+      }
+      if (pass == 1)
+      {
+        long documents = threadCount * documentsPerThread;
+        assertTrue(documents+" documents from "+threadCount+" threads, "+REQUEST_LATENCY+" ms per request: one at a time "+
+          (documents * 1000000000L / times[0])+" docs/s; bulk "+(documents * 1000000000L / times[1])+" docs/s",times[1] < times[0]);
+      }
+    }
+  }
+
+  protected static ElasticSearchBulk.IndexItem makeIndexItem(String id, String content)
+    throws Exception
+  {
+    byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+    return makeIndexItem(id,new ByteArrayInputStream(bytes),bytes.length);
+  }
+
+  protected static ElasticSearchBulk.IndexItem makeIndexItem(String id, InputStream is, long length)
+    throws Exception
+  {
+    RepositoryDocument document = new RepositoryDocument();
+    document.setBinary(is,length);
+    document.addField("title",new String[]{"Title of "+id});
+    return new ElasticSearchBulk.IndexItem(id,new ElasticSearchConfig(new ConfigParams()),document,is,
+      null,null,null,null,null,null);
+  }
+
+  protected static List<String> sorted(List<String> list)
+  {
+    List<String> rval = new ArrayList<String>(list);
+    Collections.sort(rval);
+    return rval;
+  }
+
+  /** A document stream that fails, as one from a repository that goes away would */
+  protected static class UnreadableInputStream extends InputStream
+  {
+    @Override
+    public int read()
+      throws IOException
+    {
+      throw new IOException("Repository went away");
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+      throws IOException
+    {
+      throw new IOException("Repository went away");
+    }
+  }
+
+  /** Answers _bulk requests item by item, and single document puts */
+  protected class StubHandler implements HttpHandler
+  {
+    @Override
+    public void handle(HttpExchange exchange)
+      throws IOException
+    {
+      try
+      {
+        Thread.sleep(REQUEST_LATENCY);
+      }
+      catch (InterruptedException e)
+      {
+        return;
+      }
+      String path = exchange.getRequestURI().getPath();
+      BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody(),StandardCharsets.UTF_8));
+      String response;
+      try
+      {
+        if (path.endsWith("/_bulk"))
+        {
+          bulkRequests.incrementAndGet();
+          StringBuilder sb = new StringBuilder("{\"took\":1,\"errors\":false,\"items\":[");
+          boolean first = true;
+          while (true)
+          {
+            String line = reader.readLine();
+            if (line == null)
+              break;
+            JSONObject action = (JSONObject)new JSONParser().parse(line);
+            String actionName = (String)action.keySet().iterator().next();
+            String id = (String)((JSONObject)action.get(actionName)).get("_id");
+            int status;
+            String error = null;
+            if (actionName.equals("index"))
+            {
+              // The document must be one line of JSON
+              JSONObject source = (JSONObject)new JSONParser().parse(reader.readLine());
+              if (id.indexOf("bad") != -1)
+              {
+                status = 400;
+                error = "{\"type\":\"mapper_parsing_exception\",\"reason\":\"failed to parse\"}";
+              }
+              else if (id.indexOf("busy") != -1)
+              {
+                status = 429;
+                error = "{\"type\":\"es_rejected_execution_exception\",\"reason\":\"queue full\"}";
+              }
+              else
+              {
+                assertNotNull(source.get("file"));
+                status = 201;
+                indexedIds.add(id);
+              }
+            }
+            else
+              status = 404;
+            if (!first)
+              sb.append(",");
+            first = false;
+            sb.append("{\""+actionName+"\":{\"_id\":"+ElasticSearchIndex.jsonStringEscape(id)+",\"status\":"+status+
+              ((error == null)?"":(",\"error\":"+error))+"}}");
+          }
+          sb.append("]}");
+          response = sb.toString();
+        }
+        else
+        {
+          singleRequests.incrementAndGet();
+          while (reader.readLine() != null)
+          {
+          }
+          response = "{\"result\":\"created\"}";
+        }
+      }
+      catch (Exception e)
+      {
+        byte[] bytes = e.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(400,bytes.length);
+        exchange.getResponseBody().write(bytes);
+        exchange.close();
+        return;
+      }
+      byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().add("Content-Type","application/json; charset=UTF-8");
+      exchange.sendResponseHeaders(path.endsWith("/_bulk")?200:201,bytes.length);
+      exchange.getResponseBody().write(bytes);
+      exchange.close();
+    }
+  }
+
+}
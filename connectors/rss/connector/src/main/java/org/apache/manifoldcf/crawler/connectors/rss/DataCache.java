@@ -22,7 +22,6 @@ import org.apache.manifoldcf.core.interfaces.*;
 import org.apache.manifoldcf.agents.interfaces.*;
 import org.apache.manifoldcf.crawler.interfaces.*;
 import org.apache.manifoldcf.crawler.system.Logging;
-import org.apache.manifoldcf.crawler.system.ManifoldCF;
 import java.util.*;
 import java.io.*;
 
@@ -34,7 +33,8 @@ import org.apache.http.HttpException;
 
 /** This class is a cache of a specific URL's data.  It's fetched early and kept,
 * so that (1) an accurate data length can be found, and (2) we can compute a version
-* checksum.
+* checksum.  The data is kept as SpooledData, so small documents stay in pooled memory
+* and large ones go to the shared spool file.
 */
 public class DataCache
 {
@@ -59,25 +59,17 @@ public class DataCache
   public long addData(IProcessActivity activities, String documentIdentifier, String contentType, InputStream dataStream)
     throws ManifoldCFException, ServiceInterruption
   {
-    // Create a temporary file; that's what we will cache
     try
     {
-      File tempFile = File.createTempFile("_rsscache_","tmp");
+      // Fetched data is held in pooled memory, or in the shared spool if it is too large
+      SpooledData data = new SpooledData();
       try
       {
-        // Causes memory leaks if left around; there's no way to release
-        // the record specifying that the file should be deleted, even
-        // after it's removed.  So disable this and live with the occasional
-        // dangling file left as a result of shutdown or error. :-(
-        // tempFile.deleteOnExit();
-        ManifoldCF.addFile(tempFile);
-
-        // Transfer data to temporary file
+        // Transfer data to the cache, computing the checksum as we go
         long checkSum = 0L;
-        OutputStream os = new FileOutputStream(tempFile);
+        byte[] byteArray = BufferPool.allocate(BufferPool.MAX_CHUNK_SIZE);
         try
         {
-          byte[] byteArray = new byte[65536];
           while (true)
           {
             int amt;
@@ -120,48 +112,59 @@ public class DataCache
               checkSum = (checkSum << 5) ^ (checkSum >> 3) ^ (bytevalue << 2) ^ (bytevalue >> 3);
             }
 
-            os.write(byteArray,0,amt);
+            data.write(byteArray,0,amt);
             // Before we go 'round again, do a check
             activities.checkJobStillActive();
           }
         }
         finally
         {
-          os.close();
+          BufferPool.release(byteArray);
         }
+        data.finish();
 
         deleteData(documentIdentifier);
         
         synchronized(this)
         {
-          cacheData.put(documentIdentifier,new DocumentData(tempFile,contentType));
+          cacheData.put(documentIdentifier,new DocumentData(data,contentType));
         }
         
         return checkSum;
       }
       catch (IOException e)
       {
-        ManifoldCF.deleteFile(tempFile);
+        data.discard();
+        throw e;
+      }
+      catch (ManifoldCFException e)
+      {
+        data.discard();
         throw e;
       }
       catch (ServiceInterruption e)
       {
-        ManifoldCF.deleteFile(tempFile);
+        data.discard();
+        throw e;
+      }
+      catch (RuntimeException e)
+      {
+        data.discard();
         throw e;
       }
       catch (Error e)
       {
-        ManifoldCF.deleteFile(tempFile);
+        data.discard();
         throw e;
       }
     }
     catch (java.net.SocketTimeoutException e)
     {
-      throw new ManifoldCFException("Socket timeout exception creating temporary file: "+e.getMessage(),e);
+      throw new ManifoldCFException("Socket timeout exception caching data: "+e.getMessage(),e);
     }
     catch (ConnectTimeoutException e)
     {
-      throw new ManifoldCFException("Socket connect timeout exception creating temporary file: "+e.getMessage(),e);
+      throw new ManifoldCFException("Socket connect timeout exception caching data: "+e.getMessage(),e);
     }
     catch (InterruptedIOException e)
     {
@@ -169,7 +172,7 @@ public class DataCache
     }
     catch (IOException e)
     {
-      throw new ManifoldCFException("IO exception creating temporary file: "+e.getMessage(),e);
+      throw new ManifoldCFException("IO exception caching data: "+e.getMessage(),e);
     }
   }
 
@@ -187,7 +190,7 @@ public class DataCache
     }
     if (f == null)
       return 0L;
-    return f.getData().length();
+    return f.getData().getLength();
   }
 
   /** Fetch binary data entry from the cache.
@@ -206,11 +209,11 @@ public class DataCache
       return null;
     try
     {
-      return new FileInputStream(f.getData());
+      return f.getData().getInputStream();
     }
     catch (IOException e)
     {
-      throw new ManifoldCFException("IO exception getting data length: "+e.getMessage(),e);
+      throw new ManifoldCFException("IO exception opening data: "+e.getMessage(),e);
     }
   }
 
@@ -242,7 +245,7 @@ public class DataCache
     }
     if (f != null)
     {
-      ManifoldCF.deleteFile(f.getData());
+      f.getData().discard();
     }
   }
 
@@ -253,20 +256,20 @@ public class DataCache
   */
   protected static class DocumentData
   {
-    /** The cache file for the data */
-    protected File data;
+    /** The data */
+    protected SpooledData data;
     /** The content-type header value */
     protected String contentType;
 
     /** Constructor. */
-    public DocumentData(File data, String contentType)
+    public DocumentData(SpooledData data, String contentType)
     {
       this.data = data;
       this.contentType = contentType;
     }
 
     /** Get the data */
-    public File getData()
+    public SpooledData getData()
     {
       return data;
     }
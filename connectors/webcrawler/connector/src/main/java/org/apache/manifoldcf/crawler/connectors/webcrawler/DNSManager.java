@@ -19,7 +19,9 @@
 package org.apache.manifoldcf.crawler.connectors.webcrawler;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
+import java.net.*;
 import org.apache.manifoldcf.core.interfaces.*;
 import org.apache.manifoldcf.crawler.interfaces.*;
 import org.apache.manifoldcf.authorities.interfaces.*;
@@ -32,6 +34,8 @@ import org.apache.manifoldcf.crawler.system.Logging;
 * as well as in cache (up to a certain point).  The result is that there is a memory limited, database-backed repository
 * of DNS entries that we can draw on.
 * Note that this code is also responsible for efficiently caching the mapping of IP address to a canonical host name.
+* In front of both sits a process-local HostDataCache, so a host's row is read at most once per process until it
+* expires; entries close to expiring are resolved again in the background, so lookups don't stall when they do.
 * 
 * <br><br>
 * <b>dnsdata</b>
@@ -50,9 +54,25 @@ public class DNSManager extends org.apache.manifoldcf.core.database.BaseTable
 {
   public static final String _rcsid = "@(#)$Id: DNSManager.java 988245 2010-08-23 18:39:35Z kwright $";
 
+  /** The property that sets the most hosts whose DNS results are kept in the process-local cache */
+  public final static String PROPERTY_DNS_CACHE_SIZE = "org.apache.manifoldcf.crawler.connectors.webcrawler.dnscache.size";
+  /** The default number of hosts */
+  public final static int DEFAULT_DNS_CACHE_SIZE = 100000;
+  /** How long a DNS result is good for */
+  public final static long DNS_EXPIRATION_INTERVAL = 1000L*60L*60L*6L;
+  /** The most background refreshes waiting to be done; past this, entries simply expire */
+  protected final static int MAX_PENDING_REFRESHES = 1000;
+  /** The number of threads doing background refreshes */
+  protected final static int REFRESH_THREADS = 2;
+
   // Robots cache class.  Only one needed.
   protected static DNSCacheClass dnsCacheClass = new DNSCacheClass();
 
+  /** The process-local cache of DNS results */
+  protected final static HostDataCache<DNSInfo> localCache = new HostDataCache<DNSInfo>("DNS",DEFAULT_DNS_CACHE_SIZE);
+  /** The executor for background refreshes; started when first needed.  Guarded by localCache. */
+  protected static ThreadPoolExecutor refreshExecutor = null;
+
   // Database fields
   protected final static String hostField = "hostname";
   protected final static String fqdnField = "canonicalhostname";
@@ -72,6 +92,7 @@ public class DNSManager extends org.apache.manifoldcf.core.database.BaseTable
   {
     super(database,"dnsdata");
     cacheManager = CacheManagerFactory.make(tc);
+    localCache.setMaxEntries(LockManagerFactory.getIntProperty(tc,PROPERTY_DNS_CACHE_SIZE,DEFAULT_DNS_CACHE_SIZE));
   }
 
   /** Install the manager.
@@ -123,6 +144,15 @@ public class DNSManager extends org.apache.manifoldcf.core.database.BaseTable
   public DNSInfo lookup(String hostName, long currentTime)
     throws ManifoldCFException
   {
+    HostDataCache.Entry<DNSInfo> entry = localCache.lookup(hostName,currentTime);
+    if (entry != null)
+    {
+      if (localCache.claimRefresh(entry,currentTime))
+        refreshInBackground(hostName);
+      return entry.getValue();
+    }
+    long generation = localCache.getGeneration(hostName);
+
     // Build description objects
     HostDescription[] objectDescriptions = new HostDescription[1];
     StringSetBuffer ssb = new StringSetBuffer();
@@ -136,9 +166,36 @@ public class DNSManager extends org.apache.manifoldcf.core.database.BaseTable
     DNSInfo rd = exec.getResults();
     if (rd == null || rd.getExpirationTime() <= currentTime)
       return null;
+    localCache.save(hostName,rd,rd.getExpirationTime(),currentTime,generation);
     return rd;
   }
 
+  /** Resolve a host name.
+  *@param hostName is the host.
+  *@param currentTime is the current time.
+  *@return the DNS data, with a null ip address if the host is unknown.
+  */
+  public static DNSInfo resolve(String hostName, long currentTime)
+  {
+    InetAddress ip = null;
+    try
+    {
+      ip = InetAddress.getByName(hostName);
+    }
+    catch (UnknownHostException e)
+    {
+      // Host is unknown, so leave ipAddress as null.
+    }
+    String fqdn = null;
+    String ipAddress = null;
+    if (ip != null)
+    {
+      fqdn = ip.getCanonicalHostName();
+      ipAddress = ip.getHostAddress();
+    }
+    return new DNSInfo(ipAddress,fqdn,currentTime + DNS_EXPIRATION_INTERVAL,hostName);
+  }
+
   /** Write DNS data, replacing any existing row.
   *@param hostName is the host.
   *@param fqdn is the canonical host name.
@@ -205,10 +262,31 @@ public class DNSManager extends org.apache.manifoldcf.core.database.BaseTable
     {
       cacheManager.leaveCache(ch);
     }
+    localCache.put(hostName,new DNSInfo((ipaddress.length() == 0)?null:ipaddress,(fqdn.length() == 0)?null:fqdn,expirationTime,hostName),
+      expirationTime,System.currentTimeMillis());
   }
 
   // Protected methods and classes
 
+  /** Resolve a host again on a background thread, and write the result.
+  */
+  protected static void refreshInBackground(String hostName)
+  {
+    ThreadPoolExecutor executor;
+    synchronized (localCache)
+    {
+      if (refreshExecutor == null)
+      {
+        refreshExecutor = new ThreadPoolExecutor(REFRESH_THREADS,REFRESH_THREADS,60L,TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(MAX_PENDING_REFRESHES),new RefreshThreadFactory(),
+          new ThreadPoolExecutor.DiscardPolicy());
+        refreshExecutor.allowCoreThreadTimeOut(true);
+      }
+      executor = refreshExecutor;
+    }
+    executor.execute(new RefreshTask(hostName));
+  }
+
   /** Construct a key which represents an individual host name.
   *@param hostName is the name of the connector.
   *@return the cache key.
@@ -286,6 +364,53 @@ public class DNSManager extends org.apache.manifoldcf.core.database.BaseTable
 
   }
 
+  /** A background refresh of one host.  The result goes to the database, for other processes, as well as to the
+  * process-local cache.
+  */
+  protected static class RefreshTask implements Runnable
+  {
+    protected final String hostName;
+
+    public RefreshTask(String hostName)
+    {
+      this.hostName = hostName;
+    }
+
+    public void run()
+    {
+      try
+      {
+        DNSInfo info = resolve(hostName,System.currentTimeMillis());
+        IThreadContext tc = ThreadContextFactory.make();
+        IDBInterface database = DBInterfaceFactory.make(tc,
+          ManifoldCF.getMasterDatabaseName(),
+          ManifoldCF.getMasterDatabaseUsername(),
+          ManifoldCF.getMasterDatabasePassword());
+        new DNSManager(tc,database).writeDNSData(hostName,info.getFQDN(),info.getIPAddress(),info.getExpirationTime());
+      }
+      catch (ManifoldCFException e)
+      {
+        // The cached entry will simply expire, and be looked up by a worker thread
+        Logging.connectors.warn("Web: Background DNS refresh of '"+hostName+"' failed: "+e.getMessage(),e);
+      }
+      catch (RuntimeException e)
+      {
+        Logging.connectors.warn("Web: Background DNS refresh of '"+hostName+"' failed: "+e.getMessage(),e);
+      }
+    }
+  }
+
+  /** Makes the daemon threads of the background refresh executor */
+  protected static class RefreshThreadFactory implements ThreadFactory
+  {
+    public Thread newThread(Runnable r)
+    {
+      Thread t = new Thread(r,"Web DNS refresh");
+      t.setDaemon(true);
+      return t;
+    }
+  }
+
   /** This is the object description for a robots host object.
   * This is the key that is used to look up cached data.
   */
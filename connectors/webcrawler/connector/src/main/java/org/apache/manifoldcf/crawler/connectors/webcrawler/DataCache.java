@@ -22,7 +22,6 @@ import org.apache.manifoldcf.core.interfaces.*;
 import org.apache.manifoldcf.agents.interfaces.*;
 import org.apache.manifoldcf.crawler.interfaces.*;
 import org.apache.manifoldcf.crawler.system.Logging;
-import org.apache.manifoldcf.crawler.system.ManifoldCF;
 import java.util.*;
 import java.io.*;
 
@@ -34,7 +33,8 @@ import org.apache.http.HttpException;
 
 /** This class is a cache of a specific URL's data.  It's fetched early and kept,
 * so that (1) an accurate data length can be found, and (2) we can compute a version
-* checksum.
+* checksum.  The data is kept as SpooledData, so small documents stay in pooled memory
+* and large ones go to the shared spool file.
 */
 public class DataCache
 {
@@ -68,7 +68,6 @@ public class DataCache
     String contentType = connection.getResponseHeader("Content-Type");
     String referralURI = connection.getResponseHeader("Location");
 
-    // Create a temporary file; that's what we will cache
     try
     {
       // First, get the stream.
@@ -77,22 +76,15 @@ public class DataCache
         return null;
       try
       {
-        File tempFile = File.createTempFile("_webcache_","tmp");
+        // Fetched data is held in pooled memory, or in the shared spool if it is too large
+        SpooledData data = new SpooledData();
         try
         {
-          // Causes memory leaks if left around; there's no way to release
-          // the record specifying that the file should be deleted, even
-          // after it's removed.  So disable this and live with the occasional
-          // dangling file left as a result of shutdown or error. :-(
-          // tempFile.deleteOnExit();
-          ManifoldCF.addFile(tempFile);
-
-          // Transfer data to temporary file
+          // Transfer data to the cache, computing the checksum as we go
           long checkSum = 0L;
-          OutputStream os = new FileOutputStream(tempFile);
+          byte[] byteArray = BufferPool.allocate(BufferPool.MAX_CHUNK_SIZE);
           try
           {
-            byte[] byteArray = new byte[65536];
             while (true)
             {
               int amt;
@@ -136,42 +128,48 @@ public class DataCache
                 checkSum = (checkSum << 5) ^ (checkSum >> 3) ^ (bytevalue << 2) ^ (bytevalue >> 3);
               }
 
-              os.write(byteArray,0,amt);
+              data.write(byteArray,0,amt);
               // Check if job is alive before looping
               activities.checkJobStillActive();
             }
           }
           finally
           {
-            os.close();
+            BufferPool.release(byteArray);
           }
+          data.finish();
 
           synchronized(this)
           {
             deleteData(documentIdentifier);
-            cacheData.put(documentIdentifier,new DocumentData(tempFile,responseCode,contentType,referralURI));
+            cacheData.put(documentIdentifier,new DocumentData(data,responseCode,contentType,referralURI));
             return new Long(checkSum).toString();
           }
 
         }
         catch (IOException e)
         {
-          ManifoldCF.deleteFile(tempFile);
+          data.discard();
           throw e;
         }
         catch (ManifoldCFException e)
         {
-          ManifoldCF.deleteFile(tempFile);
+          data.discard();
           throw e;
         }
         catch (ServiceInterruption e)
         {
-          ManifoldCF.deleteFile(tempFile);
+          data.discard();
+          throw e;
+        }
+        catch (RuntimeException e)
+        {
+          data.discard();
           throw e;
         }
         catch (Error e)
         {
-          ManifoldCF.deleteFile(tempFile);
+          data.discard();
           throw e;
         }
       }
@@ -203,11 +201,11 @@ public class DataCache
     }
     catch (java.net.SocketTimeoutException e)
     {
-      throw new ManifoldCFException("Socket timeout exception creating temporary file: "+e.getMessage(),e);
+      throw new ManifoldCFException("Socket timeout exception caching data: "+e.getMessage(),e);
     }
     catch (ConnectTimeoutException e)
     {
-      throw new ManifoldCFException("Socket connect timeout exception creating temporary file: "+e.getMessage(),e);
+      throw new ManifoldCFException("Socket connect timeout exception caching data: "+e.getMessage(),e);
     }
     catch (InterruptedIOException e)
     {
@@ -216,7 +214,7 @@ public class DataCache
     }
     catch (IOException e)
     {
-      throw new ManifoldCFException("IO exception creating temporary file: "+e.getMessage(),e);
+      throw new ManifoldCFException("IO exception caching data: "+e.getMessage(),e);
     }
   }
 
@@ -265,7 +263,7 @@ public class DataCache
     DocumentData dd = cacheData.get(documentIdentifier);
     if (dd == null)
       return 0L;
-    return dd.getData().length();
+    return dd.getData().getLength();
   }
 
   /** Fetch binary data entry from the cache.
@@ -280,11 +278,11 @@ public class DataCache
       return null;
     try
     {
-      return new FileInputStream(dd.getData());
+      return dd.getData().getInputStream();
     }
-    catch (FileNotFoundException e)
+    catch (IOException e)
     {
-      throw new ManifoldCFException("File not found exception opening data: "+e.getMessage(),e);
+      throw new ManifoldCFException("IO exception opening data: "+e.getMessage(),e);
     }
   }
 
@@ -296,7 +294,7 @@ public class DataCache
     DocumentData dd = cacheData.remove(documentIdentifier);
     if (dd != null)
     {
-      ManifoldCF.deleteFile(dd.getData());
+      dd.getData().discard();
     }
   }
 
@@ -307,8 +305,8 @@ public class DataCache
   */
   protected static class DocumentData
   {
-    /** The cache file for the data */
-    protected File data;
+    /** The data */
+    protected SpooledData data;
     /** The response code */
     protected int responseCode;
     /** The content-type header value */
@@ -319,7 +317,7 @@ public class DataCache
     // More will probably go here later, but I can't think of much else at the moment.
 
     /** Constructor. */
-    public DocumentData(File data, int responseCode, String contentType, String referralURI)
+    public DocumentData(SpooledData data, int responseCode, String contentType, String referralURI)
     {
       this.data = data;
       this.responseCode = responseCode;
@@ -328,7 +326,7 @@ public class DataCache
     }
 
     /** Get the data */
-    public File getData()
+    public SpooledData getData()
     {
       return data;
     }
@@ -200,4 +200,24 @@ public class FormParseState extends LinkParseState
     return false;
   }
 
+  @Override
+  protected int noteNormalCharacters(char[] buffer, int offset, int len)
+    throws ManifoldCFException
+  {
+    if (formParseState == FORMPARSESTATE_IN_OPTION)
+    {
+      if (optionValueText != null)
+        optionValueText.append(buffer,offset,len);
+    }
+    else
+    {
+      int end = offset + len;
+      for (int i = offset; i < end; i++)
+      {
+        handler.noteTextCharacter(buffer[i]);
+      }
+    }
+    return -1;
+  }
+
 }
@@ -0,0 +1,320 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.connectors.webcrawler;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import org.apache.manifoldcf.crawler.system.Logging;
+
+/** This class is a process-local, bounded cache of per-host data that has an expiration time, such as DNS results
+* and parsed robots.txt rules.  It sits in front of the database tables that hold the same data, so that a crawl
+* touching many hosts only goes to the database when a host is first seen by this process, or when its data has
+* expired.  Entries for hosts that could not be resolved, or that have no usable robots.txt, are cached like any
+* other.
+*
+* Entries are divided among segments by host, each a least-recently-used map with its own lock, so that threads
+* working on different hosts do not wait for each other.  An entry becomes due for refresh once most of its
+* lifetime has passed; the first caller to claim the refresh is expected to replace the entry before it expires,
+* while everyone else keeps using it.
+*
+* Entries written by this process replace what is cached here.  Data written by another process is picked up once
+* the cached entry expires, which is also when that data would have been written again anyway.
+*/
+public class HostDataCache<T>
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  /** Number of segments */
+  protected final static int SEGMENT_COUNT = 16;
+  /** An entry is due for refresh once this fraction of its lifetime remains, as a divisor */
+  protected final static long REFRESH_DIVISOR = 10L;
+  /** How often the hit rate is logged */
+  protected final static long REPORT_INTERVAL = 60000L;
+
+  /** The name of the cache, for logging */
+  protected final String name;
+  protected final Segment<T>[] segments;
+  /** The most entries in each segment */
+  protected volatile int maxSegmentEntries;
+
+  protected final AtomicLong hits = new AtomicLong(0L);
+  protected final AtomicLong misses = new AtomicLong(0L);
+  protected final AtomicLong refreshes = new AtomicLong(0L);
+  protected final AtomicLong evictions = new AtomicLong(0L);
+  protected final AtomicLong lastReportTime = new AtomicLong(0L);
+
+  /** Constructor.
+  *@param name is the name of the cache, for logging.
+  *@param maxEntries is the most hosts to cache.
+  */
+  @SuppressWarnings("unchecked")
+  public HostDataCache(String name, int maxEntries)
+  {
+    this.name = name;
+    segments = new Segment[SEGMENT_COUNT];
+    for (int i = 0; i < segments.length; i++)
+    {
+      segments[i] = new Segment<T>();
+    }
+    setMaxEntries(maxEntries);
+  }
+
+  /** Set the most hosts to cache.  Excess entries are removed as new entries are added.
+  */
+  public void setMaxEntries(int maxEntries)
+  {
+    maxSegmentEntries = Math.max(1,(maxEntries + SEGMENT_COUNT - 1) / SEGMENT_COUNT);
+  }
+
+  /** Look up a host's entry.
+  *@param hostName is the host.
+  *@param currentTime is the current time.
+  *@return the entry, or null if there is none that has not expired.
+  */
+  public Entry<T> lookup(String hostName, long currentTime)
+  {
+    Segment<T> segment = getSegment(hostName);
+    Entry<T> rval;
+    synchronized (segment)
+    {
+      rval = segment.entries.get(hostName);
+      if (rval != null && rval.expiration <= currentTime)
+      {
+        segment.entries.remove(hostName);
+        rval = null;
+      }
+    }
+    if (rval == null)
+      misses.incrementAndGet();
+    else
+      hits.incrementAndGet();
+    reportIfDue();
+    return rval;
+  }
+
+  /** Get the invalidation counter for a host.  Call this before reading the host's data from the database, and
+  * pass the result to save().
+  */
+  public long getGeneration(String hostName)
+  {
+    Segment<T> segment = getSegment(hostName);
+    synchronized (segment)
+    {
+      return segment.generation;
+    }
+  }
+
+  /** Save data read from the database, unless data for a host in the same segment was written since it was read.
+  *@param hostName is the host.
+  *@param value is the data.
+  *@param expiration is the time the data expires.
+  *@param currentTime is the current time.
+  *@param generation is the invalidation counter from before the data was read.
+  */
+  public void save(String hostName, T value, long expiration, long currentTime, long generation)
+  {
+    Segment<T> segment = getSegment(hostName);
+    synchronized (segment)
+    {
+      if (segment.generation != generation)
+        return;
+      add(segment,hostName,new Entry<T>(value,expiration,currentTime));
+    }
+  }
+
+  /** Save data that was just written to the database, replacing any entry for the host.
+  *@param hostName is the host.
+  *@param value is the data.
+  *@param expiration is the time the data expires.
+  *@param currentTime is the current time.
+  */
+  public void put(String hostName, T value, long expiration, long currentTime)
+  {
+    Segment<T> segment = getSegment(hostName);
+    synchronized (segment)
+    {
+      segment.generation++;
+      add(segment,hostName,new Entry<T>(value,expiration,currentTime));
+    }
+  }
+
+  /** Remove a host's entry, and turn away saves of data read before now.
+  */
+  public void invalidate(String hostName)
+  {
+    Segment<T> segment = getSegment(hostName);
+    synchronized (segment)
+    {
+      segment.generation++;
+      segment.entries.remove(hostName);
+    }
+  }
+
+  /** Remove every entry.
+  */
+  public void invalidateAll()
+  {
+    for (Segment<T> segment : segments)
+    {
+      synchronized (segment)
+      {
+        segment.generation++;
+        segment.entries.clear();
+      }
+    }
+  }
+
+  /** Claim the refresh of an entry, if it is due.
+  *@return true if the caller should get new data for the host.  Only one caller gets true for each entry.
+  */
+  public boolean claimRefresh(Entry<T> entry, long currentTime)
+  {
+    if (currentTime < entry.refreshTime || !entry.refreshClaimed.compareAndSet(false,true))
+      return false;
+    refreshes.incrementAndGet();
+    return true;
+  }
+
+  /** Claim the refresh of a host's entry, if it has one and it is due.
+  *@return true if the caller should get new data for the host.  Only one caller gets true for each entry.
+  */
+  public boolean claimRefresh(String hostName, long currentTime)
+  {
+    Segment<T> segment = getSegment(hostName);
+    Entry<T> entry;
+    synchronized (segment)
+    {
+      entry = segment.entries.get(hostName);
+    }
+    if (entry == null || entry.expiration <= currentTime)
+      return false;
+    return claimRefresh(entry,currentTime);
+  }
+
+  /** Get the number of lookups answered from the cache. */
+  public long getHits()
+  {
+    return hits.get();
+  }
+
+  /** Get the number of lookups that found nothing usable. */
+  public long getMisses()
+  {
+    return misses.get();
+  }
+
+  /** Get the number of refreshes claimed. */
+  public long getRefreshes()
+  {
+    return refreshes.get();
+  }
+
+  /** Get the number of entries removed to make room. */
+  public long getEvictions()
+  {
+    return evictions.get();
+  }
+
+  /** Get the number of hosts cached. */
+  public int getSize()
+  {
+    int rval = 0;
+    for (Segment<T> segment : segments)
+    {
+      synchronized (segment)
+      {
+        rval += segment.entries.size();
+      }
+    }
+    return rval;
+  }
+
+  protected Segment<T> getSegment(String hostName)
+  {
+    int hash = hostName.hashCode();
+    return segments[((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % SEGMENT_COUNT];
+  }
+
+  /** Add an entry, removing the least recently used ones past the limit.  Call with the segment locked. */
+  protected void add(Segment<T> segment, String hostName, Entry<T> entry)
+  {
+    segment.entries.put(hostName,entry);
+    Iterator<String> iter = segment.entries.keySet().iterator();
+    while (segment.entries.size() > maxSegmentEntries && iter.hasNext())
+    {
+      iter.next();
+      iter.remove();
+      evictions.incrementAndGet();
+    }
+  }
+
+  /** Log the hit rate, at most once a minute. */
+  protected void reportIfDue()
+  {
+    if (!Logging.perf.isDebugEnabled())
+      return;
+    long now = System.currentTimeMillis();
+    long last = lastReportTime.get();
+    if (now - last < REPORT_INTERVAL || !lastReportTime.compareAndSet(last,now))
+      return;
+    long hitCount = hits.get();
+    long total = hitCount + misses.get();
+    Logging.perf.debug("Web: "+name+" host cache: "+hitCount+" hits in "+total+" lookups ("+
+      ((total == 0L)?0L:(hitCount * 100L / total))+"%), "+getSize()+" hosts cached, "+refreshes.get()+" refreshes, "+
+      evictions.get()+" evictions");
+  }
+
+  /** The cached data of one host */
+  public static class Entry<T>
+  {
+    protected final T value;
+    protected final long expiration;
+    protected final long refreshTime;
+    protected final AtomicBoolean refreshClaimed = new AtomicBoolean(false);
+
+    protected Entry(T value, long expiration, long currentTime)
+    {
+      this.value = value;
+      this.expiration = expiration;
+      this.refreshTime = expiration - Math.max(0L,expiration - currentTime) / REFRESH_DIVISOR;
+    }
+
+    /** Get the data */
+    public T getValue()
+    {
+      return value;
+    }
+
+    /** Get the time the data expires */
+    public long getExpirationTime()
+    {
+      return expiration;
+    }
+  }
+
+  /** One segment of the cache */
+  protected static class Segment<T>
+  {
+    /** The entries, least recently used first.  Guarded by this. */
+    protected final LinkedHashMap<String,Entry<T>> entries = new LinkedHashMap<String,Entry<T>>(16,0.75f,true);
+    /** Invalidation counter.  Guarded by this. */
+    protected long generation = 0L;
+  }
+
+}
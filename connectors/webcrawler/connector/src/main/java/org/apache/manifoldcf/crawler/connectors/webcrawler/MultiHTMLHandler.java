@@ -0,0 +1,169 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.connectors.webcrawler;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import java.util.*;
+
+/** This class passes everything found in an HTML document on to several handlers, so that a document
+* that is wanted for more than one purpose is parsed only once.  Each handler sees exactly what it would
+* see if the document were parsed for it alone.
+*/
+public class MultiHTMLHandler implements IHTMLHandler
+{
+  protected final List<IHTMLHandler> handlers = new ArrayList<IHTMLHandler>();
+
+  public MultiHTMLHandler()
+  {
+  }
+
+  /** Add a handler. */
+  public void addHandler(IHTMLHandler handler)
+  {
+    handlers.add(handler);
+  }
+
+  /** Get the number of handlers. */
+  public int getHandlerCount()
+  {
+    return handlers.size();
+  }
+
+  /** Inform the world of a discovered link. */
+  @Override
+  public void noteDiscoveredLink(String rawURL)
+    throws ManifoldCFException
+  {
+    for (IHTMLHandler handler : handlers)
+    {
+      handler.noteDiscoveredLink(rawURL);
+    }
+  }
+
+  /** Note a meta tag */
+  @Override
+  public void noteMetaTag(Map metaAttributes)
+    throws ManifoldCFException
+  {
+    for (IHTMLHandler handler : handlers)
+    {
+      handler.noteMetaTag(metaAttributes);
+    }
+  }
+
+  /** Note the start of a form */
+  @Override
+  public void noteFormStart(Map formAttributes)
+    throws ManifoldCFException
+  {
+    for (IHTMLHandler handler : handlers)
+    {
+      handler.noteFormStart(formAttributes);
+    }
+  }
+
+  /** Note an input tag */
+  @Override
+  public void noteFormInput(Map inputAttributes)
+    throws ManifoldCFException
+  {
+    for (IHTMLHandler handler : handlers)
+    {
+      handler.noteFormInput(inputAttributes);
+    }
+  }
+
+  /** Note the end of a form */
+  @Override
+  public void noteFormEnd()
+    throws ManifoldCFException
+  {
+    for (IHTMLHandler handler : handlers)
+    {
+      handler.noteFormEnd();
+    }
+  }
+
+  /** Note discovered href */
+  @Override
+  public void noteAHREF(String rawURL)
+    throws ManifoldCFException
+  {
+    for (IHTMLHandler handler : handlers)
+    {
+      handler.noteAHREF(rawURL);
+    }
+  }
+
+  /** Note discovered href */
+  @Override
+  public void noteLINKHREF(String rawURL)
+    throws ManifoldCFException
+  {
+    for (IHTMLHandler handler : handlers)
+    {
+      handler.noteLINKHREF(rawURL);
+    }
+  }
+
+  /** Note discovered IMG SRC */
+  @Override
+  public void noteIMGSRC(String rawURL)
+    throws ManifoldCFException
+  {
+    for (IHTMLHandler handler : handlers)
+    {
+      handler.noteIMGSRC(rawURL);
+    }
+  }
+
+  /** Note discovered FRAME SRC */
+  @Override
+  public void noteFRAMESRC(String rawURL)
+    throws ManifoldCFException
+  {
+    for (IHTMLHandler handler : handlers)
+    {
+      handler.noteFRAMESRC(rawURL);
+    }
+  }
+
+  /** Note a character of text. */
+  @Override
+  public void noteTextCharacter(char textCharacter)
+    throws ManifoldCFException
+  {
+    for (int i = 0; i < handlers.size(); i++)
+    {
+      handlers.get(i).noteTextCharacter(textCharacter);
+    }
+  }
+
+  /** Done with the document. */
+  @Override
+  public void finishUp()
+    throws ManifoldCFException
+  {
+    for (IHTMLHandler handler : handlers)
+    {
+      handler.finishUp();
+    }
+  }
+
+}
@@ -31,7 +31,9 @@ import org.apache.manifoldcf.crawler.system.Logging;
 
 /** This class manages the database table into which we write robots.txt files for hosts.  The data resides in the database,
 * as well as in cache (up to a certain point).  The result is that there is a memory limited, database-backed repository
-* of robots files that we can draw on.
+* of robots files that we can draw on.  Parsed robots files are also kept in a process-local HostDataCache, so the
+* rules for a host are read and parsed at most once per process until they expire, and each record's rules are
+* compiled into a path trie, so checking a path costs one walk down the path rather than a match against each rule.
 * 
 * <br><br>
 * <b>robotsdata</b>
@@ -49,9 +51,17 @@ public class RobotsManager extends org.apache.manifoldcf.core.database.BaseTable
 {
   public static final String _rcsid = "@(#)$Id: RobotsManager.java 988245 2010-08-23 18:39:35Z kwright $";
 
+  /** The property that sets the most hosts whose parsed robots files are kept in the process-local cache */
+  public final static String PROPERTY_ROBOTS_CACHE_SIZE = "org.apache.manifoldcf.crawler.connectors.webcrawler.robotscache.size";
+  /** The default number of hosts */
+  public final static int DEFAULT_ROBOTS_CACHE_SIZE = 20000;
+
   // Robots cache class.  Only one needed.
   protected static RobotsCacheClass robotsCacheClass = new RobotsCacheClass();
 
+  /** The process-local cache of parsed robots files */
+  protected final static HostDataCache<RobotsData> localCache = new HostDataCache<RobotsData>("Robots",DEFAULT_ROBOTS_CACHE_SIZE);
+
   // Database fields
   protected final static String hostField = "hostname";
   protected final static String robotsField = "robotsdata";
@@ -70,6 +80,7 @@ public class RobotsManager extends org.apache.manifoldcf.core.database.BaseTable
   {
     super(database,"robotsdata");
     cacheManager = CacheManagerFactory.make(tc);
+    localCache.setMaxEntries(LockManagerFactory.getIntProperty(tc,PROPERTY_ROBOTS_CACHE_SIZE,DEFAULT_ROBOTS_CACHE_SIZE));
   }
 
   /** Install the manager.
@@ -119,6 +130,11 @@ public class RobotsManager extends org.apache.manifoldcf.core.database.BaseTable
     IProcessActivity activities)
     throws ManifoldCFException
   {
+    HostDataCache.Entry<RobotsData> entry = localCache.lookup(hostName,currentTime);
+    if (entry != null)
+      return new Boolean(entry.getValue().isFetchAllowed(userAgent,pathString));
+    long generation = localCache.getGeneration(hostName);
+
     // Build description objects
     HostDescription[] objectDescriptions = new HostDescription[1];
     StringSetBuffer ssb = new StringSetBuffer();
@@ -133,9 +149,20 @@ public class RobotsManager extends org.apache.manifoldcf.core.database.BaseTable
     RobotsData rd = exec.getResults();
     if (rd == null || rd.getExpirationTime() <= currentTime)
       return null;
+    localCache.save(hostName,rd,rd.getExpirationTime(),currentTime,generation);
     return new Boolean(rd.isFetchAllowed(userAgent,pathString));
   }
 
+  /** Claim the refresh of a host's robots data, if it is close to expiring.
+  *@param hostName is the host.
+  *@param currentTime is the current time.
+  *@return true if the caller should fetch robots.txt again now.  Only one caller gets true until the data is written.
+  */
+  public boolean claimRefresh(String hostName, long currentTime)
+  {
+    return localCache.claimRefresh(hostName,currentTime);
+  }
+
   /** Write robots.txt, replacing any existing row.
   *@param hostName is the host.
   *@param expirationTime is the time this data should expire.
@@ -215,6 +242,8 @@ public class RobotsManager extends org.apache.manifoldcf.core.database.BaseTable
       {
         cacheManager.leaveCache(ch);
       }
+      // The data is parsed when it is next read, since parsing is recorded as an activity
+      localCache.invalidate(hostName);
     }
     finally
     {
@@ -301,6 +330,8 @@ public class RobotsManager extends org.apache.manifoldcf.core.database.BaseTable
   {
     protected long expiration;
     protected ArrayList records = null;
+    /** The record found for the last user agent asked about */
+    protected volatile AgentChoice lastChoice = null;
 
     /** Constructor. */
     public RobotsData(InputStream is, long expiration, String hostName, IProcessActivity activities)
@@ -337,8 +368,29 @@ public class RobotsManager extends org.apache.manifoldcf.core.database.BaseTable
       if (records == null)
         return true;
 
-      boolean wasDisallowed = false;
-      boolean wasAllowed = false;
+      Record r = findRecord(userAgent);
+      if (r == null)
+        return true;
+
+      // Allowed always overrides disallowed
+      if (r.isAllowed(pathString))
+        return true;
+      if (r.isDisallowed(pathString))
+        return false;
+
+      // No match -> crawl allowed
+      return true;
+    }
+
+    /** Find the record that applies to a user agent.
+    *@return the record, or null if there is none and access is unlimited.
+    */
+    protected Record findRecord(String userAgent)
+    {
+      // A connection always asks with the same user agent, so remember the last answer
+      AgentChoice choice = lastChoice;
+      if (choice != null && choice.userAgent.equals(userAgent))
+        return choice.record;
 
       // First matching user-agent takes precedence, according to the following chunk of spec:
       // "These name tokens are used in User-agent lines in /robots.txt to
@@ -350,9 +402,8 @@ public class RobotsManager extends org.apache.manifoldcf.core.database.BaseTable
       // line with a "*" value, if present. If no record satisfied either
       // condition, or no records are present at all, access is unlimited."
 
-      boolean sawAgent = false;
-
       String userAgentUpper = userAgent.toUpperCase(Locale.ROOT);
+      Record rval = null;
 
       int i = 0;
       while (i < records.size())
@@ -360,16 +411,11 @@ public class RobotsManager extends org.apache.manifoldcf.core.database.BaseTable
         Record r = (Record)records.get(i++);
         if (r.isAgentMatch(userAgentUpper,false))
         {
-          if (r.isDisallowed(pathString))
-            wasDisallowed = true;
-          if (r.isAllowed(pathString))
-            wasAllowed = true;
-
-          sawAgent = true;
+          rval = r;
           break;
         }
       }
-      if (sawAgent == false)
+      if (rval == null)
       {
         i = 0;
         while (i < records.size())
@@ -377,28 +423,13 @@ public class RobotsManager extends org.apache.manifoldcf.core.database.BaseTable
           Record r = (Record)records.get(i++);
           if (r.isAgentMatch("*",true))
           {
-            if (r.isDisallowed(pathString))
-              wasDisallowed = true;
-            if (r.isAllowed(pathString))
-              wasAllowed = true;
-
-            sawAgent = true;
+            rval = r;
             break;
           }
         }
       }
-
-      if (sawAgent == false)
-        return true;
-
-      // Allowed always overrides disallowed
-      if (wasAllowed)
-        return true;
-      if (wasDisallowed)
-        return false;
-
-      // No match -> crawl allowed
-      return true;
+      lastChoice = new AgentChoice(userAgent,rval);
+      return rval;
     }
 
     /** Get expiration */
@@ -842,14 +873,31 @@ public class RobotsManager extends org.apache.manifoldcf.core.database.BaseTable
 
   }
 
+  /** The record that applies to a user agent */
+  protected static class AgentChoice
+  {
+    protected final String userAgent;
+    protected final Record record;
+
+    public AgentChoice(String userAgent, Record record)
+    {
+      this.userAgent = userAgent;
+      this.record = record;
+    }
+  }
+
   /** This class represents a record in a robots.txt file.  It contains one or
-  * more user-agents, and one or more disallows.
+  * more user-agents, and one or more disallows.  The allows and disallows are
+  * compiled into a PathTrie each the first time a path is checked.
   */
   protected static class Record
   {
     protected ArrayList userAgents = new ArrayList();
+    protected ArrayList userAgentsUpper = new ArrayList();
     protected ArrayList disallows = new ArrayList();
     protected ArrayList allows = new ArrayList();
+    protected volatile PathTrie disallowTrie = null;
+    protected volatile PathTrie allowTrie = null;
 
     /** Constructor.
     */
@@ -862,6 +910,7 @@ public class RobotsManager extends org.apache.manifoldcf.core.database.BaseTable
     public void addAgent(String agentName)
     {
       userAgents.add(agentName);
+      userAgentsUpper.add(agentName.toUpperCase(Locale.ROOT));
     }
 
     /** Add a disallow.
@@ -869,6 +918,7 @@ public class RobotsManager extends org.apache.manifoldcf.core.database.BaseTable
     public void addDisallow(String disallowPath)
     {
       disallows.add(disallowPath);
+      disallowTrie = null;
     }
 
     /** Add an allow.
@@ -876,6 +926,7 @@ public class RobotsManager extends org.apache.manifoldcf.core.database.BaseTable
     public void addAllow(String allowPath)
     {
       allows.add(allowPath);
+      allowTrie = null;
     }
 
     /** See if user-agent matches.
@@ -883,9 +934,9 @@ public class RobotsManager extends org.apache.manifoldcf.core.database.BaseTable
     public boolean isAgentMatch(String agentNameUpper, boolean exactMatch)
     {
       int i = 0;
-      while (i < userAgents.size())
+      while (i < userAgentsUpper.size())
       {
-        String agent = ((String)userAgents.get(i++)).toUpperCase(Locale.ROOT);
+        String agent = (String)userAgentsUpper.get(i++);
         if (exactMatch && agent.trim().equals(agentNameUpper))
           return true;
         if (!exactMatch && agentNameUpper.indexOf(agent) != -1)
@@ -900,14 +951,13 @@ public class RobotsManager extends org.apache.manifoldcf.core.database.BaseTable
     */
     public boolean isDisallowed(String path)
     {
-      int i = 0;
-      while (i < disallows.size())
+      PathTrie trie = disallowTrie;
+      if (trie == null)
       {
-        String disallow = (String)disallows.get(i++);
-        if (doesPathMatch(path,disallow))
-          return true;
+        trie = new PathTrie(disallows);
+        disallowTrie = trie;
       }
-      return false;
+      return trie.matches(path);
     }
 
     /** See if path is allowed.  Only called if user-agent has already
@@ -915,17 +965,147 @@ public class RobotsManager extends org.apache.manifoldcf.core.database.BaseTable
     * Allows clauses).
     */
     public boolean isAllowed(String path)
+    {
+      PathTrie trie = allowTrie;
+      if (trie == null)
+      {
+        trie = new PathTrie(allows);
+        allowTrie = trie;
+      }
+      return trie.matches(path);
+    }
+
+  }
+
+  /** A set of path specifications, compiled into a trie of their literal prefixes.  A path matches the set if
+  * doesPathMatch() would match it against any of the specifications.  A specification with no wildcards matches
+  * any path it is a prefix of, so it is a mark on the node at the end of its prefix; a specification with a
+  * wildcard or an end anchor keeps the rest of itself on the node where its literal prefix ends, and only that
+  * rest is matched, and only for paths that reach the node.
+  */
+  protected static class PathTrie
+  {
+    protected final PathTrieNode root = new PathTrieNode();
+
+    /** Constructor.
+    *@param specs is the list of specification strings.
+    */
+    public PathTrie(List specs)
     {
       int i = 0;
-      while (i < allows.size())
+      while (i < specs.size())
       {
-        String allow = (String)allows.get(i++);
-        if (doesPathMatch(path,allow))
+        add((String)specs.get(i++));
+      }
+    }
+
+    protected void add(String spec)
+    {
+      // The literal prefix ends at the first wildcard, or at a '$' that ends the specification
+      int literalLength = spec.indexOf('*');
+      if (literalLength == -1)
+        literalLength = spec.length();
+      if (literalLength == spec.length() && spec.endsWith("$"))
+        literalLength--;
+      PathTrieNode node = root;
+      for (int i = 0; i < literalLength; i++)
+      {
+        node = node.addChild(spec.charAt(i));
+      }
+      if (literalLength == spec.length())
+        node.terminal = true;
+      else
+        node.addPattern(spec,literalLength);
+    }
+
+    /** Check if a path matches any of the specifications.
+    */
+    public boolean matches(String path)
+    {
+      PathTrieNode node = root;
+      int pathIndex = 0;
+      while (true)
+      {
+        if (node.terminal)
           return true;
+        if (node.patterns != null)
+        {
+          for (int i = 0; i < node.patterns.length; i++)
+          {
+            if (doesPathMatch(path,pathIndex,node.patterns[i],node.patternStarts[i]))
+              return true;
+          }
+        }
+        if (pathIndex == path.length())
+          return false;
+        node = node.getChild(path.charAt(pathIndex++));
+        if (node == null)
+          return false;
       }
-      return false;
+    }
+  }
+
+  /** One node of a PathTrie */
+  protected static class PathTrieNode
+  {
+    /** The characters leading to children, in order */
+    protected char[] keys = null;
+    protected PathTrieNode[] children = null;
+    protected int childCount = 0;
+    /** Set if a specification without wildcards ends here */
+    protected boolean terminal = false;
+    /** The specifications whose literal prefix ends here, with the index of the rest of each */
+    protected String[] patterns = null;
+    protected int[] patternStarts = null;
+
+    public PathTrieNode getChild(char c)
+    {
+      int index = findChild(c);
+      if (index < 0)
+        return null;
+      return children[index];
+    }
+
+    public PathTrieNode addChild(char c)
+    {
+      int index = findChild(c);
+      if (index >= 0)
+        return children[index];
+      index = -(index + 1);
+      if (keys == null)
+      {
+        keys = new char[2];
+        children = new PathTrieNode[2];
+      }
+      else if (childCount == keys.length)
+      {
+        keys = Arrays.copyOf(keys,childCount * 2);
+        children = Arrays.copyOf(children,childCount * 2);
+      }
+      System.arraycopy(keys,index,keys,index + 1,childCount - index);
+      System.arraycopy(children,index,children,index + 1,childCount - index);
+      PathTrieNode rval = new PathTrieNode();
+      keys[index] = c;
+      children[index] = rval;
+      childCount++;
+      return rval;
     }
 
+    public void addPattern(String spec, int start)
+    {
+      int count = (patterns == null)?0:patterns.length;
+      patterns = (patterns == null)?new String[1]:Arrays.copyOf(patterns,count + 1);
+      patternStarts = (patternStarts == null)?new int[1]:Arrays.copyOf(patternStarts,count + 1);
+      patterns[count] = spec;
+      patternStarts[count] = start;
+    }
+
+    protected int findChild(char c)
+    {
+      if (keys == null)
+        return -1;
+      return Arrays.binarySearch(keys,0,childCount,c);
+    }
   }
 
 }
@@ -34,6 +34,9 @@ import java.util.*;
 import java.io.*;
 import java.util.zip.GZIPInputStream;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.nio.ByteBuffer;
 
 import org.apache.http.conn.HttpClientConnectionManager;
 import org.apache.http.client.HttpClient;
@@ -99,17 +102,41 @@ import org.apache.http.client.RedirectException;
 import org.apache.http.client.CircularRedirectException;
 import org.apache.http.NoHttpResponseException;
 import org.apache.http.HttpException;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.NHttpConnection;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.reactor.IOReactorException;
 
 /** This class uses httpclient to fetch stuff from webservers.  However, it additionally controls the fetch
 * rate in two ways: first, controlling the overall bandwidth used per server, and second, limiting the number
 * of simultaneous open connections per server.
 * An instance of this class would very probably need to have a lifetime consistent with the long-term nature
 * of these values, and be static.
+*
+* There are two ways a fetch can be carried out.  By default, each fetch runs on a thread of its own, using a
+* blocking http client with a socket per connection.  When the asynchronous fetch engine is configured, plain http
+* fetches are instead multiplexed by a process-wide, non-blocking http client over a small number of I/O threads,
+* and the worker thread reads the response as the I/O threads receive it.  The fetch and stream throttlers are
+* applied in the same places either way.
 */
 public class ThrottledFetcher
 {
   public static final String _rcsid = "@(#)$Id: ThrottledFetcher.java 989847 2010-08-26 17:52:30Z kwright $";
 
+  /** The number of I/O threads of the asynchronous fetch engine.  0, the default, fetches every page with the
+  * blocking engine. */
+  public final static String PROPERTY_ASYNC_FETCH_IO_THREADS = "org.apache.manifoldcf.crawler.connectors.webcrawler.asyncfetch.iothreads";
+
   /** Web throttle group type */
   protected static final String webThrottleGroupType = "_WEB_";
   
@@ -131,6 +158,18 @@ public class ThrottledFetcher
   /** Connection pools.
   /* This is a static hash of the connection pools in existence.  Each connection pool represents a set of identical connections. */
   protected final static Map<ConnectionPoolKey,ConnectionPool> connectionPools = new HashMap<ConnectionPoolKey,ConnectionPool>();
+
+  /** The most response bytes the asynchronous engine holds for a fetch before it stops reading from the socket */
+  protected static final int ASYNC_BUFFER_SIZE = 65536;
+  /** The most connections the asynchronous engine keeps.  The connection throttlers limit the connections to each
+  * server well below this. */
+  protected static final int ASYNC_MAX_CONNECTIONS = 100000;
+
+  /** The asynchronous http client shared by every connection that uses the asynchronous engine, or null if it has
+  * not been started.  Guarded by the class. */
+  protected static CloseableHttpAsyncClient asyncClient = null;
+  /** The connection manager of the asynchronous http client */
+  protected static PoolingNHttpClientConnectionManager asyncConnectionManager = null;
   
   /** Current host name */
   private static String currentHost = null;
@@ -207,6 +246,11 @@ public class ThrottledFetcher
       trustStoreString = null;
     }
 
+    // Only plain http goes through the asynchronous engine; https needs the socket factory of the trust store
+    int asyncIOThreads = 0;
+    if (protocol.equals("http"))
+      asyncIOThreads = LockManagerFactory.getIntProperty(threadContext,PROPERTY_ASYNC_FETCH_IO_THREADS,0);
+
     // Construct a connection pool key
     ConnectionPoolKey poolKey = new ConnectionPoolKey(protocol,server,port,authentication,
       trustStoreString,proxyHost,proxyPort,proxyAuthDomain,proxyAuthUsername,proxyAuthPassword,
@@ -223,7 +267,7 @@ public class ThrottledFetcher
           throttleGroups.obtainConnectionThrottler(webThrottleGroupType,throttleGroupName,binNames);
         p = new ConnectionPool(connectionThrottler,protocol,server,port,authentication,baseFactory,
           proxyHost,proxyPort,proxyAuthDomain,proxyAuthUsername,proxyAuthPassword,
-          socketTimeoutMilliseconds,connectionTimeoutMilliseconds);
+          socketTimeoutMilliseconds,connectionTimeoutMilliseconds,asyncIOThreads);
         connectionPools.put(poolKey,p);
       }
     }
@@ -243,6 +287,60 @@ public class ThrottledFetcher
         pool.flushIdleConnections();
       }
     }
+    // The asynchronous engine pools its sockets itself
+    synchronized (ThrottledFetcher.class)
+    {
+      if (asyncConnectionManager != null)
+      {
+        asyncConnectionManager.closeIdleConnections(idleTimeout,TimeUnit.MILLISECONDS);
+        asyncConnectionManager.closeExpiredConnections();
+      }
+    }
+  }
+
+  /** Get the asynchronous http client, starting it if need be.
+  *@param ioThreads is the number of I/O threads to start it with.
+  *@return the client.
+  */
+  protected static synchronized CloseableHttpAsyncClient getAsyncClient(int ioThreads)
+    throws ManifoldCFException
+  {
+    if (asyncClient == null)
+    {
+      ThreadFactory threadFactory = new ThreadFactory()
+      {
+        @Override
+        public Thread newThread(Runnable r)
+        {
+          Thread t = new Thread(r,"Web fetch I/O");
+          t.setDaemon(true);
+          return t;
+        }
+      };
+      try
+      {
+        DefaultConnectingIOReactor ioReactor = new DefaultConnectingIOReactor(IOReactorConfig.custom()
+          .setIoThreadCount(ioThreads)
+          .setTcpNoDelay(true)
+          .build(),threadFactory);
+        PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(ioReactor);
+        connectionManager.setMaxTotal(ASYNC_MAX_CONNECTIONS);
+        connectionManager.setDefaultMaxPerRoute(ASYNC_MAX_CONNECTIONS);
+        CloseableHttpAsyncClient client = HttpAsyncClients.custom()
+          .setConnectionManager(connectionManager)
+          .setRedirectStrategy(new LaxRedirectStrategy())
+          .setThreadFactory(threadFactory)
+          .build();
+        client.start();
+        asyncConnectionManager = connectionManager;
+        asyncClient = client;
+      }
+      catch (IOReactorException e)
+      {
+        throw new ManifoldCFException("Could not start the asynchronous fetch engine: "+e.getMessage(),e);
+      }
+    }
+    return asyncClient;
   }
 
   /** Throttled connections.  Each instance of a connection describes the bins to which it belongs,
@@ -301,9 +399,11 @@ public class ThrottledFetcher
     protected final int socketTimeoutMilliseconds;
     /** Connection timeout milliseconds */
     protected final int connectionTimeoutMilliseconds;
+    /** Number of I/O threads of the asynchronous engine, or 0 to fetch with the blocking engine */
+    protected final int asyncIOThreads;
 
-    /** The thread that is actually doing the work */
-    protected ExecuteMethodThread methodThread = null;
+    /** The thread, or asynchronous exchange, that is actually doing the work */
+    protected MethodExecution methodThread = null;
     /** Set if thread has been started */
     protected boolean threadStarted = false;
     
@@ -316,7 +416,7 @@ public class ThrottledFetcher
       String protocol, String server, int port, PageCredentials authentication,
       javax.net.ssl.SSLSocketFactory httpsSocketFactory,
       String proxyHost, int proxyPort, String proxyAuthDomain, String proxyAuthUsername, String proxyAuthPassword,
-      int socketTimeoutMilliseconds, int connectionTimeoutMilliseconds)
+      int socketTimeoutMilliseconds, int connectionTimeoutMilliseconds, int asyncIOThreads)
     {
       this.myPool = myPool;
       this.fetchThrottler = fetchThrottler;
@@ -332,6 +432,7 @@ public class ThrottledFetcher
       this.httpsSocketFactory = httpsSocketFactory;
       this.socketTimeoutMilliseconds = socketTimeoutMilliseconds;
       this.connectionTimeoutMilliseconds = connectionTimeoutMilliseconds;
+      this.asyncIOThreads = asyncIOThreads;
     }
 
     /** Set the abort checker.  This must be done before the connection is actually used.
@@ -469,7 +570,8 @@ public class ThrottledFetcher
         hostHost = fetchHost;
       }
       
-      if (connManager == null)
+      // The asynchronous engine shares one connection manager among all connections
+      if (asyncIOThreads == 0 && connManager == null)
       {
         PoolingHttpClientConnectionManager poolingConnManager = new PoolingHttpClientConnectionManager(RegistryBuilder.<ConnectionSocketFactory>create()
           .register("http", PlainConnectionSocketFactory.getSocketFactory())
@@ -528,14 +630,19 @@ public class ThrottledFetcher
       }
 
 
-      httpClient = HttpClients.custom()
-        .setConnectionManager(connManager)
-        .disableAutomaticRetries()
-        .setDefaultRequestConfig(requestBuilder.build())
-        .setDefaultCredentialsProvider(credentialsProvider)
-        .setRequestExecutor(new HttpRequestExecutor(socketTimeoutMilliseconds))
-        .setRedirectStrategy(new LaxRedirectStrategy())
-        .build();
+      RequestConfig requestConfig = requestBuilder.build();
+
+      if (asyncIOThreads == 0)
+      {
+        httpClient = HttpClients.custom()
+          .setConnectionManager(connManager)
+          .disableAutomaticRetries()
+          .setDefaultRequestConfig(requestConfig)
+          .setDefaultCredentialsProvider(credentialsProvider)
+          .setRequestExecutor(new HttpRequestExecutor(socketTimeoutMilliseconds))
+          .setRedirectStrategy(new LaxRedirectStrategy())
+          .build();
+      }
 
         /*
         BasicHttpParams params = new BasicHttpParams();
@@ -693,8 +800,12 @@ public class ThrottledFetcher
       // Copy out the current cookies, in case the fetch fails
       lastFetchCookies = loginCookies;
 
-      // Create the thread
-      methodThread = new ExecuteMethodThread(this, fetchThrottler, httpClient, hostHost, fetchMethod, cookieStore);
+      // Create the thread, or the asynchronous exchange
+      if (asyncIOThreads > 0)
+        methodThread = new AsyncMethodExecution(this, fetchThrottler, getAsyncClient(asyncIOThreads), hostHost, fetchMethod, cookieStore,
+          credentialsProvider, requestConfig, socketTimeoutMilliseconds);
+      else
+        methodThread = new ExecuteMethodThread(this, fetchThrottler, httpClient, hostHost, fetchMethod, cookieStore);
       try
       {
         methodThread.start();
@@ -1330,6 +1441,53 @@ public class ThrottledFetcher
     }
   }
 
+  /** The work of one fetch, carried out either by a thread of its own or by the asynchronous engine.  The
+  * connection starts it, and then waits on it for each part of the response in turn.
+  */
+  protected interface MethodExecution
+  {
+    /** Start the fetch. */
+    public void start();
+
+    /** Wait for the response, and get its status code. */
+    public int getResponseCode()
+      throws InterruptedException, IOException, HttpException;
+
+    /** Wait for the response, and get its headers. */
+    public Map<String,List<String>> getResponseHeaders()
+      throws InterruptedException, IOException, HttpException;
+
+    /** Wait for the response, and get the first value of a header, or null. */
+    public String getFirstHeader(String headerName)
+      throws InterruptedException, IOException, HttpException;
+
+    /** Wait for the response, and get the cookies in effect after it. */
+    public LoginCookies getCookies()
+      throws InterruptedException, IOException, HttpException;
+
+    /** Check whether the response body is gzip encoded. */
+    public boolean isGZipStream()
+      throws InterruptedException, IOException, HttpException;
+
+    /** Check whether the response body is deflate encoded. */
+    public boolean isDeflateStream()
+      throws InterruptedException, IOException, HttpException;
+
+    /** Get the response body, throttled, as a stream the worker thread can read. */
+    public InputStream getSafeInputStream()
+      throws InterruptedException, IOException, HttpException;
+
+    /** Abandon the fetch, if it is still in progress. */
+    public void abort();
+
+    /** Interrupt the fetch, because the worker thread was interrupted. */
+    public void interrupt();
+
+    /** Wait for the fetch to be completely shut down. */
+    public void finishUp()
+      throws InterruptedException;
+  }
+
   /** This thread does the actual socket communication with the server.
   * It's set up so that it can be abandoned at shutdown time.
   *
@@ -1346,7 +1504,7 @@ public class ThrottledFetcher
   * thread, and tries to get a response code.  If instead an exception is seen,
   * the exception is thrown up the stack.
   */
-  protected static class ExecuteMethodThread extends Thread
+  protected static class ExecuteMethodThread extends Thread implements MethodExecution
   {
     /** The connection */
     protected final ThrottledConnection theConnection;
@@ -1740,6 +1898,481 @@ public class ThrottledFetcher
 
   }
 
+  /** This class carries out a fetch with the asynchronous engine.  The request is sent, and the response received,
+  * by the engine's I/O threads; the worker thread waits for the response and reads the body from a buffer the I/O
+  * threads fill.  When the buffer is full, the I/O threads stop reading from the socket until the worker has read
+  * some of it, so a fetch holds at most ASYNC_BUFFER_SIZE bytes and no thread of its own.
+  *
+  * The body is passed through the stream throttler as the worker reads it, so bandwidth is charged to the server
+  * in the same way as with the blocking engine.
+  */
+  protected static class AsyncMethodExecution implements MethodExecution
+  {
+    /** The connection */
+    protected final ThrottledConnection theConnection;
+    /** The fetch throttler */
+    protected final IFetchThrottler fetchThrottler;
+    /** Client and method, all preconfigured */
+    protected final CloseableHttpAsyncClient asyncClient;
+    protected final HttpHost target;
+    protected final HttpRequestBase executeMethod;
+    protected final CookieStore cookieStore;
+    protected final CredentialsProvider credentialsProvider;
+    protected final RequestConfig requestConfig;
+    protected final int socketTimeoutMilliseconds;
+
+    // All of the following are guarded by this object, since the I/O threads and the worker thread both use them.
+
+    protected Future<HttpResponse> future = null;
+    protected HttpResponse response = null;
+    protected boolean gzip = false;
+    protected boolean deflate = false;
+    protected Throwable responseException = null;
+    protected LoginCookies cookies = null;
+    /** Body bytes received and not yet read */
+    protected final LinkedList<byte[]> chunks = new LinkedList<byte[]>();
+    /** Position in the first chunk */
+    protected int chunkPosition = 0;
+    /** Total of the bytes in the chunks, less the position */
+    protected int bufferedBytes = 0;
+    /** Set when the whole body has been received */
+    protected boolean complete = false;
+    /** Set when the fetch has been abandoned */
+    protected boolean abortExecution = false;
+    /** The control of the connection, once content has arrived */
+    protected IOControl ioControl = null;
+    /** Set while the connection is not being read from because the buffer is full */
+    protected boolean inputSuspended = false;
+    /** The throttled body stream, once the worker has asked for it */
+    protected InputStream bodyStream = null;
+    protected boolean bodyStreamClosed = false;
+
+    public AsyncMethodExecution(ThrottledConnection theConnection, IFetchThrottler fetchThrottler,
+      CloseableHttpAsyncClient asyncClient, HttpHost target, HttpRequestBase executeMethod, CookieStore cookieStore,
+      CredentialsProvider credentialsProvider, RequestConfig requestConfig, int socketTimeoutMilliseconds)
+    {
+      this.theConnection = theConnection;
+      this.fetchThrottler = fetchThrottler;
+      this.asyncClient = asyncClient;
+      this.target = target;
+      this.executeMethod = executeMethod;
+      this.cookieStore = cookieStore;
+      this.credentialsProvider = credentialsProvider;
+      this.requestConfig = requestConfig;
+      this.socketTimeoutMilliseconds = socketTimeoutMilliseconds;
+    }
+
+    @Override
+    public void start()
+    {
+      HttpClientContext context = HttpClientContext.create();
+      context.setCookieStore(cookieStore);
+      context.setCredentialsProvider(credentialsProvider);
+      context.setRequestConfig(requestConfig);
+      Future<HttpResponse> f = asyncClient.execute(HttpAsyncMethods.create(target,executeMethod),new ResponseConsumer(),context,
+        new FutureCallback<HttpResponse>()
+        {
+          @Override
+          public void completed(HttpResponse result)
+          {
+          }
+
+          @Override
+          public void failed(Exception e)
+          {
+            noteFailure(e);
+          }
+
+          @Override
+          public void cancelled()
+          {
+            noteFailure(new InterruptedIOException("Fetch cancelled"));
+          }
+        });
+      synchronized (this)
+      {
+        future = f;
+      }
+    }
+
+    @Override
+    public int getResponseCode()
+      throws InterruptedException, IOException, HttpException
+    {
+      return waitResponse().getStatusLine().getStatusCode();
+    }
+
+    @Override
+    public Map<String,List<String>> getResponseHeaders()
+      throws InterruptedException, IOException, HttpException
+    {
+      Header[] headers = waitResponse().getAllHeaders();
+      Map<String,List<String>> rval = new HashMap<String,List<String>>();
+      for (Header h : headers)
+      {
+        List<String> values = rval.get(h.getName());
+        if (values == null)
+        {
+          values = new ArrayList<String>();
+          rval.put(h.getName(),values);
+        }
+        values.add(h.getValue());
+      }
+      return rval;
+    }
+
+    @Override
+    public String getFirstHeader(String headerName)
+      throws InterruptedException, IOException, HttpException
+    {
+      Header h = waitResponse().getFirstHeader(headerName);
+      if (h == null)
+        return null;
+      return h.getValue();
+    }
+
+    @Override
+    public LoginCookies getCookies()
+      throws InterruptedException, IOException, HttpException
+    {
+      // The cookie store has been updated by the time the response is handed on
+      waitResponse();
+      synchronized (this)
+      {
+        if (cookies == null)
+          cookies = new CookieSet(cookieStore.getCookies());
+        return cookies;
+      }
+    }
+
+    @Override
+    public boolean isGZipStream()
+      throws InterruptedException, IOException, HttpException
+    {
+      waitResponse();
+      synchronized (this)
+      {
+        return gzip;
+      }
+    }
+
+    @Override
+    public boolean isDeflateStream()
+      throws InterruptedException, IOException, HttpException
+    {
+      waitResponse();
+      synchronized (this)
+      {
+        return deflate;
+      }
+    }
+
+    @Override
+    public InputStream getSafeInputStream()
+      throws InterruptedException, IOException, HttpException
+    {
+      HttpResponse r = waitResponse();
+      synchronized (this)
+      {
+        if (r.getEntity() == null)
+          return null;
+        if (bodyStream == null)
+          bodyStream = new ThrottledInputstream(fetchThrottler.createFetchStream(),theConnection,new BufferInputStream());
+        return bodyStream;
+      }
+    }
+
+    @Override
+    public void abort()
+    {
+      Future<HttpResponse> f;
+      synchronized (this)
+      {
+        abortExecution = true;
+        notifyAll();
+        if (complete)
+          return;
+        f = future;
+      }
+      // Closes the connection, unless the exchange is already done
+      if (f != null)
+        f.cancel(true);
+    }
+
+    @Override
+    public void interrupt()
+    {
+      abort();
+    }
+
+    @Override
+    public void finishUp()
+      throws InterruptedException
+    {
+      InputStream s;
+      synchronized (this)
+      {
+        s = bodyStreamClosed?null:bodyStream;
+      }
+      // Closing the stream ends it in the stream throttler
+      if (s != null)
+      {
+        try
+        {
+          s.close();
+        }
+        catch (IOException e)
+        {
+        }
+      }
+    }
+
+    /** Wait for the response headers.
+    */
+    protected synchronized HttpResponse waitResponse()
+      throws InterruptedException, IOException, HttpException
+    {
+      while (true)
+      {
+        if (response != null)
+          return response;
+        checkException(responseException);
+        if (abortExecution)
+          throw new InterruptedIOException("Fetch abandoned");
+        wait();
+      }
+    }
+
+    /** Note that the exchange failed.  Only the first failure counts.
+    */
+    protected synchronized void noteFailure(Throwable e)
+    {
+      if (responseException != null || complete)
+        return;
+      // The blocking client reports protocol errors this way
+      if (e instanceof HttpException)
+        e = new ClientProtocolException(e);
+      responseException = e;
+      notifyAll();
+    }
+
+    protected synchronized void checkException(Throwable exception)
+      throws IOException, HttpException
+    {
+      if (exception != null)
+      {
+        if (exception instanceof IOException)
+          throw (IOException)exception;
+        else if (exception instanceof HttpException)
+          throw (HttpException)exception;
+        else if (exception instanceof RuntimeException)
+          throw (RuntimeException)exception;
+        else if (exception instanceof Error)
+          throw (Error)exception;
+        else
+          throw new RuntimeException("Unhandled exception of type: "+exception.getClass().getName(),exception);
+      }
+    }
+
+    /** Stop reading from the connection until the buffer has been drained.  The socket timeout is lifted meanwhile,
+    * so that a slow reader does not time the connection out.  Called with this object locked.
+    */
+    protected void suspendInput()
+    {
+      ioControl.suspendInput();
+      if (ioControl instanceof NHttpConnection)
+        ((NHttpConnection)ioControl).setSocketTimeout(0);
+      inputSuspended = true;
+    }
+
+    /** Start reading from the connection again.  Called with this object locked.
+    */
+    protected void resumeInput()
+    {
+      if (ioControl instanceof NHttpConnection)
+        ((NHttpConnection)ioControl).setSocketTimeout(socketTimeoutMilliseconds);
+      inputSuspended = false;
+      ioControl.requestInput();
+    }
+
+    /** The consumer of the final response of the exchange.  Its methods are called by the I/O threads, and must
+    * not block.
+    */
+    protected class ResponseConsumer extends AbstractAsyncResponseConsumer<HttpResponse>
+    {
+      protected final ByteBuffer readBuffer = ByteBuffer.allocate(READ_CHUNK_LENGTH);
+
+      @Override
+      protected void onResponseReceived(HttpResponse r)
+      {
+        boolean isGzip = false;
+        boolean isDeflate = false;
+        Header ceheader = r.getFirstHeader("Content-Encoding");
+        if (ceheader != null)
+        {
+          for (HeaderElement codec : ceheader.getElements())
+          {
+            if (codec.getName().equalsIgnoreCase("gzip"))
+            {
+              isGzip = true;
+              break;
+            }
+            else if (codec.getName().equalsIgnoreCase("deflate"))
+            {
+              isDeflate = true;
+              break;
+            }
+          }
+        }
+        synchronized (AsyncMethodExecution.this)
+        {
+          response = r;
+          gzip = isGzip;
+          deflate = isDeflate;
+          AsyncMethodExecution.this.notifyAll();
+        }
+      }
+
+      @Override
+      protected void onEntityEnclosed(HttpEntity entity, ContentType contentType)
+      {
+      }
+
+      @Override
+      protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl)
+        throws IOException
+      {
+        synchronized (AsyncMethodExecution.this)
+        {
+          ioControl = ioctrl;
+          while (bufferedBytes < ASYNC_BUFFER_SIZE)
+          {
+            int amt = decoder.read(readBuffer);
+            if (amt <= 0)
+              break;
+            readBuffer.flip();
+            byte[] chunk = new byte[amt];
+            readBuffer.get(chunk);
+            readBuffer.clear();
+            chunks.add(chunk);
+            bufferedBytes += amt;
+          }
+          if (bufferedBytes >= ASYNC_BUFFER_SIZE && !decoder.isCompleted() && !inputSuspended)
+            suspendInput();
+          AsyncMethodExecution.this.notifyAll();
+        }
+      }
+
+      @Override
+      protected HttpResponse buildResult(HttpContext context)
+      {
+        synchronized (AsyncMethodExecution.this)
+        {
+          complete = true;
+          AsyncMethodExecution.this.notifyAll();
+          return response;
+        }
+      }
+
+      @Override
+      protected void releaseResources()
+      {
+        Exception e = getException();
+        if (e != null)
+          noteFailure(e);
+      }
+    }
+
+    /** The body stream the worker thread reads from.
+    */
+    protected class BufferInputStream extends InputStream
+    {
+      @Override
+      public int read()
+        throws IOException
+      {
+        byte[] b = new byte[1];
+        int amt = read(b,0,1);
+        if (amt == -1)
+          return amt;
+        return ((int)b[0]) & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len)
+        throws IOException
+      {
+        if (len == 0)
+          return 0;
+        synchronized (AsyncMethodExecution.this)
+        {
+          try
+          {
+            while (true)
+            {
+              if (bodyStreamClosed)
+                throw new IOException("Stream closed");
+              if (chunks.size() > 0)
+              {
+                byte[] chunk = chunks.getFirst();
+                int amt = chunk.length - chunkPosition;
+                if (amt > len)
+                  amt = len;
+                System.arraycopy(chunk,chunkPosition,b,off,amt);
+                chunkPosition += amt;
+                if (chunkPosition == chunk.length)
+                {
+                  chunks.removeFirst();
+                  chunkPosition = 0;
+                }
+                bufferedBytes -= amt;
+                if (inputSuspended && bufferedBytes < ASYNC_BUFFER_SIZE / 2)
+                  resumeInput();
+                return amt;
+              }
+              if (complete)
+                return -1;
+              checkException(responseException);
+              if (abortExecution)
+                return -1;
+              AsyncMethodExecution.this.wait();
+            }
+          }
+          catch (InterruptedException e)
+          {
+            throw new InterruptedIOException("Interrupted");
+          }
+          catch (HttpException e)
+          {
+            throw new ClientProtocolException(e);
+          }
+        }
+      }
+
+      @Override
+      public int available()
+      {
+        synchronized (AsyncMethodExecution.this)
+        {
+          return bufferedBytes;
+        }
+      }
+
+      @Override
+      public void close()
+      {
+        synchronized (AsyncMethodExecution.this)
+        {
+          bodyStreamClosed = true;
+          chunks.clear();
+          bufferedBytes = 0;
+          AsyncMethodExecution.this.notifyAll();
+        }
+      }
+    }
+
+  }
+
   protected static class OurBasicCookieStore implements CookieStore, Serializable {
 
     private static final long serialVersionUID = -7581093305228232025L;
@@ -1982,6 +2615,7 @@ public class ThrottledFetcher
     protected final String proxyAuthPassword;
     protected final int socketTimeoutMilliseconds;
     protected final int connectionTimeoutMilliseconds;
+    protected final int asyncIOThreads;
 
     /** The actual pool of connections */
     protected final List<IThrottledConnection> connections = new ArrayList<IThrottledConnection>();
@@ -1992,7 +2626,7 @@ public class ThrottledFetcher
       javax.net.ssl.SSLSocketFactory baseFactory,
       String proxyHost, int proxyPort,
       String proxyAuthDomain, String proxyAuthUsername, String proxyAuthPassword,
-      int socketTimeoutMilliseconds, int connectionTimeoutMilliseconds)
+      int socketTimeoutMilliseconds, int connectionTimeoutMilliseconds, int asyncIOThreads)
     {
       this.connectionThrottler = connectionThrottler;
       
@@ -2008,6 +2642,7 @@ public class ThrottledFetcher
       this.proxyAuthPassword = proxyAuthPassword;
       this.socketTimeoutMilliseconds = socketTimeoutMilliseconds;
       this.connectionTimeoutMilliseconds = connectionTimeoutMilliseconds;
+      this.asyncIOThreads = asyncIOThreads;
     }
     
     public IThrottledConnection grab(IAbortActivity activities)
@@ -2033,7 +2668,7 @@ public class ThrottledFetcher
             protocol,server,port,authentication,baseFactory,
             proxyHost,proxyPort,
             proxyAuthDomain,proxyAuthUsername,proxyAuthPassword,
-            socketTimeoutMilliseconds,connectionTimeoutMilliseconds);
+            socketTimeoutMilliseconds,connectionTimeoutMilliseconds,asyncIOThreads);
         }
         else
           throw new IllegalStateException("Unexpected return value from waitConnectionAvailable(): "+result);
@@ -741,15 +741,22 @@ public class WebcrawlerConnector extends org.apache.manifoldcf.crawler.connector
               
             String versionString = sb.toString();
 
+            // If the document is to be indexed, its content is checked against the exclusion patterns in the same
+            // parse that extracts its links.
+            boolean needsReindexing = activities.checkDocumentNeedsReindexing(documentIdentifier,versionString);
+            FindContentHandler contentExclusionHandler = null;
+            if (needsReindexing)
+              contentExclusionHandler = filter.makeContentExclusionHandler(documentIdentifier);
+
             // Now, extract links.
             // We'll call the "link extractor" series, so we can plug more stuff in over time.
-            boolean indexDocument = extractLinks(documentIdentifier,activities,filter);
+            boolean indexDocument = extractLinks(documentIdentifier,activities,filter,contentExclusionHandler);
 
             // If scanOnly is set, we never ingest.  But all else is the same.
-            if (!activities.checkDocumentNeedsReindexing(documentIdentifier,versionString))
+            if (!needsReindexing)
               continue;
             
-            processDocument(activities,documentIdentifier,versionString,indexDocument,metaHash,acls,filter);
+            processDocument(activities,documentIdentifier,versionString,indexDocument,metaHash,acls,filter,contentExclusionHandler);
             break;
           case RESULT_RETRY_DOCUMENT:
             // Document could not be processed right now.
@@ -979,22 +986,54 @@ public class WebcrawlerConnector extends org.apache.manifoldcf.crawler.connector
             if (sessionCredential != null)
             {
               Iterator iterMatches = sessionCredential.findLoginParameters(currentURI);
+              List<LoginParameters> matches = new ArrayList<LoginParameters>();
+              while (iterMatches.hasNext())
+              {
+                matches.add((LoginParameters)iterMatches.next());
+              }
+              // Parse the page once, looking for what every matching rule wants at the same time.
+              FindHTMLFormHandler[] formHandlers = new FindHTMLFormHandler[matches.size()];
+              FindHTMLHrefHandler[] linkHandlers = new FindHTMLHrefHandler[matches.size()];
+              FindContentHandler[] contentHandlers = new FindContentHandler[matches.size()];
+              MultiHTMLHandler pageHandler = new MultiHTMLHandler();
+              for (int i = 0; i < matches.size(); i++)
+              {
+                LoginParameters lp = matches.get(i);
+                if (lp.getFormNamePattern() != null)
+                {
+                  formHandlers[i] = new FindHTMLFormHandler(currentURI,lp.getFormNamePattern());
+                  pageHandler.addHandler(formHandlers[i]);
+                }
+                if (lp.getPreferredLinkPattern() != null)
+                {
+                  linkHandlers[i] = new FindHTMLHrefHandler(currentURI,lp.getPreferredLinkPattern());
+                  pageHandler.addHandler(linkHandlers[i]);
+                }
+                if (lp.getContentPattern() != null)
+                {
+                  contentHandlers[i] = new FindContentHandler(currentURI,lp.getContentPattern());
+                  pageHandler.addHandler(contentHandlers[i]);
+                }
+              }
+              if (pageHandler.getHandlerCount() > 0)
+                handleHTML(currentURI,pageHandler);
+
               boolean seenAnything = false;
               boolean seenFormError = false;
               boolean seenLinkError = false;
               boolean seenRedirectionError = false;
               boolean seenContentError = false;
-              while (iterMatches.hasNext())
+              for (int i = 0; i < matches.size(); i++)
               {
                 seenAnything = true;
-                LoginParameters lp = (LoginParameters)iterMatches.next();
+                LoginParameters lp = matches.get(i);
                 // Note that more than one of the rules may match.
                 // In that case, a clear order of precedence applies between form-style rules and link-style: form has priority.
                 // If more than one of the same kind of rule is seen, then all bets are off, a warning is displayed, and nothing is
                 // matched.
 
                 // Parse the page; it had better match up!  Otherwise we get null back.
-                FormData newFormData = findHTMLForm(currentURI,lp);
+                FormData newFormData = findHTMLForm(formHandlers[i],lp);
                 if (newFormData != null)
                 {
                   if (formData != null)
@@ -1014,7 +1053,7 @@ public class WebcrawlerConnector extends org.apache.manifoldcf.crawler.connector
                 else
                 {
                   // Look for the preferred link instead.
-                  String newPreferredLink = findHTMLLinkURI(currentURI,lp);
+                  String newPreferredLink = findHTMLLinkURI(linkHandlers[i],lp);
                   if (newPreferredLink != null)
                   {
                     if (preferredLink != null)
@@ -1050,7 +1089,7 @@ public class WebcrawlerConnector extends org.apache.manifoldcf.crawler.connector
                     {
                       // Look for the content in the page.  The link returned may be an empty string, if matching content
                       // is discovered but there is no override.  It will be null of the content is not found.
-                      String newContentLink = findSpecifiedContent(currentURI,lp);
+                      String newContentLink = findSpecifiedContent(contentHandlers[i],lp);
                       if (newContentLink != null)
                       {
                         if (contentLink != null)
@@ -1265,7 +1304,8 @@ public class WebcrawlerConnector extends org.apache.manifoldcf.crawler.connector
   }
 
   protected void processDocument(IProcessActivity activities, String documentIdentifier, String versionString,
-    boolean indexDocument, Map<String,Set<String>> metaHash, String[] acls, DocumentURLFilter filter)
+    boolean indexDocument, Map<String,Set<String>> metaHash, String[] acls, DocumentURLFilter filter,
+    FindContentHandler contentExclusionHandler)
     throws ManifoldCFException, ServiceInterruption
   {
     // Consider this document for ingestion.
@@ -1361,7 +1401,7 @@ public class WebcrawlerConnector extends org.apache.manifoldcf.crawler.connector
         return;
       }
 
-      if(!filter.isDocumentContentIndexable(documentIdentifier)){
+      if(!filter.isDocumentContentIndexable(documentIdentifier,contentExclusionHandler)){
         if (Logging.connectors.isDebugEnabled())
           Logging.connectors.debug("Web: For document '"+documentIdentifier+"', not indexing because document content matched document content exclusion rule");
         errorCode = activities.EXCLUDED_CONTENT;
@@ -3102,24 +3142,10 @@ public class WebcrawlerConnector extends org.apache.manifoldcf.crawler.connector
       try
       {
         // Fetch it using InetAddress
-        InetAddress ip = null;
-        try
-        {
-          ip = InetAddress.getByName(hostName);
-        }
-        catch (UnknownHostException e)
-        {
-          // Host is unknown, so leave ipAddress as null.
-        }
-        String fqdn = null;
-        String ipAddress = null;
-        if (ip != null)
-        {
-          fqdn = ip.getCanonicalHostName();
-          ipAddress = ip.getHostAddress();
-        }
+        DNSManager.DNSInfo resolved = DNSManager.resolve(hostName,currentTime);
+        String ipAddress = resolved.getIPAddress();
         // Write this to the cache - expiration time 6 hours
-        dnsManager.writeDNSData(hostName,fqdn,ipAddress,currentTime + 1000*60*60*6);
+        dnsManager.writeDNSData(hostName,resolved.getFQDN(),ipAddress,resolved.getExpirationTime());
         if (ipAddress == null)
           return RESULTSTATUS_FALSE;
         ipAddressBuffer.append(ipAddress);
@@ -3170,12 +3196,19 @@ public class WebcrawlerConnector extends org.apache.manifoldcf.crawler.connector
     String hostIPAddressAndPort = hostIPAddress + ":" + port;
 
     Boolean info = robotsManager.checkFetchAllowed(userAgent,hostNameAndPort,currentTime,pathString,versionActivities);
+    boolean refreshing = false;
     if (info != null)
     {
-      if (info.booleanValue())
-        return RESULTSTATUS_TRUE;
-      else
-        return RESULTSTATUS_FALSE;
+      // Once the rules are close to expiring, one thread fetches them again while they are still good, and everyone
+      // else carries on using them.
+      if (!robotsManager.claimRefresh(hostNameAndPort,currentTime))
+      {
+        if (info.booleanValue())
+          return RESULTSTATUS_TRUE;
+        else
+          return RESULTSTATUS_FALSE;
+      }
+      refreshing = true;
     }
 
     // We need to fetch robots.txt.
@@ -3355,7 +3388,15 @@ public class WebcrawlerConnector extends org.apache.manifoldcf.crawler.connector
     }
     else
     {
-      // Some other thread is reading robots.txt right now, so abort processing of the current document.
+      // Some other thread is reading robots.txt right now.  If the rules we have are still good, use them;
+      // otherwise abort processing of the current document.
+      if (refreshing)
+      {
+        if (info.booleanValue())
+          return RESULTSTATUS_TRUE;
+        else
+          return RESULTSTATUS_FALSE;
+      }
       return RESULTSTATUS_NOTYETDETERMINED;
     }
   }
@@ -3740,20 +3781,19 @@ public class WebcrawlerConnector extends org.apache.manifoldcf.crawler.connector
     return handler.getTargetURI();
   }
 
-  /** Find matching HTML form data, if present.  Return null if not. */
-  protected FormData findHTMLForm(String currentURI, LoginParameters lp)
+  /** Find matching HTML form data, if present.  Return null if not.
+  *@param handler is the form handler the page was parsed with, or null if the rule has no form pattern.
+  */
+  protected static FormData findHTMLForm(FindHTMLFormHandler handler, LoginParameters lp)
     throws ManifoldCFException
   {
-    if (lp == null || lp.getFormNamePattern() == null)
+    if (handler == null)
       return null;
 
     // Use the specified loginParameters to (a) find an appropriate form, if present, and (b) override what the form's default
     // form parameters would be.  This means that the override parameters are associated with the page on which the *form*
     // is found, not the page to which we are submitting the form.  This is unlike (say) Heritrix, which attaches the parameters
     // to the page that's the target of the submission.
-    FindHTMLFormHandler handler = new FindHTMLFormHandler(currentURI,lp.getFormNamePattern());
-    handleHTML(currentURI,handler);
-    // Apply any overrides
     handler.applyFormOverrides(lp);
     return handler.getFormData();
   }
@@ -3771,34 +3811,37 @@ public class WebcrawlerConnector extends org.apache.manifoldcf.crawler.connector
     return handler.getTargetURI();
   }
 
-  /** Find existence of specific content on the page (never finds a URL) */
-  protected String findSpecifiedContent(String currentURI, LoginParameters lp)
+  /** Find existence of specific content on the page (never finds a URL)
+  *@param handler is the content handler the page was parsed with, or null if the rule has no content pattern.
+  */
+  protected static String findSpecifiedContent(FindContentHandler handler, LoginParameters lp)
     throws ManifoldCFException
   {
-    if (lp == null || lp.getContentPattern() == null)
+    if (handler == null)
       return null;
     
-    FindContentHandler handler = new FindContentHandler(currentURI,lp.getContentPattern());
-    handleHTML(currentURI,handler);
     handler.applyOverrides(lp);
     return handler.getTargetURI();
   }
 
-  /** Find HTML link URI, if present, making sure specified preference is matched. */
-  protected String findHTMLLinkURI(String currentURI, LoginParameters lp)
+  /** Find HTML link URI, if present, making sure specified preference is matched.
+  *@param handler is the link handler the page was parsed with, or null if the rule has no link pattern.
+  */
+  protected static String findHTMLLinkURI(FindHTMLHrefHandler handler, LoginParameters lp)
     throws ManifoldCFException
   {
-    if (lp == null || lp.getPreferredLinkPattern() == null)
+    if (handler == null)
       return null;
 
-    FindHTMLHrefHandler handler = new FindHTMLHrefHandler(currentURI,lp.getPreferredLinkPattern());
-    handleHTML(currentURI,handler);
     handler.applyOverrides(lp);
     return handler.getTargetURI();
   }
 
-  /** Code to extract links from an already-fetched document. */
-  protected boolean extractLinks(String documentIdentifier, IProcessActivity activities, DocumentURLFilter filter)
+  /** Code to extract links from an already-fetched document.
+  *@param contentHandler is a handler that also wants to see the document's HTML, or null.
+  */
+  protected boolean extractLinks(String documentIdentifier, IProcessActivity activities, DocumentURLFilter filter,
+    IHTMLHandler contentHandler)
     throws ManifoldCFException, ServiceInterruption
   {
     ProcessActivityRedirectionHandler redirectHandler = new ProcessActivityRedirectionHandler(documentIdentifier,activities,filter);
@@ -3807,7 +3850,15 @@ public class WebcrawlerConnector extends org.apache.manifoldcf.crawler.connector
       Logging.connectors.debug("Web: Not indexing document '"+documentIdentifier+"' because of redirection");
     // For html, we don't want any actions, because we don't do form submission.
     ProcessActivityHTMLHandler htmlHandler = new ProcessActivityHTMLHandler(documentIdentifier,activities,filter,metaRobotsTagsUsage);
-    handleHTML(documentIdentifier,htmlHandler);
+    if (contentHandler != null)
+    {
+      MultiHTMLHandler multiHandler = new MultiHTMLHandler();
+      multiHandler.addHandler(htmlHandler);
+      multiHandler.addHandler(contentHandler);
+      handleHTML(documentIdentifier,multiHandler);
+    }
+    else
+      handleHTML(documentIdentifier,htmlHandler);
     if (Logging.connectors.isDebugEnabled() && htmlHandler.shouldIndex() == false)
       Logging.connectors.debug("Web: Not indexing document '"+documentIdentifier+"' because of HTML robots or content tags prohibiting indexing");
     ProcessActivityXMLHandler xmlHandler = new ProcessActivityXMLHandler(documentIdentifier,activities,filter);
@@ -5946,9 +5997,11 @@ public class WebcrawlerConnector extends org.apache.manifoldcf.crawler.connector
       return canonicalizationPolicies;
     }
 
-    public boolean isDocumentContentIndexable(String documentIdentifier) throws ManifoldCFException {
-        String content = findSpecifiedContent(documentIdentifier, excludeContentIndexPatterns);
-        if (content != null) {
+    /** Check if the content of a document is indexable.
+    *@param contentHandler is the handler from makeContentExclusionHandler() that the document was parsed with, or null.
+    */
+    public boolean isDocumentContentIndexable(String documentIdentifier, FindContentHandler contentHandler) throws ManifoldCFException {
+        if (contentHandler != null && contentHandler.getTargetURI() != null) {
           if (Logging.connectors.isDebugEnabled())
             Logging.connectors.debug("WEB: Url '" + documentIdentifier + "' is not indexable because content exclusion pattern was matched");
 
@@ -5957,7 +6010,11 @@ public class WebcrawlerConnector extends org.apache.manifoldcf.crawler.connector
       return true;
     }
 
-    protected String findSpecifiedContent(String currentURI, List<Pattern> patterns) throws ManifoldCFException
+    /** Make the handler that looks for the content exclusion patterns, so that it can share the parse that extracts
+    * the document's links.
+    *@return the handler, or null if there are no content exclusion patterns.
+    */
+    public FindContentHandler makeContentExclusionHandler(String currentURI)
     {
       if (excludeContentIndexPatterns.isEmpty()) {
         if (Logging.connectors.isDebugEnabled())
@@ -5965,9 +6022,7 @@ public class WebcrawlerConnector extends org.apache.manifoldcf.crawler.connector
         return null;
       }
 
-      FindContentHandler handler = new FindContentHandler(currentURI, patterns);
-      handleHTML(currentURI, handler);
-      return handler.getTargetURI();
+      return new FindContentHandler(currentURI, excludeContentIndexPatterns);
     }
 
   }
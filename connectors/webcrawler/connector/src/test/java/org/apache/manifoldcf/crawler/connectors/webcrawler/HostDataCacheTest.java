@@ -0,0 +1,112 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.connectors.webcrawler;
+
+import org.apache.manifoldcf.crawler.system.Logging;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Checks the expiration, refresh, invalidation and size limit of the process-local host cache.
+*/
+public class HostDataCacheTest
+{
+  static
+  {
+    if (Logging.connectors == null)
+      Logging.connectors = org.apache.log4j.Logger.getLogger("org.apache.manifoldcf.connectors");
+    if (Logging.perf == null)
+      Logging.perf = org.apache.log4j.Logger.getLogger("org.apache.manifoldcf.perf");
+  }
+
+  @Test
+  public void expiration()
+    throws Exception
+  {
+    HostDataCache<DNSManager.DNSInfo> cache = new HostDataCache<DNSManager.DNSInfo>("Test",100);
+    cache.save("good.example.com",new DNSManager.DNSInfo("10.0.0.1","good.example.com",2000L,"good.example.com"),
+      2000L,1000L,cache.getGeneration("good.example.com"));
+    // Hosts that could not be resolved are cached too
+    cache.put("bad.example.com",new DNSManager.DNSInfo(null,null,2000L,"bad.example.com"),2000L,1000L);
+
+    assertEquals("10.0.0.1",cache.lookup("good.example.com",1500L).getValue().getIPAddress());
+    HostDataCache.Entry<DNSManager.DNSInfo> negative = cache.lookup("bad.example.com",1500L);
+    assertNotNull(negative);
+    assertNull(negative.getValue().getIPAddress());
+    assertNull(cache.lookup("other.example.com",1500L));
+
+    assertNull(cache.lookup("good.example.com",2000L));
+    assertNull(cache.lookup("bad.example.com",2500L));
+    assertEquals(0,cache.getSize());
+  }
+
+  @Test
+  public void refreshIsClaimedOnce()
+    throws Exception
+  {
+    HostDataCache<String> cache = new HostDataCache<String>("Test",100);
+    cache.put("host:80","rules",11000L,1000L);
+    // Not yet due: the last tenth of the lifetime starts at 10000
+    assertFalse(cache.claimRefresh("host:80",9999L));
+    assertTrue(cache.claimRefresh("host:80",10000L));
+    assertFalse(cache.claimRefresh("host:80",10001L));
+    assertFalse(cache.claimRefresh(cache.lookup("host:80",10002L),10002L));
+    // The replacement can be refreshed in its turn
+    cache.put("host:80","new rules",21000L,10500L);
+    assertEquals("new rules",cache.lookup("host:80",10600L).getValue());
+    assertTrue(cache.claimRefresh("host:80",20000L));
+    assertFalse(cache.claimRefresh("nohost:80",20000L));
+  }
+
+  @Test
+  public void writesTurnAwayStaleReads()
+    throws Exception
+  {
+    HostDataCache<String> cache = new HostDataCache<String>("Test",100);
+    long generation = cache.getGeneration("host:80");
+    // Another thread writes new data while this one is reading the old data from the database
+    cache.invalidate("host:80");
+    cache.save("host:80","old rules",5000L,1000L,generation);
+    assertNull(cache.lookup("host:80",1000L));
+
+    generation = cache.getGeneration("host:80");
+    cache.save("host:80","current rules",5000L,1000L,generation);
+    assertEquals("current rules",cache.lookup("host:80",1000L).getValue());
+    cache.invalidateAll();
+    assertNull(cache.lookup("host:80",1000L));
+  }
+
+  @Test
+  public void sizeIsBounded()
+    throws Exception
+  {
+    HostDataCache<String> cache = new HostDataCache<String>("Test",1600);
+    for (int i = 0; i < 10000; i++)
+    {
+      cache.put("host"+i+".example.com","data",5000L,1000L);
+      // Keep one host in use, so it is never the least recently used
+      assertNotNull(cache.lookup("host0.example.com",1000L));
+    }
+    assertTrue(cache.getSize() <= 1600);
+    assertTrue(cache.getSize() > 1400);
+    assertEquals(10000L - cache.getSize(),cache.getEvictions());
+    assertNotNull(cache.lookup("host0.example.com",1000L));
+  }
+
+}
@@ -0,0 +1,268 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.connectors.webcrawler;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.connectorcommon.fuzzyml.*;
+import org.apache.manifoldcf.crawler.system.Logging;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.Pattern;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Checks that handlers fed from one parse of a page find what they find when the page is parsed for each of
+* them.  When org.apache.manifoldcf.test.benchmark is true, it also checks that one parse takes less time than one
+* per handler.
+*/
+public class MultiHTMLHandlerTest
+{
+  static
+  {
+    if (Logging.connectors == null)
+      Logging.connectors = org.apache.log4j.Logger.getLogger("org.apache.manifoldcf.connectors");
+  }
+
+  protected final static String PAGE_URI = "http://www.example.com/account/login.html";
+
+  @Test
+  public void sameResults()
+    throws Exception
+  {
+    byte[] page = makePage(40,true);
+
+    FindHTMLFormHandler separateForm = new FindHTMLFormHandler(PAGE_URI,Pattern.compile("^login$"));
+    FindHTMLHrefHandler separateHref = new FindHTMLHrefHandler(PAGE_URI,Pattern.compile("/logout"));
+    FindContentHandler separateContent = new FindContentHandler(PAGE_URI,Pattern.compile("Access denied"));
+    RecordingHandler separateRecording = new RecordingHandler();
+    parse(page,separateForm);
+    parse(page,separateHref);
+    parse(page,separateContent);
+    parse(page,separateRecording);
+
+    FindHTMLFormHandler form = new FindHTMLFormHandler(PAGE_URI,Pattern.compile("^login$"));
+    FindHTMLHrefHandler href = new FindHTMLHrefHandler(PAGE_URI,Pattern.compile("/logout"));
+    FindContentHandler content = new FindContentHandler(PAGE_URI,Pattern.compile("Access denied"));
+    RecordingHandler recording = new RecordingHandler();
+    MultiHTMLHandler handler = new MultiHTMLHandler();
+    handler.addHandler(form);
+    handler.addHandler(href);
+    handler.addHandler(content);
+    handler.addHandler(recording);
+    assertEquals(4,handler.getHandlerCount());
+    parse(page,handler);
+
+    assertNotNull(separateForm.getFormData());
+    assertEquals("http://www.example.com/account/dologin",separateForm.getFormData().getActionURI());
+    assertEquals(describe(separateForm.getFormData()),describe(form.getFormData()));
+    assertEquals("http://www.example.com/account/logout",separateHref.getTargetURI());
+    assertEquals(separateHref.getTargetURI(),href.getTargetURI());
+    assertEquals("",separateContent.getTargetURI());
+    assertEquals(separateContent.getTargetURI(),content.getTargetURI());
+    assertTrue(separateRecording.getEvents().length() > 0);
+    assertEquals(separateRecording.getEvents(),recording.getEvents());
+
+    // Content that is not there is not found either way
+    FindContentHandler missing = new FindContentHandler(PAGE_URI,Pattern.compile("Access denied"));
+    MultiHTMLHandler other = new MultiHTMLHandler();
+    other.addHandler(missing);
+    other.addHandler(new FindHTMLHrefHandler(PAGE_URI,Pattern.compile("/logout")));
+    parse(makePage(40,false),other);
+    assertNull(missing.getTargetURI());
+  }
+
+  @Test
+  public void onePassAgainstOnePerHandler()
+    throws Exception
+  {
+    Assume.assumeTrue(Boolean.getBoolean("org.apache.manifoldcf.test.benchmark"));
+    byte[] page = makePage(400,true);
+    int rounds = 200;
+
+    // Warm up
+    for (int i = 0; i < 20; i++)
+    {
+      parseSeparately(page);
+      parseOnce(page);
+    }
+
+    long startTime = System.nanoTime();
+    for (int i = 0; i < rounds; i++)
+    {
+      parseSeparately(page);
+    }
+    long separateTime = System.nanoTime() - startTime;
+
+    startTime = System.nanoTime();
+    for (int i = 0; i < rounds; i++)
+    {
+      parseOnce(page);
+    }
+    long onceTime = System.nanoTime() - startTime;
+
+    assertTrue("Login page of "+(page.length / 1024)+" KB with form, link, content and link extraction handlers: "+
+      "one parse per handler "+(separateTime / rounds / 1000L)+" us, one parse for all "+(onceTime / rounds / 1000L)+" us",
+      onceTime < separateTime);
+  }
+
+  protected static void parseSeparately(byte[] page)
+    throws Exception
+  {
+    parse(page,new FindHTMLFormHandler(PAGE_URI,Pattern.compile("^login$")));
+    parse(page,new FindHTMLHrefHandler(PAGE_URI,Pattern.compile("/logout")));
+    parse(page,new FindContentHandler(PAGE_URI,Pattern.compile("Session expired")));
+    parse(page,new RecordingHandler());
+  }
+
+  protected static void parseOnce(byte[] page)
+    throws Exception
+  {
+    MultiHTMLHandler handler = new MultiHTMLHandler();
+    handler.addHandler(new FindHTMLFormHandler(PAGE_URI,Pattern.compile("^login$")));
+    handler.addHandler(new FindHTMLHrefHandler(PAGE_URI,Pattern.compile("/logout")));
+    handler.addHandler(new FindContentHandler(PAGE_URI,Pattern.compile("Session expired")));
+    handler.addHandler(new RecordingHandler());
+    parse(page,handler);
+  }
+
+  protected static void parse(byte[] page, IHTMLHandler handler)
+    throws Exception
+  {
+    new Parser().parseWithoutCharsetDetection("UTF-8",new ByteArrayInputStream(page),new FormParseState(handler));
+  }
+
+  protected static String describe(FormData formData)
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append(formData.getActionURI()).append(" ").append(formData.getSubmitMethod());
+    Iterator iter = formData.getElementIterator();
+    while (iter.hasNext())
+    {
+      FormDataElement element = (FormDataElement)iter.next();
+      sb.append(" ").append(element.getElementName()).append("=").append(element.getElementValue());
+    }
+    return sb.toString();
+  }
+
+  protected static byte[] makePage(int paragraphs, boolean denied)
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append("<html><head><title>Sign in</title><meta name=\"robots\" content=\"noindex\">\n");
+    sb.append("<link rel=\"stylesheet\" href=\"/css/site.css\"><script>var x = 1 < 2;</script></head>\n<body>\n");
+    sb.append("<form name=\"search\" action=\"/search\"><input type=\"text\" name=\"q\"></form>\n");
+    for (int i = 0; i < paragraphs; i++)
+    {
+      sb.append("<p>Paragraph ").append(i).append(" with <a href=\"/page/").append(i).append(".html\">a link</a> and some &amp; text ");
+      sb.append("that goes on for a while, as the text of a real page does, <img src=\"/img/").append(i).append(".png\"> before ending.</p>\n");
+      if (i == paragraphs / 2)
+      {
+        if (denied)
+          sb.append("<div class=\"error\">Access denied</div>\n");
+        sb.append("<form name=\"login\" action=\"/account/dologin\" method=\"post\">\n");
+        sb.append("<input type=\"text\" name=\"username\" value=\"\"><input type=\"password\" name=\"password\">\n");
+        sb.append("<input type=\"hidden\" name=\"token\" value=\"abc123\"><select name=\"realm\"><option value=\"a\">A</option>");
+        sb.append("<option value=\"b\" selected>B</option></select><textarea name=\"note\">Note</textarea>\n");
+        sb.append("<input type=\"submit\" value=\"Sign in\"></form>\n");
+      }
+    }
+    sb.append("<a href=\"/account/logout\">Sign out</a><iframe src=\"/frame.html\"></iframe>\n</body></html>\n");
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /** Writes down everything it is told */
+  protected static class RecordingHandler implements IHTMLHandler
+  {
+    protected final StringBuilder events = new StringBuilder();
+
+    public String getEvents()
+    {
+      return events.toString();
+    }
+
+    @Override
+    public void noteDiscoveredLink(String rawURL)
+    {
+      events.append("[link ").append(rawURL).append("]");
+    }
+
+    @Override
+    public void noteMetaTag(Map metaAttributes)
+    {
+      events.append("[meta ").append(new TreeMap(metaAttributes)).append("]");
+    }
+
+    @Override
+    public void noteFormStart(Map formAttributes)
+    {
+      events.append("[form ").append(new TreeMap(formAttributes)).append("]");
+    }
+
+    @Override
+    public void noteFormInput(Map inputAttributes)
+    {
+      events.append("[input ").append(new TreeMap(inputAttributes)).append("]");
+    }
+
+    @Override
+    public void noteFormEnd()
+    {
+      events.append("[formend]");
+    }
+
+    @Override
+    public void noteAHREF(String rawURL)
+    {
+      events.append("[a ").append(rawURL).append("]");
+    }
+
+    @Override
+    public void noteLINKHREF(String rawURL)
+    {
+      events.append("[linkhref ").append(rawURL).append("]");
+    }
+
+    @Override
+    public void noteIMGSRC(String rawURL)
+    {
+      events.append("[img ").append(rawURL).append("]");
+    }
+
+    @Override
+    public void noteFRAMESRC(String rawURL)
+    {
+      events.append("[frame ").append(rawURL).append("]");
+    }
+
+    @Override
+    public void noteTextCharacter(char textCharacter)
+    {
+      events.append(textCharacter);
+    }
+
+    @Override
+    public void finishUp()
+    {
+      events.append("[finish]");
+    }
+  }
+
+}
@@ -19,11 +19,22 @@
 package org.apache.manifoldcf.crawler.connectors.webcrawler;
 
 import org.apache.manifoldcf.crawler.connectors.webcrawler.RobotsManager;
+import org.apache.manifoldcf.crawler.interfaces.IProcessActivity;
+import org.apache.manifoldcf.crawler.system.Logging;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
 import org.junit.*;
 import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
 
 public class RobotsTest
 {
+  static
+  {
+    if (Logging.connectors == null)
+      Logging.connectors = org.apache.log4j.Logger.getLogger("org.apache.manifoldcf.connectors");
+  }
 
   @Test
   public void doesPathMatch()
@@ -53,4 +64,131 @@ public class RobotsTest
     assertFalse(record.isAllowed("/folder/doc1.pdf"));
   }
   
+
+  @Test
+  public void pathTrieMatchesDoesPathMatch()
+    throws Exception
+  {
+    // The compiled rules must give the same answer as matching each specification in turn
+    Random random = new Random(42L);
+    for (int round = 0; round < 20000; round++)
+    {
+      List<String> specs = new ArrayList<String>();
+      int specCount = 1 + random.nextInt(4);
+      for (int i = 0; i < specCount; i++)
+      {
+        specs.add(randomString(random,"/ab*$",1 + random.nextInt(6)));
+      }
+      RobotsManager.PathTrie trie = new RobotsManager.PathTrie(specs);
+      for (int j = 0; j < 10; j++)
+      {
+        String path = randomString(random,"/ab$",random.nextInt(8));
+        boolean expected = false;
+        for (String spec : specs)
+        {
+          if (RobotsManager.doesPathMatch(path,spec))
+            expected = true;
+        }
+        assertEquals("Path '"+path+"' against "+specs,expected,trie.matches(path));
+      }
+    }
+  }
+
+  @Test
+  public void robotsData()
+    throws Exception
+  {
+    RobotsManager.RobotsData rd = parse(
+      "User-agent: OtherBot\n"+
+      "Disallow: /\n"+
+      "\n"+
+      "User-agent: *\n"+
+      "Disallow: /private/\n"+
+      "Disallow: /*.pdf$\n"+
+      "Allow: /private/public*\n");
+    // Asking with different agents in turn must not mix up their records
+    for (int i = 0; i < 2; i++)
+    {
+      assertFalse(rd.isFetchAllowed("Mozilla/5.0 (OtherBot)","/index.html"));
+      assertTrue(rd.isFetchAllowed("ManifoldCF","/index.html"));
+      assertFalse(rd.isFetchAllowed("ManifoldCF","/private/x.html"));
+      assertTrue(rd.isFetchAllowed("ManifoldCF","/private/public/x.html"));
+      assertFalse(rd.isFetchAllowed("ManifoldCF","/docs/a.pdf"));
+      assertTrue(rd.isFetchAllowed("ManifoldCF","/docs/a.pdf?x=1"));
+    }
+  }
+
+  @Test
+  public void rulesBenchmark()
+    throws Exception
+  {
+    Assume.assumeTrue(Boolean.getBoolean("org.apache.manifoldcf.test.benchmark"));
+    // A large site's robots.txt: many literal prefixes and some wildcard rules
+    Random random = new Random(7L);
+    List<String> specs = new ArrayList<String>();
+    for (int i = 0; i < 300; i++)
+    {
+      String spec = "/"+randomString(random,"abcdefghij",3 + random.nextInt(5))+"/"+randomString(random,"abcdefghij",random.nextInt(6));
+      if (i % 10 == 0)
+        spec = spec + "*.php$";
+      specs.add(spec);
+    }
+    String[] paths = new String[10000];
+    for (int i = 0; i < paths.length; i++)
+    {
+      paths[i] = "/"+randomString(random,"abcdefghij",3 + random.nextInt(5))+"/"+randomString(random,"abcdefghij",2 + random.nextInt(20))+".html";
+    }
+    RobotsManager.PathTrie trie = new RobotsManager.PathTrie(specs);
+
+    for (int pass = 0; pass < 3; pass++)
+    {
+      int linearMatches = 0;
+      long startTime = System.nanoTime();
+      for (String path : paths)
+      {
+        for (String spec : specs)
+        {
+          if (RobotsManager.doesPathMatch(path,spec))
+          {
+            linearMatches++;
+            break;
+          }
+        }
+      }
+      long linearTime = System.nanoTime() - startTime;
+
+      int trieMatches = 0;
+      startTime = System.nanoTime();
+      for (String path : paths)
+      {
+        if (trie.matches(path))
+          trieMatches++;
+      }
+      long trieTime = System.nanoTime() - startTime;
+      assertEquals(linearMatches,trieMatches);
+      if (pass == 2)
+      {
+        assertTrue(paths.length+" paths against "+specs.size()+" rules: one rule at a time "+(linearTime / 1000L)+
+          " us; trie "+(trieTime / 1000L)+" us ("+trieMatches+" matches)",trieTime < linearTime);
+      }
+    }
+  }
+
+  protected static RobotsManager.RobotsData parse(String robotsTxt)
+    throws Exception
+  {
+    return new RobotsManager.RobotsData(new ByteArrayInputStream(robotsTxt.getBytes(StandardCharsets.UTF_8)),
+      Long.MAX_VALUE,"www.example.com",mock(IProcessActivity.class));
+  }
+
+  protected static String randomString(Random random, String alphabet, int length)
+  {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < length; i++)
+    {
+      sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+    }
+    return sb.toString();
+  }
+
 }
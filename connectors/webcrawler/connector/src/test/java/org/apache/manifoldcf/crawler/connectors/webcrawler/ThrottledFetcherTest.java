@@ -0,0 +1,574 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.connectors.webcrawler;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.agents.interfaces.*;
+import org.apache.manifoldcf.connectorcommon.interfaces.*;
+import org.apache.manifoldcf.crawler.interfaces.*;
+import org.apache.manifoldcf.crawler.system.Logging;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+/** Fetches pages from a stub web server whose hosts are slow to respond, with both the blocking and the
+* asynchronous fetch engines.  When org.apache.manifoldcf.test.benchmark is true, it also checks that the
+* asynchronous engine starts fewer threads than the blocking one for the same fetches.
+*/
+public class ThrottledFetcherTest
+{
+  static
+  {
+    if (Logging.connectors == null)
+      Logging.connectors = org.apache.log4j.Logger.getLogger("org.apache.manifoldcf.connectors");
+  }
+
+  @Test
+  public void blockingEngine()
+    throws Exception
+  {
+    checkEngine(0);
+  }
+
+  @Test
+  public void asyncEngine()
+    throws Exception
+  {
+    checkEngine(2);
+  }
+
+  @Test
+  public void benchmark()
+    throws Exception
+  {
+    Assume.assumeTrue(Boolean.getBoolean("org.apache.manifoldcf.test.benchmark"));
+    // Four hosts, each taking a different time to answer
+    SlowWebServer server = new SlowWebServer(new long[]{50L,100L,200L,400L});
+    try
+    {
+      long[] blocking = runBenchmark(server,0,200,5);
+      long[] async = runBenchmark(server,2,200,5);
+      assertTrue("1000 fetches by 200 workers: blocking engine "+blocking[0]+" ms, "+blocking[1]+" threads started; "+
+        "asynchronous engine (2 I/O threads) "+async[0]+" ms, "+async[1]+" threads started",async[1] < blocking[1]);
+    }
+    finally
+    {
+      server.shutdown();
+    }
+  }
+
+  protected void checkEngine(int asyncIOThreads)
+    throws Exception
+  {
+    SlowWebServer server = new SlowWebServer(new long[]{20L});
+    try
+    {
+      CountingThrottler throttler = new CountingThrottler();
+      ThrottledFetcher.ThrottledConnection connection = makeConnection(throttler,server.getPort(0),1000,asyncIOThreads);
+      IProcessActivity activities = mock(IProcessActivity.class);
+
+      // Pages, one after another on the same connection
+      for (int size : new int[]{0,1,5000,200000})
+      {
+        connection.beginFetch("TEST");
+        connection.executeFetch("/page?size="+size,"ManifoldCF test","test@example.com",true,null,null,null);
+        assertEquals(200,connection.getResponseCode());
+        assertEquals("text/html",connection.getResponseHeader("Content-Type"));
+        assertEquals(size,readAll(connection.getResponseBodyStream(),0L));
+        connection.doneFetch(activities);
+      }
+
+      // Compressed content is decompressed
+      connection.beginFetch("TEST");
+      connection.executeFetch("/gzip","ManifoldCF test","test@example.com",true,null,null,null);
+      assertEquals(200,connection.getResponseCode());
+      assertEquals(SlowWebServer.GZIP_CONTENT_LENGTH,readAll(connection.getResponseBodyStream(),0L));
+      connection.doneFetch(activities);
+
+      // Redirections are followed when asked for
+      connection.beginFetch("TEST");
+      connection.executeFetch("/redirect","ManifoldCF test","test@example.com",true,null,null,null);
+      assertEquals(200,connection.getResponseCode());
+      assertEquals(100,readAll(connection.getResponseBodyStream(),0L));
+      connection.doneFetch(activities);
+      connection.beginFetch("TEST");
+      connection.executeFetch("/redirect","ManifoldCF test","test@example.com",false,null,null,null);
+      assertEquals(302,connection.getResponseCode());
+      assertNotNull(connection.getResponseHeader("Location"));
+      connection.doneFetch(activities);
+
+      // Cookies set by the server are returned
+      connection.beginFetch("TEST");
+      connection.executeFetch("/cookie","ManifoldCF test","test@example.com",true,null,null,null);
+      assertEquals(200,connection.getResponseCode());
+      LoginCookies cookies = connection.getLastFetchCookies();
+      assertEquals(1,cookies.getCookieCount());
+      assertEquals("session",cookies.getCookie(0).getName());
+      connection.doneFetch(activities);
+
+      // Missing pages
+      connection.beginFetch("TEST");
+      connection.executeFetch("/missing","ManifoldCF test","test@example.com",true,null,null,null);
+      assertEquals(404,connection.getResponseCode());
+      connection.doneFetch(activities);
+
+      // A page only partly read
+      connection.beginFetch("TEST");
+      connection.executeFetch("/page?size=1000000","ManifoldCF test","test@example.com",true,null,null,null);
+      assertEquals(200,connection.getResponseCode());
+      assertEquals("aaaaaaaaaa",connection.getLimitedResponseBody(10,"ASCII"));
+      connection.doneFetch(activities);
+
+      // A reader slower than the socket timeout does not time the connection out while the response waits for it
+      connection.beginFetch("TEST");
+      connection.executeFetch("/page?size=1000000","ManifoldCF test","test@example.com",true,null,null,null);
+      assertEquals(200,connection.getResponseCode());
+      assertEquals(1000000,readAll(connection.getResponseBodyStream(),1500L));
+      connection.doneFetch(activities);
+
+      connection.destroy();
+
+      // A host that refuses connections
+      ThrottledFetcher.ThrottledConnection refused = makeConnection(throttler,server.getClosedPort(),1000,asyncIOThreads);
+      refused.beginFetch("TEST");
+      try
+      {
+        refused.executeFetch("/page?size=10","ManifoldCF test","test@example.com",true,null,null,null);
+        fail("Expected a service interruption");
+      }
+      catch (ServiceInterruption e)
+      {
+      }
+      refused.doneFetch(activities);
+      refused.destroy();
+
+      // Every fetch asked the fetch throttler, and every stream read was charged and closed
+      assertEquals(12L,throttler.fetches.get());
+      assertEquals(0L,throttler.outstandingReads.get());
+      assertEquals(throttler.streamsOpened.get(),throttler.streamsClosed.get());
+      assertTrue(throttler.bytes.get() >= 1205103L);
+    }
+    finally
+    {
+      server.shutdown();
+    }
+  }
+
+  /** Fetch pages from many workers at once.
+  *@return the elapsed milliseconds, and the number of threads started while fetching.
+  */
+  protected long[] runBenchmark(final SlowWebServer server, final int asyncIOThreads, int workerCount, final int fetchesPerWorker)
+    throws Exception
+  {
+    final CountingThrottler throttler = new CountingThrottler();
+    final IProcessActivity activities = mock(IProcessActivity.class);
+    final AtomicLong pageBytes = new AtomicLong(0L);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    final CountDownLatch startSignal = new CountDownLatch(1);
+
+    ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    Thread[] workers = new Thread[workerCount];
+    for (int i = 0; i < workerCount; i++)
+    {
+      final int port = server.getPort(i % server.getHostCount());
+      workers[i] = new Thread()
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            startSignal.await();
+            ThrottledFetcher.ThrottledConnection connection = makeConnection(throttler,port,60000,asyncIOThreads);
+            for (int j = 0; j < fetchesPerWorker; j++)
+            {
+              connection.beginFetch("BENCHMARK");
+              connection.executeFetch("/page?size=32768","ManifoldCF test","test@example.com",true,null,null,null);
+              if (connection.getResponseCode() != 200)
+                throw new Exception("Unexpected response code "+connection.getResponseCode());
+              pageBytes.addAndGet(readAll(connection.getResponseBodyStream(),0L));
+              connection.doneFetch(activities);
+            }
+            connection.destroy();
+          }
+          catch (Throwable e)
+          {
+            failure.compareAndSet(null,e);
+          }
+        }
+      };
+      workers[i].start();
+    }
+
+    long startedBefore = threadBean.getTotalStartedThreadCount();
+    long startTime = System.nanoTime();
+    startSignal.countDown();
+    for (Thread worker : workers)
+    {
+      worker.join();
+    }
+    long elapsed = (System.nanoTime() - startTime) / 1000000L;
+    long threadsStarted = threadBean.getTotalStartedThreadCount() - startedBefore;
+
+    if (failure.get() != null)
+      throw new Exception("Fetch failed: "+failure.get().getMessage(),failure.get());
+    long fetches = (long)workerCount * fetchesPerWorker;
+    assertEquals(fetches * 32768L,pageBytes.get());
+    assertEquals(fetches,throttler.fetches.get());
+    assertEquals(fetches,throttler.streamsClosed.get());
+    return new long[]{elapsed,threadsStarted};
+  }
+
+  protected static ThrottledFetcher.ThrottledConnection makeConnection(CountingThrottler throttler, int port,
+    int socketTimeoutMilliseconds, int asyncIOThreads)
+  {
+    ThrottledFetcher.ThrottledConnection connection = new ThrottledFetcher.ThrottledConnection(null,throttler,
+      "http","127.0.0.1",port,null,null,null,-1,null,null,null,socketTimeoutMilliseconds,10000,asyncIOThreads);
+    connection.setAbortChecker(new AbortChecker(null));
+    return connection;
+  }
+
+  /** Read a stream to the end, pausing once after the first 64K if asked.
+  *@return the number of bytes read.
+  */
+  protected static long readAll(InputStream is, long pauseMilliseconds)
+    throws Exception
+  {
+    try
+    {
+      byte[] buffer = new byte[8192];
+      long total = 0L;
+      boolean paused = false;
+      while (true)
+      {
+        int amt = is.read(buffer);
+        if (amt == -1)
+          return total;
+        total += amt;
+        if (!paused && pauseMilliseconds > 0L && total >= 65536L)
+        {
+          Thread.sleep(pauseMilliseconds);
+          paused = true;
+        }
+      }
+    }
+    finally
+    {
+      is.close();
+    }
+  }
+
+  /** Fetch and stream throttler that lets everything through, and counts */
+  protected static class CountingThrottler implements IFetchThrottler, IStreamThrottler
+  {
+    public final AtomicLong fetches = new AtomicLong(0L);
+    public final AtomicLong streamsOpened = new AtomicLong(0L);
+    public final AtomicLong streamsClosed = new AtomicLong(0L);
+    public final AtomicLong outstandingReads = new AtomicLong(0L);
+    public final AtomicLong bytes = new AtomicLong(0L);
+
+    @Override
+    public boolean obtainFetchDocumentPermission()
+    {
+      fetches.incrementAndGet();
+      return true;
+    }
+
+    @Override
+    public boolean obtainFetchDocumentPermission(IBreakCheck breakCheck)
+    {
+      return obtainFetchDocumentPermission();
+    }
+
+    @Override
+    public IStreamThrottler createFetchStream()
+    {
+      streamsOpened.incrementAndGet();
+      return this;
+    }
+
+    @Override
+    public boolean obtainReadPermission(int byteCount)
+    {
+      outstandingReads.incrementAndGet();
+      return true;
+    }
+
+    @Override
+    public boolean obtainReadPermission(int byteCount, IBreakCheck breakCheck)
+    {
+      return obtainReadPermission(byteCount);
+    }
+
+    @Override
+    public void releaseReadPermission(int origByteCount, int actualByteCount)
+    {
+      outstandingReads.decrementAndGet();
+      bytes.addAndGet(actualByteCount);
+    }
+
+    @Override
+    public void closeStream()
+    {
+      streamsClosed.incrementAndGet();
+    }
+  }
+
+  /** A web server with several hosts (ports), each of which waits a set time before it answers a request.  One
+  * thread serves every connection, so that the server can hold many slow requests open at once.
+  */
+  protected static class SlowWebServer implements Runnable
+  {
+    public static final int GZIP_CONTENT_LENGTH = 100000;
+
+    protected final Selector selector;
+    protected final List<ServerSocketChannel> serverChannels = new ArrayList<ServerSocketChannel>();
+    protected final int closedPort;
+    protected final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    protected final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<Runnable>();
+    protected final Thread thread;
+    protected final byte[] gzipContent;
+    protected volatile boolean running = true;
+
+    public SlowWebServer(long[] latencies)
+      throws IOException
+    {
+      selector = Selector.open();
+      for (long latency : latencies)
+      {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.bind(new InetSocketAddress("127.0.0.1",0),1000);
+        channel.configureBlocking(false);
+        channel.register(selector,SelectionKey.OP_ACCEPT,new Long(latency));
+        serverChannels.add(channel);
+      }
+      ServerSocketChannel closed = ServerSocketChannel.open();
+      closed.bind(new InetSocketAddress("127.0.0.1",0));
+      closedPort = ((InetSocketAddress)closed.getLocalAddress()).getPort();
+      closed.close();
+
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      GZIPOutputStream gzos = new GZIPOutputStream(baos);
+      gzos.write(makeBody(GZIP_CONTENT_LENGTH));
+      gzos.close();
+      gzipContent = baos.toByteArray();
+
+      thread = new Thread(this,"Slow web server");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    public int getHostCount()
+    {
+      return serverChannels.size();
+    }
+
+    public int getPort(int host)
+      throws IOException
+    {
+      return ((InetSocketAddress)serverChannels.get(host).getLocalAddress()).getPort();
+    }
+
+    public int getClosedPort()
+    {
+      return closedPort;
+    }
+
+    public void shutdown()
+      throws Exception
+    {
+      running = false;
+      selector.wakeup();
+      thread.join();
+      scheduler.shutdownNow();
+      for (SelectionKey key : selector.keys())
+      {
+        key.channel().close();
+      }
+      selector.close();
+    }
+
+    @Override
+    public void run()
+    {
+      try
+      {
+        while (running)
+        {
+          selector.select();
+          Runnable task;
+          while ((task = selectorTasks.poll()) != null)
+          {
+            task.run();
+          }
+          Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+          while (iter.hasNext())
+          {
+            SelectionKey key = iter.next();
+            iter.remove();
+            try
+            {
+              if (!key.isValid())
+                continue;
+              if (key.isAcceptable())
+              {
+                SocketChannel channel = ((ServerSocketChannel)key.channel()).accept();
+                if (channel != null)
+                {
+                  channel.configureBlocking(false);
+                  channel.register(selector,SelectionKey.OP_READ,new ClientState(((Long)key.attachment()).longValue()));
+                }
+                continue;
+              }
+              if (key.isReadable())
+                readRequest(key);
+              if (key.isValid() && key.isWritable())
+                writeResponse(key);
+            }
+            catch (IOException e)
+            {
+              key.channel().close();
+            }
+          }
+        }
+      }
+      catch (IOException e)
+      {
+        e.printStackTrace();
+      }
+    }
+
+    protected void readRequest(final SelectionKey key)
+      throws IOException
+    {
+      ClientState state = (ClientState)key.attachment();
+      SocketChannel channel = (SocketChannel)key.channel();
+      ByteBuffer buffer = ByteBuffer.allocate(8192);
+      int amt = channel.read(buffer);
+      if (amt == -1)
+      {
+        channel.close();
+        return;
+      }
+      state.request.append(new String(buffer.array(),0,amt,StandardCharsets.ISO_8859_1));
+      int end;
+      while ((end = state.request.indexOf("\r\n\r\n")) != -1)
+      {
+        String request = state.request.substring(0,end);
+        state.request.delete(0,end + 4);
+        String requestLine = request.substring(0,request.indexOf("\r\n"));
+        String path = requestLine.split(" ")[1];
+        final byte[] response = makeResponse(path,channel);
+        scheduler.schedule(new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            selectorTasks.add(new Runnable()
+            {
+              @Override
+              public void run()
+              {
+                if (!key.isValid())
+                  return;
+                ((ClientState)key.attachment()).responses.add(ByteBuffer.wrap(response));
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+              }
+            });
+            selector.wakeup();
+          }
+        },state.latency,TimeUnit.MILLISECONDS);
+      }
+    }
+
+    protected void writeResponse(SelectionKey key)
+      throws IOException
+    {
+      ClientState state = (ClientState)key.attachment();
+      SocketChannel channel = (SocketChannel)key.channel();
+      while (state.responses.size() > 0)
+      {
+        ByteBuffer buffer = state.responses.peek();
+        channel.write(buffer);
+        if (buffer.hasRemaining())
+          return;
+        state.responses.poll();
+      }
+      key.interestOps(SelectionKey.OP_READ);
+    }
+
+    protected byte[] makeResponse(String path, SocketChannel channel)
+      throws IOException
+    {
+      if (path.startsWith("/page?size="))
+        return makeResponse("200 OK","",makeBody(Integer.parseInt(path.substring("/page?size=".length()))));
+      if (path.equals("/gzip"))
+        return makeResponse("200 OK","Content-Encoding: gzip\r\n",gzipContent);
+      if (path.equals("/redirect"))
+        return makeResponse("302 Found","Location: http://127.0.0.1:"+((InetSocketAddress)channel.getLocalAddress()).getPort()+
+          "/page?size=100\r\n",new byte[0]);
+      if (path.equals("/cookie"))
+        return makeResponse("200 OK","Set-Cookie: session=abc123; Path=/\r\n",makeBody(2));
+      return makeResponse("404 Not Found","",new byte[0]);
+    }
+
+    protected static byte[] makeResponse(String status, String headers, byte[] body)
+    {
+      String head = "HTTP/1.1 "+status+"\r\nContent-Type: text/html\r\n"+headers+"Content-Length: "+body.length+"\r\n\r\n";
+      byte[] headBytes = head.getBytes(StandardCharsets.ISO_8859_1);
+      byte[] rval = new byte[headBytes.length + body.length];
+      System.arraycopy(headBytes,0,rval,0,headBytes.length);
+      System.arraycopy(body,0,rval,headBytes.length,body.length);
+      return rval;
+    }
+
+    protected static byte[] makeBody(int size)
+    {
+      byte[] rval = new byte[size];
+      Arrays.fill(rval,(byte)'a');
+      return rval;
+    }
+
+    protected static class ClientState
+    {
+      public final long latency;
+      public final StringBuilder request = new StringBuilder();
+      public final Queue<ByteBuffer> responses = new LinkedList<ByteBuffer>();
+
+      public ClientState(long latency)
+      {
+        this.latency = latency;
+      }
+    }
+  }
+
+}
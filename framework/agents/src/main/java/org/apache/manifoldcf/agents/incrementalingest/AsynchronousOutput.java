@@ -0,0 +1,305 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.agents.incrementalingest;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.agents.system.Logging;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** This class holds the asynchronous output stages of this process, one per output connection that has one.
+* An output connection gets an asynchronous stage when the maximum number of documents in flight for it is
+* greater than zero.  The limit comes from the property "org.apache.manifoldcf.ingest.asyncoutput.maxinflight.&lt;connection name&gt;",
+* or, if that is not set, from "org.apache.manifoldcf.ingest.asyncoutput.maxinflight".  The default is zero, which
+* sends documents on the thread that ingests them.
+*
+* A stage has as many sender threads as it allows documents in flight.  A thread that hands a document to a
+* stage that is full waits until a document has been sent.  A stage sends one copy of a document at a time, and
+* a document is not removed from the index while this process is still sending it.
+*/
+public class AsynchronousOutput
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  /** The property giving the most documents in flight per output connection */
+  public static final String maxInFlightProperty = "org.apache.manifoldcf.ingest.asyncoutput.maxinflight";
+
+  /** How long shutdown waits for documents in flight, in milliseconds */
+  protected final static long SHUTDOWN_WAIT = 60000L;
+
+  /** The stages, by output connection name.  Connections that send synchronously have a stage too, so that
+  * the properties are read only once. */
+  protected final static ConcurrentMap<String,OutputQueue> queues = new ConcurrentHashMap<String,OutputQueue>();
+
+  private AsynchronousOutput()
+  {
+  }
+
+  /** Find the asynchronous stage for an output connection.
+  *@param threadContext is the thread context.
+  *@param outputConnectionName is the output connection name.
+  *@return the stage, or null if documents for the connection should be sent synchronously.
+  */
+  public static OutputQueue getQueue(IThreadContext threadContext, String outputConnectionName)
+    throws ManifoldCFException
+  {
+    OutputQueue queue = queues.get(outputConnectionName);
+    if (queue == null)
+    {
+      int maxInFlight = LockManagerFactory.getIntProperty(threadContext,maxInFlightProperty+"."+outputConnectionName,
+        LockManagerFactory.getIntProperty(threadContext,maxInFlightProperty,0));
+      queue = new OutputQueue(outputConnectionName,maxInFlight);
+      OutputQueue existing = queues.putIfAbsent(outputConnectionName,queue);
+      if (existing != null)
+      {
+        queue.shutdown();
+        queue = existing;
+      }
+    }
+    return queue.isAsynchronous()?queue:null;
+  }
+
+  /** Wait until none of the given documents is being sent to an output connection by this process.
+  *@param outputConnectionName is the output connection name.
+  *@param docKeys are the document keys.
+  */
+  public static void waitForDocuments(String outputConnectionName, String[] docKeys)
+    throws ManifoldCFException
+  {
+    OutputQueue queue = queues.get(outputConnectionName);
+    if (queue != null)
+      queue.waitForDocuments(docKeys);
+  }
+
+  /** Send what is in flight, for a limited time, and stop all the sender threads.
+  */
+  public static void shutdown()
+  {
+    long waitUntil = System.currentTimeMillis() + SHUTDOWN_WAIT;
+    for (OutputQueue queue : queues.values())
+    {
+      queue.shutdown();
+    }
+    for (OutputQueue queue : queues.values())
+    {
+      queue.awaitTermination(waitUntil);
+    }
+    queues.clear();
+  }
+
+  /** The asynchronous stage of one output connection */
+  public static class OutputQueue
+  {
+    protected final String outputConnectionName;
+    protected final int maxInFlight;
+    protected final ExecutorService executor;
+
+    /** The number of documents handed over and not yet sent */
+    protected int inFlight = 0;
+    /** The keys of the documents handed over and not yet sent */
+    protected final Set<String> pendingDocuments = new HashSet<String>();
+
+    // Statistics
+    protected final AtomicLong documentsHandedOver = new AtomicLong(0L);
+    protected final AtomicLong waitCount = new AtomicLong(0L);
+    protected final AtomicLong waitNanos = new AtomicLong(0L);
+
+    public OutputQueue(final String outputConnectionName, int maxInFlight)
+    {
+      this.outputConnectionName = outputConnectionName;
+      this.maxInFlight = maxInFlight;
+      if (maxInFlight > 0)
+      {
+        executor = Executors.newFixedThreadPool(maxInFlight,new ThreadFactory()
+          {
+            protected final AtomicInteger threadNumber = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r)
+            {
+              return new SenderThread(r,"Output sender "+threadNumber.incrementAndGet()+" for '"+outputConnectionName+"'");
+            }
+          });
+      }
+      else
+        executor = null;
+    }
+
+    public boolean isAsynchronous()
+    {
+      return executor != null;
+    }
+
+    /** Hand a send over to the stage, waiting while the stage is full or is still sending the same document.
+    *@param docKey is the key of the document being sent.
+    *@param send is what to run on a sender thread.
+    */
+    public void submit(final String docKey, final Runnable send)
+      throws ManifoldCFException
+    {
+      synchronized (this)
+      {
+        if (inFlight >= maxInFlight || pendingDocuments.contains(docKey))
+        {
+          long startTime = System.nanoTime();
+          try
+          {
+            while (inFlight >= maxInFlight || pendingDocuments.contains(docKey))
+            {
+              wait();
+            }
+          }
+          catch (InterruptedException e)
+          {
+            throw new ManifoldCFException(e.getMessage(),e,ManifoldCFException.INTERRUPTED);
+          }
+          long waited = System.nanoTime() - startTime;
+          waitCount.incrementAndGet();
+          waitNanos.addAndGet(waited);
+          if (Logging.perf.isDebugEnabled())
+            Logging.perf.debug("Waited "+(waited / 1000000L)+" ms for output connection '"+outputConnectionName+"' to accept a document; "+
+              waitCount.get()+" waits totalling "+(waitNanos.get() / 1000000L)+" ms for "+documentsHandedOver.get()+" documents so far");
+        }
+        inFlight++;
+        pendingDocuments.add(docKey);
+      }
+      try
+      {
+        executor.execute(new Runnable()
+          {
+            @Override
+            public void run()
+            {
+              try
+              {
+                send.run();
+              }
+              finally
+              {
+                sent(docKey);
+              }
+            }
+          });
+        documentsHandedOver.incrementAndGet();
+      }
+      catch (RejectedExecutionException e)
+      {
+        sent(docKey);
+        throw new ManifoldCFException("Output stage for '"+outputConnectionName+"' is shut down",e,ManifoldCFException.INTERRUPTED);
+      }
+    }
+
+    /** Get the number of documents handed to this stage. */
+    public long getDocumentsHandedOver()
+    {
+      return documentsHandedOver.get();
+    }
+
+    /** Get the number of times a thread had to wait for the stage to accept a document. */
+    public long getWaitCount()
+    {
+      return waitCount.get();
+    }
+
+    /** Get the time threads have spent waiting for the stage to accept documents, in milliseconds. */
+    public long getWaitTime()
+    {
+      return waitNanos.get() / 1000000L;
+    }
+
+    /** Get the number of documents handed over and not yet sent. */
+    public synchronized int getInFlight()
+    {
+      return inFlight;
+    }
+
+    protected synchronized void sent(String docKey)
+    {
+      inFlight--;
+      pendingDocuments.remove(docKey);
+      notifyAll();
+    }
+
+    protected synchronized void waitForDocuments(String[] docKeys)
+      throws ManifoldCFException
+    {
+      try
+      {
+        for (String docKey : docKeys)
+        {
+          while (pendingDocuments.contains(docKey))
+          {
+            wait();
+          }
+        }
+      }
+      catch (InterruptedException e)
+      {
+        throw new ManifoldCFException(e.getMessage(),e,ManifoldCFException.INTERRUPTED);
+      }
+    }
+
+    protected void shutdown()
+    {
+      if (executor != null)
+        executor.shutdown();
+    }
+
+    protected void awaitTermination(long waitUntil)
+    {
+      if (executor == null)
+        return;
+      try
+      {
+        long waitTime = waitUntil - System.currentTimeMillis();
+        if (waitTime <= 0L || !executor.awaitTermination(waitTime,TimeUnit.MILLISECONDS))
+        {
+          Logging.ingest.warn("Output stage for '"+outputConnectionName+"' did not finish sending; "+getInFlight()+" documents were not sent");
+          executor.shutdownNow();
+        }
+      }
+      catch (InterruptedException e)
+      {
+        executor.shutdownNow();
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /** A sender thread, which keeps its own thread context */
+  protected static class SenderThread extends Thread
+  {
+    protected final IThreadContext threadContext = ThreadContextFactory.make();
+
+    public SenderThread(Runnable r, String name)
+    {
+      super(r,name);
+      setDaemon(true);
+    }
+
+    /** Get the thread context of the current sender thread.
+    */
+    public static IThreadContext getThreadContext()
+    {
+      return ((SenderThread)Thread.currentThread()).threadContext;
+    }
+  }
+
+}
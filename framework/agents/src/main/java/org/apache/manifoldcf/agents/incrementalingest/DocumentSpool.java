@@ -0,0 +1,521 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.agents.incrementalingest;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.agents.system.ManifoldCF;
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+
+/** This class holds one stream of a document whose pipeline splits, so that every branch can read it.
+* The data is written once.  Small streams are kept in off-heap chunks from the BufferPool, counted against its
+* memory budget; larger ones, and any stream that the budget has no room for, are written to a temporary file,
+* which is then mapped into memory.  Each call to getStream() or getReader() returns an independent, read-only
+* view of the same bytes, without copying them.  Character data is kept in UTF-8.
+*
+* A spool must be closed.  Its chunks are returned to the pool, or its file deleted, once the spool is closed and
+* every view of it has been closed or read to its end, so views handed out before the spool is closed stay
+* readable.
+*/
+public class DocumentSpool
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  /** The size of the chunks that are moved at once */
+  protected final static int CHUNK_SIZE = 65536;
+
+  /** The off-heap chunks holding the data, if it is small */
+  protected List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+  /** The temporary file holding the data, if it is large */
+  protected File file = null;
+  /** The mapped contents of the file, if it was small enough to map */
+  protected MappedByteBuffer mappedBuffer = null;
+  /** The number of bytes spooled */
+  protected long length = 0L;
+  /** The spool's own reference and one per open view.  Guarded by this. */
+  protected int references = 1;
+  /** Set once the spool is closed.  Guarded by this. */
+  protected boolean closed = false;
+
+  /** Spool a binary stream.
+  *@param is is the stream, which is read to its end.
+  */
+  public DocumentSpool(InputStream is)
+    throws ManifoldCFException, IOException
+  {
+    SpoolOutputStream os = new SpoolOutputStream();
+    try
+    {
+      byte[] buffer = new byte[CHUNK_SIZE];
+      while (true)
+      {
+        int amt = is.read(buffer);
+        if (amt == -1)
+          break;
+        os.write(buffer,0,amt);
+      }
+      os.finish();
+    }
+    catch (Throwable e)
+    {
+      os.abandon();
+      rethrow(e);
+    }
+  }
+
+  /** Spool a character stream.
+  *@param reader is the reader, which is read to its end.
+  */
+  public DocumentSpool(Reader reader)
+    throws ManifoldCFException, IOException
+  {
+    SpoolOutputStream os = new SpoolOutputStream();
+    try
+    {
+      Writer writer = new OutputStreamWriter(os,StandardCharsets.UTF_8);
+      char[] buffer = new char[CHUNK_SIZE];
+      while (true)
+      {
+        int amt = reader.read(buffer);
+        if (amt == -1)
+          break;
+        writer.write(buffer,0,amt);
+      }
+      // Flushing the writer pushes out any partial character state into the spool
+      writer.flush();
+      os.finish();
+    }
+    catch (Throwable e)
+    {
+      os.abandon();
+      rethrow(e);
+    }
+  }
+
+  /** Get the number of bytes spooled.
+  */
+  public long getLength()
+  {
+    return length;
+  }
+
+  /** Check whether the data is held in memory rather than in a file.
+  */
+  public boolean isInMemory()
+  {
+    return file == null;
+  }
+
+  /** Get a new, independent view of the data as a byte stream.  Close the stream when done with it.
+  */
+  public InputStream getStream()
+    throws ManifoldCFException
+  {
+    synchronized (this)
+    {
+      if (closed)
+        throw new IllegalStateException("Spool already closed");
+      references++;
+    }
+    if (file == null)
+      return new ViewInputStream(new ChunkInputStream(chunks));
+    if (mappedBuffer != null)
+      return new ViewInputStream(new ChunkInputStream(Collections.<ByteBuffer>singletonList(mappedBuffer)));
+    // Too large to map in one piece
+    try
+    {
+      return new ViewInputStream(new BufferedInputStream(new FileInputStream(file),CHUNK_SIZE));
+    }
+    catch (FileNotFoundException e)
+    {
+      dereference();
+      throw new ManifoldCFException("Can't open spool file: "+e.getMessage(),e);
+    }
+  }
+
+  /** Get a new, independent view of character data that was spooled from a Reader.  Close the reader when done
+  * with it.
+  */
+  public Reader getReader()
+    throws ManifoldCFException
+  {
+    return new InputStreamReader(getStream(),StandardCharsets.UTF_8);
+  }
+
+  /** Release the resources of this spool, once every view of it is done.
+  */
+  public void close()
+  {
+    synchronized (this)
+    {
+      if (closed)
+        return;
+      closed = true;
+    }
+    dereference();
+  }
+
+  // Protected methods
+
+  /** Drop a reference, and release everything when the last one goes.
+  */
+  protected void dereference()
+  {
+    synchronized (this)
+    {
+      references--;
+      if (references > 0)
+        return;
+    }
+    releaseChunks(chunks);
+    // The mapping goes away when the buffer is collected; on most platforms the file can be deleted before that.
+    mappedBuffer = null;
+    if (file != null)
+    {
+      ManifoldCF.deleteFile(file);
+      file = null;
+    }
+  }
+
+  /** Return chunks to the pool and their size to the memory budget.
+  */
+  protected static void releaseChunks(List<ByteBuffer> chunkList)
+  {
+    for (ByteBuffer chunk : chunkList)
+    {
+      BufferPool.unreserve(BufferPool.DIRECT_CHUNK_SIZE);
+      BufferPool.releaseDirect(chunk);
+    }
+    chunkList.clear();
+  }
+
+  protected static void rethrow(Throwable e)
+    throws ManifoldCFException, IOException
+  {
+    if (e instanceof IOException)
+      throw (IOException)e;
+    if (e instanceof ManifoldCFException)
+      throw (ManifoldCFException)e;
+    if (e instanceof RuntimeException)
+      throw (RuntimeException)e;
+    if (e instanceof Error)
+      throw (Error)e;
+    throw new RuntimeException("Unexpected throwable of type "+e.getClass().getName()+": "+e.getMessage(),e);
+  }
+
+  /** The stream that fills the spool.  It writes into off-heap chunks until the data grows past the largest
+  * document the BufferPool keeps in memory, or the memory budget runs out, and then moves everything to a
+  * temporary file.
+  */
+  protected class SpoolOutputStream extends OutputStream
+  {
+    protected List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+    protected File outFile = null;
+    protected OutputStream fileStream = null;
+    protected boolean spilledForBudget = false;
+    protected long written = 0L;
+
+    @Override
+    public void write(int b)
+      throws IOException
+    {
+      write(new byte[]{(byte)b},0,1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+      throws IOException
+    {
+      if (buffers != null && written + len > BufferPool.getMaxDocumentSize())
+        spill();
+      written += len;
+      while (len > 0 && buffers != null)
+      {
+        ByteBuffer chunk = (buffers.size() == 0)?null:buffers.get(buffers.size()-1);
+        if (chunk == null || !chunk.hasRemaining())
+        {
+          if (!BufferPool.reserve(BufferPool.DIRECT_CHUNK_SIZE))
+          {
+            spilledForBudget = true;
+            spill();
+            break;
+          }
+          chunk = BufferPool.allocateDirect();
+          buffers.add(chunk);
+        }
+        int amt = Math.min(len,chunk.remaining());
+        chunk.put(b,off,amt);
+        off += amt;
+        len -= amt;
+      }
+      if (len > 0)
+        fileStream.write(b,off,len);
+    }
+
+    /** Move what has been written so far from the chunks to a temporary file.
+    */
+    protected void spill()
+      throws IOException
+    {
+      outFile = File.createTempFile("_MC_","");
+      // Register the file for autodeletion, using our infrastructure.
+      ManifoldCF.addFile(outFile);
+      fileStream = new BufferedOutputStream(new FileOutputStream(outFile),CHUNK_SIZE);
+      try
+      {
+        byte[] transfer = new byte[BufferPool.DIRECT_CHUNK_SIZE];
+        for (ByteBuffer chunk : buffers)
+        {
+          chunk.flip();
+          int amt = chunk.remaining();
+          chunk.get(transfer,0,amt);
+          fileStream.write(transfer,0,amt);
+        }
+      }
+      finally
+      {
+        releaseChunks(buffers);
+        buffers = null;
+      }
+    }
+
+    /** Hand the data over to the spool.
+    */
+    public void finish()
+      throws IOException
+    {
+      length = written;
+      if (buffers != null)
+      {
+        for (ByteBuffer chunk : buffers)
+        {
+          chunk.flip();
+        }
+        chunks = buffers;
+        buffers = null;
+        return;
+      }
+      fileStream.close();
+      fileStream = null;
+      file = outFile;
+      outFile = null;
+      BufferPool.noteTempFile(length,spilledForBudget);
+      if (length <= (long)Integer.MAX_VALUE)
+      {
+        RandomAccessFile raf = new RandomAccessFile(file,"r");
+        try
+        {
+          mappedBuffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,0L,length);
+        }
+        finally
+        {
+          // The mapping stays valid after the channel is closed
+          raf.close();
+        }
+      }
+    }
+
+    /** Release everything after a failure.
+    */
+    public void abandon()
+    {
+      if (buffers != null)
+      {
+        releaseChunks(buffers);
+        buffers = null;
+      }
+      if (fileStream != null)
+      {
+        try
+        {
+          fileStream.close();
+        }
+        catch (IOException e)
+        {
+          // Nothing more can be done
+        }
+        fileStream = null;
+      }
+      if (outFile != null)
+      {
+        ManifoldCF.deleteFile(outFile);
+        outFile = null;
+      }
+      DocumentSpool.this.close();
+    }
+  }
+
+  /** A view of the spool.  It holds a reference to the spool until it is closed or reaches the end of the data,
+  * since the streams of a repository document are not always closed by the connectors that read them.
+  */
+  protected class ViewInputStream extends FilterInputStream
+  {
+    protected boolean released = false;
+
+    public ViewInputStream(InputStream is)
+    {
+      super(is);
+    }
+
+    @Override
+    public int read()
+      throws IOException
+    {
+      if (released)
+        return -1;
+      int rval = in.read();
+      if (rval == -1)
+        release();
+      return rval;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+      throws IOException
+    {
+      if (released)
+        return -1;
+      int rval = in.read(b,off,len);
+      if (rval == -1)
+        release();
+      return rval;
+    }
+
+    @Override
+    public long skip(long n)
+      throws IOException
+    {
+      if (released)
+        return 0L;
+      return in.skip(n);
+    }
+
+    @Override
+    public int available()
+      throws IOException
+    {
+      if (released)
+        return 0;
+      return in.available();
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+      return false;
+    }
+
+    @Override
+    public void close()
+      throws IOException
+    {
+      release();
+    }
+
+    protected void release()
+      throws IOException
+    {
+      if (released)
+        return;
+      released = true;
+      try
+      {
+        in.close();
+      }
+      finally
+      {
+        dereference();
+      }
+    }
+  }
+
+  /** An input stream reading through its own views of a list of buffers.
+  */
+  protected static class ChunkInputStream extends InputStream
+  {
+    protected final List<ByteBuffer> buffers;
+    protected int bufferIndex = 0;
+    protected ByteBuffer current = null;
+
+    public ChunkInputStream(List<ByteBuffer> buffers)
+    {
+      this.buffers = buffers;
+    }
+
+    @Override
+    public int read()
+    {
+      if (!advance())
+        return -1;
+      return ((int)current.get()) & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+    {
+      if (len == 0)
+        return 0;
+      if (!advance())
+        return -1;
+      int amt = Math.min(len,current.remaining());
+      current.get(b,off,amt);
+      return amt;
+    }
+
+    @Override
+    public long skip(long n)
+    {
+      long skipped = 0L;
+      while (skipped < n && advance())
+      {
+        int amt = (int)Math.min(n - skipped,(long)current.remaining());
+        current.position(current.position() + amt);
+        skipped += amt;
+      }
+      return skipped;
+    }
+
+    @Override
+    public int available()
+    {
+      if (current == null || !current.hasRemaining())
+        return 0;
+      return current.remaining();
+    }
+
+    /** Move to the next buffer with data left, if the current one is used up.
+    *@return false if there is no more data.
+    */
+    protected boolean advance()
+    {
+      while (current == null || !current.hasRemaining())
+      {
+        if (bufferIndex == buffers.size())
+          return false;
+        // Each stream reads through its own view of the shared buffers
+        current = buffers.get(bufferIndex++).asReadOnlyBuffer();
+      }
+      return true;
+    }
+  }
+
+}
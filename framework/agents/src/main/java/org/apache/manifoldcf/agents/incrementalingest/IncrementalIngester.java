@@ -23,6 +23,7 @@ import org.apache.manifoldcf.agents.interfaces.*;
 import org.apache.manifoldcf.agents.system.Logging;
 import org.apache.manifoldcf.agents.system.ManifoldCF;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 import java.io.*;
 
 /** Incremental ingestion API implementation.
@@ -85,6 +86,17 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
   protected final IOutputConnectorPool outputConnectorPool;
   // Transformation connector pool manager
   protected final ITransformationConnectorPool transformationConnectorPool;
+  // Documents this thread handed to asynchronous output stages, whose outcome has not been collected
+  protected final List<AsynchronousSend> pendingSends = new ArrayList<AsynchronousSend>();
+  // Document versions recorded by this thread and not yet written, by output connection, document key, and component
+  protected final Map<String,PendingRecord> pendingRecords = new HashMap<String,PendingRecord>();
+
+  /** The most document versions held before they are written */
+  protected final static int MAX_PENDING_RECORDS = 1000;
+
+  // Statistics for recorded document versions
+  protected final static AtomicLong recordsFlushed = new AtomicLong(0L);
+  protected final static AtomicLong recordStatements = new AtomicLong(0L);
   
   /** Constructor.
   */
@@ -193,6 +205,7 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
   public void clearAll()
     throws ManifoldCFException
   {
+    pendingRecords.clear();
     performDelete("",null,null);
   }
 
@@ -616,6 +629,7 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
 
   /** Record a document version, but don't ingest it.
   * The purpose of this method is to update document version information without reindexing the document.
+  * The version is held until flushDocumentRecords() is called, or until enough versions are held to be worth writing.
   *@param pipelineSpecificationBasic is the basic pipeline specification needed.
   *@param identifierClass is the name of the space in which the identifier hash should be interpreted.
   *@param identifierHash is the hashed document identifier.
@@ -655,10 +669,194 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
     {
       String outputConnectionName = outputConnectionNames[k];
 
-      // If we get here, it means we are noting that the document was examined, but that no change was required.  This is signaled
-      // to noteDocumentIngest by having the null documentURI.
-      noteDocumentIngest(outputConnectionName,docKey,componentHash,documentVersion,null,null,null,recordTime,null,null);
+      // If we get here, it means we are noting that the document was examined, but that no change was required.
+      // The row is written along with the others recorded in this batch, when the batch is flushed.
+      PendingRecord record = new PendingRecord(outputConnectionName,docKey,componentHash,documentVersion,recordTime);
+      pendingRecords.put(record.getKey(),record);
     }
+    if (pendingRecords.size() >= MAX_PENDING_RECORDS)
+      flushDocumentRecords();
+  }
+
+  /** Write the document versions recorded by documentRecord() that have not yet been written.
+  * Versions are written a chunk of documents at a time: the existing rows are locked with one query, and the rows
+  * that get the same values are updated with one statement.  Documents that have no row yet are inserted one at a time.
+  */
+  @Override
+  public void flushDocumentRecords()
+    throws ManifoldCFException
+  {
+    if (pendingRecords.size() == 0)
+      return;
+
+    long startTime = System.currentTimeMillis();
+    int recordCount = pendingRecords.size();
+    Map<String,List<PendingRecord>> connectionRecords = new HashMap<String,List<PendingRecord>>();
+    for (PendingRecord record : pendingRecords.values())
+    {
+      List<PendingRecord> records = connectionRecords.get(record.outputConnectionName);
+      if (records == null)
+      {
+        records = new ArrayList<PendingRecord>();
+        connectionRecords.put(record.outputConnectionName,records);
+      }
+      records.add(record);
+    }
+    pendingRecords.clear();
+
+    int statementCount = 0;
+    for (Map.Entry<String,List<PendingRecord>> entry : connectionRecords.entrySet())
+    {
+      String outputConnectionName = entry.getKey();
+      List<PendingRecord> records = entry.getValue();
+      int maxClauses = maxClausesRowIdsForDocIds(outputConnectionName);
+      for (int i = 0; i < records.size(); i += maxClauses)
+      {
+        statementCount += recordChunk(outputConnectionName,records.subList(i,Math.min(records.size(),i + maxClauses)));
+      }
+    }
+
+    recordsFlushed.addAndGet(recordCount);
+    recordStatements.addAndGet(statementCount);
+    if (Logging.perf.isDebugEnabled())
+      Logging.perf.debug("Recorded "+recordCount+" document versions with "+statementCount+" statements in "+
+        (System.currentTimeMillis() - startTime)+" ms; "+recordsFlushed.get()+" versions with "+recordStatements.get()+" statements so far");
+  }
+
+  /** Write the versions of a chunk of recorded documents for one output connection.
+  *@param outputConnectionName is the output connection name.
+  *@param records are the recorded documents, which have no more distinct document keys than fit in one query.
+  *@return the number of statements used.
+  */
+  protected int recordChunk(String outputConnectionName, List<PendingRecord> records)
+    throws ManifoldCFException
+  {
+    Set<String> docKeys = new HashSet<String>();
+    for (PendingRecord record : records)
+    {
+      docKeys.add(record.docKey);
+    }
+
+    List<PendingRecord> missingRecords = new ArrayList<PendingRecord>();
+    int statementCount;
+    // Transaction abort due to deadlock should be retried here.
+    while (true)
+    {
+      long sleepAmt = 0L;
+      missingRecords.clear();
+      statementCount = 1;
+      beginTransaction();
+      try
+      {
+        // Lock all the existing rows for the chunk
+        ArrayList list = new ArrayList();
+        String query = buildConjunctionClause(list,new ClauseDescription[]{
+          new MultiClause(docKeyField,new ArrayList<String>(docKeys)),
+          new UnitaryClause(outputConnNameField,outputConnectionName)});
+        IResultSet set = performQuery("SELECT "+idField+","+docKeyField+","+componentHashField+" FROM "+getTableName()+" WHERE "+
+          query+" FOR UPDATE",list,null,null);
+        Map<String,Long> rowIDs = new HashMap<String,Long>();
+        for (int i = 0; i < set.getRowCount(); i++)
+        {
+          IResultRow row = set.getRow(i);
+          rowIDs.put(PendingRecord.makeKey(outputConnectionName,(String)row.getValue(docKeyField),(String)row.getValue(componentHashField)),
+            (Long)row.getValue(idField));
+        }
+
+        // Rows that get the same values can be updated together
+        Map<String,List<Long>> valueRowIDs = new HashMap<String,List<Long>>();
+        Map<String,PendingRecord> valueRecords = new HashMap<String,PendingRecord>();
+        for (PendingRecord record : records)
+        {
+          Long rowID = rowIDs.get(record.getKey());
+          if (rowID == null)
+          {
+            missingRecords.add(record);
+            continue;
+          }
+          String valueKey = record.getValueKey();
+          List<Long> ids = valueRowIDs.get(valueKey);
+          if (ids == null)
+          {
+            ids = new ArrayList<Long>();
+            valueRowIDs.put(valueKey,ids);
+            valueRecords.put(valueKey,record);
+          }
+          ids.add(rowID);
+        }
+
+        int maxClauses = maxClausesUpdateRowIds();
+        for (Map.Entry<String,List<Long>> entry : valueRowIDs.entrySet())
+        {
+          PendingRecord record = valueRecords.get(entry.getKey());
+          List<Long> ids = entry.getValue();
+          for (int i = 0; i < ids.size(); i += maxClauses)
+          {
+            updateRecordedRows(ids.subList(i,Math.min(ids.size(),i + maxClauses)),record.documentVersion,record.recordTime);
+            statementCount++;
+          }
+        }
+        break;
+      }
+      catch (ManifoldCFException e)
+      {
+        signalRollback();
+        if (e.getErrorCode() == e.DATABASE_TRANSACTION_ABORT)
+        {
+          if (Logging.perf.isDebugEnabled())
+            Logging.perf.debug("Aborted transaction recording document versions: "+e.getMessage());
+          sleepAmt = getSleepAmt();
+          continue;
+        }
+        throw e;
+      }
+      catch (Error e)
+      {
+        signalRollback();
+        throw e;
+      }
+      finally
+      {
+        endTransaction();
+        sleepFor(sleepAmt);
+      }
+    }
+
+    // Documents without a row need the insert logic, which is per document
+    for (PendingRecord record : missingRecords)
+    {
+      noteDocumentIngest(outputConnectionName,record.docKey,record.componentHash,record.documentVersion,null,null,null,record.recordTime,null,null);
+      statementCount += 2;
+    }
+    return statementCount;
+  }
+
+  /** Update the rows of recorded documents that all get the same version and time.
+  * This has the same effect as noteDocumentIngest() has on an existing row when there is no document URI.
+  */
+  protected void updateRecordedRows(List<Long> ids, String documentVersion, long recordTime)
+    throws ManifoldCFException
+  {
+    ArrayList list = new ArrayList();
+    StringBuilder sb = new StringBuilder("UPDATE ");
+    sb.append(getTableName()).append(" SET ").append(lastVersionField);
+    if (documentVersion == null)
+      sb.append("=NULL,");
+    else
+    {
+      sb.append("=?,");
+      list.add(documentVersion);
+    }
+    sb.append(lastTransformationVersionField).append("=NULL,")
+      .append(lastOutputVersionField).append("=NULL,")
+      .append(lastIngestField).append("=?,")
+      .append(authorityNameField).append("=?,")
+      .append(changeCountField).append("=").append(changeCountField).append("+1 WHERE ");
+    list.add(new Long(recordTime));
+    list.add("");
+    sb.append(buildConjunctionClause(list,new ClauseDescription[]{
+      new MultiClause(idField,ids)}));
+    performModification(sb.toString(),list,null);
   }
 
   /** Remove a document from specified indexes, just as if an empty document
@@ -685,6 +883,8 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
     IOutputActivity activities)
     throws ManifoldCFException, ServiceInterruption
   {
+    flushDocumentRecords();
+
     String docKey = makeKey(identifierClass,identifierHash);
 
     if (Logging.ingest.isDebugEnabled())
@@ -736,6 +936,8 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
     IOutputActivity activities)
     throws ManifoldCFException, ServiceInterruption, IOException
   {
+    flushDocumentRecords();
+
     String docKey = makeKey(identifierClass,identifierHash);
 
     if (Logging.ingest.isDebugEnabled())
@@ -761,6 +963,75 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
     }
   }
 
+  /** Wait until every document that this ingester handed to an asynchronous output stage has been sent, and
+  * record the activity of those sends.  The activity is recorded on this thread, through the activity objects
+  * passed to documentIngest(), which belong to it and are still in use by the caller.
+  * If any of the sends was interrupted or failed, the first such exception is thrown.
+  *@return the identifier hashes of the documents that every asynchronous output stage they were handed to rejected.
+  */
+  @Override
+  public String[] waitForSends()
+    throws ManifoldCFException, ServiceInterruption
+  {
+    Throwable failure = null;
+    Set<String> acceptedKeys = new HashSet<String>();
+    Set<String> rejectedKeys = new LinkedHashSet<String>();
+    while (pendingSends.size() > 0)
+    {
+      AsynchronousSend send = pendingSends.get(0);
+      Throwable sendFailure = send.waitForCompletion();
+      pendingSends.remove(0);
+      send.recordActivities();
+      if (failure == null)
+        failure = sendFailure;
+      if (sendFailure == null)
+      {
+        // As for a document sent to several outputs at once, one output accepting it is enough
+        if (send.getStatus() == IPipelineConnector.DOCUMENTSTATUS_ACCEPTED)
+          acceptedKeys.add(send.docKey);
+        else
+          rejectedKeys.add(send.docKey);
+      }
+    }
+    if (failure == null)
+    {
+      rejectedKeys.removeAll(acceptedKeys);
+      String[] rval = new String[rejectedKeys.size()];
+      int i = 0;
+      for (String docKey : rejectedKeys)
+      {
+        rval[i++] = getKeyHash(docKey);
+      }
+      return rval;
+    }
+    if (failure instanceof ServiceInterruption)
+      throw (ServiceInterruption)failure;
+    if (failure instanceof ManifoldCFException)
+      throw (ManifoldCFException)failure;
+    if (failure instanceof RuntimeException)
+      throw (RuntimeException)failure;
+    if (failure instanceof Error)
+      throw (Error)failure;
+    throw new ManifoldCFException("Error sending document: "+failure.getMessage(),failure);
+  }
+
+  /** Wait until none of the given documents is being sent by an asynchronous output stage of this process, so that
+  * removing them from the index cannot overtake their addition.
+  *@param outputConnectionName is the output connection name.
+  *@param identifierClasses are the names of the spaces in which the identifier hashes should be interpreted.
+  *@param identifierHashes are the document identifier hashes.
+  */
+  protected static void waitForPendingSends(String outputConnectionName, String[] identifierClasses, String[] identifierHashes)
+    throws ManifoldCFException
+  {
+    String[] docKeys = new String[identifierHashes.length];
+    for (int i = 0; i < docKeys.length; i++)
+    {
+      docKeys[i] = makeKey(identifierClasses[i],identifierHashes[i]);
+    }
+    AsynchronousOutput.waitForDocuments(outputConnectionName,docKeys);
+  }
+
   /** Remove a document component from the search engine index.
   *@param pipelineConnections is the pipeline specification.
   *@param identifierClass is the name of the space in which the identifier hash should be interpreted.
@@ -806,6 +1077,8 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
     long checkTime)
     throws ManifoldCFException
   {
+    flushDocumentRecords();
+
     // Extract output connection names from pipeline spec
     String[] outputConnectionNames = extractOutputConnectionNames(pipelineSpecificationBasic);
     beginTransaction();
@@ -985,6 +1258,8 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
     IOutputRemoveActivity originalActivities)
     throws ManifoldCFException, ServiceInterruption
   {
+    flushDocumentRecords();
+
     String[] outputConnectionNames = pipelineConnections.getOutputConnectionNames();
     IOutputConnection[] outputConnections = pipelineConnections.getOutputConnections();
     
@@ -1006,6 +1281,9 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
 
       // No transactions.  Time for the operation may exceed transaction timeout.
 
+      // A document still being added must reach the index before it is deleted.
+      waitForPendingSends(outputConnectionName,identifierClasses,identifierHashes);
+
       // Obtain the current URIs of all of these.
       List<DeleteInfo> uris = getDocumentURIMultiple(outputConnectionName,identifierClasses,identifierHashes);
 
@@ -1202,6 +1480,8 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
     IOutputRemoveActivity activities)
     throws ManifoldCFException, ServiceInterruption
   {
+    flushDocumentRecords();
+
     String[] outputConnectionNames = pipelineConnections.getOutputConnectionNames();
     IOutputConnection[] outputConnections = pipelineConnections.getOutputConnections();
     
@@ -1223,6 +1503,9 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
 
       // No transactions.  Time for the operation may exceed transaction timeout.
 
+      // A document still being added must reach the index before it is removed.
+      waitForPendingSends(outputConnectionName,identifierClasses,identifierHashes);
+
       // Obtain the current URIs of all of these.
       List<DeleteInfo> uris = getDocumentURIMultiple(outputConnectionName,identifierClasses,identifierHashes,componentHash);
 
@@ -1719,6 +2002,8 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
     String[] identifierClasses, String[] identifierHashes)
     throws ManifoldCFException
   {
+    flushDocumentRecords();
+
     String[] outputConnectionNames = extractOutputConnectionNames(pipelineSpecificationBasic);
 
     // Build a map, so we can convert an identifier into an array index.
@@ -1845,6 +2130,8 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
     String[] identifierClasses, String[] identifierHashes)
     throws ManifoldCFException
   {
+    flushDocumentRecords();
+
     // Get the output connection names
     String[] outputConnectionNames = extractOutputConnectionNames(pipelineSpecificationBasic);
 
@@ -1967,6 +2254,8 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
   public void resetOutputConnection(IOutputConnection outputConnection)
     throws ManifoldCFException
   {
+    flushDocumentRecords();
+
     if (outputConnection == null)
       return;
 
@@ -1988,6 +2277,8 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
   public void removeOutputConnection(IOutputConnection outputConnection)
     throws ManifoldCFException
   {
+    flushDocumentRecords();
+
     if (outputConnection == null)
       return;
 
@@ -2319,6 +2610,13 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
     return documentClass + ":" + documentHash;
   }
 
+  /** Get the document hash back from a key made by makeKey().  The class may contain a colon, but the hash does not.
+  */
+  protected static String getKeyHash(String docKey)
+  {
+    return docKey.substring(docKey.lastIndexOf(':') + 1);
+  }
+
   /** This class contains the information necessary to delete a document */
   protected static class DeleteInfo
   {
@@ -3293,6 +3591,45 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
     @Override
     public int addOrReplaceDocumentWithException(String documentURI, RepositoryDocument document)
       throws ManifoldCFException, ServiceInterruption, IOException
+    {
+      if (documentURI != null)
+      {
+        AsynchronousOutput.OutputQueue queue = AsynchronousOutput.getQueue(threadContext,outputConnectionName);
+        if (queue != null)
+        {
+          // The caller closes the document's streams when we return, so the sender needs its own copy.
+          RepositoryDocumentFactory factory = new RepositoryDocumentFactory(document);
+          AsynchronousSend send = new AsynchronousSend(activity,factory,outputConnectionName,
+            pipelineDescriptionString,authorityNameString,transformationVersion,ingestTime,documentVersion,
+            docKey,componentHash,documentURI);
+          try
+          {
+            queue.submit(docKey,send);
+          }
+          catch (ManifoldCFException e)
+          {
+            factory.close();
+            throw e;
+          }
+          catch (RuntimeException e)
+          {
+            factory.close();
+            throw e;
+          }
+          // The outcome is not known yet, so the document counts as accepted for now.  waitForSends() collects the
+          // real outcome: it reports a failed send to the caller so that the document is retried, and returns the
+          // documents the output connector rejected.
+          pendingSends.add(send);
+          return IPipelineConnector.DOCUMENTSTATUS_ACCEPTED;
+        }
+      }
+      return performAddOrReplace(documentURI,document);
+    }
+
+    /** Send a document to the output connection and record it, on the current thread.
+    */
+    protected int performAddOrReplace(String documentURI, RepositoryDocument document)
+      throws ManifoldCFException, ServiceInterruption, IOException
     {
       // No transactions; not safe because post may take too much time
 
@@ -3421,6 +3758,286 @@ public class IncrementalIngester extends org.apache.manifoldcf.core.database.Bas
     }
   }
 
+  /** A document handed to an asynchronous output stage.  On a sender thread, it grabs its own output connector and
+  * sends the document, recording the ingest status with the sender thread's own database handle.  The history it
+  * generates, and the outcome of the send, are kept until the thread that handed the document over collects them.
+  */
+  protected static class AsynchronousSend implements Runnable, IOutputActivity
+  {
+    protected final IOutputActivity finalActivity;
+    protected final RepositoryDocumentFactory factory;
+    protected final String outputConnectionName;
+    protected final VersionContext outputDescriptionString;
+    protected final String authorityNameString;
+    protected final String transformationVersion;
+    protected final long ingestTime;
+    protected final String documentVersion;
+    protected final String docKey;
+    protected final String componentHash;
+    protected final String documentURI;
+
+    /** History records generated while sending */
+    protected final List<HistoryRecord> historyRecords = new ArrayList<HistoryRecord>();
+    /** Set when the send is over.  Guarded by this. */
+    protected boolean done = false;
+    /** What the send threw, if anything.  Guarded by this. */
+    protected Throwable failure = null;
+    /** The status the output connector returned for the document.  Guarded by this. */
+    protected int status = IPipelineConnector.DOCUMENTSTATUS_REJECTED;
+
+    public AsynchronousSend(IOutputActivity finalActivity, RepositoryDocumentFactory factory,
+      String outputConnectionName, VersionContext outputDescriptionString, String authorityNameString,
+      String transformationVersion, long ingestTime, String documentVersion, String docKey, String componentHash,
+      String documentURI)
+    {
+      this.finalActivity = finalActivity;
+      this.factory = factory;
+      this.outputConnectionName = outputConnectionName;
+      this.outputDescriptionString = outputDescriptionString;
+      this.authorityNameString = authorityNameString;
+      this.transformationVersion = transformationVersion;
+      this.ingestTime = ingestTime;
+      this.documentVersion = documentVersion;
+      this.docKey = docKey;
+      this.componentHash = componentHash;
+      this.documentURI = documentURI;
+    }
+
+    @Override
+    public void run()
+    {
+      try
+      {
+        IThreadContext threadContext = AsynchronousOutput.SenderThread.getThreadContext();
+        IOutputConnection connection = OutputConnectionManagerFactory.make(threadContext).load(outputConnectionName);
+        if (connection == null)
+          throw new ManifoldCFException("Output connection '"+outputConnectionName+"' no longer exists");
+        IOutputConnectorPool outputConnectorPool = OutputConnectorPoolFactory.make(threadContext);
+        IOutputConnector connector = outputConnectorPool.grab(connection);
+        if (connector == null)
+          throw new ManifoldCFException("Output connector for '"+outputConnectionName+"' is not installed");
+        try
+        {
+          IncrementalIngester ingester = (IncrementalIngester)IncrementalIngesterFactory.make(threadContext);
+          OutputAddEntryPoint entryPoint = ingester.new OutputAddEntryPoint(connector,outputDescriptionString,
+            this,true,outputConnectionName,transformationVersion,
+            ingestTime,documentVersion,docKey,componentHash,authorityNameString);
+          int sendStatus = entryPoint.performAddOrReplace(documentURI,factory.createDocument());
+          synchronized (this)
+          {
+            status = sendStatus;
+          }
+        }
+        finally
+        {
+          outputConnectorPool.release(connection,connector);
+        }
+      }
+      catch (Throwable e)
+      {
+        // Reported to the thread that handed the document over, which retries it
+        if (Logging.ingest.isDebugEnabled())
+          Logging.ingest.debug("Failed sending '"+documentURI+"' to output connection '"+outputConnectionName+"': "+e.getMessage(),e);
+        synchronized (this)
+        {
+          failure = e;
+        }
+      }
+      finally
+      {
+        try
+        {
+          factory.close();
+        }
+        catch (ManifoldCFException e)
+        {
+          Logging.ingest.warn("Error releasing copy of '"+documentURI+"': "+e.getMessage(),e);
+        }
+        synchronized (this)
+        {
+          done = true;
+          notifyAll();
+        }
+      }
+    }
+
+    /** Wait for the send to be over.
+    *@return what the send threw, or null if it succeeded.
+    */
+    public synchronized Throwable waitForCompletion()
+      throws ManifoldCFException
+    {
+      try
+      {
+        while (!done)
+        {
+          wait();
+        }
+      }
+      catch (InterruptedException e)
+      {
+        throw new ManifoldCFException(e.getMessage(),e,ManifoldCFException.INTERRUPTED);
+      }
+      return failure;
+    }
+
+    /** Get the status the output connector returned for the document, once the send is over.
+    *@return IPipelineConnector.DOCUMENTSTATUS_ACCEPTED or IPipelineConnector.DOCUMENTSTATUS_REJECTED.
+    */
+    public synchronized int getStatus()
+    {
+      return status;
+    }
+
+    /** Record the history generated by the send, using the activity object of the thread that handed the document over.
+    */
+    public void recordActivities()
+      throws ManifoldCFException
+    {
+      List<HistoryRecord> records;
+      synchronized (historyRecords)
+      {
+        records = new ArrayList<HistoryRecord>(historyRecords);
+        historyRecords.clear();
+      }
+      for (HistoryRecord record : records)
+      {
+        finalActivity.recordActivity(record.startTime,record.activityType,record.dataSize,
+          record.entityURI,record.resultCode,record.resultDescription);
+      }
+    }
+
+    @Override
+    public void recordActivity(Long startTime, String activityType, Long dataSize,
+      String entityURI, String resultCode, String resultDescription)
+      throws ManifoldCFException
+    {
+      synchronized (historyRecords)
+      {
+        historyRecords.add(new HistoryRecord(startTime,activityType,dataSize,entityURI,resultCode,resultDescription));
+      }
+    }
+
+    @Override
+    public String qualifyAccessToken(String authorityNameString, String accessToken)
+      throws ManifoldCFException
+    {
+      return finalActivity.qualifyAccessToken(authorityNameString,accessToken);
+    }
+
+    @Override
+    public int sendDocument(String documentURI, RepositoryDocument document)
+      throws ManifoldCFException, ServiceInterruption, IOException
+    {
+      // No downstream connection at output connection level.
+      return IPipelineConnector.DOCUMENTSTATUS_REJECTED;
+    }
+
+    @Override
+    public void noDocument()
+      throws ManifoldCFException, ServiceInterruption
+    {
+    }
+
+    @Override
+    public boolean checkDateIndexable(Date date)
+      throws ManifoldCFException, ServiceInterruption
+    {
+      return true;
+    }
+
+    @Override
+    public boolean checkMimeTypeIndexable(String mimeType)
+      throws ManifoldCFException, ServiceInterruption
+    {
+      return true;
+    }
+
+    @Override
+    public boolean checkDocumentIndexable(File localFile)
+      throws ManifoldCFException, ServiceInterruption
+    {
+      return true;
+    }
+
+    @Override
+    public boolean checkLengthIndexable(long length)
+      throws ManifoldCFException, ServiceInterruption
+    {
+      return true;
+    }
+
+    @Override
+    public boolean checkURLIndexable(String url)
+      throws ManifoldCFException, ServiceInterruption
+    {
+      return true;
+    }
+  }
+
+  /** A document version recorded by documentRecord() and not yet written */
+  protected static class PendingRecord
+  {
+    public final String outputConnectionName;
+    public final String docKey;
+    public final String componentHash;
+    public final String documentVersion;
+    public final long recordTime;
+
+    public PendingRecord(String outputConnectionName, String docKey, String componentHash, String documentVersion, long recordTime)
+    {
+      this.outputConnectionName = outputConnectionName;
+      this.docKey = docKey;
+      this.componentHash = componentHash;
+      this.documentVersion = documentVersion;
+      this.recordTime = recordTime;
+    }
+
+    /** Get the key of the ingest status row this record is for. */
+    public String getKey()
+    {
+      return makeKey(outputConnectionName,docKey,componentHash);
+    }
+
+    /** Get a key that is the same for records that give their rows the same values. */
+    public String getValueKey()
+    {
+      return recordTime+((documentVersion==null)?"":(":"+documentVersion));
+    }
+
+    public static String makeKey(String outputConnectionName, String docKey, String componentHash)
+    {
+      StringBuilder sb = new StringBuilder();
+      pack(sb,outputConnectionName,'+');
+      pack(sb,docKey,'+');
+      if (componentHash != null)
+        pack(sb,componentHash,'+');
+      return sb.toString();
+    }
+  }
+
+  /** A history record waiting to be recorded */
+  protected static class HistoryRecord
+  {
+    public final Long startTime;
+    public final String activityType;
+    public final Long dataSize;
+    public final String entityURI;
+    public final String resultCode;
+    public final String resultDescription;
+
+    public HistoryRecord(Long startTime, String activityType, Long dataSize,
+      String entityURI, String resultCode, String resultDescription)
+    {
+      this.startTime = startTime;
+      this.activityType = activityType;
+      this.dataSize = dataSize;
+      this.entityURI = entityURI;
+      this.resultCode = resultCode;
+      this.resultDescription = resultDescription;
+    }
+  }
+
   protected static String[] computeLockArray(String documentURIHash, String oldURIHash, String outputConnectionName)
   {
     int uriCount = 0;
@@ -23,11 +23,16 @@ import org.apache.manifoldcf.agents.interfaces.*;
 import org.apache.manifoldcf.agents.system.Logging;
 import org.apache.manifoldcf.agents.system.ManifoldCF;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 import java.io.*;
 
 /** This class accepts a RepositoryDocument in its constructor, and then
 * allows multiple copies to me made, as part of a split in the pipeline.
 * It must be closed in order to release all temporary resources.
+*
+* The streams are spooled once, into DocumentSpool objects, and every copy reads its own view of the spooled data.
+* The total number of bytes spooled and the time spent spooling are kept for the whole process, and logged per
+* document when the performance logger is at DEBUG level.
 */
 public class RepositoryDocumentFactory
 {
@@ -37,13 +42,23 @@ public class RepositoryDocumentFactory
   // (2) All metadata values that are Readers
   // Everything else can be pulled out of the original RepositoryDocument
   
+  /** The number of documents spooled by this process */
+  protected final static AtomicLong documentsSpooled = new AtomicLong(0L);
+  /** The number of bytes spooled by this process */
+  protected final static AtomicLong bytesSpooled = new AtomicLong(0L);
+  /** The time spent spooling by this process, in nanoseconds */
+  protected final static AtomicLong spoolNanos = new AtomicLong(0L);
+
   protected final RepositoryDocument original;
 
-  // The binary stream file and stream (if any)
-  protected BinaryInput binaryTracker;
+  // The binary stream spool
+  protected DocumentSpool binarySpool;
   
-  // Readers (organized by metadata)
-  protected final Map<String,CharacterInput[]> metadataReaders = new HashMap<String,CharacterInput[]>();
+  // Reader spools (organized by metadata)
+  protected final Map<String,DocumentSpool[]> metadataReaders = new HashMap<String,DocumentSpool[]>();
+
+  // Set when the factory has been closed
+  protected boolean closed = false;
   
   /** Constructor.
   * Pass a RepositoryDocument.  This constructor reads all streams and stores them in
@@ -56,9 +71,10 @@ public class RepositoryDocumentFactory
     throws ManifoldCFException, IOException
   {
     this.original = document;
+    long startTime = System.nanoTime();
     try
     {
-      this.binaryTracker = new TempFileInput(document.getBinaryStream());
+      this.binarySpool = new DocumentSpool(document.getBinaryStream());
       // Copy all reader streams
       Iterator<String> iter = document.getFields();
       while (iter.hasNext())
@@ -67,12 +83,12 @@ public class RepositoryDocumentFactory
         Object[] objects = document.getField(fieldName);
         if (objects instanceof Reader[])
         {
-          CharacterInput[] newValues = new CharacterInput[objects.length];
+          DocumentSpool[] newValues = new DocumentSpool[objects.length];
           metadataReaders.put(fieldName,newValues);
           // Populate newValues
           for (int i = 0; i < newValues.length; i++)
           {
-            newValues[i] = new TempFileCharacterInput((Reader)objects[i]);
+            newValues[i] = new DocumentSpool((Reader)objects[i]);
           }
         }
       }
@@ -80,19 +96,11 @@ public class RepositoryDocumentFactory
     catch (Throwable e)
     {
       // Clean up everything we've done so far.
-      if (this.binaryTracker != null)
-        this.binaryTracker.discard();
-      for (String key : metadataReaders.keySet())
-      {
-        CharacterInput[] rt = metadataReaders.get(key);
-        for (CharacterInput r : rt)
-        {
-          if (r != null)
-            r.discard();
-        }
-      }
+      close();
       if (e instanceof IOException)
         throw (IOException)e;
+      else if (e instanceof ManifoldCFException)
+        throw (ManifoldCFException)e;
       else if (e instanceof RuntimeException)
         throw (RuntimeException)e;
       else if (e instanceof Error)
@@ -100,16 +108,63 @@ public class RepositoryDocumentFactory
       else
         throw new RuntimeException("Unknown exception type: "+e.getClass().getName()+": "+e.getMessage(),e);
     }
+    long elapsed = System.nanoTime() - startTime;
+    long bytes = getBytesSpooled();
+    documentsSpooled.incrementAndGet();
+    bytesSpooled.addAndGet(bytes);
+    spoolNanos.addAndGet(elapsed);
+    if (Logging.perf.isDebugEnabled())
+      Logging.perf.debug("Spooled "+bytes+" bytes for pipeline split in "+(elapsed / 1000000L)+" ms"+
+        (binarySpool.isInMemory()?"":" (mapped file)"));
+  }
+
+  /** Get the number of documents spooled by this process.
+  */
+  public static long getTotalDocumentsSpooled()
+  {
+    return documentsSpooled.get();
+  }
+
+  /** Get the number of bytes spooled by this process.
+  */
+  public static long getTotalBytesSpooled()
+  {
+    return bytesSpooled.get();
+  }
+
+  /** Get the time this process has spent spooling, in milliseconds.
+  */
+  public static long getTotalSpoolTime()
+  {
+    return spoolNanos.get() / 1000000L;
+  }
+
+  /** Get the number of bytes this factory spooled, binary and character data together.
+  */
+  public long getBytesSpooled()
+  {
+    long rval = (binarySpool == null)?0L:binarySpool.getLength();
+    for (DocumentSpool[] spools : metadataReaders.values())
+    {
+      for (DocumentSpool spool : spools)
+      {
+        if (spool != null)
+          rval += spool.getLength();
+      }
+    }
+    return rval;
   }
   
   /** Create a new RepositoryDocument object from the saved local resources.
-  * As a side effect, this method also releases any resources held on behalf of the previously
-  * created RepositoryDocument.
+  * Each document gets its own views of the spooled streams, so documents created earlier remain readable
+  * until this factory is closed.
   *@return a repository document object.
   */
   public RepositoryDocument createDocument()
     throws ManifoldCFException
   {
+    if (closed)
+      throw new IllegalStateException("Repository document factory already closed");
     RepositoryDocument rd = new RepositoryDocument();
     
     // Copy scalar values
@@ -128,8 +183,7 @@ public class RepositoryDocumentFactory
     }
     
     // Copy binary
-    binaryTracker.doneWithStream();
-    rd.setBinary(binaryTracker.getStream(),original.getBinaryLength());
+    rd.setBinary(binarySpool.getStream(),original.getBinaryLength());
     // Copy metadata fields (including minting new Readers where needed)
     Iterator<String> iter = original.getFields();
     while (iter.hasNext())
@@ -138,12 +192,11 @@ public class RepositoryDocumentFactory
       Object[] objects = original.getField(fieldName);
       if (objects instanceof Reader[])
       {
-        CharacterInput[] rts = metadataReaders.get(fieldName);
-        Reader[] newReaders = new Reader[rts.length];
-        for (int i = 0; i < rts.length; i++)
+        DocumentSpool[] spools = metadataReaders.get(fieldName);
+        Reader[] newReaders = new Reader[spools.length];
+        for (int i = 0; i < spools.length; i++)
         {
-          rts[i].doneWithStream();
-          newReaders[i] = rts[i].getStream();
+          newReaders[i] = spools[i].getReader();
         }
         rd.addField(fieldName,newReaders);
       }
@@ -167,15 +220,22 @@ public class RepositoryDocumentFactory
   public void close()
     throws ManifoldCFException
   {
-    binaryTracker.discard();
+    closed = true;
+    if (binarySpool != null)
+    {
+      binarySpool.close();
+      binarySpool = null;
+    }
     for (String key : metadataReaders.keySet())
     {
-      CharacterInput[] rt = metadataReaders.get(key);
-      for (CharacterInput r : rt)
+      DocumentSpool[] spools = metadataReaders.get(key);
+      for (DocumentSpool spool : spools)
       {
-        r.discard();
+        if (spool != null)
+          spool.close();
       }
     }
+    metadataReaders.clear();
   }
   
 }
@@ -168,6 +168,7 @@ public interface IIncrementalIngester
 
   /** Record a document version, but don't ingest it.
   * The purpose of this method is to update document version information without reindexing the document.
+  * The version may not be written until flushDocumentRecords() is called.
   *@param pipelineSpecificationBasic is the basic pipeline specification needed.
   *@param identifierClass is the name of the space in which the identifier hash should be interpreted.
   *@param identifierHash is the hashed document identifier.
@@ -181,6 +182,14 @@ public interface IIncrementalIngester
     String documentVersion, long recordTime)
     throws ManifoldCFException;
 
+  /** Write the document versions recorded by documentRecord() that have not been written yet.
+  * Versions recorded by documentRecord() may be held and written together with others; they are written no later
+  * than the next call to this method, or to any other method of this interface that uses the recorded versions.
+  * Callers must flush before they consider the documents processed.
+  */
+  public void flushDocumentRecords()
+    throws ManifoldCFException;
+
   /** Remove a document from specified indexes, just as if an empty document
   * was indexed, and record the necessary version information.
   * This method is conceptually similar to documentIngest(), but does not actually take
@@ -232,6 +241,17 @@ public interface IIncrementalIngester
     IOutputActivity activities)
     throws ManifoldCFException, ServiceInterruption, IOException;
 
+  /** Wait until every document that this ingester handed to an asynchronous output stage has been sent, and
+  * record the activity of those sends.  documentIngest() may return before an output connection with an
+  * asynchronous output stage has received the document; callers must call this method before they consider the
+  * documents processed.  If any of the sends was interrupted or failed, the first such exception is thrown here,
+  * so that the documents can be retried.  documentIngest() counts a document handed to an asynchronous output stage
+  * as accepted; the documents that output connectors rejected once they got them are returned here.
+  *@return the identifier hashes of the documents that every asynchronous output stage they were handed to rejected.
+  */
+  public String[] waitForSends()
+    throws ManifoldCFException, ServiceInterruption;
+
   /** Remove a document component from the search engine index.
   *@param pipelineConnections is the pipeline specification.
   *@param identifierClass is the name of the space in which the identifier hash should be interpreted.
@@ -74,6 +74,8 @@ public class ManifoldCF extends org.apache.manifoldcf.core.system.ManifoldCF
 
   public static void localCleanup(IThreadContext threadContext)
   {
+    // Finish sending documents that were handed to asynchronous output stages; they need the pools
+    org.apache.manifoldcf.agents.incrementalingest.AsynchronousOutput.shutdown();
     // Close all pools
     try
     {
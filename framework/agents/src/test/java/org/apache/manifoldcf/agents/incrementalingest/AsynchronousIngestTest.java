@@ -0,0 +1,423 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.agents.incrementalingest;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.agents.interfaces.*;
+import org.apache.manifoldcf.agents.system.ManifoldCF;
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Checks the ingester paths that hand documents to an asynchronous output stage: a send that fails after the
+* document was accepted is reported to the thread that handed it over and leaves the document to be sent again, a
+* document the output connector rejects is reported as rejected, and a delete of a document that is still being sent
+* reaches the index after the send.
+*/
+public class AsynchronousIngestTest extends org.apache.manifoldcf.agents.tests.BaseHSQLDB
+{
+  protected final static String outputConnectionName = "Asynchronous output";
+
+  protected IThreadContext tc;
+  protected IncrementalIngester ingester;
+  protected OneOutputPipeline pipeline;
+
+  @Before
+  public void createConnection()
+    throws Exception
+  {
+    tc = ThreadContextFactory.make();
+    OutputConnectorManagerFactory.make(tc).registerConnector("Recording output",RecordingOutputConnector.class.getName());
+    IOutputConnectionManager outputMgr = OutputConnectionManagerFactory.make(tc);
+    IOutputConnection outputConn = outputMgr.create();
+    outputConn.setName(outputConnectionName);
+    outputConn.setDescription(outputConnectionName);
+    outputConn.setClassName(RecordingOutputConnector.class.getName());
+    outputConn.setMaxConnections(10);
+    outputMgr.save(outputConn);
+    AsynchronousOutput.queues.put(outputConnectionName,new AsynchronousOutput.OutputQueue(outputConnectionName,2));
+    ingester = (IncrementalIngester)IncrementalIngesterFactory.make(tc);
+    pipeline = new OneOutputPipeline(outputMgr.load(outputConnectionName));
+  }
+
+  @After
+  public void resetConnector()
+  {
+    RecordingOutputConnector.failure = null;
+    RecordingOutputConnector.reject = false;
+    synchronized (RecordingOutputConnector.events)
+    {
+      RecordingOutputConnector.events.clear();
+    }
+  }
+
+  @Test
+  public void failedSendIsReported()
+    throws Exception
+  {
+    RecordingOutputConnector.failure = new ServiceInterruption("Index unavailable",0L);
+    RecordingActivity activity = new RecordingActivity();
+    assertTrue(ingest("failing",activity));
+    try
+    {
+      ingester.waitForSends();
+      fail("Expected the failed send to be reported");
+    }
+    catch (ServiceInterruption e)
+    {
+      assertEquals("Index unavailable",e.getMessage());
+    }
+    // The row says the document needs to be sent again
+    assertNull(getVersion("failing"));
+
+    RecordingOutputConnector.failure = null;
+    assertTrue(ingest("failing",activity));
+    ingester.waitForSends();
+    assertEquals("v1",getVersion("failing"));
+    // History is recorded on the thread that handed the document over
+    assertEquals(1,activity.recordThreads.size());
+    assertSame(Thread.currentThread(),activity.recordThreads.get(0));
+  }
+
+  @Test
+  public void rejectionIsReported()
+    throws Exception
+  {
+    RecordingOutputConnector.reject = true;
+    // The outcome is not known when the document is handed over
+    assertTrue(ingest("rejected",new RecordingActivity()));
+    assertTrue(Arrays.equals(new String[]{"rejected"},ingester.waitForSends()));
+
+    RecordingOutputConnector.reject = false;
+    assertTrue(ingest("accepted",new RecordingActivity()));
+    assertEquals(0,ingester.waitForSends().length);
+  }
+
+  @Test
+  public void deleteWaitsForSend()
+    throws Exception
+  {
+    // Holding the document's URI lock stops the send before it has written anything, so a delete that does not
+    // wait for the send finds nothing to delete, and the document is added afterwards.
+    ILockManager lockManager = LockManagerFactory.make(tc);
+    String[] uriLock = new String[]{IncrementalIngester.createURILockName(outputConnectionName,ManifoldCF.hash("deleted"))};
+    lockManager.enterLocks(null,null,uriLock);
+    Thread deleter;
+    final Exception[] deleteException = new Exception[1];
+    try
+    {
+      assertTrue(ingest("deleted",new RecordingActivity()));
+      deleter = new Thread()
+        {
+          @Override
+          public void run()
+          {
+            try
+            {
+              IIncrementalIngester deleteIngester = IncrementalIngesterFactory.make(ThreadContextFactory.make());
+              deleteIngester.documentDelete(pipeline,"class","deleted",new RecordingActivity());
+            }
+            catch (Exception e)
+            {
+              deleteException[0] = e;
+            }
+          }
+        };
+      deleter.start();
+      waitUntilBlocked(deleter);
+      assertEquals(0,RecordingOutputConnector.getEvents().size());
+    }
+    finally
+    {
+      lockManager.leaveLocks(null,null,uriLock);
+    }
+    deleter.join();
+    assertNull(deleteException[0]);
+    ingester.waitForSends();
+    assertEquals(Arrays.asList("add deleted","remove deleted"),RecordingOutputConnector.getEvents());
+    IngestStatuses statuses = new IngestStatuses();
+    ingester.getPipelineDocumentIngestData(statuses,pipeline,"class","deleted");
+    assertNull(statuses.getStatus("class","deleted",outputConnectionName));
+  }
+
+  protected boolean ingest(String identifierHash, IOutputActivity activity)
+    throws Exception
+  {
+    byte[] data = "Document contents".getBytes("UTF-8");
+    RepositoryDocument rd = new RepositoryDocument();
+    rd.setBinary(new ByteArrayInputStream(data),data.length);
+    return ingester.documentIngest(pipeline,"class",identifierHash,null,"v1",null,rd,
+      System.currentTimeMillis(),identifierHash,activity);
+  }
+
+  protected String getVersion(String identifierHash)
+    throws Exception
+  {
+    IngestStatuses statuses = new IngestStatuses();
+    ingester.getPipelineDocumentIngestData(statuses,pipeline,"class",identifierHash);
+    return statuses.getStatus("class",identifierHash,outputConnectionName).getPrimary().getDocumentVersion();
+  }
+
+  protected static void waitUntilBlocked(Thread thread)
+    throws InterruptedException
+  {
+    while (thread.getState() != Thread.State.WAITING && thread.getState() != Thread.State.TIMED_WAITING)
+    {
+      assertTrue("Thread finished without blocking",thread.isAlive());
+      Thread.sleep(1L);
+    }
+  }
+
+  /** An output connector that notes what it is asked to do, and that tests can make fail.  Instances are pooled, so
+  * what it notes and the failure to throw are static. */
+  public static class RecordingOutputConnector extends org.apache.manifoldcf.agents.output.BaseOutputConnector
+  {
+    public static volatile ServiceInterruption failure = null;
+    public static volatile boolean reject = false;
+    protected final static List<String> events = new ArrayList<String>();
+
+    public static List<String> getEvents()
+    {
+      synchronized (events)
+      {
+        return new ArrayList<String>(events);
+      }
+    }
+
+    @Override
+    public int addOrReplaceDocumentWithException(String documentURI, VersionContext pipelineDescription, RepositoryDocument document,
+      String authorityNameString, IOutputAddActivity activities)
+      throws ManifoldCFException, ServiceInterruption, IOException
+    {
+      synchronized (events)
+      {
+        events.add("add "+documentURI);
+      }
+      if (failure != null)
+        throw failure;
+      if (reject)
+      {
+        activities.recordActivity(null,"add",null,documentURI,"REJECTED",null);
+        return DOCUMENTSTATUS_REJECTED;
+      }
+      activities.recordActivity(null,"add",null,documentURI,"OK",null);
+      return DOCUMENTSTATUS_ACCEPTED;
+    }
+
+    @Override
+    public void removeDocument(String documentURI, String outputDescription, IOutputRemoveActivity activities)
+      throws ManifoldCFException, ServiceInterruption
+    {
+      synchronized (events)
+      {
+        events.add("remove "+documentURI);
+      }
+    }
+  }
+
+  /** An activity object that notes which threads record history through it */
+  protected static class RecordingActivity implements IOutputActivity
+  {
+    public final List<Thread> recordThreads = Collections.synchronizedList(new ArrayList<Thread>());
+
+    @Override
+    public void recordActivity(Long startTime, String activityType, Long dataSize,
+      String entityURI, String resultCode, String resultDescription)
+      throws ManifoldCFException
+    {
+      recordThreads.add(Thread.currentThread());
+    }
+
+    @Override
+    public String qualifyAccessToken(String authorityNameString, String accessToken)
+      throws ManifoldCFException
+    {
+      return accessToken;
+    }
+
+    @Override
+    public int sendDocument(String documentURI, RepositoryDocument document)
+      throws ManifoldCFException, ServiceInterruption, IOException
+    {
+      return IPipelineConnector.DOCUMENTSTATUS_REJECTED;
+    }
+
+    @Override
+    public void noDocument()
+      throws ManifoldCFException, ServiceInterruption
+    {
+    }
+
+    @Override
+    public boolean checkDateIndexable(Date date)
+      throws ManifoldCFException, ServiceInterruption
+    {
+      return true;
+    }
+
+    @Override
+    public boolean checkMimeTypeIndexable(String mimeType)
+      throws ManifoldCFException, ServiceInterruption
+    {
+      return true;
+    }
+
+    @Override
+    public boolean checkDocumentIndexable(File localFile)
+      throws ManifoldCFException, ServiceInterruption
+    {
+      return true;
+    }
+
+    @Override
+    public boolean checkLengthIndexable(long length)
+      throws ManifoldCFException, ServiceInterruption
+    {
+      return true;
+    }
+
+    @Override
+    public boolean checkURLIndexable(String url)
+      throws ManifoldCFException, ServiceInterruption
+    {
+      return true;
+    }
+  }
+
+  /** A pipeline with nothing but one output, whose documents have never been indexed */
+  protected static class OneOutputPipeline implements IPipelineSpecificationWithVersions
+  {
+    protected final IOutputConnection outputConnection;
+
+    public OneOutputPipeline(IOutputConnection outputConnection)
+    {
+      this.outputConnection = outputConnection;
+    }
+
+    @Override
+    public int getStageCount()
+    {
+      return 1;
+    }
+
+    @Override
+    public int[] getStageChildren(int stage)
+    {
+      return new int[0];
+    }
+
+    @Override
+    public int getStageParent(int stage)
+    {
+      return -1;
+    }
+
+    @Override
+    public String getStageConnectionName(int stage)
+    {
+      return outputConnection.getName();
+    }
+
+    @Override
+    public boolean checkStageOutputConnection(int stage)
+    {
+      return true;
+    }
+
+    @Override
+    public int getOutputCount()
+    {
+      return 1;
+    }
+
+    @Override
+    public int getOutputStage(int index)
+    {
+      return 0;
+    }
+
+    @Override
+    public String[] getTransformationConnectionNames()
+    {
+      return new String[0];
+    }
+
+    @Override
+    public ITransformationConnection[] getTransformationConnections()
+    {
+      return new ITransformationConnection[0];
+    }
+
+    @Override
+    public String[] getOutputConnectionNames()
+    {
+      return new String[]{outputConnection.getName()};
+    }
+
+    @Override
+    public IOutputConnection[] getOutputConnections()
+    {
+      return new IOutputConnection[]{outputConnection};
+    }
+
+    @Override
+    public Integer getTransformationConnectionIndex(int stage)
+    {
+      return null;
+    }
+
+    @Override
+    public Integer getOutputConnectionIndex(int stage)
+    {
+      return new Integer(0);
+    }
+
+    @Override
+    public VersionContext getStageDescriptionString(int stage)
+    {
+      return new VersionContext("",outputConnection.getConfigParams(),new Specification());
+    }
+
+    @Override
+    public String getOutputDocumentVersionString(int index)
+    {
+      return null;
+    }
+
+    @Override
+    public String getOutputTransformationVersionString(int index)
+    {
+      return null;
+    }
+
+    @Override
+    public String getOutputVersionString(int index)
+    {
+      return null;
+    }
+
+    @Override
+    public String getAuthorityNameString(int index)
+    {
+      return null;
+    }
+  }
+
+}
@@ -0,0 +1,250 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.agents.incrementalingest;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Checks that an asynchronous output stage never has more documents in flight than it allows, that it sends one
+* copy of a document at a time, and that waiting for documents waits until they have been sent.
+*/
+public class AsynchronousOutputTest
+{
+  @Test
+  public void inFlightLimitHonored()
+    throws Exception
+  {
+    final int maxInFlight = 3;
+    AsynchronousOutput.OutputQueue queue = new AsynchronousOutput.OutputQueue("limit",maxInFlight);
+    AsynchronousOutput.queues.put("limit",queue);
+    try
+    {
+      final AtomicInteger running = new AtomicInteger(0);
+      final AtomicInteger maxRunning = new AtomicInteger(0);
+      final AtomicInteger sent = new AtomicInteger(0);
+      String[] docKeys = new String[50];
+      for (int i = 0; i < docKeys.length; i++)
+      {
+        docKeys[i] = "doc"+i;
+        queue.submit(docKeys[i],new Runnable()
+          {
+            public void run()
+            {
+              int now = running.incrementAndGet();
+              while (true)
+              {
+                int currentMax = maxRunning.get();
+                if (now <= currentMax || maxRunning.compareAndSet(currentMax,now))
+                  break;
+              }
+              sleep(5L);
+              running.decrementAndGet();
+              sent.incrementAndGet();
+            }
+          });
+        assertTrue(queue.getInFlight() <= maxInFlight);
+      }
+      AsynchronousOutput.waitForDocuments("limit",docKeys);
+      assertEquals(50,sent.get());
+      assertEquals(0,queue.getInFlight());
+      assertTrue("At most "+maxInFlight+" sends may run at once; saw "+maxRunning.get(),maxRunning.get() <= maxInFlight);
+      assertEquals(50L,queue.getDocumentsHandedOver());
+      assertTrue("The submitting thread should have had to wait",queue.getWaitCount() > 0L);
+    }
+    finally
+    {
+      AsynchronousOutput.shutdown();
+    }
+  }
+
+  @Test
+  public void failedSendReleasesSlot()
+    throws Exception
+  {
+    AsynchronousOutput.OutputQueue queue = new AsynchronousOutput.OutputQueue("failing",1);
+    try
+    {
+      for (int i = 0; i < 3; i++)
+      {
+        queue.submit("doc"+i,new Runnable()
+          {
+            public void run()
+            {
+              throw new RuntimeException("Send failed");
+            }
+          });
+      }
+      queue.waitForDocuments(new String[]{"doc0","doc1","doc2"});
+      assertEquals(0,queue.getInFlight());
+    }
+    finally
+    {
+      queue.shutdown();
+    }
+  }
+
+  @Test
+  public void shutDownQueueRefusesDocuments()
+    throws Exception
+  {
+    AsynchronousOutput.OutputQueue queue = new AsynchronousOutput.OutputQueue("closed",2);
+    queue.shutdown();
+    try
+    {
+      queue.submit("doc",new Runnable()
+        {
+          public void run()
+          {
+          }
+        });
+      fail("Should not accept documents after shutdown");
+    }
+    catch (ManifoldCFException e)
+    {
+      assertEquals(ManifoldCFException.INTERRUPTED,e.getErrorCode());
+    }
+    assertEquals(0,queue.getInFlight());
+    assertFalse(new AsynchronousOutput.OutputQueue("synchronous",0).isAsynchronous());
+  }
+
+  @Test
+  public void oneSendPerDocument()
+    throws Exception
+  {
+    final AsynchronousOutput.OutputQueue queue = new AsynchronousOutput.OutputQueue("serial",4);
+    try
+    {
+      final CountDownLatch firstRelease = new CountDownLatch(1);
+      final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+      queue.submit("doc",new Runnable()
+        {
+          public void run()
+          {
+            events.add("first");
+            await(firstRelease);
+          }
+        });
+      // Another document is not held up
+      final CountDownLatch otherSent = new CountDownLatch(1);
+      queue.submit("other",new Runnable()
+        {
+          public void run()
+          {
+            otherSent.countDown();
+          }
+        });
+      otherSent.await();
+
+      // A second copy of the same document waits for the first, even though the stage has room
+      final Exception[] submitException = new Exception[1];
+      Thread submitter = new Thread()
+        {
+          public void run()
+          {
+            try
+            {
+              queue.submit("doc",new Runnable()
+                {
+                  public void run()
+                  {
+                    events.add("second");
+                  }
+                });
+            }
+            catch (Exception e)
+            {
+              submitException[0] = e;
+            }
+          }
+        };
+      submitter.start();
+      waitUntilBlocked(submitter);
+      assertEquals(1,queue.getInFlight());
+
+      // So does a thread waiting for the document
+      Thread waiter = new Thread()
+        {
+          public void run()
+          {
+            try
+            {
+              queue.waitForDocuments(new String[]{"other","doc"});
+            }
+            catch (Exception e)
+            {
+              submitException[0] = e;
+            }
+          }
+        };
+      waiter.start();
+      waitUntilBlocked(waiter);
+
+      firstRelease.countDown();
+      submitter.join();
+      waiter.join();
+      assertNull(submitException[0]);
+      queue.waitForDocuments(new String[]{"doc"});
+      assertEquals(Arrays.asList("first","second"),events);
+      assertEquals(0,queue.getInFlight());
+    }
+    finally
+    {
+      queue.shutdown();
+    }
+  }
+
+  protected static void waitUntilBlocked(Thread thread)
+    throws InterruptedException
+  {
+    while (thread.getState() != Thread.State.WAITING && thread.getState() != Thread.State.TIMED_WAITING)
+    {
+      assertTrue("Thread finished without blocking",thread.isAlive());
+      Thread.sleep(1L);
+    }
+  }
+
+  protected static void await(CountDownLatch latch)
+  {
+    try
+    {
+      latch.await();
+    }
+    catch (InterruptedException e)
+    {
+      throw new RuntimeException(e.getMessage(),e);
+    }
+  }
+
+  protected static void sleep(long time)
+  {
+    try
+    {
+      Thread.sleep(time);
+    }
+    catch (InterruptedException e)
+    {
+      throw new RuntimeException(e.getMessage(),e);
+    }
+  }
+
+}
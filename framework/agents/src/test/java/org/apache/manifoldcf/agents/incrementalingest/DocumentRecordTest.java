@@ -0,0 +1,185 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.agents.incrementalingest;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.agents.interfaces.*;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Checks that document versions recorded in batches end up in the ingest status table just as they did when
+* each one was written on its own.  When org.apache.manifoldcf.test.benchmark is true, it also checks that the
+* batches cost less than writing each version on its own.
+*/
+public class DocumentRecordTest extends org.apache.manifoldcf.agents.tests.BaseHSQLDB
+{
+  protected final static String outputConnectionName = "Record output";
+
+  protected IThreadContext tc;
+  protected IncrementalIngester ingester;
+  protected IPipelineSpecificationBasic pipeline;
+
+  @Before
+  public void createConnection()
+    throws Exception
+  {
+    tc = ThreadContextFactory.make();
+    IOutputConnectionManager outputMgr = OutputConnectionManagerFactory.make(tc);
+    IOutputConnection outputConn = outputMgr.create();
+    outputConn.setName(outputConnectionName);
+    outputConn.setDescription(outputConnectionName);
+    outputConn.setClassName("org.apache.manifoldcf.agents.tests.TestingOutputConnector");
+    outputConn.setMaxConnections(10);
+    outputMgr.save(outputConn);
+    ingester = (IncrementalIngester)IncrementalIngesterFactory.make(tc);
+    pipeline = new OneOutputPipeline(outputConnectionName);
+  }
+
+  @Test
+  public void versionsWrittenOnFlush()
+    throws Exception
+  {
+    long recordTime = System.currentTimeMillis();
+    // New rows, then updates of existing rows, including a component and a null version
+    for (int pass = 0; pass < 2; pass++)
+    {
+      for (int i = 0; i < 10; i++)
+      {
+        ingester.documentRecord(pipeline,"class","doc"+i,null,"v"+pass,recordTime + pass);
+      }
+      ingester.documentRecord(pipeline,"class","doc0","component","c"+pass,recordTime + pass);
+      ingester.documentRecord(pipeline,"class","doc1",null,null,recordTime + pass);
+      ingester.flushDocumentRecords();
+      assertEquals(0,ingester.pendingRecords.size());
+
+      IngestStatuses statuses = new IngestStatuses();
+      ingester.getPipelineDocumentIngestData(statuses,pipeline,"class","doc0");
+      DocumentIngestStatusSet set = statuses.getStatus("class","doc0",outputConnectionName);
+      assertEquals("v"+pass,set.getPrimary().getDocumentVersion());
+      assertEquals("c"+pass,set.getComponent("component").getDocumentVersion());
+      statuses = new IngestStatuses();
+      ingester.getPipelineDocumentIngestData(statuses,pipeline,"class","doc1");
+      assertNull(statuses.getStatus("class","doc1",outputConnectionName).getPrimary().getDocumentVersion());
+    }
+  }
+
+  @Test
+  public void readsSeeRecordedVersions()
+    throws Exception
+  {
+    ingester.documentRecord(pipeline,"class","held",null,"v1",System.currentTimeMillis());
+    assertEquals(1,ingester.pendingRecords.size());
+    // Anything that reads the table writes what is held first
+    IngestStatuses statuses = new IngestStatuses();
+    ingester.getPipelineDocumentIngestData(statuses,pipeline,"class","held");
+    assertEquals(0,ingester.pendingRecords.size());
+    assertEquals("v1",statuses.getStatus("class","held",outputConnectionName).getPrimary().getDocumentVersion());
+  }
+
+  @Test
+  public void recordCost()
+    throws Exception
+  {
+    Assume.assumeTrue(Boolean.getBoolean("org.apache.manifoldcf.test.benchmark"));
+    int documentCount = 2000;
+    long recordTime = System.currentTimeMillis();
+    for (int i = 0; i < documentCount; i++)
+    {
+      ingester.documentRecord(pipeline,"class","doc"+i,null,"v0",recordTime);
+    }
+    ingester.flushDocumentRecords();
+
+    // What documentRecord used to do: a locking query and an update per document
+    long startTime = System.currentTimeMillis();
+    for (int i = 0; i < documentCount; i++)
+    {
+      ingester.noteDocumentIngest(outputConnectionName,IncrementalIngester.makeKey("class","doc"+i),null,"v1",null,null,null,recordTime + 1L,null,null);
+    }
+    long singleTime = System.currentTimeMillis() - startTime;
+
+    startTime = System.currentTimeMillis();
+    for (int i = 0; i < documentCount; i++)
+    {
+      ingester.documentRecord(pipeline,"class","doc"+i,null,"v2",recordTime + 2L);
+    }
+    ingester.flushDocumentRecords();
+    long batchTime = System.currentTimeMillis() - startTime;
+    assertTrue(documentCount+" recorded versions: one at a time "+singleTime+" ms, batched "+batchTime+" ms",
+      batchTime < singleTime);
+
+    IngestStatuses statuses = new IngestStatuses();
+    ingester.getPipelineDocumentIngestData(statuses,pipeline,"class","doc"+(documentCount - 1));
+    assertEquals("v2",statuses.getStatus("class","doc"+(documentCount - 1),outputConnectionName).getPrimary().getDocumentVersion());
+  }
+
+  /** A pipeline with nothing but one output */
+  protected static class OneOutputPipeline implements IPipelineSpecificationBasic
+  {
+    protected final String outputConnectionName;
+
+    public OneOutputPipeline(String outputConnectionName)
+    {
+      this.outputConnectionName = outputConnectionName;
+    }
+
+    @Override
+    public int getStageCount()
+    {
+      return 1;
+    }
+
+    @Override
+    public int[] getStageChildren(int stage)
+    {
+      return new int[0];
+    }
+
+    @Override
+    public int getStageParent(int stage)
+    {
+      return -1;
+    }
+
+    @Override
+    public String getStageConnectionName(int stage)
+    {
+      return outputConnectionName;
+    }
+
+    @Override
+    public boolean checkStageOutputConnection(int stage)
+    {
+      return true;
+    }
+
+    @Override
+    public int getOutputCount()
+    {
+      return 1;
+    }
+
+    @Override
+    public int getOutputStage(int index)
+    {
+      return 0;
+    }
+  }
+
+}
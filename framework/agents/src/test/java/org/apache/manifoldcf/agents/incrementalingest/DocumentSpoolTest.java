@@ -0,0 +1,303 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.agents.incrementalingest;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.agents.interfaces.*;
+import java.util.*;
+import java.io.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Checks that document spools give every pipeline branch the same data, in memory and in mapped files,
+* and, when org.apache.manifoldcf.test.benchmark is true, checks that a pipeline split costs less than
+* re-reading a temporary file for each branch.
+*/
+public class DocumentSpoolTest extends org.apache.manifoldcf.agents.tests.BaseHSQLDB
+{
+  @Test
+  public void smallAndLargeStreams()
+    throws Exception
+  {
+    int maxMemorySize = BufferPool.getMaxDocumentSize();
+    for (int size : new int[]{0,1,1000,maxMemorySize,maxMemorySize + 1,3000000})
+    {
+      byte[] data = makeData(size);
+      DocumentSpool spool = new DocumentSpool(new ByteArrayInputStream(data));
+      try
+      {
+        assertEquals(size,spool.getLength());
+        assertEquals(size <= maxMemorySize,spool.isInMemory());
+        // Two views read in an interleaved way must not disturb each other
+        InputStream first = spool.getStream();
+        InputStream second = spool.getStream();
+        byte[] firstHalf = new byte[size / 2];
+        readFully(first,firstHalf);
+        assertArrayEquals(data,readAll(second));
+        byte[] rest = readAll(first);
+        byte[] combined = new byte[firstHalf.length + rest.length];
+        System.arraycopy(firstHalf,0,combined,0,firstHalf.length);
+        System.arraycopy(rest,0,combined,firstHalf.length,rest.length);
+        assertArrayEquals(data,combined);
+      }
+      finally
+      {
+        spool.close();
+      }
+    }
+  }
+
+  @Test
+  public void readerRoundTrip()
+    throws Exception
+  {
+    StringBuilder sb = new StringBuilder();
+    while (sb.length() < BufferPool.getMaxDocumentSize())
+    {
+      sb.append("Gr\u00fc\u00dfe, \u65e5\u672c\u8a9e \ud83d\ude00 ");
+    }
+    String value = sb.toString();
+    for (String text : new String[]{"",value.substring(0,100),value})
+    {
+      DocumentSpool spool = new DocumentSpool(new StringReader(text));
+      try
+      {
+        for (int i = 0; i < 3; i++)
+        {
+          assertEquals(text,readAll(spool.getReader()));
+        }
+      }
+      finally
+      {
+        spool.close();
+      }
+    }
+  }
+
+  @Test
+  public void factoryCopiesAreIndependent()
+    throws Exception
+  {
+    byte[] data = makeData(100000);
+    RepositoryDocument rd = new RepositoryDocument();
+    rd.setBinary(new ByteArrayInputStream(data),data.length);
+    rd.addField("text",new Reader[]{new StringReader("first value"),new StringReader("second value")});
+    rd.addField("title","A title");
+    long bytesBefore = RepositoryDocumentFactory.getTotalBytesSpooled();
+    RepositoryDocumentFactory factory = new RepositoryDocumentFactory(rd);
+    try
+    {
+      RepositoryDocument copy1 = factory.createDocument();
+      RepositoryDocument copy2 = factory.createDocument();
+      // Copies made earlier stay readable after later ones are created
+      assertArrayEquals(data,readAll(copy2.getBinaryStream()));
+      assertArrayEquals(data,readAll(copy1.getBinaryStream()));
+      assertEquals(data.length,copy1.getBinaryLength());
+      assertEquals("second value",readAll(copy1.getFieldAsReaders("text")[1]));
+      assertEquals("first value",readAll(copy2.getFieldAsReaders("text")[0]));
+      assertEquals("A title",copy2.getFieldAsStrings("title")[0]);
+      assertEquals(data.length + "first value".length() + "second value".length(),factory.getBytesSpooled());
+      assertTrue(RepositoryDocumentFactory.getTotalBytesSpooled() - bytesBefore >= factory.getBytesSpooled());
+    }
+    finally
+    {
+      factory.close();
+    }
+  }
+
+  @Test
+  public void chunksAreReturned()
+    throws Exception
+  {
+    long memoryBefore = BufferPool.getMemoryInUse();
+    DocumentSpool spool = new DocumentSpool(new ByteArrayInputStream(makeData(100000)));
+    assertTrue(spool.isInMemory());
+    assertTrue(BufferPool.getMemoryInUse() >= memoryBefore + 100000L);
+    spool.close();
+    assertEquals(memoryBefore,BufferPool.getMemoryInUse());
+  }
+
+  @Test
+  public void viewsOutliveClose()
+    throws Exception
+  {
+    byte[] data = makeData(100000);
+    long memoryBefore = BufferPool.getMemoryInUse();
+    DocumentSpool spool = new DocumentSpool(new ByteArrayInputStream(data));
+    InputStream view = spool.getStream();
+    InputStream abandoned = spool.getStream();
+    spool.close();
+    try
+    {
+      spool.getStream();
+      fail("Expected views to be refused after close");
+    }
+    catch (IllegalStateException e)
+    {
+    }
+    // The chunks stay reserved until the last open view is closed
+    assertArrayEquals(data,readAll(view));
+    assertTrue(BufferPool.getMemoryInUse() > memoryBefore);
+    abandoned.close();
+    assertEquals(memoryBefore,BufferPool.getMemoryInUse());
+    assertEquals(-1,abandoned.read());
+  }
+
+  @Test
+  public void createAfterCloseFails()
+    throws Exception
+  {
+    RepositoryDocument rd = new RepositoryDocument();
+    byte[] data = makeData(10);
+    rd.setBinary(new ByteArrayInputStream(data),data.length);
+    RepositoryDocumentFactory factory = new RepositoryDocumentFactory(rd);
+    factory.close();
+    try
+    {
+      factory.createDocument();
+      fail("Expected createDocument to fail after close");
+    }
+    catch (IllegalStateException e)
+    {
+    }
+  }
+
+  @Test
+  public void splitCost()
+    throws Exception
+  {
+    Assume.assumeTrue(Boolean.getBoolean("org.apache.manifoldcf.test.benchmark"));
+    int branches = 4;
+    // The first pass warms both up
+    for (int pass = 0; pass < 2; pass++)
+    {
+      for (int size : new int[]{20000,1000000})
+      {
+        byte[] data = makeData(size);
+        int documentCount = (size < 100000)?2000:100;
+
+        // What the factory used to do: one temporary file, as anything over 8K was then, reopened for every branch
+        long startTime = System.nanoTime();
+        for (int i = 0; i < documentCount; i++)
+        {
+          BinaryInput bi = new TempFileInput(new ByteArrayInputStream(data),-1L,8192);
+          try
+          {
+            for (int j = 0; j < branches; j++)
+            {
+              bi.doneWithStream();
+              drain(bi.getStream());
+            }
+          }
+          finally
+          {
+            bi.discard();
+          }
+        }
+        long tempFileTime = System.nanoTime() - startTime;
+
+        startTime = System.nanoTime();
+        for (int i = 0; i < documentCount; i++)
+        {
+          DocumentSpool spool = new DocumentSpool(new ByteArrayInputStream(data));
+          try
+          {
+            for (int j = 0; j < branches; j++)
+            {
+              drain(spool.getStream());
+            }
+          }
+          finally
+          {
+            spool.close();
+          }
+        }
+        long spoolTime = System.nanoTime() - startTime;
+        if (pass == 1)
+        {
+          assertTrue(documentCount+" documents of "+size+" bytes split "+branches+" ways: temporary file "+
+            (tempFileTime / 1000000L)+" ms, spool "+(spoolTime / 1000000L)+" ms",spoolTime < tempFileTime);
+        }
+      }
+    }
+  }
+
+  protected static byte[] makeData(int size)
+  {
+    byte[] rval = new byte[size];
+    new Random(size).nextBytes(rval);
+    return rval;
+  }
+
+  protected static void readFully(InputStream is, byte[] buffer)
+    throws IOException
+  {
+    int offset = 0;
+    while (offset < buffer.length)
+    {
+      int amt = is.read(buffer,offset,buffer.length - offset);
+      if (amt == -1)
+        throw new EOFException();
+      offset += amt;
+    }
+  }
+
+  protected static byte[] readAll(InputStream is)
+    throws IOException
+  {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    while (true)
+    {
+      int amt = is.read(buffer);
+      if (amt == -1)
+        break;
+      baos.write(buffer,0,amt);
+    }
+    is.close();
+    return baos.toByteArray();
+  }
+
+  protected static String readAll(Reader reader)
+    throws IOException
+  {
+    StringBuilder sb = new StringBuilder();
+    char[] buffer = new char[8192];
+    while (true)
+    {
+      int amt = reader.read(buffer);
+      if (amt == -1)
+        break;
+      sb.append(buffer,0,amt);
+    }
+    reader.close();
+    return sb.toString();
+  }
+
+  protected static void drain(InputStream is)
+    throws IOException
+  {
+    byte[] buffer = new byte[65536];
+    while (is.read(buffer) != -1)
+    {
+    }
+    is.close();
+  }
+
+}
@@ -46,13 +46,9 @@ public abstract class SingleCharacterReceiver extends CharacterReceiver
       int amt = reader.read(charBuffer);
       if (amt == -1)
         return false;
-      for (int i = 0; i < amt; i++)
-      {
-        if (dealWithCharacter(charBuffer[i]))
-        {
-          return dealWithRemainder(charBuffer, i+1, amt-(i+1), reader);
-        }
-      }
+      int next = dealWithCharacters(charBuffer, 0, amt);
+      if (next != -1)
+        return dealWithRemainder(charBuffer, next, amt-next, reader);
     }
   }
   
@@ -61,6 +57,26 @@ public abstract class SingleCharacterReceiver extends CharacterReceiver
   */
   public abstract boolean dealWithCharacter(char c)
     throws IOException, ManifoldCFException;
+
+  /** Receive a run of characters.  This hands each character to dealWithCharacter(); override it to
+  * handle runs of characters that need no per-character work in bulk.
+  *@param buffer is the buffer of characters.
+  *@param offset is the offset within the buffer of the first character.
+  *@param len is the number of characters.
+  *@return -1 if every character was dealt with, or the offset of the character after the one for which
+  * dealWithCharacter() returned true.
+  */
+  protected int dealWithCharacters(char[] buffer, int offset, int len)
+    throws IOException, ManifoldCFException
+  {
+    int end = offset + len;
+    for (int i = offset; i < end; i++)
+    {
+      if (dealWithCharacter(buffer[i]))
+        return i+1;
+    }
+    return -1;
+  }
   
   /** Deal with the remainder of the input.
   * This is called only when dealWithCharacter() returns true.
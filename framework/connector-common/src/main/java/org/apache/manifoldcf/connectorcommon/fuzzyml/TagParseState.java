@@ -935,6 +935,132 @@ public class TagParseState extends SingleCharacterReceiver
     return false;
   }
 
+  /** Deal with a run of characters.  Text, comments, and the characters of names and attribute values are
+  * scanned for the character that ends them and handled in bulk; every other character goes through
+  * dealWithCharacter().
+  */
+  @Override
+  protected int dealWithCharacters(char[] buffer, int offset, int len)
+    throws ManifoldCFException
+  {
+    int end = offset + len;
+    int i = offset;
+    while (i < end)
+    {
+      if (currentState == TAGPARSESTATE_NORMAL)
+      {
+        if (bTagDepth == 0 && !inAmpersand)
+        {
+          int runEnd = i;
+          while (runEnd < end && buffer[runEnd] != '<' && buffer[runEnd] != '&')
+          {
+            runEnd++;
+          }
+          if (runEnd > i)
+          {
+            int next = noteNormalCharacters(buffer,i,runEnd-i);
+            if (next != -1)
+              return next;
+            i = runEnd;
+            continue;
+          }
+        }
+      }
+      else
+      {
+        int runEnd = consumeRun(buffer,i,end);
+        if (runEnd > i)
+        {
+          i = runEnd;
+          continue;
+        }
+      }
+      if (dealWithCharacter(buffer[i++]))
+        return i;
+    }
+    return -1;
+  }
+
+  /** Consume the characters, starting at offset, that leave the current state as it is and only add to the
+  * current name or value, or that are inside a comment.
+  *@return the offset of the first character that must go through dealWithCharacter().
+  */
+  protected int consumeRun(char[] buffer, int offset, int end)
+  {
+    int i = offset;
+    switch (currentState)
+    {
+    case TAGPARSESTATE_IN_COMMENT:
+      while (i < end && buffer[i] != '-')
+      {
+        i++;
+      }
+      return i;
+
+    case TAGPARSESTATE_IN_TAG_NAME:
+      while (i < end && !isWhitespace(buffer[i]) && buffer[i] != '/' && buffer[i] != '>')
+      {
+        i++;
+      }
+      currentTagNameBuffer.append(buffer,offset,i-offset);
+      return i;
+
+    case TAGPARSESTATE_IN_END_TAG_NAME:
+      while (i < end && !isWhitespace(buffer[i]) && buffer[i] != '>')
+      {
+        i++;
+      }
+      if (currentTagNameBuffer != null)
+        currentTagNameBuffer.append(buffer,offset,i-offset);
+      return i;
+
+    case TAGPARSESTATE_IN_ATTR_NAME:
+      while (i < end && !isWhitespace(buffer[i]) && buffer[i] != '=' && buffer[i] != '/' && buffer[i] != '>')
+      {
+        i++;
+      }
+      currentAttrNameBuffer.append(buffer,offset,i-offset);
+      return i;
+
+    case TAGPARSESTATE_IN_SINGLE_QUOTES_ATTR_VALUE:
+    case TAGPARSESTATE_IN_QTAG_SINGLE_QUOTES_ATTR_VALUE:
+      while (i < end && buffer[i] != '\'' && buffer[i] != '\n' && buffer[i] != '\r')
+      {
+        i++;
+      }
+      currentValueBuffer.append(buffer,offset,i-offset);
+      return i;
+
+    case TAGPARSESTATE_IN_DOUBLE_QUOTES_ATTR_VALUE:
+    case TAGPARSESTATE_IN_QTAG_DOUBLE_QUOTES_ATTR_VALUE:
+      while (i < end && buffer[i] != '"' && buffer[i] != '\n' && buffer[i] != '\r')
+      {
+        i++;
+      }
+      currentValueBuffer.append(buffer,offset,i-offset);
+      return i;
+
+    case TAGPARSESTATE_IN_UNQUOTED_ATTR_VALUE:
+      while (i < end && !isWhitespace(buffer[i]) && buffer[i] != '/' && buffer[i] != '>')
+      {
+        i++;
+      }
+      currentValueBuffer.append(buffer,offset,i-offset);
+      return i;
+
+    case TAGPARSESTATE_IN_QTAG_UNQUOTED_ATTR_VALUE:
+      while (i < end && !isWhitespace(buffer[i]) && buffer[i] != '?' && buffer[i] != '>')
+      {
+        i++;
+      }
+      currentValueBuffer.append(buffer,offset,i-offset);
+      return i;
+
+    default:
+      return offset;
+    }
+  }
+
   /** Allocate the buffer.
   */
   protected StringBuilder newBuffer()
@@ -1082,6 +1208,22 @@ public class TagParseState extends SingleCharacterReceiver
     return false;
   }
 
+  /** This method gets called for a run of characters that are not part of a tag etc.  It calls
+  * noteNormalCharacter() for each; override it to take the whole run at once.
+  *@return -1 to continue, or the offset after the character at which further processing is to halt.
+  */
+  protected int noteNormalCharacters(char[] buffer, int offset, int len)
+    throws ManifoldCFException
+  {
+    int end = offset + len;
+    for (int i = offset; i < end; i++)
+    {
+      if (noteNormalCharacter(buffer[i]))
+        return i+1;
+    }
+    return -1;
+  }
+
   /** This method gets called for every character that is found within an
   * escape block, e.g. CDATA.
   * Override this method to intercept such characters.
@@ -1096,6 +1238,8 @@ public class TagParseState extends SingleCharacterReceiver
   /** Decode an html attribute */
   protected static String attributeDecode(String input)
   {
+    if (input.indexOf('&') == -1)
+      return input;
     StringBuilder output = new StringBuilder();
     int i = 0;
     while (i < input.length())
@@ -127,6 +127,25 @@ public class XMLFuzzyHierarchicalParseState extends XMLFuzzyParseState
     return false;
   }
   
+  /** This method gets called for a run of characters that are not part of a tag etc.
+  *@return -1 to continue.
+  */
+  @Override
+  protected int noteNormalCharacters(char[] buffer, int offset, int len)
+    throws ManifoldCFException
+  {
+    while (len > 0)
+    {
+      int amt = Math.min(len,MAX_CHUNK_SIZE - characterBuffer.length());
+      characterBuffer.append(buffer,offset,amt);
+      offset += amt;
+      len -= amt;
+      if (characterBuffer.length() >= MAX_CHUNK_SIZE)
+        flushCharacterBuffer();
+    }
+    return -1;
+  }
+
   protected void appendToCharacterBuffer(char thisChar)
     throws ManifoldCFException
   {
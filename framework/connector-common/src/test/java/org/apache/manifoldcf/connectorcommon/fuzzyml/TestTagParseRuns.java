@@ -0,0 +1,381 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.connectorcommon.fuzzyml;
+
+import org.apache.manifoldcf.core.interfaces.*;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Checks that the tag parser sees the same document whether it is fed a character at a time or in runs.  When
+* org.apache.manifoldcf.test.benchmark is true, it also checks that runs are parsed faster than single characters
+* over a corpus of pages built like typical web pages.
+*/
+public class TestTagParseRuns
+{
+  protected final static String awkwardDocument =
+"<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Transitional//EN\" \"http://www.w3.org/TR/xhtml1/DTD/xhtml1-transitional.dtd\">\n"+
+"<?xml version=\"1.0\" encoding='UTF-8' standalone=yes?>\n"+
+"<html><head><title>Fish &amp; chips &lt;today&gt; &#8217;s &#x41; &bogus; & alone &</title>\n"+
+"<meta name=\"robots\" content=\"noindex,nofollow\"><meta http-equiv=refresh content='0; url=/next'>\n"+
+"<script type=\"text/javascript\">if (a < b && c > d) { document.write('<a href=\"/in-script\">x</a>'); }</script>\n"+
+"<!-- a comment -- with dashes - and <a href=\"/commented\">links</a> --->\n"+
+"<!--x--><!---->\n"+
+"</head><body bgcolor=#ffffff onload=init()>\n"+
+"<a href=/path/to/page/>slash</a> <a href=a/b/c>unquoted</a> <a href=\"/multi\nline\">broken</a>\n"+
+"<A HREF='/upper' TITLE=\"It's\">Upper</A><a\thref = \"/spaced\" >spaced</a><a href>empty</a>\n"+
+"<img src=\"/i.png\" alt=\"a &quot;quoted&quot; &amp; decoded\"/><br/><hr / >\n"+
+"<form name=\"login\" action=\"/login\" method=post><input type=text name=user value=\"\"><input type=\"password\" name=\"pw\">\n"+
+"<select name=s><option value=1 selected>One<option>Two</option></select><textarea name=t>Some text</textarea></form>\n"+
+"< not a tag > a > b <  /p>\n"+
+"<![CDATA[ raw <a href=\"/cdata\"> ]] ]]] text ]]>\n"+
+"<![if !IE]><p>conditional</p><![endif]>\n"+
+"<p class=\"x\"data-a=\"1\"data-b='2'>runs</p></p ><//p></ p>\n"+
+"<a href=\"/unterminated\n"+
+"text at the end &amp";
+
+  @Test
+  public void sameEventsForAwkwardMarkup()
+    throws Exception
+  {
+    checkSameEvents(awkwardDocument);
+  }
+
+  @Test
+  public void sameEventsForCorpus()
+    throws Exception
+  {
+    Random random = new Random(17L);
+    for (int i = 0; i < 20; i++)
+    {
+      checkSameEvents(makePage(random));
+    }
+  }
+
+  @Test
+  public void haltInsideRun()
+    throws Exception
+  {
+    // The XML encoding detector stops once it has seen the declaration; the rest of the run must not be consumed
+    char[] buffer = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>Text that follows".toCharArray();
+    XMLEncodingDetector perCharacter = new XMLEncodingDetector();
+    perCharacter.setEncoding("UTF-8");
+    int expected = -1;
+    for (int i = 0; i < buffer.length; i++)
+    {
+      if (perCharacter.dealWithCharacter(buffer[i]))
+      {
+        expected = i + 1;
+        break;
+      }
+    }
+    assertTrue(expected != -1 && expected < buffer.length);
+
+    XMLEncodingDetector detector = new XMLEncodingDetector();
+    detector.setEncoding("UTF-8");
+    assertEquals(expected,detector.dealWithCharacters(buffer,0,buffer.length));
+    assertEquals("ISO-8859-1",detector.getEncoding());
+  }
+
+  @Test
+  public void throughput()
+    throws Exception
+  {
+    Assume.assumeTrue(Boolean.getBoolean("org.apache.manifoldcf.test.benchmark"));
+    Random random = new Random(42L);
+    List<byte[]> corpus = new ArrayList<byte[]>();
+    long corpusBytes = 0L;
+    for (int i = 0; i < 50; i++)
+    {
+      byte[] page = makePage(random).getBytes(StandardCharsets.UTF_8);
+      corpus.add(page);
+      corpusBytes += page.length;
+    }
+
+    // Warm both paths up before measuring
+    for (int i = 0; i < 5; i++)
+    {
+      parseCorpus(corpus,true);
+      parseCorpus(corpus,false);
+    }
+
+    int rounds = 10;
+    long[] perCharacter = measure(corpus,false,rounds);
+    long[] bulk = measure(corpus,true,rounds);
+    long pages = (long)corpus.size() * rounds;
+    assertEquals(perCharacter[2],bulk[2]);
+    assertTrue("Tag parser over "+corpus.size()+" pages ("+(corpusBytes / corpus.size() / 1024L)+" KB each): "+
+      "a character at a time "+formatRate(corpusBytes * rounds,perCharacter[0])+", "+formatAllocation(perCharacter[1],pages)+
+      "; in runs "+formatRate(corpusBytes * rounds,bulk[0])+", "+formatAllocation(bulk[1],pages),bulk[0] < perCharacter[0]);
+  }
+
+  protected static long[] measure(List<byte[]> corpus, boolean bulk, int rounds)
+    throws Exception
+  {
+    long allocatedBefore = getAllocatedBytes();
+    long startTime = System.nanoTime();
+    long links = 0L;
+    for (int i = 0; i < rounds; i++)
+    {
+      links += parseCorpus(corpus,bulk);
+    }
+    long elapsed = System.nanoTime() - startTime;
+    long allocatedAfter = getAllocatedBytes();
+    return new long[]{elapsed,(allocatedBefore == -1L)?-1L:(allocatedAfter - allocatedBefore),links};
+  }
+
+  protected static long parseCorpus(List<byte[]> corpus, boolean bulk)
+    throws Exception
+  {
+    long links = 0L;
+    for (byte[] page : corpus)
+    {
+      LinkCountingParseState state = new LinkCountingParseState();
+      if (bulk)
+        new Parser().parseWithoutCharsetDetection("UTF-8",new ByteArrayInputStream(page),state);
+      else
+        parseCharacterAtATime(new InputStreamReader(new ByteArrayInputStream(page),StandardCharsets.UTF_8),state);
+      links += state.linkCount;
+    }
+    return links;
+  }
+
+  protected static void checkSameEvents(String document)
+    throws Exception
+  {
+    RecordingParseState perCharacter = new RecordingParseState();
+    parseCharacterAtATime(new StringReader(document),perCharacter);
+
+    RecordingParseState bulk = new RecordingParseState();
+    new Parser().parseWithoutCharsetDetection("UTF-8",new ByteArrayInputStream(document.getBytes(StandardCharsets.UTF_8)),bulk);
+    assertEquals(perCharacter.getEvents(),bulk.getEvents());
+
+    // Runs cut short at every possible point
+    for (int chunk = 1; chunk <= 7; chunk++)
+    {
+      RecordingParseState chunked = new RecordingParseState();
+      if (chunked.dealWithCharacters(new ChunkedReader(document,chunk)) == false)
+        chunked.finishUp();
+      assertEquals(perCharacter.getEvents(),chunked.getEvents());
+    }
+  }
+
+  /** Feed a parser one character at a time, as the parser did before it took runs. */
+  protected static void parseCharacterAtATime(Reader reader, TagParseState state)
+    throws Exception
+  {
+    char[] buffer = new char[65536];
+    while (true)
+    {
+      int amt = reader.read(buffer);
+      if (amt == -1)
+        break;
+      for (int i = 0; i < amt; i++)
+      {
+        if (state.dealWithCharacter(buffer[i]))
+          return;
+      }
+    }
+    state.finishUp();
+  }
+
+  protected static long getAllocatedBytes()
+  {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean)
+      return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    return -1L;
+  }
+
+  protected static String formatRate(long bytes, long nanos)
+  {
+    return String.format(Locale.ROOT,"%.1f MB/s",(double)bytes / 1048576.0 / ((double)nanos / 1000000000.0));
+  }
+
+  protected static String formatAllocation(long allocated, long pages)
+  {
+    if (allocated == -1L)
+      return "allocation not measurable";
+    return (allocated / pages / 1024L)+" KB allocated per page";
+  }
+
+  /** Build a page the way typical sites are built: a head with meta tags, styles and scripts, navigation,
+  * paragraphs with entities, images, a form, comments, and a footer full of links.
+  */
+  protected static String makePage(Random random)
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append("<!DOCTYPE html>\n<html lang=\"en\">\n<head>\n<meta charset=\"utf-8\">\n");
+    sb.append("<meta name=\"viewport\" content=\"width=device-width, initial-scale=1\">\n");
+    sb.append("<meta name=\"description\" content=\"Page ").append(random.nextInt(100000)).append(" of the site &amp; its news\">\n");
+    sb.append("<title>Article ").append(random.nextInt(1000)).append(" &ndash; Example News</title>\n");
+    for (int i = 0; i < 4; i++)
+    {
+      sb.append("<link rel=\"stylesheet\" href=\"/static/css/site").append(i).append(".css?v=").append(random.nextInt(99999)).append("\">\n");
+    }
+    sb.append("<style>\nbody { font-family: sans-serif; } .nav > li { display: inline; }\n</style>\n");
+    sb.append("<script type=\"text/javascript\">\nvar dataLayer = []; function track(a, b) { if (a < b && b > 0) { dataLayer.push({'event': a}); } }\n");
+    sb.append("document.write('<img src=\"/pixel.gif?r=' + Math.random() + '\">');\n</script>\n</head>\n");
+    sb.append("<body class=\"article-page\" data-section=\"news\">\n<!-- header -->\n<header id=\"top\">\n<ul class=\"nav\">\n");
+    for (int i = 0; i < 40; i++)
+    {
+      sb.append("<li class=\"nav-item\"><a href=\"/section/").append(i).append("/index.html\" title=\"Section ").append(i).append("\">Section ").append(i).append("</a></li>\n");
+    }
+    sb.append("</ul>\n</header>\n<main>\n<article>\n<h1>Headline number ").append(random.nextInt(1000)).append("</h1>\n");
+    int paragraphs = 20 + random.nextInt(40);
+    for (int i = 0; i < paragraphs; i++)
+    {
+      sb.append("<p>");
+      int words = 40 + random.nextInt(80);
+      for (int j = 0; j < words; j++)
+      {
+        int kind = random.nextInt(40);
+        if (kind == 0)
+          sb.append("<a href=\"https://www.example.com/story/").append(random.nextInt(1000000)).append("?ref=inline&amp;src=p\">linked text</a> ");
+        else if (kind == 1)
+          sb.append("&nbsp;");
+        else if (kind == 2)
+          sb.append("it&#8217;s ");
+        else if (kind == 3)
+          sb.append("<em>emphasis</em> ");
+        else
+          sb.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+      }
+      sb.append("</p>\n");
+      if (random.nextInt(6) == 0)
+        sb.append("<figure><img src=\"/images/").append(random.nextInt(100000)).append(".jpg\" alt=\"A picture\" width=640 height=480><figcaption>Caption</figcaption></figure>\n");
+      if (random.nextInt(10) == 0)
+        sb.append("<!-- advertisement slot ").append(i).append(" -->\n<div class=\"ad\" data-slot=\"").append(i).append("\"></div>\n");
+    }
+    sb.append("</article>\n<form action=\"/search\" method=\"get\" name=\"search\"><input type=\"text\" name=\"q\" value=\"\">");
+    sb.append("<select name=\"in\"><option value=\"all\" selected>All</option><option value=\"news\">News</option></select>");
+    sb.append("<input type=\"submit\" value=\"Search\"></form>\n</main>\n<footer>\n");
+    for (int i = 0; i < 60; i++)
+    {
+      sb.append("<a href=\"/archive/").append(2000 + i % 20).append("/").append(i).append("/\">Archive ").append(i).append("</a> | ");
+    }
+    sb.append("\n<p>&copy; Example News &mdash; All rights reserved</p>\n</footer>\n</body>\n</html>\n");
+    return sb.toString();
+  }
+
+  protected final static String[] WORDS = new String[]{"the","of","and","to","in","is","that","for","it","as","was","with",
+    "be","by","on","not","he","this","are","or","his","from","at","which","but","have","an","had","they","you","were",
+    "their","one","all","we","can","her","has","there","been","if","more","when","will","would","who","so","no",
+    "government","announced","yesterday","committee","residents","according","statement","Überraschung","naïve"};
+
+  /** A reader that hands out a few characters at a time */
+  protected static class ChunkedReader extends Reader
+  {
+    protected final String value;
+    protected final int chunk;
+    protected int position = 0;
+
+    public ChunkedReader(String value, int chunk)
+    {
+      this.value = value;
+      this.chunk = chunk;
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int len)
+    {
+      if (position == value.length())
+        return -1;
+      int amt = Math.min(Math.min(len,chunk),value.length() - position);
+      value.getChars(position,position + amt,buffer,offset);
+      position += amt;
+      return amt;
+    }
+
+    @Override
+    public void close()
+    {
+    }
+  }
+
+  /** Writes down everything the parser reports */
+  protected static class RecordingParseState extends HTMLParseState
+  {
+    protected final StringBuilder events = new StringBuilder();
+
+    public String getEvents()
+    {
+      return events.toString();
+    }
+
+    @Override
+    protected boolean noteTag(String tagName, Map<String,String> attributes)
+      throws ManifoldCFException
+    {
+      events.append("[tag ").append(tagName).append(new TreeMap<String,String>(attributes)).append("]");
+      return false;
+    }
+
+    @Override
+    protected boolean noteTagEnd(String tagName)
+      throws ManifoldCFException
+    {
+      events.append("[end ").append(tagName).append("]");
+      return false;
+    }
+
+    @Override
+    protected boolean noteNormalCharacter(char thisChar)
+      throws ManifoldCFException
+    {
+      events.append(thisChar);
+      return false;
+    }
+
+    @Override
+    public void finishUp()
+      throws ManifoldCFException
+    {
+      events.append("[finish]");
+      super.finishUp();
+    }
+  }
+
+  /** Counts links, and ignores text, as link extraction does */
+  protected static class LinkCountingParseState extends HTMLParseState
+  {
+    public long linkCount = 0L;
+
+    @Override
+    protected boolean noteTag(String tagName, Map<String,String> attributes)
+      throws ManifoldCFException
+    {
+      if (tagName.equals("a") && attributes.get("href") != null)
+        linkCount++;
+      return false;
+    }
+
+    @Override
+    protected boolean noteTagEnd(String tagName)
+      throws ManifoldCFException
+    {
+      return false;
+    }
+  }
+
+}
@@ -40,6 +40,13 @@ public class CacheManager implements ICacheManager
   protected ILockManager lockManager;
   protected static GeneralCache cache = new GeneralCache();
 
+  // Whether the cache's memory limit has been read from the properties yet
+  protected static volatile boolean cacheConfigured = false;
+  // The last time cache statistics were logged
+  protected static volatile long lastStatisticsTime = 0L;
+  /** How often cache statistics are logged, when perf logging is enabled, in milliseconds */
+  protected final static long STATISTICS_INTERVAL = 60000L;
+
   // This is the hash mapping transaction id's to CacheTransactionHandle objects.
   // It is thread specific because transactions are thread local.
   protected HashMap transactionHash = new HashMap();
@@ -48,6 +55,11 @@ public class CacheManager implements ICacheManager
     throws ManifoldCFException
   {
     lockManager = LockManagerFactory.make(context);
+    if (!cacheConfigured)
+    {
+      cache.setMaxMemory(LockManagerFactory.getLongProperty(context,ManifoldCF.cacheMaxMemoryProperty,0L) * 1024L * 1024L);
+      cacheConfigured = true;
+    }
   }
 
   /** Locate or create a set of objects in the cached object pool, and/or destroy and invalidate
@@ -424,9 +436,14 @@ public class CacheManager implements ICacheManager
       // If nothing stops us, look in the global cache too
     }
 
+    ICacheClass objectClass = objectDescription.getObjectClass();
+    String className = (objectClass==null)?null:objectClass.getClassName();
     Object o = cache.lookup(objectDescription);
     if (o == null)
+    {
+      cache.noteLookup(className,false);
       return null;
+    }
 
     if (Logging.cache.isDebugEnabled())
     {
@@ -439,6 +456,7 @@ public class CacheManager implements ICacheManager
     {
       // Blow away the entry in cache, since it has expired
       cache.deleteObject(objectDescription);
+      cache.noteLookup(className,false);
       return null;
     }
     
@@ -455,6 +473,7 @@ public class CacheManager implements ICacheManager
       {
         // Blow away the entry in cache, since it has expired
         cache.deleteObject(objectDescription);
+        cache.noteLookup(className,false);
         return null;
       }
     }
@@ -468,6 +487,7 @@ public class CacheManager implements ICacheManager
 
     // Update the expiration time for this object.
     resetObjectExpiration(objectDescription,handle.getLookupTime());
+    cache.noteLookup(className,true);
 
     return o;
   }
@@ -833,6 +853,34 @@ public class CacheManager implements ICacheManager
     // This is a local JVM operation; we will not need to do any locks.  We just
     // need to blow expired objects from the cache.
     cache.expireRecords(currentTimestamp);
+
+    if (Logging.perf.isDebugEnabled() && currentTimestamp - lastStatisticsTime >= STATISTICS_INTERVAL)
+    {
+      lastStatisticsTime = currentTimestamp;
+      logStatistics();
+    }
+  }
+
+  /** Log the cache's counters to the performance log.
+  */
+  protected static void logStatistics()
+  {
+    StringBuilder sb = new StringBuilder("Cache statistics: memory used ");
+    sb.append(cache.getMemoryUsed()).append(" bytes");
+    long maxMemory = cache.getMaxMemory();
+    if (maxMemory > 0L)
+      sb.append(" of ").append(maxMemory);
+    for (Map.Entry<String,GeneralCache.ClassStatistics> entry : cache.getStatistics().entrySet())
+    {
+      GeneralCache.ClassStatistics stats = entry.getValue();
+      long lookups = stats.getHits() + stats.getMisses();
+      sb.append("; ").append(entry.getKey()).append(": ").append(stats.getObjectCount()).append(" objects, ")
+        .append(stats.getHits()).append(" hits, ").append(stats.getMisses()).append(" misses");
+      if (lookups > 0L)
+        sb.append(" (").append((stats.getHits() * 100L) / lookups).append("% hit rate)");
+      sb.append(", ").append(stats.getEvictions()).append(" evictions");
+    }
+    Logging.perf.debug(sb.toString());
   }
 
 
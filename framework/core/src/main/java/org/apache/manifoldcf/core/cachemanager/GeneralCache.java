@@ -20,86 +20,178 @@ package org.apache.manifoldcf.core.cachemanager;
 
 import org.apache.manifoldcf.core.interfaces.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 /** General cache class.  This class will be statically instantiated.  It contains all the structures
 * needed to maintain a cache of objects, with both LRU flushing behavior, and timed expiration of
 * objects.
 * This cache is entirely local to a JVM and does NOT have any locking and synchronization semantics
 * cross-JVM.  That is handled at a higher level.
+*
+* The objects are divided among shards by the hash of their descriptions, and each shard has its own
+* monitor, so that threads working with different objects do not wait for each other.  LRU order is kept
+* within each shard by access time; when something must be evicted, the shards' oldest entries are
+* compared so that the globally least recently used object goes first.  Besides the per-class counts,
+* the cache can be bounded by an estimate of the memory it holds.
 */
 public class GeneralCache
 {
   public static final String _rcsid = "@(#)$Id: GeneralCache.java 988245 2010-08-23 18:39:35Z kwright $";
 
-  // This table is for looking stuff up by object description
-  protected ObjectRecordTable hashtable = new ObjectRecordTable();
-  // This table is for looking stuff up by cache key - hash table of hash tables
-  protected InvalidationTable invalidationTable = new InvalidationTable();
-  // This table keeps the running count of each object class
-  protected ObjectClassTable objectClassTable = new ObjectClassTable();
-  // This structure is the general expiration tree
-  public ExpirationTree expirationTree = new ExpirationTree();
+  /** The number of shards; must be a power of two */
+  protected final static int SHARD_COUNT = 16;
+
+  /** The name statistics are kept under for objects that have no class */
+  public final static String UNCLASSIFIED = "(none)";
+
+  /** Estimated memory taken by an object record and its entries in the cache's tables, in bytes */
+  protected final static long RECORD_OVERHEAD = 200L;
+  /** Estimated memory taken by an object we know nothing about, in bytes */
+  protected final static long DEFAULT_OBJECT_SIZE = 256L;
+  /** How deeply into arrays and collections the size estimate looks */
+  protected final static int ESTIMATE_DEPTH = 3;
+
+  // The shards
+  protected final Shard[] shards;
+  // Statistics and member counts, by object class
+  protected final ConcurrentMap<String,ClassStatistics> classStatistics = new ConcurrentHashMap<String,ClassStatistics>();
+  // Estimated memory held by the cache, in bytes
+  protected final AtomicLong memoryUsed = new AtomicLong(0L);
+  // The most memory the cache may hold, in bytes, or 0 for no limit
+  protected volatile long maxMemory = 0L;
 
   public GeneralCache()
   {
+    shards = new Shard[SHARD_COUNT];
+    for (int i = 0; i < shards.length; i++)
+    {
+      shards[i] = new Shard();
+    }
+  }
+
+  /** Set the most memory the cache may hold.  Objects are evicted in LRU order to meet the limit.
+  *@param maxMemory is the limit in bytes, or 0 for no limit.
+  */
+  public void setMaxMemory(long maxMemory)
+  {
+    this.maxMemory = maxMemory;
+    evictForMemory();
+  }
+
+  /** Get the most memory the cache may hold.
+  *@return the limit in bytes, or 0 if there is no limit.
+  */
+  public long getMaxMemory()
+  {
+    return maxMemory;
+  }
+
+  /** Get the estimated memory held by the cache.
+  *@return the estimate, in bytes.
+  */
+  public long getMemoryUsed()
+  {
+    return memoryUsed.get();
+  }
+
+  /** Get the statistics for all the object classes the cache has seen.
+  *@return the statistics, keyed by class name.  Objects with no class are under UNCLASSIFIED.
+  */
+  public Map<String,ClassStatistics> getStatistics()
+  {
+    return new TreeMap<String,ClassStatistics>(classStatistics);
+  }
+
+  /** Record the outcome of a lookup, for statistics.
+  *@param objectClass is the class of the object looked up, or null.
+  *@param hit is true if a valid object was found.
+  */
+  public void noteLookup(String objectClass, boolean hit)
+  {
+    ClassStatistics stats = getClassStatistics(objectClass);
+    if (hit)
+      stats.hits.incrementAndGet();
+    else
+      stats.misses.incrementAndGet();
   }
 
   /** Locate an object in the cache, and return it if found.
   *@param objectDescription is the object's unique identifier.
   *@return the object if found, or null if not present in the cache.
   */
-  public synchronized Object lookup(Object objectDescription)
+  public Object lookup(Object objectDescription)
   {
-    ObjectRecord o = hashtable.lookup(objectDescription);
-    if (o == null)
-      return null;
-    return o.getObject();
+    Shard shard = getShard(objectDescription);
+    synchronized (shard)
+    {
+      ObjectRecord o = shard.hashtable.lookup(objectDescription);
+      if (o == null)
+        return null;
+      return o.getObject();
+    }
   }
 
   /** Get the creation time of an object in the cache.
   *@param objectDescription is the object's unique identifier.
   *@return the creation time, or -1 if object not found.
   */
-  public synchronized long getObjectCreationTime(Object objectDescription)
+  public long getObjectCreationTime(Object objectDescription)
   {
-    ObjectRecord o = hashtable.lookup(objectDescription);
-    if (o == null)
-      return -1L;
-    return o.getCreationTime();
+    Shard shard = getShard(objectDescription);
+    synchronized (shard)
+    {
+      ObjectRecord o = shard.hashtable.lookup(objectDescription);
+      if (o == null)
+        return -1L;
+      return o.getCreationTime();
+    }
   }
 
   /** Get the invalidation keys for an object in the cache.
   *@param objectDescription is the object's unique identifier.
   *@return the keys, or null if not found.
   */
-  public synchronized StringSet getObjectInvalidationKeys(Object objectDescription)
+  public StringSet getObjectInvalidationKeys(Object objectDescription)
   {
-    ObjectRecord o = hashtable.lookup(objectDescription);
-    if (o == null)
-      return null;
-    return o.getKeys();
+    Shard shard = getShard(objectDescription);
+    synchronized (shard)
+    {
+      ObjectRecord o = shard.hashtable.lookup(objectDescription);
+      if (o == null)
+        return null;
+      return o.getKeys();
+    }
   }
 
   /** Get the expiration time for an object in the cache.
   *@param objectDescription is the object's unique identifier.
   *@return the expiration time (-1L means none).
   */
-  public synchronized long getObjectExpirationTime(Object objectDescription)
+  public long getObjectExpirationTime(Object objectDescription)
   {
-    ObjectRecord o = hashtable.lookup(objectDescription);
-    if (o == null)
-      return -1L;
-    return o.getObjectExpiration();
+    Shard shard = getShard(objectDescription);
+    synchronized (shard)
+    {
+      ObjectRecord o = shard.hashtable.lookup(objectDescription);
+      if (o == null)
+        return -1L;
+      return o.getObjectExpiration();
+    }
   }
 
   /** Delete a record from the cache.
   *@param objectDescription is the unique description.
   */
-  public synchronized void deleteObject(Object objectDescription)
+  public void deleteObject(Object objectDescription)
   {
-    ObjectRecord o = hashtable.lookup(objectDescription);
-    if (o != null)
-      deleteEntry(o);
+    Shard shard = getShard(objectDescription);
+    synchronized (shard)
+    {
+      ObjectRecord o = shard.hashtable.lookup(objectDescription);
+      if (o != null)
+        shard.deleteEntry(o);
+    }
   }
 
   /** Add a newly created object to the cache.  Use ONLY for newly created objects!
@@ -108,110 +200,113 @@ public class GeneralCache
   *@param keys are the invalidation keys for the newly created object.
   *@param timestamp is the creation timestamp for this object (used for cross-JVM invalidation)
   */
-  public synchronized void setObject(Object objectDescription, Object object, StringSet keys, long timestamp)
+  public void setObject(Object objectDescription, Object object, StringSet keys, long timestamp)
   {
-    ObjectRecord record = new ObjectRecord(objectDescription,object,keys,timestamp);
-    hashtable.add(record);
-    // Make an entry in the invalidation hash
-    invalidationTable.addKeys(keys,record);
-    // Object has no expiration or class yet, so don't add it to the expiration tree, or to the object
-    // class trees
+    long size = RECORD_OVERHEAD + estimateSize(objectDescription,ESTIMATE_DEPTH) + estimateSize(object,ESTIMATE_DEPTH);
+    ObjectRecord record = new ObjectRecord(objectDescription,object,keys,timestamp,size);
+    Shard shard = getShard(objectDescription);
+    synchronized (shard)
+    {
+      // A transaction commit can save an object that another thread put in the cache in the meantime
+      ObjectRecord existing = shard.hashtable.lookup(objectDescription);
+      if (existing != null)
+        shard.deleteEntry(existing);
+      // Object has no expiration or class yet, so don't add it to the expiration tree, or to the object
+      // class trees
+      shard.addEntry(record);
+    }
+    evictForMemory();
   }
 
   /** Set an object's expiration time.
   *@param objectDescription is the object's unique description.
   *@param expirationTime is the object's new expiration time, in milliseconds since epoch.
   */
-  public synchronized void setObjectExpiration(Object objectDescription, long expirationTime)
+  public void setObjectExpiration(Object objectDescription, long expirationTime)
   {
-    // Find existing object
-    ObjectRecord existing = hashtable.lookup(objectDescription);
-    if (existing == null)
-      return;
-    if (existing.getObjectExpiration() != -1)
+    Shard shard = getShard(objectDescription);
+    synchronized (shard)
     {
-      // Pull the object from the expiration tree
-      expirationTree.removeEntry(existing);
-    }
-    // Set the new expiration
-    existing.setObjectExpiration(expirationTime);
-    if (expirationTime != -1)
-    {
-      //Put the object back into the expiration tree
-      expirationTree.addEntry(existing);
+      // Find existing object
+      ObjectRecord existing = shard.hashtable.lookup(objectDescription);
+      if (existing == null)
+        return;
+      if (existing.getObjectExpiration() != -1)
+      {
+        // Pull the object from the expiration tree
+        shard.expirationTree.removeEntry(existing);
+      }
+      // Set the new expiration
+      existing.setObjectExpiration(expirationTime);
+      if (expirationTime != -1)
+      {
+        //Put the object back into the expiration tree
+        shard.expirationTree.addEntry(existing);
+      }
     }
   }
 
   /** Set an object's class and maximum count.  This will clean up extra objects
-  * in a Least Recently Used fashion until the count is met.
+  * in a Least Recently Used fashion until the count is met.  It also counts as a use of the object.
   *@param objectDescription is the object's unique description.
   *@param objectClass is the object's "class", or grouping for the purposes of LRU.
   *@param maxCount is the maximum number of objects of the class to permit to
   * remain in the cache.
   */
-  public synchronized void setObjectClass(Object objectDescription, String objectClass,
+  public void setObjectClass(Object objectDescription, String objectClass,
     int maxCount)
   {
-    // Lookup the existing object class
-    ObjectRecord existing = hashtable.lookup(objectDescription);
-    if (existing == null)
-      return;
-    if (existing.getObjectClass() != null)
-    {
-      // Pull the object from the object class expiration tree
-      objectClassTable.removeEntry(existing);
-    }
-    // Set the new object class & LRU value
-    existing.setObjectClass(objectClass);
-    if (objectClass != null)
+    Shard shard = getShard(objectDescription);
+    synchronized (shard)
     {
+      // Lookup the existing object class
+      ObjectRecord existing = shard.hashtable.lookup(objectDescription);
+      if (existing == null)
+        return;
+      if (existing.getObjectClass() != null)
+      {
+        // Pull the object from the object class expiration tree
+        shard.removeFromClass(existing);
+      }
+      // Set the new object class & LRU value
+      shard.touch(existing);
+      existing.setObjectClass(objectClass);
+      if (objectClass == null)
+        return;
       // Put the object into the object class expiration tree
-      objectClassTable.addEntry(existing);
+      shard.addToClass(existing);
+    }
 
-      if (maxCount >= 0)
+    if (maxCount >= 0)
+    {
+      // Now, clean up objects to meet the count
+      ClassStatistics stats = getClassStatistics(objectClass);
+      while (stats.objectCount.get() > maxCount)
       {
-        // Now, clean up objects to meet the count
-        while (objectClassTable.getCurrentMemberCount(objectClass) > maxCount)
-        {
-          ObjectRecord oldestRecord = objectClassTable.getOldestEntry(objectClass);
-          // Delete this entry from all places it lives
-          deleteEntry(oldestRecord);
-        }
-
+        if (!evictOldest(objectClass))
+          break;
       }
     }
-
   }
 
   /** Invalidate a set of keys.  This causes all objects that have any of the specified
   * keys as invalidation keys to be removed from the cache.
   *@param keys is the StringSet describing the keys to invalidate.
   */
-  public synchronized void invalidateKeys(StringSet keys)
+  public void invalidateKeys(StringSet keys)
   {
-    Iterator enum2 = keys.getKeys();
-    while (enum2.hasNext())
+    // Objects with a given key may live in any shard
+    for (Shard shard : shards)
     {
-      String invalidateKey = (String)enum2.next();
-      Iterator enum1 = invalidationTable.getObjectRecordsForKey(invalidateKey);
-      while (enum1.hasNext())
+      synchronized (shard)
       {
-        ObjectRecord record = (ObjectRecord)enum1.next();
-        hashtable.remove(record);
-        // Remove from object class table
-        if (record.getObjectClass() != null)
-        {
-          objectClassTable.removeEntry(record);
-        }
-        // Remove from expiration table
-        if (record.getExpirationTime() >= 0)
+        Iterator enum2 = keys.getKeys();
+        while (enum2.hasNext())
         {
-          expirationTree.removeEntry(record);
+          String invalidateKey = (String)enum2.next();
+          shard.invalidateKey(invalidateKey);
         }
-
       }
-      // We do this last, because we are enumerating over something in here!
-      invalidationTable.removeKey(invalidateKey);
     }
   }
 
@@ -219,48 +314,341 @@ public class GeneralCache
   * @param expireTime is the time to compare against, in milliseconds since epoch.
   */
   public void expireRecords(long expireTime)
+  {
+    for (Shard shard : shards)
+    {
+      while (true)
+      {
+        // Do the synchronizer inside the loop.  Cleanup is slower,
+        // but the cache does not get locked for long periods.
+        synchronized (shard)
+        {
+          // Get the oldest record, if any
+          ObjectRecord x = shard.expirationTree.getOldestEntry();
+          if (x == null)
+            break;
+          if (x.getExpirationTime() > expireTime)
+            break;
+          // Remove the entry
+          shard.deleteEntry(x);
+        }
+      }
+    }
+  }
+
+  /** Evict least recently used objects until the cache is within its memory limit.
+  */
+  protected void evictForMemory()
   {
     while (true)
     {
-      // Do the synchronizer inside the loop.  Cleanup is slower,
-      // but the cache does not get locked for long periods.
-      synchronized (this)
+      long limit = maxMemory;
+      if (limit <= 0L || memoryUsed.get() <= limit)
+        return;
+      if (!evictOldest(null))
+        return;
+    }
+  }
+
+  /** Evict the least recently used object, either of a class or overall.  The shards are consulted
+  * one at a time, so under concurrent use this is a close approximation of LRU, not an exact one.
+  *@param objectClass is the class to evict from, or null to consider all objects.
+  *@return false if there was nothing to evict.
+  */
+  protected boolean evictOldest(String objectClass)
+  {
+    while (true)
+    {
+      Shard victimShard = null;
+      long oldestTime = Long.MAX_VALUE;
+      for (Shard shard : shards)
       {
-        // Get the oldest record, if any
-        ObjectRecord x = expirationTree.getOldestEntry();
-        if (x == null)
-          break;
-        if (x.getExpirationTime() > expireTime)
-          break;
-        // Remove the entry
-        deleteEntry(x);
+        synchronized (shard)
+        {
+          ObjectRecord x = shard.getOldestEntry(objectClass);
+          if (x != null && (victimShard == null || x.getLastAccess() - oldestTime < 0L))
+          {
+            victimShard = shard;
+            oldestTime = x.getLastAccess();
+          }
+        }
+      }
+      if (victimShard == null)
+        return false;
+      synchronized (victimShard)
+      {
+        // It may have been used or removed while we looked at other shards.  If so, the shard's new
+        // oldest entry is still a reasonable choice.
+        ObjectRecord x = victimShard.getOldestEntry(objectClass);
+        if (x != null)
+        {
+          victimShard.deleteEntry(x);
+          getClassStatistics(x.getObjectClass()).evictions.incrementAndGet();
+          return true;
+        }
+      }
+    }
+  }
+
+  /** Find the shard an object belongs to.
+  */
+  protected Shard getShard(Object objectDescription)
+  {
+    int h = objectDescription.hashCode();
+    h ^= (h >>> 16);
+    return shards[h & (SHARD_COUNT - 1)];
+  }
+
+  /** Find the statistics for a class, creating them if needed.
+  *@param objectClass is the class name, or null.
+  */
+  protected ClassStatistics getClassStatistics(String objectClass)
+  {
+    if (objectClass == null)
+      objectClass = UNCLASSIFIED;
+    ClassStatistics rval = classStatistics.get(objectClass);
+    if (rval == null)
+    {
+      rval = new ClassStatistics();
+      ClassStatistics existing = classStatistics.putIfAbsent(objectClass,rval);
+      if (existing != null)
+        rval = existing;
+    }
+    return rval;
+  }
+
+  /** Estimate the memory taken by an object.  Strings, primitive arrays, boxed values, and arrays, collections
+  * and maps of these are estimated from their contents; anything else counts as DEFAULT_OBJECT_SIZE.
+  *@param o is the object.
+  *@param depth is how many more levels of containers to look into.
+  *@return the estimate in bytes.
+  */
+  protected static long estimateSize(Object o, int depth)
+  {
+    if (o == null)
+      return 0L;
+    if (o instanceof String)
+      return 40L + 2L * ((String)o).length();
+    if (o instanceof Number || o instanceof Boolean || o instanceof Character)
+      return 16L;
+    if (o instanceof byte[])
+      return 16L + ((byte[])o).length;
+    if (o instanceof char[])
+      return 16L + 2L * ((char[])o).length;
+    if (o instanceof int[])
+      return 16L + 4L * ((int[])o).length;
+    if (o instanceof long[])
+      return 16L + 8L * ((long[])o).length;
+    if (depth <= 0)
+      return DEFAULT_OBJECT_SIZE;
+    if (o instanceof Object[])
+    {
+      Object[] array = (Object[])o;
+      long rval = 16L + 4L * array.length;
+      for (Object element : array)
+      {
+        rval += estimateSize(element,depth-1);
+      }
+      return rval;
+    }
+    if (o instanceof Collection)
+    {
+      long rval = 48L;
+      for (Object element : (Collection)o)
+      {
+        rval += 32L + estimateSize(element,depth-1);
+      }
+      return rval;
+    }
+    if (o instanceof Map)
+    {
+      long rval = 48L;
+      for (Object entryObject : ((Map)o).entrySet())
+      {
+        Map.Entry entry = (Map.Entry)entryObject;
+        rval += 48L + estimateSize(entry.getKey(),depth-1) + estimateSize(entry.getValue(),depth-1);
       }
+      return rval;
     }
+    return DEFAULT_OBJECT_SIZE;
   }
 
-  /** Delete a record from the cache. NOTE WELL: This method cannot be used
-  * if the data associated with the record is currently being processed with
-  * an enumeration (for example), since it modifies the structures that the
-  * enumeration is based on!
-  *@param record is the object record.
+  /** The counters kept for each object class.
   */
-  protected void deleteEntry(ObjectRecord record)
+  public static class ClassStatistics
   {
-    // Delete from the main cache
-    hashtable.remove(record);
-    // Delete from key hash
-    invalidationTable.removeObjectRecord(record);
-    // Remove from object class table
-    if (record.getObjectClass() != null)
+    protected final AtomicLong hits = new AtomicLong(0L);
+    protected final AtomicLong misses = new AtomicLong(0L);
+    protected final AtomicLong evictions = new AtomicLong(0L);
+    protected final AtomicInteger objectCount = new AtomicInteger(0);
+
+    public ClassStatistics()
+    {
+    }
+
+    /** Get the number of lookups that found a valid object */
+    public long getHits()
+    {
+      return hits.get();
+    }
+
+    /** Get the number of lookups that did not find a valid object */
+    public long getMisses()
+    {
+      return misses.get();
+    }
+
+    /** Get the number of objects removed to meet the class's count limit or the cache's memory limit */
+    public long getEvictions()
+    {
+      return evictions.get();
+    }
+
+    /** Get the number of objects of the class in the cache.  Objects with no class are not counted. */
+    public int getObjectCount()
+    {
+      return objectCount.get();
+    }
+  }
+
+  /** One shard of the cache.  All access must be synchronized on the shard.
+  */
+  protected class Shard
+  {
+    // This table is for looking stuff up by object description
+    protected final ObjectRecordTable hashtable = new ObjectRecordTable();
+    // This table is for looking stuff up by cache key - hash table of hash tables
+    protected final InvalidationTable invalidationTable = new InvalidationTable();
+    // This table keeps the running count of each object class
+    protected final ObjectClassTable objectClassTable = new ObjectClassTable();
+    // This structure is the general expiration tree
+    protected final ExpirationTree expirationTree = new ExpirationTree();
+    // The LRU list of all the shard's objects, oldest first
+    protected ObjectRecord firstLRU = null;
+    protected ObjectRecord lastLRU = null;
+
+    public Shard()
+    {
+    }
+
+    /** Add a record that is not yet in the shard.
+    */
+    public void addEntry(ObjectRecord record)
+    {
+      hashtable.add(record);
+      // Make an entry in the invalidation hash
+      invalidationTable.addKeys(record.getKeys(),record);
+      record.setLastAccess(System.nanoTime());
+      appendLRU(record);
+      memoryUsed.addAndGet(record.getSize());
+    }
+
+    /** Note a use of a record, making it the most recently used.
+    */
+    public void touch(ObjectRecord record)
+    {
+      removeLRU(record);
+      record.setLastAccess(System.nanoTime());
+      appendLRU(record);
+    }
+
+    public void addToClass(ObjectRecord record)
+    {
+      objectClassTable.addEntry(record);
+      getClassStatistics(record.getObjectClass()).objectCount.incrementAndGet();
+    }
+
+    public void removeFromClass(ObjectRecord record)
     {
       objectClassTable.removeEntry(record);
+      getClassStatistics(record.getObjectClass()).objectCount.decrementAndGet();
+    }
+
+    /** Find the least recently used record.
+    *@param objectClass is the class to look in, or null to consider all records.
+    */
+    public ObjectRecord getOldestEntry(String objectClass)
+    {
+      if (objectClass == null)
+        return firstLRU;
+      return objectClassTable.getOldestEntry(objectClass);
     }
-    // Remove from expiration table
-    if (record.getExpirationTime() >= 0)
+
+    /** Remove all the records with an invalidation key.
+    */
+    public void invalidateKey(String invalidateKey)
+    {
+      Iterator enum1 = invalidationTable.getObjectRecordsForKey(invalidateKey);
+      if (!enum1.hasNext())
+      {
+        invalidationTable.removeKey(invalidateKey);
+        return;
+      }
+      // Deleting a record takes it out of the table we are enumerating, so gather them first
+      List<ObjectRecord> records = new ArrayList<ObjectRecord>();
+      while (enum1.hasNext())
+      {
+        records.add((ObjectRecord)enum1.next());
+      }
+      for (ObjectRecord record : records)
+      {
+        deleteEntry(record);
+      }
+      invalidationTable.removeKey(invalidateKey);
+    }
+
+    /** Delete a record from the shard. NOTE WELL: This method cannot be used
+    * if the data associated with the record is currently being processed with
+    * an enumeration (for example), since it modifies the structures that the
+    * enumeration is based on!
+    *@param record is the object record.
+    */
+    public void deleteEntry(ObjectRecord record)
+    {
+      // Delete from the main cache
+      hashtable.remove(record);
+      // Delete from key hash
+      invalidationTable.removeObjectRecord(record);
+      // Remove from object class table
+      if (record.getObjectClass() != null)
+      {
+        removeFromClass(record);
+      }
+      // Remove from expiration table
+      if (record.getExpirationTime() >= 0)
+      {
+        expirationTree.removeEntry(record);
+      }
+      removeLRU(record);
+      memoryUsed.addAndGet(-record.getSize());
+    }
+
+    protected void appendLRU(ObjectRecord x)
     {
-      expirationTree.removeEntry(record);
+      x.setNextShardLRU(null);
+      x.setPrevShardLRU(lastLRU);
+      if (lastLRU == null)
+        firstLRU = x;
+      else
+        lastLRU.setNextShardLRU(x);
+      lastLRU = x;
     }
 
+    protected void removeLRU(ObjectRecord x)
+    {
+      ObjectRecord prev = x.getPrevShardLRU();
+      ObjectRecord next = x.getNextShardLRU();
+      if (prev == null)
+        firstLRU = next;
+      else
+        prev.setNextShardLRU(next);
+      if (next == null)
+        lastLRU = prev;
+      else
+        next.setPrevShardLRU(prev);
+      x.setPrevShardLRU(null);
+      x.setNextShardLRU(null);
+    }
   }
 
   /** This class represents a cached object.  It has enough hooks to allow it
@@ -278,13 +666,56 @@ public class GeneralCache
     protected ObjectRecord nextLRU = null;
     protected ObjectRecord sameExpirationPrev = null;
     protected ObjectRecord sameExpirationNext = null;
+    protected ObjectRecord prevShardLRU = null;
+    protected ObjectRecord nextShardLRU = null;
+    protected long lastAccess = 0L;
+    protected final long size;
 
-    public ObjectRecord(Object objectDescription, Object theObject, StringSet invalidationKeys, long creationTime)
+    public ObjectRecord(Object objectDescription, Object theObject, StringSet invalidationKeys, long creationTime,
+      long size)
     {
       this.creationTime = creationTime;
       this.objectDescription = objectDescription;
       this.theObject = theObject;
       this.invalidationKeys = invalidationKeys;
+      this.size = size;
+    }
+
+    /** Get the estimated memory taken by the record, in bytes */
+    public long getSize()
+    {
+      return size;
+    }
+
+    /** Get the time of last use, as from System.nanoTime() */
+    public long getLastAccess()
+    {
+      return lastAccess;
+    }
+
+    public void setLastAccess(long lastAccess)
+    {
+      this.lastAccess = lastAccess;
+    }
+
+    public ObjectRecord getPrevShardLRU()
+    {
+      return prevShardLRU;
+    }
+
+    public ObjectRecord getNextShardLRU()
+    {
+      return nextShardLRU;
+    }
+
+    public void setPrevShardLRU(ObjectRecord prev)
+    {
+      prevShardLRU = prev;
+    }
+
+    public void setNextShardLRU(ObjectRecord next)
+    {
+      nextShardLRU = next;
     }
 
     public long getCreationTime()
@@ -21,7 +21,11 @@ package org.apache.manifoldcf.core.connectorpool;
 import org.apache.manifoldcf.core.interfaces.*;
 import org.apache.manifoldcf.core.system.ManifoldCF;
 
+import org.apache.manifoldcf.core.system.Logging;
+
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.io.*;
 import java.lang.reflect.*;
 
@@ -46,6 +50,13 @@ public abstract class ConnectorPool<T extends IConnector>
   // The lock manager has primitives now that allow data to be set this way.  We will use the connection name as the
   // "data type" name - only in the local pool will we pay any attention to config info and class name, and flush those handles
   // that get returned that have the wrong info attached.
+  //
+  // How local concurrency works:
+  // Grabbing and releasing a connector never takes a lock unless the grabbing thread must wait for a free connector.
+  // The pools are kept in a concurrent map, the number of connectors that may be handed out is an atomic counter, and
+  // unused connectors sit on a concurrent stack.  Polling, which talks to the lock manager and calls poll() on every
+  // pooled connector, is serialized per pool by its own lock, and takes each pooled connector off the stack only while
+  // that one connector is being polled.
 
   /** Target calc lock prefix */
   protected final static String targetCalcLockPrefix = "_POOLTARGET_";
@@ -54,7 +65,9 @@ public abstract class ConnectorPool<T extends IConnector>
   protected final String serviceTypePrefix;
 
   /** Pool hash table. Keyed by connection name; value is Pool */
-  protected final Map<String,Pool> poolHash = new HashMap<String,Pool>();
+  protected final ConcurrentMap<String,Pool> poolHash = new ConcurrentHashMap<String,Pool>();
+  /** Lock held while a pool is created */
+  protected final Object poolCreationLock = new Object();
 
   /** Random number */
   protected final static Random randomNumberGenerator = new Random();
@@ -234,23 +247,27 @@ public abstract class ConnectorPool<T extends IConnector>
     // pool may vanish because it has been closed.
     while (true)
     {
-      Pool p;
-      synchronized (poolHash)
+      Pool p = poolHash.get(connectionName);
+      if (p == null)
       {
-        p = poolHash.get(connectionName);
-        if (p == null)
-        {
-          p = new Pool(threadContext, maxPoolSize, connectionName);
-          poolHash.put(connectionName,p);
-          // Do an initial poll right away, so we don't have to wait 5 seconds to 
-          // get a connector instance unless they're already all in use.
-          p.pollAll(threadContext);
-        }
-        else
+        // Creating a pool registers a service, so only one thread may do it
+        synchronized (poolCreationLock)
         {
-          p.updateMaximumPoolSize(threadContext, maxPoolSize);
+          p = poolHash.get(connectionName);
+          if (p == null)
+          {
+            p = new Pool(threadContext, maxPoolSize, connectionName);
+            poolHash.put(connectionName,p);
+            // Do an initial poll right away, so we don't have to wait 5 seconds to
+            // get a connector instance unless they're already all in use.
+            p.pollAll(threadContext);
+          }
         }
       }
+      else
+      {
+        p.updateMaximumPoolSize(threadContext, maxPoolSize);
+      }
 
       T rval = p.getConnector(threadContext,className,configInfo);
       if (rval != null)
@@ -295,27 +312,13 @@ public abstract class ConnectorPool<T extends IConnector>
       return;
 
     // Figure out which pool this goes on, and put it there
-    Pool p;
-    synchronized (poolHash)
-    {
-      p = poolHash.get(connectionName);
-    }
+    Pool p = poolHash.get(connectionName);
 
     if (p != null)
       p.releaseConnector(threadContext, connector);
     else
-    {
       // Destroy the connector instance, since the pool is gone and that means we're shutting down
-      connector.setThreadContext(threadContext);
-      try
-      {
-        connector.disconnect();
-      }
-      finally
-      {
-        connector.clearThreadContext();
-      }
-    }
+      disconnectConnector(threadContext, connector);
   }
 
   /** Idle notification for inactive output connector handles.
@@ -324,26 +327,41 @@ public abstract class ConnectorPool<T extends IConnector>
   public void pollAllConnectors(IThreadContext threadContext)
     throws ManifoldCFException
   {
-    // System.out.println("Pool stats:");
-
     // Go through the whole pool and notify everyone
-    synchronized (poolHash)
+    for (Map.Entry<String,Pool> entry : poolHash.entrySet())
+    {
+      String connectionName = entry.getKey();
+      Pool p = entry.getValue();
+      if (isConnectionNameValid(threadContext,connectionName))
+        p.pollAll(threadContext);
+      else if (poolHash.remove(connectionName,p))
+        p.releaseAll(threadContext);
+    }
+
+    if (Logging.perf.isDebugEnabled())
     {
-      Iterator<String> iter = poolHash.keySet().iterator();
-      while (iter.hasNext())
+      for (PoolStatistics stats : getStatistics())
       {
-        String connectionName = iter.next();
-        Pool p = poolHash.get(connectionName);
-        if (isConnectionNameValid(threadContext,connectionName))
-          p.pollAll(threadContext);
-        else
-        {
-          p.releaseAll(threadContext);
-          iter.remove();
-        }
+        if (stats.getWaits() > 0L)
+          Logging.perf.debug("Connector pool '"+stats.getConnectionName()+"': "+stats.getGrabs()+" grabs, "+stats.getWaits()+
+            " waited "+stats.getWaitTime()+" ms total ("+stats.getMaxWaitTime()+" ms max); "+stats.getLocalMax()+
+            " allowed locally, "+stats.getFree()+" free, "+stats.getPooled()+" pooled; target "+stats.getTarget()+
+            " of "+stats.getGlobalMax()+" negotiated with "+stats.getNumServices()+" services ("+stats.getNegotiationTime()+" ms total)");
       }
     }
+  }
 
+  /** Get a snapshot of the statistics of every pool.
+  *@return the statistics, one per connection name.
+  */
+  public List<PoolStatistics> getStatistics()
+  {
+    List<PoolStatistics> rval = new ArrayList<PoolStatistics>();
+    for (Map.Entry<String,Pool> entry : poolHash.entrySet())
+    {
+      rval.add(entry.getValue().getStatistics(entry.getKey()));
+    }
+    return rval;
   }
 
   /** Flush only those connector handles that are currently unused.
@@ -352,14 +370,9 @@ public abstract class ConnectorPool<T extends IConnector>
     throws ManifoldCFException
   {
     // Go through the whole pool and clean it out
-    synchronized (poolHash)
+    for (Pool p : poolHash.values())
     {
-      Iterator<Pool> iter = poolHash.values().iterator();
-      while (iter.hasNext())
-      {
-        Pool p = iter.next();
-        p.flushUnused(threadContext);
-      }
+      p.flushUnused(threadContext);
     }
   }
 
@@ -372,15 +385,11 @@ public abstract class ConnectorPool<T extends IConnector>
     throws ManifoldCFException
   {
     // Go through the whole pool and clean it out
-    synchronized (poolHash)
+    for (Map.Entry<String,Pool> entry : poolHash.entrySet())
     {
-      Iterator<Pool> iter = poolHash.values().iterator();
-      while (iter.hasNext())
-      {
-        Pool p = iter.next();
+      Pool p = entry.getValue();
+      if (poolHash.remove(entry.getKey(),p))
         p.releaseAll(threadContext);
-        iter.remove();
-      }
     }
   }
 
@@ -395,29 +404,58 @@ public abstract class ConnectorPool<T extends IConnector>
   {
     return targetCalcLockPrefix + serviceTypePrefix + connectionName;
   }
-  
+
+  /** Disconnect a connector instance that is being thrown away.
+  */
+  protected static void disconnectConnector(IThreadContext threadContext, IConnector connector)
+    throws ManifoldCFException
+  {
+    connector.setThreadContext(threadContext);
+    try
+    {
+      connector.disconnect();
+    }
+    finally
+    {
+      connector.clearThreadContext();
+    }
+  }
+
   /** This class represents a value in the pool hash, which corresponds to a given key.
   */
   protected class Pool
   {
     /** Whether this pool is alive */
-    protected boolean isAlive = true;
+    protected volatile boolean isAlive = true;
     /** The global maximum for this pool */
-    protected int globalMax;
+    protected volatile int globalMax;
     /** Service type name */
     protected final String serviceTypeName;
     /** The (anonymous) service name */
     protected final String serviceName;
     /** The target calculation lock name */
     protected final String targetCalcLockName;
-    /** Place where we keep unused connector instances */
-    protected final List<T> stack = new ArrayList<T>();
-    /** The number of local instances we can currently pass out to requesting threads.  Initially zero until pool is apportioned */
-    protected int numFree = 0;
-    /** The number of instances we are allowed to hand out locally, at this time */
-    protected int localMax = 0;
-    /** The number of instances that are actually connected and in use, as of the last poll */
-    protected int localInUse = 0;
+    /** Place where we keep unused connector instances; the oldest are first */
+    protected final Deque<T> stack = new ConcurrentLinkedDeque<T>();
+    /** The number of local instances we can currently pass out to requesting threads.  Initially zero until pool is apportioned.
+    * This may be negative after the pool has been shrunk. */
+    protected final AtomicInteger numFree = new AtomicInteger(0);
+    /** The number of instances we are allowed to hand out locally, at this time.  Only changed while pollLock is held. */
+    protected volatile int localMax = 0;
+    /** The number of threads waiting for a connector */
+    protected final AtomicInteger waiters = new AtomicInteger(0);
+    /** Lock that serializes polling and shutdown of this pool */
+    protected final Object pollLock = new Object();
+
+    // Statistics
+    protected final AtomicLong grabCount = new AtomicLong(0L);
+    protected final AtomicLong waitCount = new AtomicLong(0L);
+    protected final AtomicLong waitNanos = new AtomicLong(0L);
+    protected final AtomicLong maxWaitNanos = new AtomicLong(0L);
+    protected final AtomicLong negotiationCount = new AtomicLong(0L);
+    protected final AtomicLong negotiationNanos = new AtomicLong(0L);
+    protected volatile int lastTarget = 0;
+    protected volatile int lastNumServices = 0;
     
     /** Constructor
     */
@@ -435,7 +473,7 @@ public abstract class ConnectorPool<T extends IConnector>
     /** Update the maximum pool size.
     *@param maxPoolSize is the new global maximum pool size.
     */
-    public synchronized void updateMaximumPoolSize(IThreadContext threadContext, int maxPoolSize)
+    public void updateMaximumPoolSize(IThreadContext threadContext, int maxPoolSize)
       throws ManifoldCFException
     {
       // This updates the maximum global size that the pool uses.
@@ -448,69 +486,62 @@ public abstract class ConnectorPool<T extends IConnector>
     * If none exists, construct it using the information in the pool key.
     *@return the connector, or null if no connector could be connected.
     */
-    public synchronized T getConnector(IThreadContext threadContext, String className, ConfigParams configParams)
+    public T getConnector(IThreadContext threadContext, String className, ConfigParams configParams)
       throws ManifoldCFException
     {
+      grabCount.incrementAndGet();
       // numFree represents the number of available connector instances that have not been given out at this moment.
       // So it's the max minus the pool count minus the number in use.
-      while (isAlive && numFree <= 0)
-      {
-        try
-        {
-          wait();
-        }
-        catch (InterruptedException e)
-        {
-          throw new ManifoldCFException("Interrupted: "+e.getMessage(),e,ManifoldCFException.INTERRUPTED);
-        }
-      }
-      if (!isAlive)
+      if (!acquire())
         return null;
-      
+
       // We decrement numFree when we hand out a connector instance; we increment numFree when we
-      // throw away a connector instance from the pool.
-      while (true)
+      // throw away a connector instance from the pool.  If we fail to hand out an instance, give back what we took.
+      boolean handedOut = false;
+      try
       {
-        if (stack.size() == 0)
-        {
-          T newrc = createConnectorInstance(threadContext,className);
-          if (newrc == null)
-            return null;
-          newrc.connect(configParams);
-          stack.add(newrc);
-        }
-        
-        // Since thread context set can fail, do that before we remove it from the pool.
-        T rc = stack.remove(stack.size()-1);
-        // Set the thread context.  This can throw an exception!!  We need to be sure our bookkeeping
-        // is resilient against that possibility.  Losing a connector instance that was just sitting
-        // in the pool does NOT affect numFree, so no change needed here; we just can't disconnect the
-        // connector instance if this fails.
-        rc.setThreadContext(threadContext);
-        // Verify that the connector is in fact compatible
-        if (!(rc.getClass().getName().equals(className) && rc.getConfiguration().equals(configParams)))
+        while (true)
         {
-          // Looks like parameters have changed, so discard old instance.
-          try
+          T rc = stack.pollLast();
+          if (rc == null)
           {
-            rc.disconnect();
+            rc = createConnectorInstance(threadContext,className);
+            if (rc == null)
+              return null;
+            rc.connect(configParams);
           }
-          finally
+          // Set the thread context.  This can throw an exception!!  Losing a connector instance that was just
+          // sitting in the pool does not affect numFree; we just can't disconnect the instance if this fails.
+          rc.setThreadContext(threadContext);
+          // Verify that the connector is in fact compatible
+          if (!(rc.getClass().getName().equals(className) && rc.getConfiguration().equals(configParams)))
           {
-            rc.clearThreadContext();
+            // Looks like parameters have changed, so discard old instance.
+            try
+            {
+              rc.disconnect();
+            }
+            finally
+            {
+              rc.clearThreadContext();
+            }
+            continue;
           }
-          continue;
+          handedOut = true;
+          return rc;
         }
-        // About to return a connector instance; decrement numFree accordingly.
-        numFree--;
-        return rc;
+      }
+      finally
+      {
+        if (!handedOut)
+          free();
       }
     }
 
     /** Release a connector to the pool.
     *@param connector is the connector.
     */
-    public synchronized void releaseConnector(IThreadContext threadContext, T connector)
+    public void releaseConnector(IThreadContext threadContext, T connector)
       throws ManifoldCFException
     {
       if (connector == null)
@@ -518,228 +549,413 @@ public abstract class ConnectorPool<T extends IConnector>
 
       // Make sure connector knows it's released
       connector.clearThreadContext();
-      // Return it to the pool, and note that it is no longer in use.
-      stack.add(connector);
-      numFree++;
-      // Determine if we need to free some connectors.  If the number
-      // of allocated connectors exceeds the target, we unload some
-      // off the stack.
-      // The question is whether the stack has too many connector instances
-      // on it.  Obviously, if it stack.size() > max, it does - but remember
-      // that the number of outstanding connectors is max - numFree.
-      // So, we have an excess if stack.size() > max - (max-numFree).
-      // Simplifying: excess is when stack.size() > numFree.
-      while (stack.size() > 0 && stack.size() > numFree)
+      if (!isAlive)
       {
-        // Try to find a connector instance that is not actually connected.
-        // These are likely to be at the front of the queue, since those are the
-        // oldest.
-        int j;
-        for (j = 0; j < stack.size(); j++)
-        {
-          if (!stack.get(j).isConnected())
-            break;
-        }
-        T rc;
-        if (j == stack.size())
-          rc = stack.remove(stack.size()-1);
-        else
-          rc = stack.remove(j);
-        rc.setThreadContext(threadContext);
-        try
-        {
-          rc.disconnect();
-        }
-        finally
-        {
-          rc.clearThreadContext();
-        }
+        // The pool has been shut down; nothing will ever flush this instance
+        disconnectConnector(threadContext, connector);
+        return;
       }
-
-      notifyAll();
+      // Return it to the pool, and note that it is no longer in use.
+      stack.addLast(connector);
+      numFree.incrementAndGet();
+      // The number of outstanding connectors is max - numFree, so the stack holds more instances than
+      // can be used when stack.size() > numFree.
+      freeExcess(threadContext);
+      signalWaiters();
     }
 
     /** Notify all free connectors.
     */
-    public synchronized void pollAll(IThreadContext threadContext)
+    public void pollAll(IThreadContext threadContext)
       throws ManifoldCFException
     {
-      // The meat of the cross-cluster apportionment algorithm goes here!
-      // Two global numbers each service posts: "in-use" and "target".  At no time does a service *ever* post either a "target"
-      // that, together with all other active service targets, is in excess of the max.  Also, at no time a service post
-      // a target that, when added to the other "in-use" values, exceeds the max.  If the "in-use" values everywhere else
-      // already equal or exceed the max, then the target will be zero.
-      // The target quota is calculated as follows:
-      // (1) Target is summed, excluding ours.  This is GlobalTarget.
-      // (2) In-use is summed, excluding ours.  This is GlobalInUse.
-      // (3) Our MaximumTarget is computed, which is Maximum - GlobalTarget or Maximum - GlobalInUse, whichever is
-      //     smaller, but never less than zero.
-      // (4) Our FairTarget is computed.  The FairTarget divides the Maximum by the number of services, and adds
-      //     1 randomly based on the remainder.
-      // (5) We compute OptimalTarget as follows: We start with current local target.  If current local target
-      //    exceeds current local in-use count, we adjust OptimalTarget downward by one.  Otherwise we increase it
-      //    by one.
-      // (6) Finally, we compute Target by taking the minimum of MaximumTarget, FairTarget, and OptimalTarget.
-
-      ILockManager lockManager = LockManagerFactory.make(threadContext);
-      lockManager.enterWriteLock(targetCalcLockName);
-      try
+      synchronized (pollLock)
       {
-        // Compute MaximumTarget
-        SumClass sumClass = new SumClass(serviceName);
-        lockManager.scanServiceData(serviceTypeName, sumClass);
-        //System.out.println("numServices = "+sumClass.getNumServices()+"; globalTarget = "+sumClass.getGlobalTarget()+"; globalInUse = "+sumClass.getGlobalInUse());
-        
-        int numServices = sumClass.getNumServices();
-        if (numServices == 0)
+        if (!isAlive)
           return;
-        int globalTarget = sumClass.getGlobalTarget();
-        int globalInUse = sumClass.getGlobalInUse();
-        int maximumTarget = globalMax - globalTarget;
-        if (maximumTarget > globalMax - globalInUse)
-          maximumTarget = globalMax - globalInUse;
-        if (maximumTarget < 0)
-          maximumTarget = 0;
-        
-        // Compute FairTarget
-        int fairTarget = globalMax / numServices;
-        int remainder = globalMax % numServices;
-        // Randomly choose whether we get an addition to the FairTarget
-        if (randomNumberGenerator.nextInt(numServices) < remainder)
-          fairTarget++;
-        
-        // Compute OptimalTarget (and poll connectors while we are at it)
-        int localInUse = localMax - numFree;      // These are the connectors that have been handed out
-        for (T rc : stack)
+
+        // Poll the pooled connectors.  Each one is off the stack only while it is being polled, and goes back
+        // on top, where the instances that were in use a moment ago are; the oldest instance is always first.
+        int pooledConnected = 0;
+        int count = stack.size();
+        for (int i = 0; i < count; i++)
         {
-          // Notify
+          T rc = stack.pollFirst();
+          if (rc == null)
+            break;
           rc.setThreadContext(threadContext);
           try
           {
             rc.poll();
             if (rc.isConnected())
-              localInUse++;       // Count every pooled connector that is still connected
+              pooledConnected++;       // Count every pooled connector that is still connected
           }
           finally
           {
             rc.clearThreadContext();
+            stack.addLast(rc);
           }
         }
-        int optimalTarget = localMax;
-        if (localMax > localInUse)
-          optimalTarget--;
-        else
+
+        // The meat of the cross-cluster apportionment algorithm goes here!
+        // Two global numbers each service posts: "in-use" and "target".  At no time does a service *ever* post either a "target"
+        // that, together with all other active service targets, is in excess of the max.  Also, at no time a service post
+        // a target that, when added to the other "in-use" values, exceeds the max.  If the "in-use" values everywhere else
+        // already equal or exceed the max, then the target will be zero.
+        // The target quota is calculated as follows:
+        // (1) Target is summed, excluding ours.  This is GlobalTarget.
+        // (2) In-use is summed, excluding ours.  This is GlobalInUse.
+        // (3) Our MaximumTarget is computed, which is Maximum - GlobalTarget or Maximum - GlobalInUse, whichever is
+        //     smaller, but never less than zero.
+        // (4) Our FairTarget is computed.  The FairTarget divides the Maximum by the number of services, and adds
+        //     1 randomly based on the remainder.
+        // (5) We compute OptimalTarget as follows: We start with current local target.  If current local target
+        //    exceeds current local in-use count, we adjust OptimalTarget downward by one.  Otherwise we increase it
+        //    by one.
+        // (6) Finally, we compute Target by taking the minimum of MaximumTarget, FairTarget, and OptimalTarget.
+
+        long startTime = System.nanoTime();
+        ILockManager lockManager = LockManagerFactory.make(threadContext);
+        lockManager.enterWriteLock(targetCalcLockName);
+        try
         {
-          // We want a fast ramp up, so make this proportional to globalMax
-          int increment = globalMax >> 2;
-          if (increment == 0)
-            increment = 1;
-          optimalTarget += increment;
+          int globalMax = this.globalMax;
+          // Compute MaximumTarget
+          SumClass sumClass = new SumClass(serviceName);
+          lockManager.scanServiceData(serviceTypeName, sumClass);
+          
+          int numServices = sumClass.getNumServices();
+          lastNumServices = numServices;
+          if (numServices == 0)
+            return;
+          int globalTarget = sumClass.getGlobalTarget();
+          int globalInUse = sumClass.getGlobalInUse();
+          int maximumTarget = globalMax - globalTarget;
+          if (maximumTarget > globalMax - globalInUse)
+            maximumTarget = globalMax - globalInUse;
+          if (maximumTarget < 0)
+            maximumTarget = 0;
+          
+          // Compute FairTarget
+          int fairTarget = globalMax / numServices;
+          int remainder = globalMax % numServices;
+          // Randomly choose whether we get an addition to the FairTarget
+          if (randomNumberGenerator.nextInt(numServices) < remainder)
+            fairTarget++;
+          
+          // Compute OptimalTarget
+          int localInUse = localMax - numFree.get() + pooledConnected;
+          int optimalTarget = localMax;
+          if (localMax > localInUse)
+            optimalTarget--;
+          else
+          {
+            // We want a fast ramp up, so make this proportional to globalMax
+            int increment = globalMax >> 2;
+            if (increment == 0)
+              increment = 1;
+            optimalTarget += increment;
+          }
+          
+          // Now compute actual target
+          int target = maximumTarget;
+          if (target > fairTarget)
+            target = fairTarget;
+          if (target > optimalTarget)
+            target = optimalTarget;
+          lastTarget = target;
+          
+          // Write these values to the service data variables.
+          // NOTE that there is a race condition here; the target value depends on all the calculations above being accurate, and not changing out from under us.
+          // So, that's why we have a write lock around the pool calculations.
+          
+          lockManager.updateServiceData(serviceTypeName, serviceName, pack(target, localInUse));
+          
+          // Now, update our localMax
+          if (target != localMax)
+          {
+            // Handing out (target - localMax) more instances, or that many fewer.  numFree may turn out to be
+            // negative here!!  That's okay; we'll just free released connectors until we enter positive territory again.
+            int delta = target - localMax;
+            localMax = target;
+            numFree.addAndGet(delta);
+            signalWaiters();
+          }
+        }
+        finally
+        {
+          lockManager.leaveWriteLock(targetCalcLockName);
+          negotiationCount.incrementAndGet();
+          negotiationNanos.addAndGet(System.nanoTime() - startTime);
         }
-        
-        //System.out.println(serviceTypeName+":maxTarget = "+maximumTarget+"; fairTarget = "+fairTarget+"; optimalTarget = "+optimalTarget);
-
-        // Now compute actual target
-        int target = maximumTarget;
-        if (target > fairTarget)
-          target = fairTarget;
-        if (target > optimalTarget)
-          target = optimalTarget;
-        
-        //System.out.println(serviceTypeName+":Picking target="+target+"; localInUse="+localInUse);
-        // Write these values to the service data variables.
-        // NOTE that there is a race condition here; the target value depends on all the calculations above being accurate, and not changing out from under us.
-        // So, that's why we have a write lock around the pool calculations.
-        
-        lockManager.updateServiceData(serviceTypeName, serviceName, pack(target, localInUse));
-        
-        // Now, update our localMax
-        if (target == localMax)
-          return;
-        //System.out.println(serviceTypeName+":Updating target: "+target);
-        // Compute the number of instances in use locally
-        localInUse = localMax - numFree;
-        localMax = target;
-        // numFree may turn out to be negative here!!  That's okay; we'll just free released connectors
-        // until we enter positive territory again.
-        numFree = localMax - localInUse;
-        notifyAll();
-      }
-      finally
-      {
-        lockManager.leaveWriteLock(targetCalcLockName);
       }
       
       // Finally, free pooled instances in excess of target
-      while (stack.size() > 0 && stack.size() > numFree)
+      freeExcess(threadContext);
+    }
+
+    /** Flush unused connectors.
+    */
+    public void flushUnused(IThreadContext threadContext)
+      throws ManifoldCFException
+    {
+      while (true)
       {
-        // Try to find a connector instance that is not actually connected.
-        // These are likely to be at the front of the queue, since those are the
-        // oldest.
-        int j;
-        for (j = 0; j < stack.size(); j++)
-        {
-          if (!stack.get(j).isConnected())
-            break;
-        }
-        T rc;
-        if (j == stack.size())
-          rc = stack.remove(stack.size()-1);
-        else
-          rc = stack.remove(j);
-        rc.setThreadContext(threadContext);
-        try
+        T rc = stack.pollLast();
+        if (rc == null)
+          break;
+        // Disconnect
+        disconnectConnector(threadContext, rc);
+      }
+    }
+
+    /** Release all free connectors.
+    */
+    public void releaseAll(IThreadContext threadContext)
+      throws ManifoldCFException
+    {
+      synchronized (pollLock)
+      {
+        boolean wasAlive;
+        synchronized (this)
         {
-          rc.disconnect();
+          wasAlive = isAlive;
+          isAlive = false;
+          notifyAll();
         }
-        finally
+        flushUnused(threadContext);
+      
+        // End service activity
+        if (wasAlive)
         {
-          rc.clearThreadContext();
+          ILockManager lockManager = LockManagerFactory.make(threadContext);
+          lockManager.endServiceActivity(serviceTypeName, serviceName);
         }
       }
+    }
 
+    /** Get a snapshot of this pool's statistics.
+    */
+    public PoolStatistics getStatistics(String connectionName)
+    {
+      return new PoolStatistics(connectionName, grabCount.get(), waitCount.get(), waitNanos.get() / 1000000L,
+        maxWaitNanos.get() / 1000000L, stack.size(), numFree.get(), localMax, globalMax, lastTarget, lastNumServices,
+        negotiationCount.get(), negotiationNanos.get() / 1000000L);
     }
 
-    /** Flush unused connectors.
+    /** Take the right to hand out one connector, waiting if there is none.
+    *@return false if the pool was shut down.
     */
-    public synchronized void flushUnused(IThreadContext threadContext)
+    protected boolean acquire()
       throws ManifoldCFException
     {
-      while (stack.size() > 0)
+      if (!isAlive)
+        return false;
+      if (tryAcquire())
+        return true;
+      waitCount.incrementAndGet();
+      long startTime = System.nanoTime();
+      // Anyone who frees a connector after this increment will notify us
+      waiters.incrementAndGet();
+      try
       {
-        // Disconnect
-        T rc = stack.remove(stack.size()-1);
-        rc.setThreadContext(threadContext);
-        try
+        synchronized (this)
         {
-          rc.disconnect();
+          while (true)
+          {
+            if (!isAlive)
+              return false;
+            if (tryAcquire())
+              return true;
+            wait();
+          }
         }
-        finally
+      }
+      catch (InterruptedException e)
+      {
+        throw new ManifoldCFException("Interrupted: "+e.getMessage(),e,ManifoldCFException.INTERRUPTED);
+      }
+      finally
+      {
+        waiters.decrementAndGet();
+        long waited = System.nanoTime() - startTime;
+        waitNanos.addAndGet(waited);
+        while (true)
         {
-          rc.clearThreadContext();
+          long currentMax = maxWaitNanos.get();
+          if (waited <= currentMax || maxWaitNanos.compareAndSet(currentMax,waited))
+            break;
         }
       }
     }
 
-    /** Release all free connectors.
+    /** Take the right to hand out one connector, if there is one.
     */
-    public synchronized void releaseAll(IThreadContext threadContext)
+    protected boolean tryAcquire()
+    {
+      while (true)
+      {
+        int current = numFree.get();
+        if (current <= 0)
+          return false;
+        if (numFree.compareAndSet(current,current-1))
+          return true;
+      }
+    }
+
+    /** Give back the right to hand out one connector, without returning an instance.
+    */
+    protected void free()
+    {
+      numFree.incrementAndGet();
+      signalWaiters();
+    }
+
+    /** Wake up the threads waiting for a connector, if there are any.
+    */
+    protected void signalWaiters()
+    {
+      if (waiters.get() > 0)
+      {
+        synchronized (this)
+        {
+          notifyAll();
+        }
+      }
+    }
+
+    /** Disconnect pooled instances while there are more than can be handed out.
+    */
+    protected void freeExcess(IThreadContext threadContext)
       throws ManifoldCFException
     {
-      flushUnused(threadContext);
-      
-      // End service activity
-      if (isAlive)
+      while (stack.size() > 0 && stack.size() > numFree.get())
       {
-        isAlive = false;
-        notifyAll();
-        ILockManager lockManager = LockManagerFactory.make(threadContext);
-        lockManager.endServiceActivity(serviceTypeName, serviceName);
+        // The oldest instances are the least likely to still be connected, so they go first.
+        T rc = stack.pollFirst();
+        if (rc == null)
+          break;
+        disconnectConnector(threadContext, rc);
       }
     }
 
   }
 
+  /** A snapshot of the statistics of one pool.  Times are in milliseconds.
+  */
+  public static class PoolStatistics
+  {
+    protected final String connectionName;
+    protected final long grabs;
+    protected final long waits;
+    protected final long waitTime;
+    protected final long maxWaitTime;
+    protected final int pooled;
+    protected final int free;
+    protected final int localMax;
+    protected final int globalMax;
+    protected final int target;
+    protected final int numServices;
+    protected final long negotiations;
+    protected final long negotiationTime;
+
+    public PoolStatistics(String connectionName, long grabs, long waits, long waitTime, long maxWaitTime,
+      int pooled, int free, int localMax, int globalMax, int target, int numServices, long negotiations, long negotiationTime)
+    {
+      this.connectionName = connectionName;
+      this.grabs = grabs;
+      this.waits = waits;
+      this.waitTime = waitTime;
+      this.maxWaitTime = maxWaitTime;
+      this.pooled = pooled;
+      this.free = free;
+      this.localMax = localMax;
+      this.globalMax = globalMax;
+      this.target = target;
+      this.numServices = numServices;
+      this.negotiations = negotiations;
+      this.negotiationTime = negotiationTime;
+    }
+
+    /** Get the connection name. */
+    public String getConnectionName()
+    {
+      return connectionName;
+    }
+
+    /** Get the number of connector grabs. */
+    public long getGrabs()
+    {
+      return grabs;
+    }
+
+    /** Get the number of grabs that had to wait for a connector. */
+    public long getWaits()
+    {
+      return waits;
+    }
+
+    /** Get the total time spent waiting for connectors. */
+    public long getWaitTime()
+    {
+      return waitTime;
+    }
+
+    /** Get the longest single wait for a connector. */
+    public long getMaxWaitTime()
+    {
+      return maxWaitTime;
+    }
+
+    /** Get the number of unused connector instances in the pool. */
+    public int getPooled()
+    {
+      return pooled;
+    }
+
+    /** Get the number of connectors that may still be handed out. */
+    public int getFree()
+    {
+      return free;
+    }
+
+    /** Get the number of connectors this process may hand out at one time. */
+    public int getLocalMax()
+    {
+      return localMax;
+    }
+
+    /** Get the cluster-wide maximum for the connection. */
+    public int getGlobalMax()
+    {
+      return globalMax;
+    }
+
+    /** Get the target chosen by the last cross-cluster negotiation. */
+    public int getTarget()
+    {
+      return target;
+    }
+
+    /** Get the number of services that took part in the last negotiation. */
+    public int getNumServices()
+    {
+      return numServices;
+    }
+
+    /** Get the number of cross-cluster negotiations. */
+    public long getNegotiations()
+    {
+      return negotiations;
+    }
+
+    /** Get the total time spent negotiating, including waiting for the target calculation lock. */
+    public long getNegotiationTime()
+    {
+      return negotiationTime;
+    }
+  }
+
   protected static class SumClass implements IServiceDataAcceptor
   {
     protected final String serviceName;
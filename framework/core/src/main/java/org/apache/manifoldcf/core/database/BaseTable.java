@@ -173,6 +173,51 @@ public class BaseTable
     dbInterface.performDrop(tableName,invalidateKeys);
   }
 
+  /** Perform a partitioned table creation operation.
+  *@param columnMap is the map describing the columns and types, as for performCreate.
+  *@param partitionColumn is the name of the column to partition on.
+  *@param hashPartitionCount is the number of hash partitions, or zero for list partitioning.
+  *@param invalidateKeys are the cache keys that should be invalidated, if any.
+  */
+  protected void performCreatePartitioned(Map columnMap, String partitionColumn, int hashPartitionCount,
+    StringSet invalidateKeys)
+    throws ManifoldCFException
+  {
+    dbInterface.performCreatePartitioned(tableName,columnMap,partitionColumn,hashPartitionCount,invalidateKeys);
+  }
+
+  /** Add a partition to this table, which must be list partitioned.
+  *@param partitionName is the name of the new partition.
+  *@param value is the partition column value.
+  *@param invalidateKeys are the cache keys that should be invalidated, if any.
+  */
+  protected void performAddPartition(String partitionName, Object value, StringSet invalidateKeys)
+    throws ManifoldCFException
+  {
+    dbInterface.performAddPartition(tableName,partitionName,value,invalidateKeys);
+  }
+
+  /** Drop a partition of this table.
+  *@param partitionName is the name of the partition.
+  *@param invalidateKeys are the cache keys that should be invalidated, if any.
+  */
+  protected void performDropPartition(String partitionName, StringSet invalidateKeys)
+    throws ManifoldCFException
+  {
+    dbInterface.performDropPartition(tableName,partitionName,invalidateKeys);
+  }
+
+  /** Get this table's partitions.
+  *@param invalidateKeys are the keys against which to cache the query, or null.
+  *@param queryClass is the name of the query class, or null.
+  *@return the partition names, or null if the table is not partitioned.
+  */
+  protected List<String> getTablePartitions(StringSet invalidateKeys, String queryClass)
+    throws ManifoldCFException
+  {
+    return dbInterface.getTablePartitions(tableName,invalidateKeys,queryClass);
+  }
+
   /** Get the current table schema.
   *@param invalidateKeys are the cache keys, if needed (null if no cache desired).
   *@param queryClass is the LRU class name against which this query would be cached,
@@ -236,6 +281,18 @@ public class BaseTable
     return dbInterface.performQuery(query,params,cacheKeys,queryClass,resultLimit,null);
   }
 
+  /** Perform a general "data fetch" query, reading the rows a batch at a time through a database cursor.
+  *@param query is the query string.
+  *@param params are the parameterized values, if needed.
+  *@param fetchSize is the number of rows to read from the database at a time.
+  *@return the cursor, which must be closed.
+  */
+  protected IResultCursor performStreamingQuery(String query, List params, int fetchSize)
+    throws ManifoldCFException
+  {
+    return dbInterface.performStreamingQuery(query,params,null,fetchSize);
+  }
+
   /** Begin a database transaction.  This method call MUST be paired with an endTransaction() call,
   * or database handles will be lost.  If the transaction should be rolled back, then signalRollback() should
   * be called before the transaction is ended.
@@ -0,0 +1,102 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.database;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import java.util.*;
+
+/** This class represents a result row as an array of values, indexed by a column layout that is shared by all
+* the rows of a result.  It costs one small array per row, rather than the hash map and map entries per row
+* that RRow needs, which matters for results with many rows.
+*/
+public class CompactRow implements IResultRow
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  protected final Columns columns;
+  protected final Object[] values;
+
+  /** Constructor.
+  *@param columns is the column layout, shared with the other rows of the result.
+  *@param values are the values, in layout order.
+  */
+  public CompactRow(Columns columns, Object[] values)
+  {
+    this.columns = columns;
+    this.values = values;
+  }
+
+  /** Obtain the number of columns in the row.
+  *@return the number of columns that row contains.
+  */
+  @Override
+  public int getColumnCount()
+  {
+    return columns.names.length;
+  }
+
+  /** Obtain the set of columns for a row.
+  @return an iterator that will list all the (String) column names stored in that row.
+  */
+  @Override
+  public Iterator<String> getColumns()
+  {
+    return Arrays.asList(columns.names).iterator();
+  }
+
+  /** Get the row value for a column.
+  *@param columnName is the name of the column.
+  *@return the value, or null if not present.
+  */
+  @Override
+  public Object getValue(String columnName)
+  {
+    Integer index = columns.indexes.get(columnName);
+    if (index == null)
+      return null;
+    return values[index.intValue()];
+  }
+
+  /** The column layout of a result.
+  */
+  public static class Columns
+  {
+    /** The distinct column names, in order of first appearance */
+    protected final String[] names;
+    /** The value index for each column name.  Where a name appears more than once, the last one wins, as it
+    * would if the values were put into a map in order. */
+    protected final Map<String,Integer> indexes;
+
+    /** Constructor.
+    *@param labels are the column names, in value order.
+    */
+    public Columns(String[] labels)
+    {
+      indexes = new HashMap<String,Integer>(labels.length * 2);
+      List<String> nameList = new ArrayList<String>(labels.length);
+      for (int i = 0; i < labels.length; i++)
+      {
+        if (indexes.put(labels[i],new Integer(i)) == null)
+          nameList.add(labels[i]);
+      }
+      names = nameList.toArray(new String[0]);
+    }
+  }
+
+}
@@ -653,6 +653,70 @@ public class DBInterfaceMySQL extends Database implements IDBInterface
     performModification("DROP TABLE "+tableName,null,invalidateKeys);
   }
 
+  /** Perform a table rename operation.  Partitions of the table, if any, are renamed along with it, so
+  * that their names continue to begin with the table name.
+  *@param tableName is the current name of the table.
+  *@param newTableName is the new name of the table.
+  *@param invalidateKeys are the cache keys that should be invalidated, if any.
+  */
+  @Override
+  public void performRename(String tableName, String newTableName, StringSet invalidateKeys)
+    throws ManifoldCFException
+  {
+    performModification("ALTER TABLE "+tableName+" RENAME TO "+newTableName,null,invalidateKeys);
+  }
+
+  /** Check whether this database supports declarative partitioning of a table by the value of a column.
+  *@return true if partitioning is supported.
+  */
+  @Override
+  public boolean supportsTablePartitioning()
+    throws ManifoldCFException
+  {
+    return false;
+  }
+
+  /** Perform a partitioned table creation operation.  Not supported by this database.
+  */
+  @Override
+  public void performCreatePartitioned(String tableName, Map<String,ColumnDescription> columnMap,
+    String partitionColumn, int hashPartitionCount, StringSet invalidateKeys)
+    throws ManifoldCFException
+  {
+    throw new ManifoldCFException("Table partitioning is not supported by this database");
+  }
+
+  /** Add a partition to a list partitioned table.  Not supported by this database.
+  */
+  @Override
+  public void performAddPartition(String tableName, String partitionName, Object value, StringSet invalidateKeys)
+    throws ManifoldCFException
+  {
+    throw new ManifoldCFException("Table partitioning is not supported by this database");
+  }
+
+  /** Drop a partition of a partitioned table.  Not supported by this database.
+  */
+  @Override
+  public void performDropPartition(String tableName, String partitionName, StringSet invalidateKeys)
+    throws ManifoldCFException
+  {
+    throw new ManifoldCFException("Table partitioning is not supported by this database");
+  }
+
+  /** Get a table's partitions.
+  *@param tableName is the name of the table.
+  *@param cacheKeys are the keys against which to cache the query, or null.
+  *@param queryClass is the name of the query class, or null.
+  *@return null, since no table is ever partitioned in this database.
+  */
+  @Override
+  public List<String> getTablePartitions(String tableName, StringSet cacheKeys, String queryClass)
+    throws ManifoldCFException
+  {
+    return null;
+  }
+
   /** Create user and database.
   *@param adminUserName is the admin user name.
   *@param adminPassword is the admin password.
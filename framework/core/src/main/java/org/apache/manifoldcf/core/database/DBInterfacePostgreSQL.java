@@ -73,6 +73,9 @@ public class DBInterfacePostgreSQL extends Database implements IDBInterface
   protected static final String statsReindexPrefix = "stats-reindex-";
   protected static final String statslockAnalyzePrefix = "statslock-analyze-";
   protected static final String statsAnalyzePrefix = "stats-analyze-";
+
+  /** Whether the server supports declarative partitioning; null until checked */
+  protected static volatile Boolean partitioningSupported = null;
   
 
   public DBInterfacePostgreSQL(IThreadContext tc, String databaseName, String userName, String password)
@@ -519,6 +522,191 @@ public class DBInterfacePostgreSQL extends Database implements IDBInterface
     performModification("DROP TABLE "+tableName,null,invalidateKeys);
   }
 
+  /** Perform a table rename operation.  Partitions of the table, if any, are renamed along with it, so
+  * that their names continue to begin with the table name.
+  *@param tableName is the current name of the table.
+  *@param newTableName is the new name of the table.
+  *@param invalidateKeys are the cache keys that should be invalidated, if any.
+  */
+  @Override
+  public void performRename(String tableName, String newTableName, StringSet invalidateKeys)
+    throws ManifoldCFException
+  {
+    List<String> partitions = getTablePartitions(tableName,null,null);
+    performModification("ALTER TABLE "+tableName+" RENAME TO "+newTableName,null,invalidateKeys);
+    // Primary key constraints are backed by an index, and index names must be unique across the schema.
+    // Rename the primary key too, or a new table with the old name could not have one.
+    List list = new ArrayList();
+    list.add(newTableName);
+    IResultSet set = performQuery("SELECT pg_constraint.conname AS conname FROM pg_catalog.pg_constraint "+
+      "INNER JOIN pg_catalog.pg_class ON (pg_constraint.conrelid=pg_class.oid) "+
+      "WHERE pg_class.relname=? AND pg_constraint.contype='p'",list,null,null);
+    if (set.getRowCount() > 0)
+    {
+      String constraintName = (String)set.getRow(0).getValue("conname");
+      String newConstraintName = newTableName+"_pkey";
+      if (!constraintName.equals(newConstraintName))
+        performModification("ALTER TABLE "+newTableName+" RENAME CONSTRAINT "+constraintName+" TO "+newConstraintName,null,null);
+    }
+    if (partitions != null)
+    {
+      for (String partitionName : partitions)
+      {
+        if (partitionName.startsWith(tableName+"_"))
+          performRename(partitionName,newTableName+partitionName.substring(tableName.length()),null);
+      }
+    }
+  }
+
+  /** Check whether this database supports declarative partitioning of a table by the value of a column.
+  *@return true if partitioning is supported.
+  */
+  @Override
+  public boolean supportsTablePartitioning()
+    throws ManifoldCFException
+  {
+    if (partitioningSupported == null)
+    {
+      IResultSet set = performQuery("SELECT current_setting('server_version_num') AS versionnum",null,null,null);
+      String versionNum = (String)set.getRow(0).getValue("versionnum");
+      // Default partitions, hash partitions, and primary keys on partitioned tables all arrived in 11.
+      partitioningSupported = new Boolean(Integer.parseInt(versionNum.trim()) >= 110000);
+    }
+    return partitioningSupported.booleanValue();
+  }
+
+  /** Perform a partitioned table creation operation.  The table is partitioned on the value of a single
+  * column, which also becomes part of the primary key.  If hashPartitionCount is zero, the table is list
+  * partitioned, with a default partition called tableName_default.  Otherwise, the table is hash
+  * partitioned into partitions called tableName_h0, tableName_h1, etc.
+  *@param tableName is the name of the table to create.
+  *@param columnMap is the map describing the columns and types, in the same form as for performCreate.
+  *@param partitionColumn is the name of the column to partition on.
+  *@param hashPartitionCount is the number of hash partitions, or zero for list partitioning.
+  *@param invalidateKeys are the cache keys that should be invalidated, if any.
+  */
+  @Override
+  public void performCreatePartitioned(String tableName, Map<String,ColumnDescription> columnMap,
+    String partitionColumn, int hashPartitionCount, StringSet invalidateKeys)
+    throws ManifoldCFException
+  {
+    StringBuilder queryBuffer = new StringBuilder("CREATE TABLE ");
+    queryBuffer.append(tableName);
+    queryBuffer.append('(');
+    List<String> primaryKey = new ArrayList<String>();
+    boolean first = true;
+    for (String columnName : columnMap.keySet())
+    {
+      ColumnDescription cd = columnMap.get(columnName);
+      if (!first)
+        queryBuffer.append(',');
+      else
+        first = false;
+      if (cd.getIsPrimaryKey())
+      {
+        // Moved to a table constraint below
+        primaryKey.add(columnName);
+        cd = new ColumnDescription(cd.getTypeString(),false,cd.getIsNull(),
+          cd.getReferenceTable(),cd.getReferenceColumn(),cd.getReferenceCascade());
+      }
+      appendDescription(queryBuffer,columnName,cd,false);
+    }
+    if (primaryKey.size() > 0)
+    {
+      // Unique constraints on a partitioned table must include the partition column
+      if (!primaryKey.contains(partitionColumn))
+        primaryKey.add(partitionColumn);
+      queryBuffer.append(",PRIMARY KEY (");
+      for (int i = 0; i < primaryKey.size(); i++)
+      {
+        if (i > 0)
+          queryBuffer.append(',');
+        queryBuffer.append(primaryKey.get(i));
+      }
+      queryBuffer.append(')');
+    }
+    queryBuffer.append(") PARTITION BY ");
+    queryBuffer.append((hashPartitionCount == 0)?"LIST":"HASH");
+    queryBuffer.append(" (").append(partitionColumn).append(')');
+
+    performModification(queryBuffer.toString(),null,invalidateKeys);
+
+    if (hashPartitionCount == 0)
+      performModification("CREATE TABLE "+tableName+"_default PARTITION OF "+tableName+" DEFAULT",null,invalidateKeys);
+    else
+    {
+      for (int i = 0; i < hashPartitionCount; i++)
+      {
+        performModification("CREATE TABLE "+tableName+"_h"+i+" PARTITION OF "+tableName+
+          " FOR VALUES WITH (MODULUS "+hashPartitionCount+", REMAINDER "+i+")",null,invalidateKeys);
+      }
+    }
+  }
+
+  /** Add a partition to a list partitioned table.  The partition will hold the rows that have the given
+  * value in the partition column.  There must not be any such rows in the table already.
+  *@param tableName is the name of the partitioned table.
+  *@param partitionName is the name of the new partition.
+  *@param value is the partition column value, which must be a Long or a String.
+  *@param invalidateKeys are the cache keys that should be invalidated, if any.
+  */
+  @Override
+  public void performAddPartition(String tableName, String partitionName, Object value, StringSet invalidateKeys)
+    throws ManifoldCFException
+  {
+    // Partition bounds cannot be parameterized, so the value has to be a literal.
+    String literal;
+    if (value instanceof Long)
+      literal = value.toString();
+    else if (value instanceof String)
+      literal = "'"+((String)value).replace("'","''")+"'";
+    else
+      throw new ManifoldCFException("Unsupported partition value: "+value);
+    performModification("CREATE TABLE "+partitionName+" PARTITION OF "+tableName+" FOR VALUES IN ("+literal+")",null,invalidateKeys);
+  }
+
+  /** Drop a partition of a partitioned table, and all the rows in it.
+  *@param tableName is the name of the partitioned table.
+  *@param partitionName is the name of the partition.
+  *@param invalidateKeys are the cache keys that should be invalidated, if any.
+  */
+  @Override
+  public void performDropPartition(String tableName, String partitionName, StringSet invalidateKeys)
+    throws ManifoldCFException
+  {
+    // Dropping a partition detaches it from its parent as well
+    performModification("DROP TABLE "+partitionName,null,invalidateKeys);
+  }
+
+  /** Get a table's partitions.
+  *@param tableName is the name of the table.
+  *@param cacheKeys are the keys against which to cache the query, or null.
+  *@param queryClass is the name of the query class, or null.
+  *@return the names of the partitions, or null if the table is not partitioned.
+  */
+  @Override
+  public List<String> getTablePartitions(String tableName, StringSet cacheKeys, String queryClass)
+    throws ManifoldCFException
+  {
+    List list = new ArrayList();
+    list.add(tableName);
+    IResultSet set = performQuery("SELECT c.relname AS partitionname FROM pg_catalog.pg_class p "+
+      "INNER JOIN pg_catalog.pg_partitioned_table pt ON (pt.partrelid=p.oid) "+
+      "LEFT JOIN pg_catalog.pg_inherits i ON (i.inhparent=p.oid) "+
+      "LEFT JOIN pg_catalog.pg_class c ON (c.oid=i.inhrelid) "+
+      "WHERE p.relname=?",list,cacheKeys,queryClass);
+    if (set.getRowCount() == 0)
+      return null;
+    List<String> rval = new ArrayList<String>();
+    for (int i = 0; i < set.getRowCount(); i++)
+    {
+      String partitionName = (String)set.getRow(i).getValue("partitionname");
+      if (partitionName != null)
+        rval.add(partitionName);
+    }
+    return rval;
+  }
+
   /** Create user and database.
   *@param adminUserName is the admin user name.
   *@param adminPassword is the admin password.
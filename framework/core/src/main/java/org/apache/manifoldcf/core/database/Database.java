@@ -55,6 +55,8 @@ public abstract class Database
   protected final long maxQueryTime;
   protected final boolean debug;
   protected final int maxDBConnections;
+  protected final int statementCacheSize;
+  protected final QueryExecutor queryExecutor;
   
   protected static Random random = new Random();
 
@@ -73,6 +75,9 @@ public abstract class Database
     this.maxQueryTime = ((long)LockManagerFactory.getIntProperty(context, ManifoldCF.databaseQueryMaxTimeProperty,60)) * 1000L;
     this.debug = LockManagerFactory.getBooleanProperty(context, ManifoldCF.databaseConnectionTrackingProperty, false);
     this.maxDBConnections = LockManagerFactory.getIntProperty(context, ManifoldCF.databaseHandleMaxcountProperty, 50);
+    this.statementCacheSize = LockManagerFactory.getIntProperty(context, ManifoldCF.databaseStatementCacheSizeProperty, 100);
+    this.queryExecutor = QueryExecutor.getExecutor(LockManagerFactory.getStringProperty(context, ManifoldCF.databaseQueryExecutionProperty,
+      QueryExecutor.STRATEGY_POOL));
 
     this.cacheManager = CacheManagerFactory.make(context);
   }
@@ -266,7 +271,7 @@ public abstract class Database
     if (connection == null)
     {
       connection = ConnectionFactory.getConnection(jdbcUrl,jdbcDriverClass,databaseName,userName,password,
-        maxDBConnections,debug);
+        maxDBConnections,statementCacheSize,debug);
       try
       {
         // Initialize the connection (for HSQLDB)
@@ -658,28 +663,30 @@ public abstract class Database
     }
   }
   
-  /** Thread used to execute queries.  An instance of this thread is spun up every time a query is executed.  This is necessary because JDBC does not
-  * guarantee interruptability, and the Postgresql JDBC driver unfortunately eats all thread interrupts.  So, we fire up a thread to do each interaction with
-  * the database server, thus insuring that the owning thread remains interruptable and will therefore not block shutdown.
+  /** Task used to execute queries.  Each interaction with the database server is handed to the query executor as one of these.
+  * This is necessary because JDBC does not guarantee interruptability, and the Postgresql JDBC driver unfortunately eats all
+  * thread interrupts; the executor insures that the owning thread remains interruptable and will therefore not block shutdown.
   */
-  protected class ExecuteQueryThread extends Thread
+  protected class ExecuteQueryTask implements QueryExecutor.Task
   {
-    protected Connection connection;
-    protected String query;
-    protected List params;
-    protected boolean bResults;
-    protected int maxResults;
-    protected ResultSpecification spec;
-    protected ILimitChecker returnLimit;
+    protected final Connection connection;
+    protected final PreparedStatementCache statementCache;
+    protected final String query;
+    protected final List params;
+    protected final boolean bResults;
+    protected final int maxResults;
+    protected final ResultSpecification spec;
+    protected final ILimitChecker returnLimit;
     protected Throwable exception = null;
     protected IResultSet rval = null;
+    /** The statement currently executing, if any */
+    protected volatile Statement statement = null;
 
-    public ExecuteQueryThread(Connection connection, String query, List params, boolean bResults, int maxResults,
-      ResultSpecification spec, ILimitChecker returnLimit)
+    public ExecuteQueryTask(Connection connection, PreparedStatementCache statementCache, String query, List params,
+      boolean bResults, int maxResults, ResultSpecification spec, ILimitChecker returnLimit)
     {
-      super();
-      setDaemon(true);
       this.connection = connection;
+      this.statementCache = statementCache;
       this.query = query;
       this.params = params;
       this.bResults = bResults;
@@ -688,12 +695,13 @@ public abstract class Database
       this.returnLimit = returnLimit;
     }
 
+    @Override
     public void run()
     {
       try
       {
         // execute using the passed connection handle
-        rval = execute(connection,query,params,bResults,maxResults,spec,returnLimit);
+        rval = execute(connection,statementCache,this,query,params,bResults,maxResults,spec,returnLimit);
       }
       catch (Throwable e)
       {
@@ -701,10 +709,33 @@ public abstract class Database
       }
     }
 
+    /** Note the statement that is about to be executed, or null when it is done.
+    */
+    public void noteStatement(Statement statement)
+    {
+      this.statement = statement;
+    }
+
+    @Override
+    public void cancel()
+    {
+      Statement s = statement;
+      if (s != null)
+      {
+        try
+        {
+          s.cancel();
+        }
+        catch (SQLException e)
+        {
+          Logging.db.warn("Couldn't cancel statement: "+e.getMessage(),e);
+        }
+      }
+    }
+
     public IResultSet finishUp()
-      throws ManifoldCFException, InterruptedException
+      throws ManifoldCFException
     {
-      join();
       Throwable thr = exception;
       if (thr != null)
       {
@@ -725,30 +756,366 @@ public abstract class Database
     }
   }
 
-  /** Do query execution via a subthread, so the primary thread can be interrupted */
+  /** Do query execution via the query executor, so the primary thread can be interrupted */
   protected IResultSet executeViaThread(Connection connection, String query, List params, boolean bResults, int maxResults,
     ResultSpecification spec, ILimitChecker returnLimit)
     throws ManifoldCFException
+  {
+    return executeViaThread(connection,null,query,params,bResults,maxResults,spec,returnLimit);
+  }
+
+  /** Do query execution via the query executor, so the primary thread can be interrupted, using the connection's
+  * prepared statement cache if there is one.
+  */
+  protected IResultSet executeViaThread(Connection connection, PreparedStatementCache statementCache, String query, List params,
+    boolean bResults, int maxResults, ResultSpecification spec, ILimitChecker returnLimit)
+    throws ManifoldCFException
   {
     if (connection == null)
       // This probably means that the thread was interrupted and the connection was abandoned.  Just return null.
       return null;
 
-    ExecuteQueryThread t = new ExecuteQueryThread(connection,query,params,bResults,maxResults,spec,returnLimit);
+    ExecuteQueryTask t = new ExecuteQueryTask(connection,statementCache,query,params,bResults,maxResults,spec,returnLimit);
     try
     {
-      t.start();
-      return t.finishUp();
+      // The executor interrupts or cancels the task, if need be, before it throws InterruptedException
+      queryExecutor.execute(t);
     }
     catch (InterruptedException e)
     {
-      // Try to kill the background thread - but we can't wait for it...
-      t.interrupt();
       interruptCleanup(connection);
       // We need the caller to abandon any connections left around, so rethrow in a way that forces them to process the event properly.
       throw new ManifoldCFException(e.getMessage(),e,ManifoldCFException.INTERRUPTED);
     }
+    return t.finishUp();
+  }
+
+  /** Perform a general "data fetch" query, reading the rows a batch at a time through a database cursor rather than
+  * all at once.  There is no caching.  Use this for queries that may return many rows, which the caller only needs
+  * to read once.  Inside a transaction, the cursor uses the transaction's connection, and must be closed before the
+  * transaction ends.  Outside of one, the cursor takes a second connection from the pool and holds it until it is
+  * closed, while any other query the caller issues meanwhile takes another.  Many threads doing that can run dry a
+  * pool sized close to the number of worker threads, so read the cursor to its end and close it before issuing other
+  * queries, and never hold two cursors open at once.
+  *@param query is the query string.
+  *@param params are the parameterized values, if needed.
+  *@param resultSpec is a result specification, or null for the standard treatment.
+  *@param fetchSize is the number of rows to read from the database at a time.
+  *@return the cursor, which must be closed.
+  */
+  public IResultCursor performStreamingQuery(String query, List params, ResultSpecification resultSpec, int fetchSize)
+    throws ManifoldCFException
+  {
+    if (commitDone)
+      throw new ManifoldCFException("Commit already done");
+    if (Logging.db.isDebugEnabled())
+      Logging.db.debug("Requested streaming query: [" + query + "]");
+
+    // Make sure any delayed transaction has actually begun, so we use its connection
+    synchronizeTransactions();
+
+    WrappedConnection cursorConnection = connection;
+    boolean ownsConnection = false;
+    if (cursorConnection == null)
+    {
+      cursorConnection = ConnectionFactory.getConnection(jdbcUrl,jdbcDriverClass,databaseName,userName,password,
+        maxDBConnections,statementCacheSize,debug);
+      ownsConnection = true;
+      try
+      {
+        // Initialize the connection (for HSQLDB)
+        initializeConnection(cursorConnection.getConnection());
+        // Some drivers (e.g. Postgresql) only honor the fetch size with autocommit off
+        cursorConnection.getConnection().setAutoCommit(false);
+      }
+      catch (ManifoldCFException e)
+      {
+        if (e.getErrorCode() != ManifoldCFException.INTERRUPTED)
+          ConnectionFactory.releaseConnection(cursorConnection);
+        throw e;
+      }
+      catch (SQLException e)
+      {
+        ConnectionFactory.releaseConnection(cursorConnection);
+        throw new ManifoldCFException("SQLException setting up cursor: "+e.getMessage(),e,ManifoldCFException.DATABASE_CONNECTION_ERROR);
+      }
+    }
 
+    StreamingCursor cursor = new StreamingCursor(cursorConnection,ownsConnection,query,params,resultSpec,fetchSize);
+    boolean opened = false;
+    try
+    {
+      cursor.open();
+      opened = true;
+      return cursor;
+    }
+    finally
+    {
+      if (!opened)
+        cursor.close();
+    }
+  }
+
+  /** Reinterpret an exception tossed by the database layer.  The default is to leave it alone; database
+  * implementations override this to disambiguate the various kinds of exception that should be thrown.
+  *@param theException is the exception to reinterpret
+  *@return the reinterpreted exception to throw.
+  */
+  protected ManifoldCFException reinterpretException(ManifoldCFException theException)
+  {
+    return theException;
+  }
+
+  /** A cursor over the result of a streaming query.  Each batch of rows is read by a task on the query executor,
+  * so the reading thread stays interruptable, just as for any other query.
+  */
+  protected class StreamingCursor implements IResultCursor
+  {
+    protected final static int STEP_OPEN = 0;
+    protected final static int STEP_FETCH = 1;
+
+    protected WrappedConnection cursorConnection;
+    protected final boolean ownsConnection;
+    protected final String query;
+    protected final List params;
+    protected final ResultSpecification spec;
+    protected final int fetchSize;
+
+    protected volatile PreparedStatement ps = null;
+    protected ResultSet rs = null;
+    protected ResultSetMetaData rsmd = null;
+    protected String[] resultCols = null;
+    protected int[] colnums = null;
+    protected CompactRow.Columns columns = null;
+
+    /** The current batch of rows */
+    protected final List<IResultRow> buffer = new ArrayList<IResultRow>();
+    protected int bufferPosition = 0;
+    protected boolean exhausted = false;
+    protected boolean closed = false;
+
+    public StreamingCursor(WrappedConnection cursorConnection, boolean ownsConnection, String query, List params,
+      ResultSpecification spec, int fetchSize)
+    {
+      this.cursorConnection = cursorConnection;
+      this.ownsConnection = ownsConnection;
+      this.query = query;
+      this.params = params;
+      this.spec = spec;
+      this.fetchSize = (fetchSize < 1)?1:fetchSize;
+    }
+
+    /** Execute the query.
+    */
+    public void open()
+      throws ManifoldCFException
+    {
+      runStep(STEP_OPEN);
+    }
+
+    /** Get the next row.
+    *@return the immutable row description, or null if there are no more rows.
+    */
+    @Override
+    public IResultRow getNextRow()
+      throws ManifoldCFException
+    {
+      if (closed)
+        throw new ManifoldCFException("Cursor already closed");
+      while (bufferPosition == buffer.size())
+      {
+        if (exhausted)
+          return null;
+        runStep(STEP_FETCH);
+      }
+      IResultRow rval = buffer.get(bufferPosition);
+      // Don't hold on to rows the caller is done with
+      buffer.set(bufferPosition++,null);
+      return rval;
+    }
+
+    /** Close the cursor, releasing the database resources it holds.
+    */
+    @Override
+    public void close()
+      throws ManifoldCFException
+    {
+      if (closed)
+        return;
+      closed = true;
+      buffer.clear();
+      if (cursorConnection == null)
+        // Abandoned after an interrupt
+        return;
+      try
+      {
+        if (rs != null)
+          rs.close();
+        if (ps != null)
+          ps.close();
+      }
+      catch (SQLException e)
+      {
+        Logging.db.warn("Error closing cursor: "+e.getMessage(),e);
+      }
+      if (ownsConnection)
+      {
+        try
+        {
+          // Nothing was modified, so just end the transaction the cursor was reading in
+          cursorConnection.getConnection().rollback();
+          cursorConnection.getConnection().setAutoCommit(true);
+        }
+        catch (SQLException e)
+        {
+          Logging.db.warn("Error ending cursor transaction: "+e.getMessage(),e);
+        }
+        ConnectionFactory.releaseConnection(cursorConnection);
+      }
+      cursorConnection = null;
+    }
+
+    /** Run a step on the query executor.
+    */
+    protected void runStep(int step)
+      throws ManifoldCFException
+    {
+      if (cursorConnection == null)
+        throw new ManifoldCFException("Cursor connection was abandoned");
+      CursorTask task = new CursorTask(step);
+      try
+      {
+        queryExecutor.execute(task);
+      }
+      catch (InterruptedException e)
+      {
+        Connection c = cursorConnection.getConnection();
+        // Drop the connection object on the floor, so it cannot possibly be reused
+        cursorConnection = null;
+        if (!ownsConnection)
+          connection = null;
+        interruptCleanup(c);
+        throw new ManifoldCFException(e.getMessage(),e,ManifoldCFException.INTERRUPTED);
+      }
+      Throwable thr = task.exception;
+      if (thr != null)
+      {
+        if (thr instanceof ManifoldCFException)
+          throw reinterpretException((ManifoldCFException)thr);
+        if (thr instanceof java.sql.SQLException)
+        {
+          java.sql.SQLException e = (java.sql.SQLException)thr;
+          throw reinterpretException(new ManifoldCFException("SQLException doing streaming query"+((e.getSQLState() != null)?" ("+e.getSQLState()+")":"")+": "+e.getMessage(),e,ManifoldCFException.DATABASE_CONNECTION_ERROR));
+        }
+        if (thr instanceof Error)
+          throw (Error)thr;
+        if (thr instanceof RuntimeException)
+          throw (RuntimeException)thr;
+        throw new RuntimeException("Unknown exception: "+thr.getClass().getName()+": "+thr.getMessage(),thr);
+      }
+    }
+
+    /** Prepare and execute the statement.  Runs on the query executor.
+    */
+    protected void doOpen()
+      throws ManifoldCFException, SQLException
+    {
+      if (Logging.db.isDebugEnabled())
+        Logging.db.debug("Actual streaming query: [" + query + "]");
+      Connection c = cursorConnection.getConnection();
+      try
+      {
+        // Statements are not taken from the statement cache, because this one stays open while the caller
+        // may run other queries on the same connection
+        ps = c.prepareStatement(query);
+        ps.setFetchSize(fetchSize);
+        loadPS(ps,params);
+        rs = ps.executeQuery();
+      }
+      finally
+      {
+        if (params != null)
+          cleanupParameters(params);
+      }
+      rsmd = rs.getMetaData();
+      int colcount = rsmd.getColumnCount();
+      if (colcount == 0)
+        throw new ManifoldCFException("Empty query, no columns returned",ManifoldCFException.GENERAL_ERROR);
+      resultCols = new String[colcount];
+      String[] resultLabels = new String[colcount];
+      for (int i = 0; i < colcount; i++)
+      {
+        String labelName = rsmd.getColumnLabel(i+1);
+        resultCols[i] = mapLookupName(rsmd.getColumnName(i+1),labelName);
+        resultLabels[i] = mapLabelName(labelName);
+      }
+      columns = new CompactRow.Columns(resultLabels);
+      colnums = findColumns(rs,resultCols);
+    }
+
+    /** Read the next batch of rows.  Runs on the query executor.
+    */
+    protected void doFetch()
+      throws ManifoldCFException, SQLException
+    {
+      buffer.clear();
+      bufferPosition = 0;
+      while (buffer.size() < fetchSize)
+      {
+        if (!rs.next())
+        {
+          exhausted = true;
+          break;
+        }
+        buffer.add(readRow(rs,rsmd,resultCols,colnums,columns,spec));
+      }
+    }
+
+    /** One step of the cursor, as handed to the query executor.
+    */
+    protected class CursorTask implements QueryExecutor.Task
+    {
+      protected final int step;
+      protected Throwable exception = null;
+
+      public CursorTask(int step)
+      {
+        this.step = step;
+      }
+
+      @Override
+      public void run()
+      {
+        try
+        {
+          if (step == STEP_OPEN)
+            doOpen();
+          else
+            doFetch();
+        }
+        catch (Throwable e)
+        {
+          exception = e;
+        }
+      }
+
+      @Override
+      public void cancel()
+      {
+        PreparedStatement s = ps;
+        if (s != null)
+        {
+          try
+          {
+            s.cancel();
+          }
+          catch (SQLException e)
+          {
+            Logging.db.warn("Couldn't cancel statement: "+e.getMessage(),e);
+          }
+        }
+      }
+    }
   }
 
   /** This method must clean up after a execute query thread has been forcibly interrupted.
@@ -781,7 +1148,7 @@ public abstract class Database
     {
       try
       {
-        return executeViaThread(connection.getConnection(),query,params,bResults,maxResults,spec,returnLimit);
+        return executeViaThread(connection.getConnection(),connection.getStatementCache(),query,params,bResults,maxResults,spec,returnLimit);
       }
       catch (ManifoldCFException e)
       {
@@ -795,12 +1162,12 @@ public abstract class Database
     {
       // Grab a connection
       WrappedConnection tempConnection = ConnectionFactory.getConnection(jdbcUrl,jdbcDriverClass,databaseName,userName,password,
-        maxDBConnections,debug);
+        maxDBConnections,statementCacheSize,debug);
       try
       {
         // Initialize the connection (for HSQLDB)
         initializeConnection(tempConnection.getConnection());
-        return executeViaThread(tempConnection.getConnection(),query,params,bResults,maxResults,spec,returnLimit);
+        return executeViaThread(tempConnection.getConnection(),tempConnection.getStatementCache(),query,params,bResults,maxResults,spec,returnLimit);
       }
       catch (ManifoldCFException e)
       {
@@ -841,6 +1208,21 @@ public abstract class Database
   protected IResultSet execute(Connection connection, String query, List params, boolean bResults, int maxResults,
     ResultSpecification spec, ILimitChecker returnLimit)
     throws ManifoldCFException
+  {
+    return execute(connection,null,null,query,params,bResults,maxResults,spec,returnLimit);
+  }
+
+  /** Run a query, reusing a cached prepared statement if possible.  No result caching is involved at all at this level.
+  * @param statementCache is the prepared statement cache of the connection, or null.
+  * @param task is the task the query is being run for, which is told about each statement so that it can be cancelled, or null.
+  * @param query String the query string
+  * @param bResults boolean whether to load the resultset or not
+  * @param maxResults is the maximum number of results to load: -1 if all
+  * @param params List if params !=null, use preparedStatement
+  */
+  protected IResultSet execute(Connection connection, PreparedStatementCache statementCache, ExecuteQueryTask task,
+    String query, List params, boolean bResults, int maxResults, ResultSpecification spec, ILimitChecker returnLimit)
+    throws ManifoldCFException
   {
     IResultSet rval = null;
     try
@@ -871,6 +1253,8 @@ public abstract class Database
           //                                                                      ResultSet.CONCUR_READ_ONLY);
           // lightest statement type
           Statement stmt = connection.createStatement();
+          if (task != null)
+            task.noteStatement(stmt);
           try
           {
             stmt.execute(query);
@@ -888,12 +1272,56 @@ public abstract class Database
           }
           finally
           {
+            if (task != null)
+              task.noteStatement(null);
             stmt.close();
           }
         }
+        else if (statementCache != null && PreparedStatementCache.isCacheable(query))
+        {
+          PreparedStatement ps = statementCache.getStatement(query);
+          if (task != null)
+            task.noteStatement(ps);
+          boolean reusable = false;
+          try
+          {
+            loadPS(ps, params);
+            if (bResults)
+            {
+              rs = ps.executeQuery();
+              try
+              {
+                // Suck data from resultset
+                rval = getData(rs,true,maxResults,spec,returnLimit);
+              }
+              finally
+              {
+                if (rs != null)
+                  rs.close();
+              }
+            }
+            else
+            {
+              ps.executeUpdate();
+              rval = getData(null,false,0,spec,null);
+            }
+            reusable = true;
+          }
+          finally
+          {
+            if (task != null)
+              task.noteStatement(null);
+            if (reusable)
+              statementCache.returnStatement(query,ps);
+            else
+              statementCache.discardStatement(ps);
+          }
+        }
         else
         {
           PreparedStatement ps = connection.prepareStatement(query);
+          if (task != null)
+            task.noteStatement(ps);
           try
           {
             loadPS(ps, params);
@@ -919,6 +1347,8 @@ public abstract class Database
           }
           finally
           {
+            if (task != null)
+              task.noteStatement(null);
             ps.close();
           }
         }
@@ -937,6 +1367,9 @@ public abstract class Database
       // Cleanup of input parameters ALWAYS occurs, because whether we succeed or fail, we are done with any input streams.
       if (params != null)
         cleanupParameters(params);
+      if (PreparedStatementCache.isSchemaChange(query))
+        // Prepared statements everywhere may now refer to things that have changed
+        PreparedStatementCache.noteSchemaChange();
     }
     return rval;
   }
@@ -955,6 +1388,7 @@ public abstract class Database
           int colcount = 0;
           String[] resultCols = null;
           String[] resultLabels = null;
+          CompactRow.Columns columns = null;
 
           // Optionally we're going to suck the data
           // out of the db and return it in a
@@ -974,6 +1408,7 @@ public abstract class Database
               resultCols[i] = mapLookupName(rsmd.getColumnName(i+1),labelName);
               resultLabels[i] = mapLabelName(labelName);
             }
+            columns = new CompactRow.Columns(resultLabels);
           }
 
           if (bResults)
@@ -985,25 +1420,12 @@ public abstract class Database
               throw new ManifoldCFException("Empty query, no columns returned",ManifoldCFException.GENERAL_ERROR);
             }
 
+            // The column positions are the same for every row, so look them up once
+            int[] colnums = findColumns(rs,resultCols);
+
             while (rs.next() && (maxResults == -1 || maxResults > 0) && (returnLimit == null || returnLimit.checkContinue()))
             {
-              Object value;
-              RRow m = new RRow();
-
-              // We have 'colcount' cols to look thru
-              for (int i = 0; i < colcount; i++)
-              {
-                String key = resultCols[i];
-                // System.out.println("Key = "+key);
-                int colnum = findColumn(rs,key);
-                value = null;
-                if (colnum > -1)
-                {
-                  value = getObject(rs,rsmd,colnum,(spec == null)?ResultSpecification.FORM_DEFAULT:spec.getForm(key.toLowerCase(Locale.ROOT)));
-                }
-                //System.out.println(" Key = '"+resultLabels[i]+"', value = "+((value==null)?"NULL":value.toString()));
-                m.put(resultLabels[i], value);
-              }
+              IResultRow m = readRow(rs,rsmd,resultCols,colnums,columns,spec);
 
               // See if we should include this row
               boolean include = true;
@@ -1067,6 +1489,48 @@ public abstract class Database
     return results;
   }
 
+  /** Find the resultset positions of a set of columns.
+  *@param rs is the resultset.
+  *@param resultCols are the column lookup names.
+  *@return the positions, or -1 for columns that can't be found.
+  */
+  protected int[] findColumns(ResultSet rs, String[] resultCols)
+    throws ManifoldCFException
+  {
+    int[] colnums = new int[resultCols.length];
+    for (int i = 0; i < resultCols.length; i++)
+    {
+      colnums[i] = findColumn(rs,resultCols[i]);
+    }
+    return colnums;
+  }
+
+  /** Read the current row of a resultset.
+  *@param rs is the resultset, positioned on the row.
+  *@param rsmd is the resultset metadata.
+  *@param resultCols are the column lookup names.
+  *@param colnums are the corresponding column positions.
+  *@param columns is the column layout of the rows being built.
+  *@param spec is the result specification, or null.
+  *@return the row.
+  */
+  protected IResultRow readRow(ResultSet rs, ResultSetMetaData rsmd, String[] resultCols, int[] colnums,
+    CompactRow.Columns columns, ResultSpecification spec)
+    throws ManifoldCFException
+  {
+    Object[] values = new Object[resultCols.length];
+    // We have 'colcount' cols to look thru
+    for (int i = 0; i < resultCols.length; i++)
+    {
+      String key = resultCols[i];
+      if (colnums[i] > -1)
+      {
+        values[i] = getObject(rs,rsmd,colnums[i],(spec == null)?ResultSpecification.FORM_DEFAULT:spec.getForm(key.toLowerCase(Locale.ROOT)));
+      }
+    }
+    return new CompactRow(columns,values);
+  }
+
   // pass params to preparedStatement
   protected static void loadPS(PreparedStatement ps, List data)
     throws java.sql.SQLException, ManifoldCFException
@@ -0,0 +1,174 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.database;
+
+import org.apache.manifoldcf.core.system.Logging;
+import java.util.*;
+
+/** This executor runs each task on the requesting thread, which avoids a thread hand-off per statement
+* entirely.  Because the driver may not notice a thread interrupt, a single watchdog thread polls the threads
+* that are currently executing; when it finds one that has been interrupted, it cancels the task's statement
+* (Statement.cancel()), which makes the driver give up.  execute() then throws InterruptedException, just as
+* the other executors do.  The statement is not cancelled while the task is between statements, so an interrupt
+* may take as long as the current local processing to be noticed.
+*/
+public class DirectQueryExecutor extends QueryExecutor
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  /** How often the watchdog looks for interrupted threads, in milliseconds */
+  protected static final long POLL_INTERVAL = 100L;
+
+  /** The executions in progress */
+  protected final Set<Execution> executions = new HashSet<Execution>();
+  /** The watchdog thread */
+  protected final WatchdogThread watchdog;
+
+  /** Constructor */
+  public DirectQueryExecutor()
+  {
+    watchdog = new WatchdogThread();
+    watchdog.start();
+  }
+
+  @Override
+  public void execute(Task task)
+    throws InterruptedException
+  {
+    if (Thread.interrupted())
+      throw new InterruptedException("Interrupted before query");
+    Execution execution = new Execution(Thread.currentThread(),task);
+    synchronized (executions)
+    {
+      executions.add(execution);
+      executions.notifyAll();
+    }
+    try
+    {
+      task.run();
+    }
+    finally
+    {
+      synchronized (executions)
+      {
+        executions.remove(execution);
+      }
+    }
+    // Once the execution is deregistered, the watchdog can no longer cancel it, so this check is final
+    if (execution.isCancelled() || Thread.interrupted())
+    {
+      // Clear the interrupt flag, as catching InterruptedException would have
+      Thread.interrupted();
+      throw new InterruptedException("Query cancelled due to interrupt");
+    }
+  }
+
+  /** Look for interrupted threads, and cancel their statements.
+  */
+  protected void checkExecutions()
+  {
+    List<Execution> toCancel = null;
+    synchronized (executions)
+    {
+      for (Execution execution : executions)
+      {
+        if (execution.thread.isInterrupted())
+        {
+          if (toCancel == null)
+            toCancel = new ArrayList<Execution>();
+          toCancel.add(execution);
+        }
+      }
+    }
+    if (toCancel != null)
+    {
+      for (Execution execution : toCancel)
+      {
+        execution.cancel();
+      }
+    }
+  }
+
+  /** A task being run, and the thread running it */
+  protected static class Execution
+  {
+    public final Thread thread;
+    public final Task task;
+    protected volatile boolean cancelled = false;
+
+    public Execution(Thread thread, Task task)
+    {
+      this.thread = thread;
+      this.task = task;
+    }
+
+    public void cancel()
+    {
+      if (cancelled)
+        return;
+      cancelled = true;
+      try
+      {
+        task.cancel();
+      }
+      catch (RuntimeException e)
+      {
+        Logging.db.warn("Error cancelling query: "+e.getMessage(),e);
+      }
+    }
+
+    public boolean isCancelled()
+    {
+      return cancelled;
+    }
+  }
+
+  /** The watchdog thread */
+  protected class WatchdogThread extends Thread
+  {
+    public WatchdogThread()
+    {
+      super();
+      setName("Database query watchdog");
+      setDaemon(true);
+    }
+
+    public void run()
+    {
+      try
+      {
+        while (true)
+        {
+          synchronized (executions)
+          {
+            while (executions.size() == 0)
+              executions.wait();
+          }
+          checkExecutions();
+          Thread.sleep(POLL_INTERVAL);
+        }
+      }
+      catch (InterruptedException e)
+      {
+        // Exit
+      }
+    }
+  }
+
+}
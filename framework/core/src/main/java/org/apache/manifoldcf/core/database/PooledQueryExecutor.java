@@ -0,0 +1,88 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.database;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** This executor runs each task on a thread borrowed from a pool, so that a thread is not created for every
+* statement.  The pool grows as needed, and threads that have been idle for a minute go away.  If the requesting
+* thread is interrupted, the pool thread running its task is interrupted and the task abandoned, exactly as with
+* a thread per query; a pool thread stuck in the driver is simply not available for reuse until it comes back.
+*/
+public class PooledQueryExecutor extends QueryExecutor
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  /** How long an idle pool thread lives, in milliseconds */
+  protected static final long IDLE_TIMEOUT = 60000L;
+
+  protected final ThreadPoolExecutor pool;
+
+  /** Constructor */
+  public PooledQueryExecutor()
+  {
+    pool = new ThreadPoolExecutor(0,Integer.MAX_VALUE,IDLE_TIMEOUT,TimeUnit.MILLISECONDS,
+      new SynchronousQueue<Runnable>(),new QueryThreadFactory());
+  }
+
+  @Override
+  public void execute(Task task)
+    throws InterruptedException
+  {
+    Future<?> future = pool.submit(task);
+    try
+    {
+      future.get();
+    }
+    catch (InterruptedException e)
+    {
+      // Interrupt the pool thread - but we can't wait for it...
+      future.cancel(true);
+      throw e;
+    }
+    catch (ExecutionException e)
+    {
+      // Tasks catch everything they throw, so this is unexpected
+      Throwable cause = e.getCause();
+      if (cause instanceof Error)
+        throw (Error)cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException)cause;
+      throw new RuntimeException("Unexpected exception running query: "+cause.getMessage(),cause);
+    }
+  }
+
+  /** Thread factory for the pool.  Query threads are daemon threads, so they never block JVM exit.
+  */
+  protected static class QueryThreadFactory implements ThreadFactory
+  {
+    protected final AtomicInteger threadCount = new AtomicInteger(0);
+
+    @Override
+    public Thread newThread(Runnable r)
+    {
+      Thread t = new Thread(r);
+      t.setName("Database query thread "+threadCount.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
+  }
+
+}
@@ -0,0 +1,95 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.database;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import java.util.*;
+
+/** A query executor decides which thread a database interaction runs on, and how that interaction is abandoned
+* when the thread that asked for it is interrupted.  JDBC does not guarantee interruptibility, and the Postgresql
+* JDBC driver eats thread interrupts, so the requesting thread must never block inside the driver in a way that
+* an interrupt cannot reach.
+*
+* Whatever the strategy, the contract is the same: execute() returns once the task has run to completion, or
+* throws InterruptedException if the requesting thread was interrupted first.  In the latter case the task may
+* still be running, or may have been cancelled, and the caller must abandon the connection the task was using.
+*
+* Executors are shared by all database instances in the JVM.
+*/
+public abstract class QueryExecutor
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  /** Run each query on a thread of its own, created for the purpose */
+  public static final String STRATEGY_THREAD = "thread";
+  /** Run each query on a thread borrowed from a pool of reusable threads */
+  public static final String STRATEGY_POOL = "pool";
+  /** Run each query on a virtual thread of its own; requires Java 21 or later, and falls back to STRATEGY_THREAD otherwise */
+  public static final String STRATEGY_VIRTUAL = "virtual";
+  /** Run each query on the requesting thread, cancelling the statement if the requesting thread is interrupted */
+  public static final String STRATEGY_DIRECT = "direct";
+
+  /** The executors created so far, keyed by strategy */
+  protected static final Map<String,QueryExecutor> executors = new HashMap<String,QueryExecutor>();
+
+  /** Get the executor for a strategy.
+  *@param strategy is the strategy name, one of the STRATEGY_ constants.
+  *@return the executor.
+  */
+  public static QueryExecutor getExecutor(String strategy)
+    throws ManifoldCFException
+  {
+    synchronized (executors)
+    {
+      QueryExecutor rval = executors.get(strategy);
+      if (rval == null)
+      {
+        if (strategy.equals(STRATEGY_THREAD))
+          rval = new ThreadQueryExecutor(false);
+        else if (strategy.equals(STRATEGY_POOL))
+          rval = new PooledQueryExecutor();
+        else if (strategy.equals(STRATEGY_VIRTUAL))
+          rval = new ThreadQueryExecutor(true);
+        else if (strategy.equals(STRATEGY_DIRECT))
+          rval = new DirectQueryExecutor();
+        else
+          throw new ManifoldCFException("Unknown query execution strategy: '"+strategy+"'",ManifoldCFException.SETUP_ERROR);
+        executors.put(strategy,rval);
+      }
+      return rval;
+    }
+  }
+
+  /** Run a task.
+  *@param task is the task.  It is expected to catch everything it throws.
+  */
+  public abstract void execute(Task task)
+    throws InterruptedException;
+
+  /** A database interaction to be run by an executor.
+  */
+  public interface Task extends Runnable
+  {
+    /** Cancel the interaction from another thread, if it is blocked in the database.  This is called only by
+    * executors that run the task on the requesting thread.
+    */
+    public void cancel();
+  }
+
+}
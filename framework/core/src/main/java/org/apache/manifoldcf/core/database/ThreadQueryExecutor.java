@@ -0,0 +1,103 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.database;
+
+import org.apache.manifoldcf.core.system.Logging;
+import java.lang.reflect.*;
+
+/** This executor runs each task on a thread of its own, which is interrupted and abandoned if the requesting
+* thread is interrupted.  This is how queries have always been run.  Creating a platform thread for every
+* statement is not cheap, though; on Java 21 or later, virtual threads may be used instead, which cost little
+* more than the task object itself.
+*/
+public class ThreadQueryExecutor extends QueryExecutor
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  /** The Thread.startVirtualThread() method, or null if platform threads are to be used */
+  protected final Method startVirtualThread;
+
+  /** Constructor.
+  *@param virtual is true if virtual threads should be used, where the JVM supports them.
+  */
+  public ThreadQueryExecutor(boolean virtual)
+  {
+    Method method = null;
+    if (virtual)
+    {
+      try
+      {
+        method = Thread.class.getMethod("startVirtualThread",Runnable.class);
+      }
+      catch (NoSuchMethodException e)
+      {
+        Logging.db.warn("Virtual threads are not available in this JVM; running queries on platform threads instead");
+      }
+    }
+    this.startVirtualThread = method;
+  }
+
+  @Override
+  public void execute(Task task)
+    throws InterruptedException
+  {
+    Thread t = startThread(task);
+    try
+    {
+      t.join();
+    }
+    catch (InterruptedException e)
+    {
+      // Try to kill the background thread - but we can't wait for it...
+      t.interrupt();
+      throw e;
+    }
+  }
+
+  /** Start a thread running a task.
+  */
+  protected Thread startThread(Task task)
+  {
+    if (startVirtualThread != null)
+    {
+      try
+      {
+        return (Thread)startVirtualThread.invoke(null,task);
+      }
+      catch (IllegalAccessException e)
+      {
+        throw new RuntimeException("Can't start virtual thread: "+e.getMessage(),e);
+      }
+      catch (InvocationTargetException e)
+      {
+        Throwable cause = e.getTargetException();
+        if (cause instanceof RuntimeException)
+          throw (RuntimeException)cause;
+        if (cause instanceof Error)
+          throw (Error)cause;
+        throw new RuntimeException("Can't start virtual thread: "+cause.getMessage(),cause);
+      }
+    }
+    Thread t = new Thread(task);
+    t.setDaemon(true);
+    t.start();
+    return t;
+  }
+
+}
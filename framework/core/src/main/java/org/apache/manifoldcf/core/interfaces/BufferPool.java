@@ -0,0 +1,274 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.interfaces;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** This class is the process-wide pool of byte chunks that temporary document data is kept in.
+* Chunks come in size classes, which are powers of two from MIN_CHUNK_SIZE to MAX_CHUNK_SIZE, and
+* released chunks are kept for reuse, up to a limit per class.
+*
+* Chunks that hold document data are counted against a memory budget.  When a document would take the
+* budget past its limit, the document is spilled to a temporary file instead.  The budget and the largest
+* document kept in memory are set from properties when the environment is initialized.
+*
+* Data that is kept for a while, such as fetched documents waiting to be processed, can instead be held in
+* off-heap chunks of a single size.  These count against the same budget.  Released off-heap chunks are
+* always kept for reuse; since they are only allocated against the budget, there are never more of them than
+* the budget allows.
+*/
+public class BufferPool
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  /** The smallest chunk size */
+  public final static int MIN_CHUNK_SIZE = 4096;
+  /** The largest chunk size */
+  public final static int MAX_CHUNK_SIZE = 65536;
+  /** The size of off-heap chunks */
+  public final static int DIRECT_CHUNK_SIZE = 16384;
+  /** The number of bytes of released chunks kept, per size class */
+  protected final static long MAX_POOLED_BYTES_PER_CLASS = 4L * 1024L * 1024L;
+
+  /** The default memory budget, in bytes */
+  public final static long DEFAULT_MEMORY_BUDGET = 64L * 1024L * 1024L;
+  /** The default largest document kept in memory, in bytes */
+  public final static int DEFAULT_MAX_DOCUMENT_SIZE = 1024 * 1024;
+
+  /** The free chunks, by size class */
+  protected final static SizeClass[] sizeClasses;
+  static
+  {
+    List<SizeClass> classes = new ArrayList<SizeClass>();
+    for (int size = MIN_CHUNK_SIZE; size <= MAX_CHUNK_SIZE; size *= 2)
+    {
+      classes.add(new SizeClass(size));
+    }
+    sizeClasses = classes.toArray(new SizeClass[0]);
+  }
+
+  /** The free off-heap chunks */
+  protected final static Queue<ByteBuffer> freeDirectChunks = new ConcurrentLinkedQueue<ByteBuffer>();
+  /** The bytes of off-heap chunks allocated so far */
+  protected final static AtomicLong directMemoryAllocated = new AtomicLong(0L);
+
+  /** The memory budget, in bytes */
+  protected static volatile long memoryBudget = DEFAULT_MEMORY_BUDGET;
+  /** The largest document kept in memory, in bytes */
+  protected static volatile int maxDocumentSize = DEFAULT_MAX_DOCUMENT_SIZE;
+  /** The bytes of chunks currently counted against the budget */
+  protected final static AtomicLong memoryInUse = new AtomicLong(0L);
+
+  // Statistics
+  protected final static AtomicLong poolHits = new AtomicLong(0L);
+  protected final static AtomicLong poolMisses = new AtomicLong(0L);
+  protected final static AtomicLong spills = new AtomicLong(0L);
+  protected final static AtomicLong tempFiles = new AtomicLong(0L);
+  protected final static AtomicLong tempFileBytes = new AtomicLong(0L);
+
+  private BufferPool()
+  {
+  }
+
+  /** Set the memory budget and the largest document kept in memory.
+  *@param budget is the most bytes of document data kept in memory by this process; zero keeps nothing in memory.
+  *@param documentSize is the largest document, in bytes, kept in memory.
+  */
+  public static void configure(long budget, int documentSize)
+  {
+    memoryBudget = budget;
+    maxDocumentSize = documentSize;
+  }
+
+  /** Get the largest document, in bytes, kept in memory.
+  */
+  public static int getMaxDocumentSize()
+  {
+    return maxDocumentSize;
+  }
+
+  /** Get the size of the chunk to use after the given number of bytes have been stored.
+  * Chunks double in size as a document grows, so a document wastes at most about half of what it holds.
+  */
+  public static int getNextChunkSize(long storedSoFar)
+  {
+    if (storedSoFar < MIN_CHUNK_SIZE)
+      return MIN_CHUNK_SIZE;
+    if (storedSoFar >= MAX_CHUNK_SIZE)
+      return MAX_CHUNK_SIZE;
+    return Integer.highestOneBit((int)storedSoFar);
+  }
+
+  /** Count a chunk size against the memory budget.
+  *@param size is the chunk size.
+  *@return true if the budget allowed it; false if the data should go to a file instead.
+  */
+  public static boolean reserve(int size)
+  {
+    while (true)
+    {
+      long current = memoryInUse.get();
+      if (current + size > memoryBudget)
+        return false;
+      if (memoryInUse.compareAndSet(current,current + size))
+        return true;
+    }
+  }
+
+  /** Return a chunk size to the memory budget.
+  */
+  public static void unreserve(int size)
+  {
+    memoryInUse.addAndGet(-size);
+  }
+
+  /** Get a chunk of a given size class.
+  *@param size is the chunk size, which must be one of the size classes.
+  *@return the chunk, whose contents are undefined.
+  */
+  public static byte[] allocate(int size)
+  {
+    SizeClass sizeClass = findSizeClass(size);
+    byte[] rval = sizeClass.free.poll();
+    if (rval != null)
+    {
+      sizeClass.count.decrementAndGet();
+      poolHits.incrementAndGet();
+      return rval;
+    }
+    poolMisses.incrementAndGet();
+    return new byte[size];
+  }
+
+  /** Return a chunk to the pool.  The chunk must not be used afterwards.
+  */
+  public static void release(byte[] chunk)
+  {
+    SizeClass sizeClass = findSizeClass(chunk.length);
+    if ((long)sizeClass.count.incrementAndGet() * chunk.length <= MAX_POOLED_BYTES_PER_CLASS)
+      sizeClass.free.offer(chunk);
+    else
+      sizeClass.count.decrementAndGet();
+  }
+
+  /** Get an off-heap chunk of DIRECT_CHUNK_SIZE bytes.  The caller must have reserved the chunk size against
+  * the budget first.
+  *@return the chunk, cleared, with undefined contents.
+  */
+  public static ByteBuffer allocateDirect()
+  {
+    ByteBuffer rval = freeDirectChunks.poll();
+    if (rval != null)
+    {
+      poolHits.incrementAndGet();
+      rval.clear();
+      return rval;
+    }
+    poolMisses.incrementAndGet();
+    directMemoryAllocated.addAndGet(DIRECT_CHUNK_SIZE);
+    return ByteBuffer.allocateDirect(DIRECT_CHUNK_SIZE);
+  }
+
+  /** Return an off-heap chunk to the pool.  The chunk must not be used afterwards, and the caller is still
+  * responsible for returning its size to the budget.
+  */
+  public static void releaseDirect(ByteBuffer chunk)
+  {
+    freeDirectChunks.offer(chunk);
+  }
+
+  /** Note that a document was written to a temporary file.
+  *@param bytes is the size of the file.
+  *@param spilled is true if the document went to a file because the memory budget was exhausted.
+  */
+  public static void noteTempFile(long bytes, boolean spilled)
+  {
+    tempFiles.incrementAndGet();
+    tempFileBytes.addAndGet(bytes);
+    if (spilled)
+      spills.incrementAndGet();
+  }
+
+  /** Get the number of chunk requests satisfied from the pool. */
+  public static long getPoolHits()
+  {
+    return poolHits.get();
+  }
+
+  /** Get the number of chunk requests that allocated a new chunk. */
+  public static long getPoolMisses()
+  {
+    return poolMisses.get();
+  }
+
+  /** Get the number of documents that went to temporary files because the memory budget was exhausted. */
+  public static long getSpills()
+  {
+    return spills.get();
+  }
+
+  /** Get the number of temporary files written. */
+  public static long getTempFiles()
+  {
+    return tempFiles.get();
+  }
+
+  /** Get the number of bytes written to temporary files. */
+  public static long getTempFileBytes()
+  {
+    return tempFileBytes.get();
+  }
+
+  /** Get the number of bytes of document data currently held in memory. */
+  public static long getMemoryInUse()
+  {
+    return memoryInUse.get();
+  }
+
+  /** Get the number of bytes of off-heap chunks allocated, whether in use or pooled. */
+  public static long getDirectMemoryAllocated()
+  {
+    return directMemoryAllocated.get();
+  }
+
+  protected static SizeClass findSizeClass(int size)
+  {
+    int index = Integer.numberOfTrailingZeros(size) - Integer.numberOfTrailingZeros(MIN_CHUNK_SIZE);
+    if (Integer.bitCount(size) != 1 || index < 0 || index >= sizeClasses.length)
+      throw new IllegalArgumentException("Not a chunk size: "+size);
+    return sizeClasses[index];
+  }
+
+  /** The free chunks of one size */
+  protected static class SizeClass
+  {
+    public final int size;
+    public final Queue<byte[]> free = new ConcurrentLinkedQueue<byte[]>();
+    public final AtomicInteger count = new AtomicInteger(0);
+
+    public SizeClass(int size)
+    {
+      this.size = size;
+    }
+  }
+
+}
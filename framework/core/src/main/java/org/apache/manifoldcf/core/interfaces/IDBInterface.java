@@ -164,6 +164,65 @@ public interface IDBInterface
   public void performDrop(String tableName, StringSet invalidateKeys)
     throws ManifoldCFException;
 
+  /** Perform a table rename operation.  Partitions of the table, if any, are renamed along with it, so
+  * that their names continue to begin with the table name.
+  *@param tableName is the current name of the table.
+  *@param newTableName is the new name of the table.
+  *@param invalidateKeys are the cache keys that should be invalidated, if any.
+  */
+  public void performRename(String tableName, String newTableName, StringSet invalidateKeys)
+    throws ManifoldCFException;
+
+  /** Check whether this database supports declarative partitioning of a table by the value of a column.
+  * If it does not, none of the partition methods below may be called.
+  *@return true if partitioning is supported.
+  */
+  public boolean supportsTablePartitioning()
+    throws ManifoldCFException;
+
+  /** Perform a partitioned table creation operation.  The table is partitioned on the value of a single
+  * column, which also becomes part of the primary key.  If hashPartitionCount is zero, the table is list
+  * partitioned: partitions for individual values are added with performAddPartition(), and rows whose value
+  * has no partition go to a default partition called tableName_default.  Otherwise, the table is hash
+  * partitioned into the given number of partitions, called tableName_h0, tableName_h1, etc., which are all
+  * created here.
+  *@param tableName is the name of the table to create.
+  *@param columnMap is the map describing the columns and types, in the same form as for performCreate.
+  *@param partitionColumn is the name of the column to partition on.
+  *@param hashPartitionCount is the number of hash partitions, or zero for list partitioning.
+  *@param invalidateKeys are the cache keys that should be invalidated, if any.
+  */
+  public void performCreatePartitioned(String tableName, Map<String,ColumnDescription> columnMap,
+    String partitionColumn, int hashPartitionCount, StringSet invalidateKeys)
+    throws ManifoldCFException;
+
+  /** Add a partition to a list partitioned table.  The partition will hold the rows that have the given
+  * value in the partition column.  There must not be any such rows in the table already.
+  *@param tableName is the name of the partitioned table.
+  *@param partitionName is the name of the new partition.
+  *@param value is the partition column value, which must be a Long or a String.
+  *@param invalidateKeys are the cache keys that should be invalidated, if any.
+  */
+  public void performAddPartition(String tableName, String partitionName, Object value, StringSet invalidateKeys)
+    throws ManifoldCFException;
+
+  /** Drop a partition of a partitioned table, and all the rows in it.
+  *@param tableName is the name of the partitioned table.
+  *@param partitionName is the name of the partition.
+  *@param invalidateKeys are the cache keys that should be invalidated, if any.
+  */
+  public void performDropPartition(String tableName, String partitionName, StringSet invalidateKeys)
+    throws ManifoldCFException;
+
+  /** Get a table's partitions.
+  *@param tableName is the name of the table.
+  *@param cacheKeys are the keys against which to cache the query, or null.
+  *@param queryClass is the name of the query class, or null.
+  *@return the names of the partitions, or null if the table is not partitioned.
+  */
+  public List<String> getTablePartitions(String tableName, StringSet cacheKeys, String queryClass)
+    throws ManifoldCFException;
+
   /** Create user and database.
   *@param adminUserName is the admin user name.
   *@param adminPassword is the admin password.
@@ -254,6 +313,19 @@ public interface IDBInterface
     int maxResults, ResultSpecification resultSpec, ILimitChecker returnLimit)
     throws ManifoldCFException;
 
+  /** Perform a general "data fetch" query, reading the rows a batch at a time through a database cursor rather than
+  * all at once.  There is no caching.  Use this for queries that may return many rows, which the caller only needs
+  * to read once.  Inside a transaction, the cursor must be closed before the transaction ends.  Outside of one, the
+  * cursor holds a pooled connection of its own until it is closed, so close it before issuing other queries.
+  *@param query is the query string.
+  *@param params are the parameterized values, if needed.
+  *@param resultSpec is a result specification, or null for the standard treatment.
+  *@param fetchSize is the number of rows to read from the database at a time.
+  *@return the cursor, which must be closed.
+  */
+  public IResultCursor performStreamingQuery(String query, List params, ResultSpecification resultSpec, int fetchSize)
+    throws ManifoldCFException;
+
   /** Construct index hint clause.
   * On most databases this returns an empty string, but on MySQL this returns
   * a USE INDEX hint.  It requires the name of an index.
@@ -0,0 +1,41 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.interfaces;
+
+/** This interface represents a forward-only result, read a row at a time from a database cursor.  Unlike
+* IResultSet, the rows are not all held in memory at once, so it is the right choice for queries that may return
+* a great many rows which the caller only needs to look at once.
+*
+* A cursor holds database resources until it is closed, so it must always be closed, in a finally block.
+*/
+public interface IResultCursor
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  /** Get the next row.
+  *@return the immutable row description, or null if there are no more rows.
+  */
+  public IResultRow getNextRow()
+    throws ManifoldCFException;
+
+  /** Close the cursor, releasing the database resources it holds.  This may be called more than once.
+  */
+  public void close()
+    throws ManifoldCFException;
+}
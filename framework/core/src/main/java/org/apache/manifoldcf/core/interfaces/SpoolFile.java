@@ -0,0 +1,335 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.interfaces;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import org.apache.manifoldcf.core.system.ManifoldCF;
+
+/** This class is the process-wide spool file that data too large to keep in memory is appended to, instead of
+* each piece of data getting a temporary file of its own.  Data is written in extents; any number of threads
+* may write and read extents at the same time.
+*
+* The spool is a series of files.  Once the current file has grown past SEGMENT_SIZE, new extents go to a
+* new file, and the old one is deleted as soon as the last of its extents is released.  When every extent of
+* the current file has been released, writing starts again at the beginning of the file, so a steady load
+* keeps using one file.
+*
+* A thread interrupted during a read or write closes the file channel for every thread.  The thread that was
+* interrupted gets a ClosedByInterruptException; the segment opens its file again, and the other threads retry.
+*/
+public class SpoolFile
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  /** The size past which a new spool file is started */
+  public final static long SEGMENT_SIZE = 256L * 1024L * 1024L;
+
+  /** The current segment.  Guarded by lock. */
+  protected static Segment current = null;
+  /** All open segments.  Guarded by lock. */
+  protected final static Set<Segment> segments = new HashSet<Segment>();
+  protected final static Object lock = new Object();
+
+  // Statistics
+  protected final static AtomicLong bytesWritten = new AtomicLong(0L);
+  protected final static AtomicLong segmentsStarted = new AtomicLong(0L);
+
+  private SpoolFile()
+  {
+  }
+
+  /** Append data to the spool.
+  *@param data is the data to write, from its position to its limit.  Its position is moved to its limit.
+  *@return the extent, which must be released when it is no longer needed.
+  */
+  public static Extent write(ByteBuffer data)
+    throws IOException
+  {
+    int length = data.remaining();
+    Segment segment;
+    long position;
+    synchronized (lock)
+    {
+      if (current == null || current.size >= SEGMENT_SIZE)
+      {
+        Segment newSegment = new Segment();
+        if (current != null)
+        {
+          Segment old = current;
+          current = null;
+          if (old.liveExtents == 0)
+            old.close();
+        }
+        current = newSegment;
+        segments.add(newSegment);
+        segmentsStarted.incrementAndGet();
+      }
+      segment = current;
+      position = segment.size;
+      segment.size += length;
+      segment.liveExtents++;
+      segment.liveBytes += length;
+    }
+    Extent rval = new Extent(segment,position,length);
+    boolean succeeded = false;
+    try
+    {
+      // Positional writes to a file channel may go on at the same time as other reads and writes
+      long filePosition = position;
+      while (data.hasRemaining())
+      {
+        filePosition += transfer(segment,data,filePosition,true);
+      }
+      succeeded = true;
+    }
+    finally
+    {
+      if (!succeeded)
+        release(rval);
+    }
+    bytesWritten.addAndGet(length);
+    return rval;
+  }
+
+  /** Read from an extent.
+  *@param extent is the extent.
+  *@param offset is the offset within the extent to start reading at.
+  *@param buffer is the buffer to read into.
+  *@param bufferOffset is the offset in the buffer.
+  *@param len is the most bytes to read.
+  *@return the number of bytes read, or -1 if offset is at the end of the extent.
+  */
+  public static int read(Extent extent, long offset, byte[] buffer, int bufferOffset, int len)
+    throws IOException
+  {
+    long remaining = extent.length - offset;
+    if (remaining <= 0L)
+      return -1;
+    if (len > remaining)
+      len = (int)remaining;
+    ByteBuffer bb = ByteBuffer.wrap(buffer,bufferOffset,len);
+    while (bb.hasRemaining())
+    {
+      int amt = transfer(extent.segment,bb,extent.position + offset + bb.position() - bufferOffset,false);
+      if (amt == -1)
+        throw new EOFException("Spool file is shorter than expected");
+    }
+    return len;
+  }
+
+  /** Do one positional read or write on a segment's file channel, opening the file again if an interrupt of some
+  * other thread has closed the channel.
+  *@return the number of bytes transferred, or -1 at end of file.
+  */
+  protected static int transfer(Segment segment, ByteBuffer buffer, long position, boolean write)
+    throws IOException
+  {
+    while (true)
+    {
+      FileChannel channel = segment.getChannel();
+      try
+      {
+        if (write)
+          return channel.write(buffer,position);
+        return channel.read(buffer,position);
+      }
+      catch (ClosedByInterruptException e)
+      {
+        // This thread was interrupted
+        throw e;
+      }
+      catch (ClosedChannelException e)
+      {
+        // Another thread was interrupted, and closed the channel underneath this one
+      }
+    }
+  }
+
+  /** Release an extent.  Its data must not be read afterwards.
+  */
+  public static void release(Extent extent)
+  {
+    synchronized (lock)
+    {
+      Segment segment = extent.segment;
+      segment.liveExtents--;
+      segment.liveBytes -= extent.length;
+      if (segment.liveExtents == 0)
+      {
+        if (segment == current)
+          segment.size = 0L;
+        else
+          segment.close();
+      }
+    }
+  }
+
+  /** Get the number of bytes written to the spool. */
+  public static long getBytesWritten()
+  {
+    return bytesWritten.get();
+  }
+
+  /** Get the number of spool files started. */
+  public static long getSegmentsStarted()
+  {
+    return segmentsStarted.get();
+  }
+
+  /** Get the number of spool files open. */
+  public static int getSegmentCount()
+  {
+    synchronized (lock)
+    {
+      return segments.size();
+    }
+  }
+
+  /** Get the number of bytes in extents that have not been released. */
+  public static long getLiveBytes()
+  {
+    synchronized (lock)
+    {
+      long rval = 0L;
+      for (Segment segment : segments)
+      {
+        rval += segment.liveBytes;
+      }
+      return rval;
+    }
+  }
+
+  /** Get the number of bytes the spool files take on disk. */
+  public static long getFileBytes()
+  {
+    synchronized (lock)
+    {
+      long rval = 0L;
+      for (Segment segment : segments)
+      {
+        rval += segment.file.length();
+      }
+      return rval;
+    }
+  }
+
+  /** A piece of data in the spool */
+  public static class Extent
+  {
+    protected final Segment segment;
+    protected final long position;
+    protected final int length;
+
+    protected Extent(Segment segment, long position, int length)
+    {
+      this.segment = segment;
+      this.position = position;
+      this.length = length;
+    }
+
+    /** Get the length of the extent */
+    public int getLength()
+    {
+      return length;
+    }
+  }
+
+  /** One spool file */
+  protected static class Segment
+  {
+    protected final File file;
+    /** The open file.  Guarded by this. */
+    protected RandomAccessFile raf;
+    /** The channel of the open file.  Guarded by this. */
+    protected FileChannel channel;
+    /** Set once the file is deleted.  Guarded by this. */
+    protected boolean closed = false;
+    /** The write position.  Guarded by lock. */
+    protected long size = 0L;
+    /** The extents not yet released.  Guarded by lock. */
+    protected int liveExtents = 0;
+    /** The bytes in extents not yet released.  Guarded by lock. */
+    protected long liveBytes = 0L;
+
+    public Segment()
+      throws IOException
+    {
+      file = File.createTempFile("_MCspool_","");
+      // Register the file for deletion on shutdown, using our infrastructure
+      ManifoldCF.addFile(file);
+      try
+      {
+        raf = new RandomAccessFile(file,"rw");
+      }
+      catch (IOException e)
+      {
+        ManifoldCF.deleteFile(file);
+        throw e;
+      }
+      channel = raf.getChannel();
+    }
+
+    /** Get the file channel, opening the file again if the channel was closed by an interrupt.
+    */
+    public synchronized FileChannel getChannel()
+      throws IOException
+    {
+      if (closed)
+        throw new IOException("Spool file already deleted");
+      if (!channel.isOpen())
+      {
+        closeFile();
+        raf = new RandomAccessFile(file,"rw");
+        channel = raf.getChannel();
+      }
+      return channel;
+    }
+
+    /** Close and delete the file.  Call with lock held. */
+    public void close()
+    {
+      segments.remove(this);
+      synchronized (this)
+      {
+        closed = true;
+        closeFile();
+      }
+      ManifoldCF.deleteFile(file);
+    }
+
+    protected void closeFile()
+    {
+      try
+      {
+        raf.close();
+      }
+      catch (IOException e)
+      {
+        // Nothing to be done; the file is deleted or opened again regardless
+      }
+    }
+  }
+
+}
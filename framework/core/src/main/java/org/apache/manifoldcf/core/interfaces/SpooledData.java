@@ -0,0 +1,359 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.interfaces;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/** This class holds a piece of data that is written once and then read any number of times, such as a fetched
+* document that is kept between version checking and processing.  Data is kept in off-heap chunks from the
+* BufferPool while it is no larger than the pool's largest in-memory document and the memory budget allows, and
+* in the SpoolFile otherwise.
+*
+* Write the data with write(), then call finish().  Streams from getInputStream() stay readable until they are
+* closed, even if the data is discarded in the meantime.
+*/
+public class SpooledData
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  /** The size of spool extents */
+  protected final static int EXTENT_SIZE = BufferPool.MAX_CHUNK_SIZE;
+
+  /** Off-heap chunks, while the data is in memory */
+  protected List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+  /** Spool extents, once the data has gone to the spool */
+  protected List<SpoolFile.Extent> extents = null;
+  /** The chunk being filled before it goes to the spool */
+  protected byte[] spoolBuffer = null;
+  protected int spoolBufferFill = 0;
+  protected boolean spilledForBudget = false;
+  protected long length = 0L;
+  protected boolean finished = false;
+  /** The owner's reference and one per open stream.  Guarded by this. */
+  protected int references = 1;
+  protected boolean discarded = false;
+
+  // Statistics
+  protected final static AtomicLong inMemoryCount = new AtomicLong(0L);
+  protected final static AtomicLong spooledCount = new AtomicLong(0L);
+  protected final static AtomicLong budgetSpills = new AtomicLong(0L);
+
+  public SpooledData()
+  {
+  }
+
+  /** Add data.
+  *@param data is the buffer.
+  *@param offset is the offset of the data in the buffer.
+  *@param len is the number of bytes.
+  */
+  public void write(byte[] data, int offset, int len)
+    throws IOException
+  {
+    if (finished)
+      throw new IllegalStateException("Data already finished");
+    if (extents == null && length + len > BufferPool.getMaxDocumentSize())
+      startSpooling(false);
+    length += len;
+    while (len > 0)
+    {
+      if (extents == null)
+      {
+        ByteBuffer chunk = (chunks.size() == 0)?null:chunks.get(chunks.size()-1);
+        if (chunk == null || !chunk.hasRemaining())
+        {
+          if (!BufferPool.reserve(BufferPool.DIRECT_CHUNK_SIZE))
+          {
+            startSpooling(true);
+            continue;
+          }
+          chunk = BufferPool.allocateDirect();
+          chunks.add(chunk);
+        }
+        int amt = Math.min(len,chunk.remaining());
+        chunk.put(data,offset,amt);
+        offset += amt;
+        len -= amt;
+      }
+      else
+      {
+        int amt = Math.min(len,spoolBuffer.length - spoolBufferFill);
+        System.arraycopy(data,offset,spoolBuffer,spoolBufferFill,amt);
+        spoolBufferFill += amt;
+        offset += amt;
+        len -= amt;
+        if (spoolBufferFill == spoolBuffer.length)
+          flushSpoolBuffer();
+      }
+    }
+  }
+
+  /** Note that all the data has been written.
+  */
+  public void finish()
+    throws IOException
+  {
+    if (finished)
+      return;
+    if (extents != null)
+    {
+      flushSpoolBuffer();
+      BufferPool.release(spoolBuffer);
+      spoolBuffer = null;
+      spooledCount.incrementAndGet();
+      if (spilledForBudget)
+        budgetSpills.incrementAndGet();
+    }
+    else
+    {
+      for (ByteBuffer chunk : chunks)
+      {
+        chunk.flip();
+      }
+      inMemoryCount.incrementAndGet();
+    }
+    finished = true;
+  }
+
+  /** Get the length of the data. */
+  public long getLength()
+  {
+    return length;
+  }
+
+  /** Check whether the data went to the spool. */
+  public boolean isSpooled()
+  {
+    return extents != null;
+  }
+
+  /** Get a stream of the data.  The data must be finished.  Close the stream when done with it.
+  */
+  public InputStream getInputStream()
+    throws IOException
+  {
+    if (!finished)
+      throw new IllegalStateException("Data not finished");
+    synchronized (this)
+    {
+      if (discarded)
+        throw new IOException("Data already discarded");
+      references++;
+    }
+    if (extents != null)
+      return new ExtentInputStream();
+    return new ChunkInputStream();
+  }
+
+  /** Release the data.  Streams that are still open can still be read.
+  */
+  public void discard()
+  {
+    synchronized (this)
+    {
+      if (discarded)
+        return;
+      discarded = true;
+    }
+    dereference();
+  }
+
+  /** Get the number of pieces of data that were kept in memory. */
+  public static long getInMemoryCount()
+  {
+    return inMemoryCount.get();
+  }
+
+  /** Get the number of pieces of data that went to the spool. */
+  public static long getSpooledCount()
+  {
+    return spooledCount.get();
+  }
+
+  /** Get the number of pieces of data that went to the spool because the memory budget was exhausted. */
+  public static long getBudgetSpills()
+  {
+    return budgetSpills.get();
+  }
+
+  /** Move what is in memory to the spool, and send everything after it there too. */
+  protected void startSpooling(boolean forBudget)
+    throws IOException
+  {
+    spilledForBudget = forBudget;
+    extents = new ArrayList<SpoolFile.Extent>();
+    spoolBuffer = BufferPool.allocate(EXTENT_SIZE);
+    spoolBufferFill = 0;
+    try
+    {
+      for (ByteBuffer chunk : chunks)
+      {
+        chunk.flip();
+        extents.add(SpoolFile.write(chunk));
+      }
+    }
+    finally
+    {
+      releaseChunks();
+    }
+  }
+
+  protected void flushSpoolBuffer()
+    throws IOException
+  {
+    if (spoolBufferFill == 0)
+      return;
+    extents.add(SpoolFile.write(ByteBuffer.wrap(spoolBuffer,0,spoolBufferFill)));
+    spoolBufferFill = 0;
+  }
+
+  protected void releaseChunks()
+  {
+    for (ByteBuffer chunk : chunks)
+    {
+      BufferPool.unreserve(BufferPool.DIRECT_CHUNK_SIZE);
+      BufferPool.releaseDirect(chunk);
+    }
+    chunks.clear();
+  }
+
+  protected void dereference()
+  {
+    synchronized (this)
+    {
+      references--;
+      if (references > 0)
+        return;
+    }
+    releaseChunks();
+    if (extents != null)
+    {
+      for (SpoolFile.Extent extent : extents)
+      {
+        SpoolFile.release(extent);
+      }
+      extents.clear();
+    }
+    if (spoolBuffer != null)
+    {
+      BufferPool.release(spoolBuffer);
+      spoolBuffer = null;
+    }
+  }
+
+  /** Reads data held in off-heap chunks */
+  protected class ChunkInputStream extends InputStream
+  {
+    protected int chunkIndex = 0;
+    protected ByteBuffer current = null;
+    protected boolean closed = false;
+
+    @Override
+    public int read()
+      throws IOException
+    {
+      byte[] b = new byte[1];
+      if (read(b,0,1) == -1)
+        return -1;
+      return ((int)b[0]) & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+      throws IOException
+    {
+      if (closed)
+        throw new IOException("Stream closed");
+      if (len == 0)
+        return 0;
+      while (current == null || !current.hasRemaining())
+      {
+        if (chunkIndex == chunks.size())
+          return -1;
+        // Each stream reads through its own view of the shared chunks
+        current = chunks.get(chunkIndex++).duplicate();
+      }
+      int amt = Math.min(len,current.remaining());
+      current.get(b,off,amt);
+      return amt;
+    }
+
+    @Override
+    public void close()
+    {
+      if (closed)
+        return;
+      closed = true;
+      dereference();
+    }
+  }
+
+  /** Reads data held in the spool */
+  protected class ExtentInputStream extends InputStream
+  {
+    protected int extentIndex = 0;
+    protected long extentOffset = 0L;
+    protected boolean closed = false;
+
+    @Override
+    public int read()
+      throws IOException
+    {
+      byte[] b = new byte[1];
+      if (read(b,0,1) == -1)
+        return -1;
+      return ((int)b[0]) & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+      throws IOException
+    {
+      if (closed)
+        throw new IOException("Stream closed");
+      if (len == 0)
+        return 0;
+      while (extentIndex < extents.size())
+      {
+        int amt = SpoolFile.read(extents.get(extentIndex),extentOffset,b,off,len);
+        if (amt != -1)
+        {
+          extentOffset += amt;
+          return amt;
+        }
+        extentIndex++;
+        extentOffset = 0L;
+      }
+      return -1;
+    }
+
+    @Override
+    public void close()
+    {
+      if (closed)
+        return;
+      closed = true;
+      dereference();
+    }
+  }
+
+}
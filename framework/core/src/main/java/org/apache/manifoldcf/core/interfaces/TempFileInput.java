@@ -19,6 +19,7 @@
 package org.apache.manifoldcf.core.interfaces;
 
 import java.io.*;
+import java.util.*;
 import org.apache.manifoldcf.core.system.ManifoldCF;
 
 /** This class represents a temporary file data input
@@ -28,19 +29,22 @@ import org.apache.manifoldcf.core.system.ManifoldCF;
 * a file that has already been created by some means.  The
 * file must be a dedicated temporary file, which can be
 * destroyed when the data has been used.
+*
+* Data read from a stream is kept in chunks from the BufferPool while the pool's memory budget allows,
+* and goes to a temporary file otherwise.  The chunks are returned to the pool when the object is discarded.
 */
 public class TempFileInput extends BinaryInput
 {
   public static final String _rcsid = "@(#)$Id: TempFileInput.java 988245 2010-08-23 18:39:35Z kwright $";
 
   protected File file;
-  protected byte[] inMemoryBuffer;
+  protected byte[][] inMemoryChunks;
+  protected long inMemoryLength;
 
-  protected final static int CHUNK_SIZE = 65536;
-  protected final static int DEFAULT_MAX_MEM_SIZE = 8192;
+  protected final static int CHUNK_SIZE = BufferPool.MAX_CHUNK_SIZE;
 
   /** Construct from an input stream.
-  * This will also create a temporary, backing file.
+  * The data is kept in memory if the memory budget allows, or in a temporary, backing file otherwise.
   *@param is is the input stream to use to construct the temporary file.
   */
   public TempFileInput(InputStream is)
@@ -56,63 +60,82 @@ public class TempFileInput extends BinaryInput
   public TempFileInput(InputStream is, long length)
     throws ManifoldCFException, IOException
   {
-    this(is,length,DEFAULT_MAX_MEM_SIZE);
+    this(is,length,-1);
   }
   
   /** Construct from a length-delimited input stream.
   *@param is is the input stream.
   *@param length is the maximum number of bytes to transfer, or -1 if no limit.
-  *@param maxMemSize is the maximum bytes we keep in memory in lieu of using a file.
+  *@param maxMemSize is the maximum bytes we keep in memory in lieu of using a file, or -1 to use the
+  * buffer pool's largest in-memory document size.
   */
   public TempFileInput(InputStream is, long length, int maxMemSize)
     throws ManifoldCFException, IOException
   {
     super();
     
-    // Before we do anything else, we read the first chunk.  This will allow
-    // us to determine if we're going to buffer the data in memory or not.  However,
-    // it may need to be read in chunks, since there's no guarantee it will come in
-    // in the size requested.
-    int chunkSize = CHUNK_SIZE;
+    if (maxMemSize < 0)
+      maxMemSize = BufferPool.getMaxDocumentSize();
 
-    byte[] buffer = new byte[chunkSize];
-    int chunkTotal = 0;
+    // Read into pooled chunks for as long as the data is small enough and the memory budget allows.
+    List<byte[]> chunks = new ArrayList<byte[]>();
+    long chunkTotal = 0L;
     boolean eofSeen = false;
-    while (true)
+    boolean budgetExhausted = false;
+    try
     {
-      int chunkAmount;
-      if (length == -1L || length > chunkSize)
-        chunkAmount = chunkSize-chunkTotal;
-      else
-      {
-        chunkAmount = (int)(length-chunkTotal);
-        eofSeen = true;
-      }
-      if (chunkAmount == 0)
-        break;
-      int readsize = is.read(buffer,chunkTotal,chunkAmount);
-      if (readsize == -1)
+      while (true)
       {
-        eofSeen = true;
-        break;
+        if (length != -1L && chunkTotal >= length)
+        {
+          eofSeen = true;
+          break;
+        }
+        // Going past the limit by up to a chunk tells us whether there is more data
+        if (chunkTotal > maxMemSize)
+          break;
+        int chunkSize = BufferPool.getNextChunkSize(chunkTotal);
+        if (!BufferPool.reserve(chunkSize))
+        {
+          budgetExhausted = true;
+          break;
+        }
+        byte[] chunk = BufferPool.allocate(chunkSize);
+        chunks.add(chunk);
+        int fill = readChunk(is,chunk,(length == -1L)?-1L:length-chunkTotal);
+        chunkTotal += fill;
+        if (fill < chunk.length)
+        {
+          eofSeen = true;
+          break;
+        }
       }
-      chunkTotal += readsize;
+    }
+    catch (Throwable e)
+    {
+      releaseChunks(chunks);
+      if (e instanceof Error)
+        throw (Error)e;
+      if (e instanceof RuntimeException)
+        throw (RuntimeException)e;
+      if (e instanceof IOException)
+        throw (IOException)e;
+      throw new RuntimeException("Unexpected throwable of type "+e.getClass().getName()+": "+e.getMessage(),e);
     }
 
-    if (eofSeen && chunkTotal < maxMemSize)
+    if (eofSeen && chunkTotal <= maxMemSize)
     {
       // In memory!!
       file = null;
-      inMemoryBuffer = new byte[chunkTotal];
-      for (int i = 0; i < inMemoryBuffer.length; i++)
-      {
-        inMemoryBuffer[i] = buffer[i];
-      }
+      inMemoryChunks = chunks.toArray(new byte[0][]);
+      inMemoryLength = chunkTotal;
       this.length = chunkTotal;
+      return;
     }
-    else
+
+    inMemoryChunks = null;
+    try
     {
-      inMemoryBuffer = null;
       // Create a temporary file to put the stuff in
       File outfile;
       try
@@ -140,26 +163,32 @@ public class TempFileInput extends BinaryInput
           handleIOException(e,"opening backing file");
           outStream = null;
         }
+        byte[] buffer = BufferPool.allocate(CHUNK_SIZE);
         try
         {
           long totalMoved = 0;
             
-          //  Transfor what we've already read.
-          try
-          {
-            outStream.write(buffer,0,chunkTotal);
-          }
-          catch (IOException e)
+          //  Transfer what we've already read.
+          for (byte[] chunk : chunks)
           {
-            handleIOException(e,"writing backing file");
+            int amt = (int)Math.min((long)chunk.length,chunkTotal-totalMoved);
+            try
+            {
+              outStream.write(chunk,0,amt);
+            }
+            catch (IOException e)
+            {
+              handleIOException(e,"writing backing file");
+            }
+            totalMoved += amt;
           }
-          totalMoved += chunkTotal;
+          releaseChunks(chunks);
 
           while (true)
           {
             int moveAmount;
-            if (length == -1L || length-totalMoved > chunkSize)
-              moveAmount = chunkSize;
+            if (length == -1L || length-totalMoved > CHUNK_SIZE)
+              moveAmount = CHUNK_SIZE;
             else
               moveAmount = (int)(length-totalMoved);
             if (moveAmount == 0)
@@ -182,6 +211,7 @@ public class TempFileInput extends BinaryInput
         }
         finally
         {
+          BufferPool.release(buffer);
           try
           {
             outStream.close();
@@ -196,24 +226,62 @@ public class TempFileInput extends BinaryInput
         // Save the file name
         file = outfile;
         this.length = file.length();
-
+        BufferPool.noteTempFile(this.length,budgetExhausted);
       }
       catch (Throwable e)
       {
         // Delete the temp file we created on any error condition
         // outfile.delete();
         ManifoldCF.deleteFile(outfile);
-        if (e instanceof Error)
-          throw (Error)e;
-        if (e instanceof RuntimeException)
-          throw (RuntimeException)e;
-        if (e instanceof ManifoldCFException)
-          throw (ManifoldCFException)e;
-        if (e instanceof IOException)
-          throw (IOException)e;
-        throw new RuntimeException("Unexpected throwable of type "+e.getClass().getName()+": "+e.getMessage(),e);
+        throw e;
       }
     }
+    catch (Throwable e)
+    {
+      releaseChunks(chunks);
+      if (e instanceof Error)
+        throw (Error)e;
+      if (e instanceof RuntimeException)
+        throw (RuntimeException)e;
+      if (e instanceof ManifoldCFException)
+        throw (ManifoldCFException)e;
+      if (e instanceof IOException)
+        throw (IOException)e;
+      throw new RuntimeException("Unexpected throwable of type "+e.getClass().getName()+": "+e.getMessage(),e);
+    }
+  }
+
+  /** Fill a chunk from a stream.
+  *@param is is the stream.
+  *@param chunk is the chunk.
+  *@param remaining is the number of bytes left to transfer, or -1 if no limit.
+  *@return the number of bytes read, which is less than the chunk size only if the end of the data was reached.
+  */
+  protected static int readChunk(InputStream is, byte[] chunk, long remaining)
+    throws IOException
+  {
+    int amount = (remaining == -1L || remaining > chunk.length)?chunk.length:(int)remaining;
+    int fill = 0;
+    while (fill < amount)
+    {
+      int readsize = is.read(chunk,fill,amount-fill);
+      if (readsize == -1)
+        break;
+      fill += readsize;
+    }
+    return fill;
+  }
+
+  /** Return chunks to the buffer pool and their size to the memory budget.
+  */
+  protected static void releaseChunks(List<byte[]> chunks)
+  {
+    for (byte[] chunk : chunks)
+    {
+      BufferPool.unreserve(chunk.length);
+      BufferPool.release(chunk);
+    }
+    chunks.clear();
   }
 
   /** Construct from an existing temporary fle.
@@ -222,7 +290,7 @@ public class TempFileInput extends BinaryInput
   public TempFileInput(File tempFile)
   {
     super();
-    inMemoryBuffer = null;
+    inMemoryChunks = null;
     file = tempFile;
     ManifoldCF.addFile(file);
     // deleteOnExit() causes memory leakage; better to leak files on hard shutdown than memory.
@@ -239,11 +307,12 @@ public class TempFileInput extends BinaryInput
   {
     TempFileInput rval = new TempFileInput();
     rval.file = file;
-    rval.inMemoryBuffer = inMemoryBuffer;
+    rval.inMemoryChunks = inMemoryChunks;
+    rval.inMemoryLength = inMemoryLength;
     rval.stream = stream;
     rval.length = length;
     file = null;
-    inMemoryBuffer = null;
+    inMemoryChunks = null;
     stream = null;
     length = -1L;
     return rval;
@@ -258,6 +327,11 @@ public class TempFileInput extends BinaryInput
       ManifoldCF.deleteFile(file);
       file = null;
     }
+    if (inMemoryChunks != null)
+    {
+      releaseChunks(new ArrayList<byte[]>(Arrays.asList(inMemoryChunks)));
+      inMemoryChunks = null;
+    }
   }
 
   protected void openStream()
@@ -275,9 +349,9 @@ public class TempFileInput extends BinaryInput
         throw new ManifoldCFException("Can't create stream: "+e.getMessage(),e,ManifoldCFException.GENERAL_ERROR);
       }
     }
-    else if (inMemoryBuffer != null)
+    else if (inMemoryChunks != null)
     {
-      stream = new ByteArrayInputStream(inMemoryBuffer);
+      stream = new ChunkInputStream(inMemoryChunks,inMemoryLength);
     }
   }
 
@@ -286,8 +360,58 @@ public class TempFileInput extends BinaryInput
   {
     if (file != null)
       this.length = file.length();
-    else if (inMemoryBuffer != null)
-      this.length = inMemoryBuffer.length;
+    else if (inMemoryChunks != null)
+      this.length = inMemoryLength;
+  }
+
+  /** A stream reading data held in chunks */
+  protected static class ChunkInputStream extends InputStream
+  {
+    protected final byte[][] chunks;
+    protected long remaining;
+    protected int chunkIndex = 0;
+    protected int chunkOffset = 0;
+
+    public ChunkInputStream(byte[][] chunks, long length)
+    {
+      this.chunks = chunks;
+      this.remaining = length;
+    }
+
+    @Override
+    public int read()
+    {
+      byte[] b = new byte[1];
+      if (read(b,0,1) == -1)
+        return -1;
+      return ((int)b[0]) & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+    {
+      if (len == 0)
+        return 0;
+      if (remaining == 0L)
+        return -1;
+      if (chunkOffset == chunks[chunkIndex].length)
+      {
+        chunkIndex++;
+        chunkOffset = 0;
+      }
+      byte[] chunk = chunks[chunkIndex];
+      int amt = (int)Math.min((long)Math.min(len,chunk.length - chunkOffset),remaining);
+      System.arraycopy(chunk,chunkOffset,b,off,amt);
+      chunkOffset += amt;
+      remaining -= amt;
+      return amt;
+    }
+
+    @Override
+    public int available()
+    {
+      return (int)Math.min(remaining,(long)Integer.MAX_VALUE);
+    }
   }
 
 }
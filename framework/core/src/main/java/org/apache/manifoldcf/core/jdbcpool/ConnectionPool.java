@@ -22,6 +22,7 @@ import java.sql.*;
 import javax.naming.*;
 import javax.sql.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 import org.apache.manifoldcf.core.system.Logging;
 
 /** The class that defines a connection pool.
@@ -37,8 +38,15 @@ public class ConnectionPool
   protected volatile int activeConnections;
   protected volatile boolean closed;
   protected final Connection[] freeConnections;
+  protected final PreparedStatementCache[] freeStatementCaches;
   protected final long[] connectionCleanupTimeouts;
   protected final long expiration;
+  /** The number of prepared statements to cache per connection; zero disables statement caching */
+  protected final int statementCacheSize;
+  
+  /** Prepared statement cache counters */
+  protected final AtomicLong statementCacheHits = new AtomicLong(0L);
+  protected final AtomicLong statementCacheMisses = new AtomicLong(0L);
   
   protected final boolean debug;
   
@@ -46,16 +54,25 @@ public class ConnectionPool
   
   /** Constructor */
   public ConnectionPool(String dbURL, String userName, String password, int maxConnections, long expiration, boolean debug)
+  {
+    this(dbURL,userName,password,maxConnections,expiration,0,debug);
+  }
+  
+  /** Constructor */
+  public ConnectionPool(String dbURL, String userName, String password, int maxConnections, long expiration,
+    int statementCacheSize, boolean debug)
   {
     this.dbURL = dbURL;
     this.userName = userName;
     this.password = password;
     this.freeConnections = new Connection[maxConnections];
+    this.freeStatementCaches = new PreparedStatementCache[maxConnections];
     this.connectionCleanupTimeouts = new long[maxConnections];
     this.freePointer = 0;
     this.activeConnections = 0;
     this.closed = false;
     this.expiration = expiration;
+    this.statementCacheSize = statementCacheSize;
     this.debug = debug;
   }
   
@@ -73,6 +90,7 @@ public class ConnectionPool
     else
       instantiationException = null;
     Connection rval = null;
+    PreparedStatementCache statementCache = null;
     boolean returnedValue = true;
     try
     {
@@ -85,7 +103,9 @@ public class ConnectionPool
             if (closed)
               throw new InterruptedException("Pool already closed");
             rval = freeConnections[--freePointer];
+            statementCache = freeStatementCaches[freePointer];
             freeConnections[freePointer] = null;
+            freeStatementCaches[freePointer] = null;
             boolean isValid = true;
             try
             {
@@ -105,8 +125,12 @@ public class ConnectionPool
               // If the connection is invalid, drop it on the floor, and get a new one.
               // Note: Order of operations is terribly important here!!
               final Connection closeValue = rval;
+              final PreparedStatementCache closeCache = statementCache;
               rval = null;
+              statementCache = null;
               activeConnections--;
+              if (closeCache != null)
+                closeCache.closeAll();
               try
               {
                 closeValue.close();
@@ -144,11 +168,13 @@ public class ConnectionPool
             rval = DriverManager.getConnection(dbURL, userName, password);
           else
             rval = DriverManager.getConnection(dbURL);
+          if (statementCacheSize > 0)
+            statementCache = new PreparedStatementCache(this,rval,statementCacheSize);
           break;
         }
       }
 
-      WrappedConnection wc = new WrappedConnection(this,rval,instantiationException);
+      WrappedConnection wc = new WrappedConnection(this,rval,statementCache,instantiationException);
       if (debug)
       {
         synchronized (outstandingConnections)
@@ -185,7 +211,7 @@ public class ConnectionPool
         if (rval != null)
         {
           // We have a handle, so just free it and leave activeConnections alone
-          release(rval);
+          release(rval,statementCache);
         }
         else
         {
@@ -205,15 +231,9 @@ public class ConnectionPool
   {
     for (int i = 0 ; i < freePointer ; i++)
     {
-      try
-      {
-        freeConnections[i].close();
-      }
-      catch (SQLException e)
-      {
-        Logging.db.warn("Error closing pooled connection: "+e.getMessage(),e);
-      }
+      closeConnection(freeConnections[i],freeStatementCaches[i]);
       freeConnections[i] = null;
+      freeStatementCaches[i] = null;
       activeConnections--;
     }
     freePointer = 0;
@@ -226,15 +246,9 @@ public class ConnectionPool
   {
     for (int i = 0 ; i < freePointer ; i++)
     {
-      try
-      {
-        freeConnections[i].close();
-      }
-      catch (SQLException e)
-      {
-        Logging.db.warn("Error closing pooled connection: "+e.getMessage(),e);
-      }
+      closeConnection(freeConnections[i],freeStatementCaches[i]);
       freeConnections[i] = null;
+      freeStatementCaches[i] = null;
     }
     freePointer = 0;
     closed = true;
@@ -251,7 +265,9 @@ public class ConnectionPool
       if (connectionCleanupTimeouts[i] <= currentTime)
       {
         Connection c = freeConnections[i];
+        PreparedStatementCache sc = freeStatementCaches[i];
         freeConnections[i] = null;
+        freeStatementCaches[i] = null;
         freePointer--;
         activeConnections--;
         if (freePointer == i)
@@ -261,21 +277,19 @@ public class ConnectionPool
         else
         {
           freeConnections[i] = freeConnections[freePointer];
+          freeStatementCaches[i] = freeStatementCaches[freePointer];
           connectionCleanupTimeouts[i] = connectionCleanupTimeouts[freePointer];
           freeConnections[freePointer] = null;
+          freeStatementCaches[freePointer] = null;
         }
-        try
-        {
-         c.close();
-        }
-        catch (SQLException e)
-        {
-          Logging.db.warn("Error closing pooled connection: "+e.getMessage(),e);
-        }
+        // The cached statements belong to the connection, so they go with it
+        closeConnection(c,sc);
       }
       else
         i++;
     }
+    if (statementCacheSize > 0 && Logging.db.isDebugEnabled())
+      Logging.db.debug("Prepared statement cache for "+dbURL+": "+statementCacheHits.get()+" hits, "+statementCacheMisses.get()+" misses");
   }
   
   public void releaseConnection(WrappedConnection connection)
@@ -291,14 +305,43 @@ public class ConnectionPool
       }
     }
 
-    release(connection.getConnection());
+    release(connection.getConnection(),connection.getStatementCache());
   }
   
-  protected void release(Connection c)
+  /** Get the number of prepared statement cache hits for connections of this pool.
+  */
+  public long getStatementCacheHits()
+  {
+    return statementCacheHits.get();
+  }
+  
+  /** Get the number of prepared statement cache misses for connections of this pool.
+  */
+  public long getStatementCacheMisses()
+  {
+    return statementCacheMisses.get();
+  }
+  
+  /** Note a prepared statement cache hit.
+  */
+  protected void noteStatementCacheHit()
+  {
+    statementCacheHits.incrementAndGet();
+  }
+  
+  /** Note a prepared statement cache miss.
+  */
+  protected void noteStatementCacheMiss()
+  {
+    statementCacheMisses.incrementAndGet();
+  }
+  
+  protected void release(Connection c, PreparedStatementCache statementCache)
   {
     synchronized (this)
     {
       freeConnections[freePointer] = c;
+      freeStatementCaches[freePointer] = statementCache;
       connectionCleanupTimeouts[freePointer] = System.currentTimeMillis() + expiration;
       freePointer++;
       notifyAll();
@@ -306,6 +349,22 @@ public class ConnectionPool
     
   }
   
+  /** Close a connection that is leaving the pool, along with its cached statements.
+  */
+  protected static void closeConnection(Connection c, PreparedStatementCache statementCache)
+  {
+    if (statementCache != null)
+      statementCache.closeAll();
+    try
+    {
+      c.close();
+    }
+    catch (SQLException e)
+    {
+      Logging.db.warn("Error closing pooled connection: "+e.getMessage(),e);
+    }
+  }
+  
 }
 
 
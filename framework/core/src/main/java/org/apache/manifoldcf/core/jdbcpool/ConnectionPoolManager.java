@@ -59,9 +59,18 @@ public class ConnectionPoolManager
   public synchronized ConnectionPool addAlias(String poolKey, String driverClassName, String dbURL,
     String userName, String password, int maxSize, long expiration)
     throws ClassNotFoundException, InstantiationException, IllegalAccessException
+  {
+    return addAlias(poolKey,driverClassName,dbURL,userName,password,maxSize,expiration,0);
+  }
+  
+  /** Set up a pool with a given key, caching up to a given number of prepared statements per connection.
+  */
+  public synchronized ConnectionPool addAlias(String poolKey, String driverClassName, String dbURL,
+    String userName, String password, int maxSize, long expiration, int statementCacheSize)
+    throws ClassNotFoundException, InstantiationException, IllegalAccessException
   {
     Class.forName(driverClassName).newInstance();
-    ConnectionPool cp = new ConnectionPool(dbURL,userName,password,maxSize,expiration,debug);
+    ConnectionPool cp = new ConnectionPool(dbURL,userName,password,maxSize,expiration,statementCacheSize,debug);
     poolMap.put(poolKey,cp);
     return cp;
   }
@@ -0,0 +1,190 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.jdbcpool;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import org.apache.manifoldcf.core.system.Logging;
+
+/** This class is a least-recently-used cache of prepared statements belonging to one pooled JDBC connection,
+* keyed by SQL text.  It lives as long as the connection does, travelling with it in and out of the pool, so
+* that statements prepared by one user of the connection can be reused by the next.  Reusing the same
+* statement object also lets drivers that prepare statements on the server (e.g. PostgreSQL, after a few
+* executions) keep the server-side plan.
+*
+* Only data manipulation statements are cached.  Data definition statements executed through the database layer
+* bump a process-wide generation number, which causes every cache to discard its statements the next time it is
+* consulted, so that no statement outlives the schema it was prepared against.
+*
+* Like the connection it belongs to, an instance is used by only one thread at a time.
+*/
+public class PreparedStatementCache
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  /** The schema generation; bumped whenever a statement that may change the schema is executed */
+  protected final static AtomicLong schemaGeneration = new AtomicLong(0L);
+
+  /** The connection the statements belong to */
+  protected final Connection connection;
+  /** The pool, which accumulates the hit and miss counts */
+  protected final ConnectionPool owner;
+  /** The maximum number of statements to keep */
+  protected final int maxSize;
+  /** The statements, in access order */
+  protected final Map<String,PreparedStatement> statements;
+  /** The schema generation the statements were prepared in */
+  protected long generation;
+
+  /** Constructor.
+  *@param owner is the pool that owns the connection.
+  *@param connection is the JDBC connection.
+  *@param maxSize is the maximum number of statements to keep open.
+  */
+  public PreparedStatementCache(ConnectionPool owner, Connection connection, int maxSize)
+  {
+    this.owner = owner;
+    this.connection = connection;
+    this.maxSize = maxSize;
+    this.statements = new LinkedHashMap<String,PreparedStatement>(16,0.75f,true);
+    this.generation = schemaGeneration.get();
+  }
+
+  /** Check whether a statement is eligible for caching.
+  *@param query is the SQL text.
+  *@return true if the statement can be cached.
+  */
+  public static boolean isCacheable(String query)
+  {
+    int i = 0;
+    while (i < query.length() && Character.isWhitespace(query.charAt(i)))
+      i++;
+    return query.regionMatches(true,i,"SELECT",0,6) ||
+      query.regionMatches(true,i,"INSERT",0,6) ||
+      query.regionMatches(true,i,"UPDATE",0,6) ||
+      query.regionMatches(true,i,"DELETE",0,6);
+  }
+
+  /** Check whether a statement may change the schema.
+  *@param query is the SQL text.
+  *@return true if statements prepared before it may no longer be valid.
+  */
+  public static boolean isSchemaChange(String query)
+  {
+    int i = 0;
+    while (i < query.length() && Character.isWhitespace(query.charAt(i)))
+      i++;
+    return query.regionMatches(true,i,"CREATE",0,6) ||
+      query.regionMatches(true,i,"ALTER",0,5) ||
+      query.regionMatches(true,i,"DROP",0,4);
+  }
+
+  /** Note that a statement which may have changed the schema has been executed, on any connection.
+  * All cached statements will be discarded before they are next used.
+  */
+  public static void noteSchemaChange()
+  {
+    schemaGeneration.incrementAndGet();
+  }
+
+  /** Get a prepared statement for some SQL text, either from the cache or newly prepared.
+  * The statement must be handed back with either returnStatement() or discardStatement(), and must
+  * not be closed by the caller.
+  *@param query is the SQL text; it must be cacheable.
+  *@return the statement, with its parameters cleared.
+  */
+  public PreparedStatement getStatement(String query)
+    throws SQLException
+  {
+    long currentGeneration = schemaGeneration.get();
+    if (currentGeneration != generation)
+    {
+      closeAll();
+      generation = currentGeneration;
+    }
+    PreparedStatement ps = statements.remove(query);
+    if (ps != null)
+    {
+      owner.noteStatementCacheHit();
+      ps.clearParameters();
+      return ps;
+    }
+    owner.noteStatementCacheMiss();
+    return connection.prepareStatement(query);
+  }
+
+  /** Hand a statement back after successful use, so that it can be reused.
+  *@param query is the SQL text the statement was obtained with.
+  *@param ps is the statement.
+  */
+  public void returnStatement(String query, PreparedStatement ps)
+  {
+    PreparedStatement old = statements.put(query,ps);
+    if (old != null && old != ps)
+      close(old);
+    if (statements.size() > maxSize)
+    {
+      Iterator<PreparedStatement> iter = statements.values().iterator();
+      PreparedStatement eldest = iter.next();
+      iter.remove();
+      close(eldest);
+    }
+  }
+
+  /** Hand a statement back after a failure.  The statement is closed rather than reused, since its state,
+  * or the state of its server-side plan, is not known.
+  *@param ps is the statement.
+  */
+  public void discardStatement(PreparedStatement ps)
+  {
+    close(ps);
+  }
+
+  /** Get the number of statements currently cached.
+  */
+  public int size()
+  {
+    return statements.size();
+  }
+
+  /** Close all cached statements.  This must be done before the connection is closed or abandoned by the pool.
+  */
+  public void closeAll()
+  {
+    for (PreparedStatement ps : statements.values())
+    {
+      close(ps);
+    }
+    statements.clear();
+  }
+
+  protected static void close(PreparedStatement ps)
+  {
+    try
+    {
+      ps.close();
+    }
+    catch (SQLException e)
+    {
+      Logging.db.debug("Error closing cached prepared statement: "+e.getMessage(),e);
+    }
+  }
+
+}
@@ -29,6 +29,8 @@ public class WrappedConnection
 
   protected Connection connection;
   protected ConnectionPool owner;
+  /** The prepared statement cache of the connection, or null if statements are not cached */
+  protected PreparedStatementCache statementCache;
   /** Exception, to keep track of where the connection was allocated */
   protected Exception instantiationException;
   
@@ -40,9 +42,17 @@ public class WrappedConnection
   
   /** Constructor */
   public WrappedConnection(ConnectionPool owner, Connection connection, Exception instantiationException)
+  {
+    this(owner,connection,null,instantiationException);
+  }
+  
+  /** Constructor */
+  public WrappedConnection(ConnectionPool owner, Connection connection, PreparedStatementCache statementCache,
+    Exception instantiationException)
   {
     this.owner = owner;
     this.connection = connection;
+    this.statementCache = statementCache;
     this.instantiationException = instantiationException;
   }
   
@@ -53,12 +63,21 @@ public class WrappedConnection
     return connection;
   }
   
+  /** Get the prepared statement cache that belongs to the JDBC connection.
+  *@return the cache, or null if prepared statements are not cached.
+  */
+  public PreparedStatementCache getStatementCache()
+  {
+    return statementCache;
+  }
+  
   /** Release the object into its pool.
   */
   public void release()
   {
     owner.releaseConnection(this);
     this.connection = null;
+    this.statementCache = null;
   }
   
   /** Get instantiation exception.
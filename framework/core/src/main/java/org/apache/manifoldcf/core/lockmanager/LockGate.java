@@ -19,6 +19,7 @@
 package org.apache.manifoldcf.core.lockmanager;
 
 import java.util.*;
+import java.util.concurrent.atomic.*;
 import java.io.*;
 import org.apache.manifoldcf.core.interfaces.*;
 
@@ -89,13 +90,31 @@ import org.apache.manifoldcf.core.interfaces.*;
 	at org.apache.manifoldcf.core.lockmanager.LockManager.enterLocks(LockManager.java:355)
 * Problem here: The LockGate 0x00000000ffbdc038 has no other instance anywhere, which should not be able to happen.
 * Debugging must entail dumping ALL outstanding locks periodically -- and who holds each.
+*
+* The queue is implemented as a ticket queue.  A thread takes the next ticket, and has permission when
+* the ticket being served reaches it.  When nobody else is queued, taking and returning permission costs
+* one atomic operation each and never touches the gate's monitor; the monitor is only used to sleep and wake
+* threads that actually have to wait, and to track the tickets of threads that gave up waiting.
+* A gate retires itself from the pool by atomically swapping the next ticket for a marker, which can only
+* succeed when no tickets are outstanding.  A thread that tries to take a ticket from a retired gate
+* gets an ExpiredObjectException, and goes back to the pool for a new gate.
 */
 public class LockGate
 {
-  protected final List<Long> threadRequests = new ArrayList<Long>();
+  /** The value of nextTicket once the gate is invalid */
+  protected final static long INVALID = -1L;
+
+  /** The next ticket to be handed out, or INVALID */
+  protected final AtomicLong nextTicket = new AtomicLong(0L);
+  /** The ticket that currently has permission.  Written only by the holder of the permission, or under the
+  * gate's monitor when skipping abandoned tickets */
+  protected volatile long nowServing = 0L;
+  /** Tickets whose threads stopped waiting before their turn came.  Guarded by the gate's monitor */
+  protected final Set<Long> abandonedTickets = new HashSet<Long>();
+
   protected final LockObject lockObject;
   protected final Object lockKey;
-  protected LockPool lockPool;
+  protected volatile LockPool lockPool;
 
   public LockGate(Object lockKey, LockObject lockObject, LockPool lockPool)
   {
@@ -106,177 +125,235 @@ public class LockGate
   
   public void makeInvalid()
   {
+    nextTicket.set(INVALID);
+    lockObject.makeInvalid();
     synchronized (this)
     {
       this.lockPool = null;
-      lockObject.makeInvalid();
+      // Anyone still waiting must find out
+      notifyAll();
     }
   }
 
-  protected void waitForPermission(Long threadID)
+  /** Wait for this thread's turn.
+  *@param threadID is the thread ID; it is not needed for ordering, but is kept for diagnostics.
+  *@return the ticket, which must be handed back to freePermission().
+  */
+  protected long waitForPermission(Long threadID)
     throws InterruptedException, ExpiredObjectException
   {
-    synchronized (this)
+    long ticket;
+    while (true)
     {
-      threadRequests.add(threadID);
+      ticket = nextTicket.get();
+      if (ticket == INVALID)
+        throw new ExpiredObjectException("Invalid");
+      if (nextTicket.compareAndSet(ticket,ticket+1L))
+        break;
     }
-    try
+    // Fast path: nobody ahead of us
+    if (nowServing == ticket)
+      return ticket;
+
+    synchronized (this)
     {
-      // Now, wait until we are #1
-      while (true)
+      try
       {
-        synchronized (this)
+        // Now, wait until we are #1
+        while (nowServing != ticket)
         {
-          if (lockPool == null)
+          if (nextTicket.get() == INVALID)
             throw new ExpiredObjectException("Invalid");
-
-          if (threadRequests.get(0).equals(threadID))
-            return;
-          
           wait();
         }
+        return ticket;
+      }
+      catch (InterruptedException e)
+      {
+        abandonTicket(ticket);
+        throw e;
+      }
+      catch (ExpiredObjectException e)
+      {
+        abandonTicket(ticket);
+        throw e;
+      }
+      catch (Error e)
+      {
+        abandonTicket(ticket);
+        throw e;
+      }
+      catch (RuntimeException e)
+      {
+        abandonTicket(ticket);
+        throw e;
       }
     }
-    catch (InterruptedException e)
-    {
-      freePermission(threadID);
-      throw e;
-    }
-    catch (ExpiredObjectException e)
-    {
-      freePermission(threadID);
-      throw e;
-    }
-    catch (Error e)
-    {
-      freePermission(threadID);
-      throw e;
-    }
-    catch (RuntimeException e)
+  }
+
+  /** Give up a ticket we were waiting with.  Must be called while holding the gate's monitor.
+  */
+  protected void abandonTicket(long ticket)
+  {
+    if (nowServing == ticket)
     {
-      freePermission(threadID);
-      throw e;
+      // Our turn came just as we gave up; pass it on
+      freePermission(ticket);
     }
+    else
+      abandonedTickets.add(new Long(ticket));
   }
-  
-  protected void freePermission(Long threadID)
+
+  protected void freePermission(long ticket)
   {
+    long next = ticket + 1L;
+    if (nextTicket.get() == next)
+    {
+      // Fast path: nobody is queued behind us
+      nowServing = next;
+      if (nextTicket.get() == next)
+        return;
+      // Somebody queued up while we were handing back permission.  The ticket we just made current may
+      // already have been abandoned.
+      synchronized (this)
+      {
+        long serving = next;
+        while (abandonedTickets.remove(new Long(serving)))
+        {
+          serving++;
+        }
+        if (serving != next)
+          nowServing = serving;
+        notifyAll();
+      }
+      return;
+    }
     synchronized (this)
     {
-      threadRequests.remove(threadID);
+      while (abandonedTickets.remove(new Long(next)))
+      {
+        next++;
+      }
+      nowServing = next;
       notifyAll();
     }
   }
+
+  /** Called after the lock object reports that it is no longer held by anyone in this JVM.  If nobody is
+  * queued for permission either, the gate is retired and removed from the pool.  Must be called while
+  * holding the lock object's monitor, so that no thread can enter the lock object between its report and
+  * the retirement; any such thread must therefore still be holding its ticket, which makes retirement fail.
+  */
+  protected void releaseIfIdle()
+  {
+    LockPool pool = lockPool;
+    if (pool != null && nextTicket.compareAndSet(nowServing,INVALID))
+      pool.releaseObject(lockKey, this);
+  }
   
   public void enterWriteLock(Long threadID)
     throws ManifoldCFException, InterruptedException, ExpiredObjectException
   {
-    waitForPermission(threadID);
+    long ticket = waitForPermission(threadID);
     try
     {
       lockObject.enterWriteLock();
     }
     finally
     {
-      freePermission(threadID);
+      freePermission(ticket);
     }
   }
   
   public void enterWriteLockNoWait(Long threadID)
     throws ManifoldCFException, LockException, LocalLockException, InterruptedException, ExpiredObjectException
   {
-    waitForPermission(threadID);
+    long ticket = waitForPermission(threadID);
     try
     {
       lockObject.enterWriteLockNoWait();
     }
     finally
     {
-      freePermission(threadID);
+      freePermission(ticket);
     }
   }
   
   public void leaveWriteLock()
     throws ManifoldCFException, InterruptedException, ExpiredObjectException
   {
-    synchronized (this)
+    // Leave, and if we succeed, flush from pool.
+    synchronized (lockObject)
     {
-      // Leave, and if we succeed, flush from pool.
       if (lockObject.leaveWriteLock())
-      {
-        if (threadRequests.size() == 0 && lockPool != null)
-          lockPool.releaseObject(lockKey, this);
-      }
+        releaseIfIdle();
     }
   }
   
   public void enterNonExWriteLock(Long threadID)
     throws ManifoldCFException, InterruptedException, ExpiredObjectException
   {
-    waitForPermission(threadID);
+    long ticket = waitForPermission(threadID);
     try
     {
       lockObject.enterNonExWriteLock();
     }
     finally
     {
-      freePermission(threadID);
+      freePermission(ticket);
     }
   }
   
   public void enterNonExWriteLockNoWait(Long threadID)
     throws ManifoldCFException, LockException, LocalLockException, InterruptedException, ExpiredObjectException
   {
-    waitForPermission(threadID);
+    long ticket = waitForPermission(threadID);
     try
     {
       lockObject.enterNonExWriteLockNoWait();
     }
     finally
     {
-      freePermission(threadID);
+      freePermission(ticket);
     }
   }
   
   public void leaveNonExWriteLock()
     throws ManifoldCFException, InterruptedException, ExpiredObjectException
   {
-    synchronized (this)
+    // Leave, and if we succeed, flush from pool.
+    synchronized (lockObject)
     {
-      // Leave, and if we succeed, flush from pool.
       if (lockObject.leaveNonExWriteLock())
-      {
-        if (threadRequests.size() == 0 && lockPool != null)
-          lockPool.releaseObject(lockKey, this);
-      }
+        releaseIfIdle();
     }
   }
 
   public void enterReadLock(Long threadID)
     throws ManifoldCFException, InterruptedException, ExpiredObjectException
   {
-    waitForPermission(threadID);
+    long ticket = waitForPermission(threadID);
     try
     {
       lockObject.enterReadLock();
     }
     finally
     {
-      freePermission(threadID);
+      freePermission(ticket);
     }
   }
   
   public void enterReadLockNoWait(Long threadID)
     throws ManifoldCFException, LockException, LocalLockException, InterruptedException, ExpiredObjectException
   {
-    waitForPermission(threadID);
+    long ticket = waitForPermission(threadID);
     try
     {
       lockObject.enterReadLockNoWait();
     }
     finally
     {
-      freePermission(threadID);
+      freePermission(ticket);
     }
   }
   
@@ -284,13 +361,10 @@ public class LockGate
     throws ManifoldCFException, InterruptedException, ExpiredObjectException
   {
     // Leave, and if we succeed (and the thread queue is empty), flush from pool.
-    synchronized (this)
+    synchronized (lockObject)
     {
       if (lockObject.leaveReadLock())
-      {
-        if (threadRequests.size() == 0 && lockPool != null)
-          lockPool.releaseObject(lockKey, this);
-      }
+        releaseIfIdle();
     }
   }
 
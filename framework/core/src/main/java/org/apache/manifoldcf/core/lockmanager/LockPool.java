@@ -19,15 +19,20 @@
 package org.apache.manifoldcf.core.lockmanager;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 
 /** Lock pool class. This is a pool of LockGate objects.
+* The pool is consulted on every lock and critical section operation in the JVM, so it must not serialize them;
+* lookups are lock-free, and creation and removal only contend with operations on keys in the same hash bin.
+* A gate is removed only after it has retired itself (see LockGate), so a thread that finds a gate that is being
+* removed gets an ExpiredObjectException from it, and simply asks the pool again.
 */
 public class LockPool
 {
   public static final String _rcsid = "@(#)$Id: LockPool.java 988245 2010-08-23 18:39:35Z kwright $";
 
-  protected final Map<Object,LockGate> myLocks = new HashMap<Object,LockGate>();
+  protected final ConcurrentMap<Object,LockGate> myLocks = new ConcurrentHashMap<Object,LockGate>();
 
   protected final LockObjectFactory factory;
   
@@ -36,21 +41,26 @@ public class LockPool
     this.factory = factory;
   }
   
-  public synchronized LockGate getObject(Object lockKey)
+  public LockGate getObject(Object lockKey)
   {
     LockGate lg = myLocks.get(lockKey);
     if (lg == null)
     {
+      // Lock objects are cheap to construct, so it does no harm if a racing thread builds one that is discarded.
       LockObject lo = factory.newLockObject(this,lockKey);
-      lg = new LockGate(lockKey,lo,this);
-      myLocks.put(lockKey,lg);
+      LockGate newGate = new LockGate(lockKey,lo,this);
+      lg = myLocks.putIfAbsent(lockKey,newGate);
+      if (lg == null)
+        lg = newGate;
     }
     return lg;
   }
 
-  public synchronized void releaseObject(Object lockKey, LockGate lockGate)
+  public void releaseObject(Object lockKey, LockGate lockGate)
   {
+    // Remove before invalidating, so that a thread that looks the key up in the meantime gets a fresh gate
+    // rather than spinning on this one.
+    myLocks.remove(lockKey,lockGate);
     lockGate.makeInvalid();
-    myLocks.remove(lockKey);
   }
 }
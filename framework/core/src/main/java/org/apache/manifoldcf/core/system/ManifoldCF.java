@@ -144,10 +144,24 @@ public class ManifoldCF
   public static final String databaseHandleTimeoutProperty = "org.apache.manifoldcf.database.handletimeout";
   /** Connection tracking debug property */
   public static final String databaseConnectionTrackingProperty = "org.apache.manifoldcf.database.connectiontracking";
+  /** Number of prepared statements cached per database handle; zero disables the cache */
+  public static final String databaseStatementCacheSizeProperty = "org.apache.manifoldcf.database.statementcachesize";
+  /** How queries are run so that they can be interrupted: "thread", "pool", "virtual", or "direct" */
+  public static final String databaseQueryExecutionProperty = "org.apache.manifoldcf.database.queryexecution";
 
   // Database performance monitoring properties
   /** Elapsed time a query can take before a warning is output to the log, in seconds */
   public static final String databaseQueryMaxTimeProperty = "org.apache.manifoldcf.database.maxquerytime";
+
+  // Cache properties
+  /** The most memory, in megabytes, that the in-process object cache may hold; zero means no limit */
+  public static final String cacheMaxMemoryProperty = "org.apache.manifoldcf.cache.maxmemory";
+
+  // Temporary document data properties
+  /** The most memory, in megabytes, that temporary document data may hold before it goes to files */
+  public static final String tempDataMemoryBudgetProperty = "org.apache.manifoldcf.tempdata.memorybudget";
+  /** The largest temporary document, in kilobytes, that is kept in memory */
+  public static final String tempDataMaxDocumentSizeProperty = "org.apache.manifoldcf.tempdata.maxdocumentsize";
   
   // Log configuration properties
   /** Location of log configuration file */
@@ -296,6 +310,11 @@ public class ManifoldCF
           // Put the cache manager in the polling loop
           addPollingHook(new CachePoll());
 
+          // Set up the pool for temporary document data, and report on it
+          BufferPool.configure(LockManagerFactory.getLongProperty(threadContext,tempDataMemoryBudgetProperty,BufferPool.DEFAULT_MEMORY_BUDGET / (1024L * 1024L)) * 1024L * 1024L,
+            LockManagerFactory.getIntProperty(threadContext,tempDataMaxDocumentSizeProperty,BufferPool.DEFAULT_MAX_DOCUMENT_SIZE / 1024) * 1024);
+          addPollingHook(new BufferPoolPoll());
+
           // Register the file tracker for cleanup on shutdown
           tracker = new FileTrack();
           addShutdownHook(tracker);
@@ -1639,6 +1658,38 @@ public class ManifoldCF
     }
   }
   
+  /** Class that periodically logs the temporary data buffer pool's counters */
+  protected static class BufferPoolPoll implements IPollingHook
+  {
+    /** How often the counters are logged, in milliseconds */
+    protected final static long STATISTICS_INTERVAL = 60000L;
+
+    protected long lastStatisticsTime = 0L;
+
+    public BufferPoolPoll()
+    {
+    }
+    
+    @Override
+    public void doPoll(IThreadContext threadContext)
+      throws ManifoldCFException
+    {
+      long currentTime = System.currentTimeMillis();
+      if (Logging.perf.isDebugEnabled() && currentTime - lastStatisticsTime >= STATISTICS_INTERVAL)
+      {
+        lastStatisticsTime = currentTime;
+        Logging.perf.debug("Temporary data statistics: "+BufferPool.getMemoryInUse()+" bytes in memory, "+
+          BufferPool.getPoolHits()+" pool hits, "+BufferPool.getPoolMisses()+" pool misses, "+
+          BufferPool.getTempFiles()+" temporary files ("+BufferPool.getSpills()+" spilled for lack of memory), "+
+          BufferPool.getTempFileBytes()+" temporary file bytes, "+BufferPool.getDirectMemoryAllocated()+" off-heap bytes allocated");
+        Logging.perf.debug("Spooled data statistics: "+SpooledData.getInMemoryCount()+" kept in memory, "+
+          SpooledData.getSpooledCount()+" spooled ("+SpooledData.getBudgetSpills()+" for lack of memory), "+
+          SpoolFile.getBytesWritten()+" bytes written to the spool, "+SpoolFile.getLiveBytes()+" live spool bytes in "+
+          SpoolFile.getSegmentCount()+" spool files of "+SpoolFile.getFileBytes()+" bytes ("+SpoolFile.getSegmentsStarted()+" started)");
+      }
+    }
+  }
+  
   /** Class that cleans up database handles on exit */
   protected static class DatabaseShutdown implements IShutdownHook
   {
@@ -0,0 +1,189 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.cachemanager;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Tests the general cache: LRU eviction by class count and by memory, invalidation across shards, and the
+* consistency of its bookkeeping under concurrent use.
+*/
+public class GeneralCacheTest
+{
+  @Test
+  public void classLimit()
+    throws Exception
+  {
+    GeneralCache cache = new GeneralCache();
+    for (int i = 0; i < 20; i++)
+    {
+      put(cache,"obj"+i,"value"+i,"key"+i,"testclass",10);
+      if (i == 14)
+      {
+        // Using an object makes it the most recently used
+        for (int j = 5; j < 10; j++)
+        {
+          cache.setObjectClass("obj"+j,"testclass",10);
+        }
+      }
+    }
+    GeneralCache.ClassStatistics stats = cache.getStatistics().get("testclass");
+    assertEquals(10,stats.getObjectCount());
+    assertEquals(10L,stats.getEvictions());
+    // The oldest went first, then the ones that were not used at i == 14
+    for (int i = 0; i < 5; i++)
+    {
+      assertNull("obj"+i,cache.lookup("obj"+i));
+    }
+    for (int i = 5; i < 10; i++)
+    {
+      assertNotNull("obj"+i,cache.lookup("obj"+i));
+    }
+    for (int i = 10; i < 15; i++)
+    {
+      assertNull("obj"+i,cache.lookup("obj"+i));
+    }
+    for (int i = 15; i < 20; i++)
+    {
+      assertNotNull("obj"+i,cache.lookup("obj"+i));
+    }
+  }
+
+  @Test
+  public void memoryLimit()
+    throws Exception
+  {
+    GeneralCache cache = new GeneralCache();
+    cache.setMaxMemory(20000L);
+    for (int i = 0; i < 100; i++)
+    {
+      put(cache,"obj"+i,new byte[1000],"key"+i,null,Integer.MAX_VALUE);
+      assertTrue("Over memory limit: "+cache.getMemoryUsed(),cache.getMemoryUsed() <= 20000L);
+    }
+    // Each entry is a little over 1000 bytes, so somewhat fewer than 20 fit, and they are the newest
+    assertNotNull(cache.lookup("obj99"));
+    assertNotNull(cache.lookup("obj90"));
+    assertNull(cache.lookup("obj70"));
+    assertTrue(cache.getStatistics().get(GeneralCache.UNCLASSIFIED).getEvictions() > 80L);
+    // Lowering the limit evicts immediately
+    cache.setMaxMemory(5000L);
+    assertTrue(cache.getMemoryUsed() <= 5000L);
+    assertNotNull(cache.lookup("obj99"));
+  }
+
+  @Test
+  public void invalidation()
+    throws Exception
+  {
+    GeneralCache cache = new GeneralCache();
+    for (int i = 0; i < 200; i++)
+    {
+      put(cache,"obj"+i,"value"+i,((i % 2) == 0)?"even":"odd","testclass",1000);
+    }
+    // Replacing an object doesn't count it twice
+    long memory = cache.getMemoryUsed();
+    put(cache,"obj0","value0","even","testclass",1000);
+    assertEquals(memory,cache.getMemoryUsed());
+    assertEquals(200,cache.getStatistics().get("testclass").getObjectCount());
+
+    cache.invalidateKeys(new StringSet("even"));
+    assertNull(cache.lookup("obj0"));
+    assertNull(cache.lookup("obj198"));
+    assertNotNull(cache.lookup("obj199"));
+    assertEquals(100,cache.getStatistics().get("testclass").getObjectCount());
+    cache.invalidateKeys(new StringSet("odd"));
+    assertEquals(0,cache.getStatistics().get("testclass").getObjectCount());
+    assertEquals(0L,cache.getMemoryUsed());
+  }
+
+  @Test
+  public void concurrentUse()
+    throws Exception
+  {
+    final GeneralCache cache = new GeneralCache();
+    cache.setMaxMemory(50000L);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++)
+    {
+      final int seed = t;
+      threads[t] = new Thread()
+      {
+        public void run()
+        {
+          try
+          {
+            Random r = new Random(seed);
+            for (int i = 0; i < 20000; i++)
+            {
+              String name = "obj"+r.nextInt(500);
+              int action = r.nextInt(10);
+              if (action < 6)
+              {
+                if (cache.lookup(name) != null)
+                  cache.setObjectClass(name,"class"+(name.length()%3),50);
+              }
+              else if (action < 9)
+                put(cache,name,"value"+i,"key"+r.nextInt(20),"class"+(name.length()%3),50);
+              else
+                cache.invalidateKeys(new StringSet("key"+r.nextInt(20)));
+            }
+          }
+          catch (Throwable e)
+          {
+            failure.set(e);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread t : threads)
+    {
+      t.join();
+    }
+    if (failure.get() != null)
+      throw new Exception("Worker failed: "+failure.get().getMessage(),failure.get());
+    for (GeneralCache.ClassStatistics stats : cache.getStatistics().values())
+    {
+      assertTrue(stats.getObjectCount() <= 50);
+    }
+    // Everything must come out cleanly
+    String[] keys = new String[20];
+    for (int i = 0; i < keys.length; i++)
+    {
+      keys[i] = "key"+i;
+    }
+    cache.invalidateKeys(new StringSet(keys));
+    assertEquals(0L,cache.getMemoryUsed());
+    for (GeneralCache.ClassStatistics stats : cache.getStatistics().values())
+    {
+      assertEquals(0,stats.getObjectCount());
+    }
+  }
+
+  protected static void put(GeneralCache cache, String description, Object value, String key, String objectClass, int maxCount)
+  {
+    cache.setObject(description,value,new StringSet(key),System.currentTimeMillis());
+    cache.setObjectClass(description,objectClass,maxCount);
+  }
+
+}
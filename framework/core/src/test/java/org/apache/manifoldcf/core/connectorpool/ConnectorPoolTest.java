@@ -0,0 +1,288 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.connectorpool;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.core.connector.BaseConnector;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Tests the local connector pool: the number of connectors handed out never exceeds what the pool was
+* apportioned, polling does not hold up grabs, and a closed pool lets waiting threads go.
+*/
+public class ConnectorPoolTest extends org.apache.manifoldcf.core.tests.BaseHSQLDB
+{
+  protected final static String className = "org.apache.manifoldcf.core.connectorpool.ConnectorPoolTest$TestConnector";
+
+  @Test
+  public void limitHonored()
+    throws Exception
+  {
+    final TestPool pool = new TestPool();
+    final ConfigParams params = new ConfigParams();
+    final int maxPoolSize = 4;
+    IThreadContext tc = ThreadContextFactory.make();
+    // Ramp the pool up to its maximum by polling while everything is in use
+    List<TestConnector> held = new ArrayList<TestConnector>();
+    held.add(pool.grab(tc,"limit",className,params,maxPoolSize));
+    for (int i = 0; i < 10; i++)
+    {
+      pool.pollAllConnectors(tc);
+      ConnectorPool.PoolStatistics stats = pool.getStatistics().get(0);
+      while (held.size() < stats.getLocalMax())
+      {
+        held.add(pool.grab(tc,"limit",className,params,maxPoolSize));
+      }
+    }
+    assertEquals(maxPoolSize,held.size());
+    long initialGrabs = pool.getStatistics().get(0).getGrabs();
+    for (TestConnector connector : held)
+    {
+      pool.release(tc,"limit",connector);
+    }
+
+    final AtomicInteger inUse = new AtomicInteger(0);
+    final AtomicInteger maxInUse = new AtomicInteger(0);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread[] threads = new Thread[16];
+    for (int t = 0; t < threads.length; t++)
+    {
+      threads[t] = new Thread()
+      {
+        public void run()
+        {
+          try
+          {
+            IThreadContext threadContext = ThreadContextFactory.make();
+            for (int i = 0; i < 2000; i++)
+            {
+              TestConnector connector = pool.grab(threadContext,"limit",className,params,maxPoolSize);
+              try
+              {
+                int now = inUse.incrementAndGet();
+                while (true)
+                {
+                  int currentMax = maxInUse.get();
+                  if (now <= currentMax || maxInUse.compareAndSet(currentMax,now))
+                    break;
+                }
+                if (connector.currentUser.getAndSet(this) != null)
+                  throw new Exception("Connector handed out twice");
+                Thread.yield();
+                connector.currentUser.set(null);
+                inUse.decrementAndGet();
+              }
+              finally
+              {
+                pool.release(threadContext,"limit",connector);
+              }
+            }
+          }
+          catch (Throwable e)
+          {
+            failure.set(e);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread t : threads)
+    {
+      t.join();
+    }
+    if (failure.get() != null)
+      throw new Exception("Worker failed: "+failure.get().getMessage(),failure.get());
+    assertTrue("At most "+maxPoolSize+" connectors may be in use; saw "+maxInUse.get(),maxInUse.get() <= maxPoolSize);
+    ConnectorPool.PoolStatistics stats = pool.getStatistics().get(0);
+    assertEquals(initialGrabs + 16 * 2000,stats.getGrabs());
+    assertTrue(stats.getPooled() <= maxPoolSize);
+    pool.closeAllConnectors(tc);
+  }
+
+  @Test
+  public void pollingDoesNotBlockGrab()
+    throws Exception
+  {
+    final TestPool pool = new TestPool();
+    final ConfigParams params = new ConfigParams();
+    final IThreadContext tc = ThreadContextFactory.make();
+    pool.release(tc,"slow",pool.grab(tc,"slow",className,params,4));
+    // The pooled connector's poll does not finish until it is let go
+    TestConnector.pollStarted = new CountDownLatch(1);
+    TestConnector.pollRelease = new CountDownLatch(1);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    final CountDownLatch grabbed = new CountDownLatch(1);
+    Thread poller = new Thread()
+    {
+      public void run()
+      {
+        try
+        {
+          pool.pollAllConnectors(ThreadContextFactory.make());
+        }
+        catch (Throwable e)
+        {
+          failure.set(e);
+        }
+      }
+    };
+    Thread grabber = new Thread()
+    {
+      public void run()
+      {
+        try
+        {
+          IThreadContext threadContext = ThreadContextFactory.make();
+          pool.release(threadContext,"slow",pool.grab(threadContext,"slow",className,params,4));
+          grabbed.countDown();
+        }
+        catch (Throwable e)
+        {
+          failure.set(e);
+        }
+      }
+    };
+    try
+    {
+      poller.start();
+      assertTrue("Poll never started",TestConnector.pollStarted.await(10L,TimeUnit.SECONDS));
+      grabber.start();
+      // The grab must complete while the poll is still in progress
+      assertTrue("Grab waited for polling",grabbed.await(10L,TimeUnit.SECONDS));
+      assertEquals(1L,TestConnector.pollRelease.getCount());
+    }
+    finally
+    {
+      TestConnector.pollRelease.countDown();
+      poller.join();
+      grabber.join();
+      TestConnector.pollStarted = null;
+      TestConnector.pollRelease = null;
+    }
+    if (failure.get() != null)
+      throw new Exception("Worker failed: "+failure.get().getMessage(),failure.get());
+    pool.closeAllConnectors(tc);
+  }
+
+  @Test
+  public void closeReleasesWaiters()
+    throws Exception
+  {
+    final TestPool pool = new TestPool();
+    final ConfigParams params = new ConfigParams();
+    IThreadContext tc = ThreadContextFactory.make();
+    final TestConnector held = pool.grab(tc,"closing",className,params,1);
+    final AtomicReference<Object> result = new AtomicReference<Object>();
+    Thread waiter = new Thread()
+    {
+      public void run()
+      {
+        try
+        {
+          // The pool is closed while this waits; the grab then goes to a new pool
+          result.set(pool.grab(ThreadContextFactory.make(),"closing",className,params,1));
+        }
+        catch (Throwable e)
+        {
+          result.set(e);
+        }
+      }
+    };
+    waiter.start();
+    // Wait until the grab is blocked on the held connector
+    long deadline = System.currentTimeMillis() + 10000L;
+    while (waiter.getState() != Thread.State.WAITING && waiter.getState() != Thread.State.TIMED_WAITING &&
+      System.currentTimeMillis() < deadline)
+    {
+      Thread.yield();
+    }
+    assertNull(result.get());
+    pool.closeAllConnectors(tc);
+    waiter.join(5000L);
+    assertTrue("Waiter should have been given a connector from a new pool; got "+result.get(),result.get() instanceof TestConnector);
+    assertNotSame(held,result.get());
+    pool.release(tc,"closing",(TestConnector)result.get());
+    pool.closeAllConnectors(tc);
+  }
+
+  /** A connector pool for the test connector */
+  protected static class TestPool extends ConnectorPool<TestConnector>
+  {
+    public TestPool()
+    {
+      super("_TESTCONNECTORPOOL_");
+    }
+
+    @Override
+    protected boolean isInstalled(IThreadContext tc, String className)
+      throws ManifoldCFException
+    {
+      return true;
+    }
+
+    @Override
+    protected boolean isConnectionNameValid(IThreadContext tc, String connectionName)
+      throws ManifoldCFException
+    {
+      return true;
+    }
+
+    @Override
+    protected TestConnector createConnectorInstance(IThreadContext threadContext, String className)
+      throws ManifoldCFException
+    {
+      return new TestConnector();
+    }
+  }
+
+  /** A connector that records its use */
+  public static class TestConnector extends BaseConnector
+  {
+    /** If set, counted down when polling starts */
+    protected static volatile CountDownLatch pollStarted = null;
+    /** If set, polling waits for this */
+    protected static volatile CountDownLatch pollRelease = null;
+
+    protected final AtomicReference<Object> currentUser = new AtomicReference<Object>();
+
+    @Override
+    public void poll()
+      throws ManifoldCFException
+    {
+      CountDownLatch started = pollStarted;
+      CountDownLatch release = pollRelease;
+      if (release != null)
+      {
+        started.countDown();
+        try
+        {
+          release.await();
+        }
+        catch (InterruptedException e)
+        {
+          throw new ManifoldCFException(e.getMessage(),e,ManifoldCFException.INTERRUPTED);
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,160 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.database;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Tests the query executors: the interruption contract, and, when the org.apache.manifoldcf.test.benchmark
+* property is true, that a pooled thread or the requesting thread costs less per query than a new thread.  The tasks
+* here do no database work, so the timings are of the hand-off alone.
+*/
+public class QueryExecutorTest
+{
+  protected static final String[] strategies = new String[]{QueryExecutor.STRATEGY_THREAD,QueryExecutor.STRATEGY_POOL,
+    QueryExecutor.STRATEGY_VIRTUAL,QueryExecutor.STRATEGY_DIRECT};
+
+  @Test
+  public void overhead()
+    throws Exception
+  {
+    Assume.assumeTrue(Boolean.getBoolean("org.apache.manifoldcf.test.benchmark"));
+    int queryCount = 20000;
+    Map<String,Long> perQuery = new HashMap<String,Long>();
+    for (String strategy : strategies)
+    {
+      QueryExecutor executor = QueryExecutor.getExecutor(strategy);
+      // Warm up
+      runTasks(executor,queryCount);
+      long startTime = System.nanoTime();
+      int count = runTasks(executor,queryCount);
+      long elapsed = System.nanoTime() - startTime;
+      assertEquals(queryCount,count);
+      perQuery.put(strategy,new Long(elapsed/queryCount));
+    }
+    String summary = "Nanoseconds per query by strategy: "+perQuery;
+    long threadCost = perQuery.get(QueryExecutor.STRATEGY_THREAD).longValue();
+    assertTrue(summary,perQuery.get(QueryExecutor.STRATEGY_POOL).longValue() < threadCost);
+    assertTrue(summary,perQuery.get(QueryExecutor.STRATEGY_DIRECT).longValue() < threadCost);
+  }
+
+  @Test
+  public void interruption()
+    throws Exception
+  {
+    for (String strategy : strategies)
+    {
+      QueryExecutor executor = QueryExecutor.getExecutor(strategy);
+      // A task that ignores interrupts altogether, as some drivers do, and gives up only when cancelled
+      checkInterruption(executor,new BlockingTask(true),strategy.equals(QueryExecutor.STRATEGY_DIRECT));
+      // A task that gives up when its thread is interrupted
+      checkInterruption(executor,new BlockingTask(false),false);
+    }
+  }
+
+  protected static int runTasks(QueryExecutor executor, int count)
+    throws InterruptedException
+  {
+    CountingTask task = new CountingTask();
+    for (int i = 0; i < count; i++)
+    {
+      executor.execute(task);
+    }
+    return task.count;
+  }
+
+  protected static void checkInterruption(final QueryExecutor executor, final BlockingTask task, boolean expectCancel)
+    throws Exception
+  {
+    final CountDownLatch done = new CountDownLatch(1);
+    final Throwable[] result = new Throwable[1];
+    Thread caller = new Thread()
+    {
+      public void run()
+      {
+        try
+        {
+          executor.execute(task);
+        }
+        catch (Throwable e)
+        {
+          result[0] = e;
+        }
+        finally
+        {
+          done.countDown();
+        }
+      }
+    };
+    caller.start();
+    assertTrue("Task never started",task.started.await(5L,TimeUnit.SECONDS));
+    caller.interrupt();
+    assertTrue("Interrupt was not noticed",done.await(5L,TimeUnit.SECONDS));
+    assertTrue("Expected InterruptedException, saw "+result[0],result[0] instanceof InterruptedException);
+    if (expectCancel)
+      assertTrue("Expected the statement to be cancelled",task.cancelled);
+    // Let any abandoned task go
+    task.cancelled = true;
+  }
+
+  protected static class CountingTask implements QueryExecutor.Task
+  {
+    public int count = 0;
+
+    public void run()
+    {
+      count++;
+    }
+
+    public void cancel()
+    {
+    }
+  }
+
+  protected static class BlockingTask implements QueryExecutor.Task
+  {
+    protected final boolean ignoreInterrupts;
+    public final CountDownLatch started = new CountDownLatch(1);
+    public volatile boolean cancelled = false;
+
+    public BlockingTask(boolean ignoreInterrupts)
+    {
+      this.ignoreInterrupts = ignoreInterrupts;
+    }
+
+    public void run()
+    {
+      started.countDown();
+      while (!cancelled && (ignoreInterrupts || !Thread.currentThread().isInterrupted()))
+      {
+        // Parking leaves the interrupt flag alone
+        LockSupport.parkNanos(10000000L);
+      }
+    }
+
+    public void cancel()
+    {
+      cancelled = true;
+    }
+  }
+
+}
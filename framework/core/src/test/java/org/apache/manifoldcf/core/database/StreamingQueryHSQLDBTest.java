@@ -0,0 +1,180 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.database;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import java.lang.management.*;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Tests streaming queries against HSQLDB.  When the org.apache.manifoldcf.test.benchmark property is true, also
+* measures the memory cost per row of the compact row representation against the map-based one.
+*/
+public class StreamingQueryHSQLDBTest extends org.apache.manifoldcf.core.tests.BaseHSQLDB
+{
+  protected static final int rowCount = 5000;
+
+  @Test
+  public void streamingQuery()
+    throws Exception
+  {
+    IThreadContext tc = ThreadContextFactory.make();
+    IDBInterface database = DBInterfaceFactory.make(tc,
+      org.apache.manifoldcf.core.system.ManifoldCF.getMasterDatabaseName(),
+      org.apache.manifoldcf.core.system.ManifoldCF.getMasterDatabaseUsername(),
+      org.apache.manifoldcf.core.system.ManifoldCF.getMasterDatabasePassword());
+
+    Map<String,ColumnDescription> columnMap = new HashMap<String,ColumnDescription>();
+    columnMap.put("id",new ColumnDescription("BIGINT",true,false,null,null,false));
+    columnMap.put("name",new ColumnDescription("VARCHAR(255)",false,true,null,null,false));
+    database.performCreate("streamtest",columnMap,null);
+    try
+    {
+      for (int i = 0; i < rowCount; i++)
+      {
+        Map<String,Object> map = new HashMap<String,Object>();
+        map.put("id",new Long(i));
+        map.put("name","row"+i);
+        database.performInsert("streamtest",map,null);
+      }
+
+      // Outside a transaction, with a fetch size that doesn't divide the row count
+      checkRows(database,7);
+
+      // Inside a transaction, interleaved with other queries on the same connection
+      database.beginTransaction();
+      try
+      {
+        IResultCursor cursor = database.performStreamingQuery("SELECT id,name FROM streamtest ORDER BY id",null,null,100);
+        try
+        {
+          for (int i = 0; i < rowCount; i++)
+          {
+            IResultRow row = cursor.getNextRow();
+            assertNotNull(row);
+            assertEquals(new Long(i),row.getValue("id"));
+            if (i % 1000 == 0)
+            {
+              List list = new ArrayList();
+              list.add(new Long(i));
+              IResultSet set = database.performQuery("SELECT name FROM streamtest WHERE id=?",list,null,null);
+              assertEquals("row"+i,set.getRow(0).getValue("name"));
+            }
+          }
+          assertNull(cursor.getNextRow());
+        }
+        finally
+        {
+          cursor.close();
+        }
+      }
+      catch (ManifoldCFException e)
+      {
+        database.signalRollback();
+        throw e;
+      }
+      finally
+      {
+        database.endTransaction();
+      }
+
+      // The materialized result uses the compact rows too
+      IResultSet set = database.performQuery("SELECT id,name FROM streamtest WHERE id<?",Collections.singletonList((Object)new Long(3L)),null,null);
+      assertEquals(3,set.getRowCount());
+      assertEquals(2,set.getRow(0).getColumnCount());
+      assertEquals("row1",set.getRow(1).getValue("name"));
+      assertNull(set.getRow(1).getValue("nosuchcolumn"));
+    }
+    finally
+    {
+      database.performDrop("streamtest",null);
+    }
+  }
+
+  @Test
+  public void rowMemory()
+    throws Exception
+  {
+    Assume.assumeTrue(Boolean.getBoolean("org.apache.manifoldcf.test.benchmark"));
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    // The measurement needs the thread allocation counters
+    Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean allocBean = (com.sun.management.ThreadMXBean)bean;
+    Assume.assumeTrue(allocBean.isThreadAllocatedMemorySupported());
+    allocBean.setThreadAllocatedMemoryEnabled(true);
+    long threadID = Thread.currentThread().getId();
+
+    String[] labels = new String[]{"id","dochash","docid","status","checktime"};
+    Object[] sampleValues = new Object[]{new Long(1L),"hash","doc","P",new Long(0L)};
+    int count = 100000;
+    List<IResultRow> keep = new ArrayList<IResultRow>(count);
+
+    long start = allocBean.getThreadAllocatedBytes(threadID);
+    for (int i = 0; i < count; i++)
+    {
+      RRow row = new RRow();
+      for (int j = 0; j < labels.length; j++)
+      {
+        row.put(labels[j],sampleValues[j]);
+      }
+      keep.add(row);
+    }
+    long mapBytes = allocBean.getThreadAllocatedBytes(threadID) - start;
+    keep.clear();
+
+    start = allocBean.getThreadAllocatedBytes(threadID);
+    CompactRow.Columns columns = new CompactRow.Columns(labels);
+    for (int i = 0; i < count; i++)
+    {
+      Object[] values = new Object[labels.length];
+      System.arraycopy(sampleValues,0,values,0,labels.length);
+      keep.add(new CompactRow(columns,values));
+    }
+    long compactBytes = allocBean.getThreadAllocatedBytes(threadID) - start;
+
+    assertTrue("Bytes allocated per five-column row: map-based "+(mapBytes/count)+", compact "+(compactBytes/count),
+      compactBytes < mapBytes);
+  }
+
+  protected static void checkRows(IDBInterface database, int fetchSize)
+    throws Exception
+  {
+    IResultCursor cursor = database.performStreamingQuery("SELECT id,name FROM streamtest ORDER BY id",null,null,fetchSize);
+    try
+    {
+      int i = 0;
+      IResultRow row;
+      while ((row = cursor.getNextRow()) != null)
+      {
+        assertEquals(new Long(i),row.getValue("id"));
+        assertEquals("row"+i,row.getValue("name"));
+        i++;
+      }
+      assertEquals(rowCount,i);
+    }
+    finally
+    {
+      cursor.close();
+    }
+    // Closing twice is harmless
+    cursor.close();
+  }
+
+}
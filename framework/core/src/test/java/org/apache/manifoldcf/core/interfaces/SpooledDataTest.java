@@ -0,0 +1,385 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.interfaces;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Checks that spooled data is kept in off-heap chunks while it is small and the memory budget allows, and goes to
+* the shared spool file otherwise, and that the spool file survives an interrupted reader.  When
+* org.apache.manifoldcf.test.benchmark is true, it also checks that caching a crawler's mix of fetched documents
+* this way costs less than a temporary file for each.
+*/
+public class SpooledDataTest extends org.apache.manifoldcf.core.tests.BaseHSQLDB
+{
+  @Test
+  public void roundTrip()
+    throws Exception
+  {
+    int maxDocumentSize = BufferPool.getMaxDocumentSize();
+    for (int size : new int[]{0,1,16383,16384,16385,100000,maxDocumentSize,maxDocumentSize + 1,3000000})
+    {
+      byte[] data = makeData(size);
+      SpooledData spooled = write(data,new Random(size));
+      try
+      {
+        assertEquals(size > maxDocumentSize,spooled.isSpooled());
+        assertEquals((long)size,spooled.getLength());
+        // The data can be read more than once, and by more than one stream at a time
+        InputStream first = spooled.getInputStream();
+        assertArrayEquals(data,readAll(spooled.getInputStream()));
+        assertArrayEquals(data,readAll(first));
+      }
+      finally
+      {
+        spooled.discard();
+      }
+    }
+  }
+
+  @Test
+  public void budgetForcesSpill()
+    throws Exception
+  {
+    long memoryBefore = BufferPool.getMemoryInUse();
+    BufferPool.configure(memoryBefore + 200000L,BufferPool.DEFAULT_MAX_DOCUMENT_SIZE);
+    List<SpooledData> spooled = new ArrayList<SpooledData>();
+    try
+    {
+      long spillsBefore = SpooledData.getBudgetSpills();
+      byte[] data = makeData(50000);
+      for (int i = 0; i < 5; i++)
+      {
+        spooled.add(write(data,new Random(i)));
+      }
+      // Each document takes four 16K chunks, so only three fit
+      assertFalse(spooled.get(2).isSpooled());
+      assertTrue(spooled.get(3).isSpooled());
+      assertEquals(spillsBefore + 2,SpooledData.getBudgetSpills());
+      for (SpooledData sd : spooled)
+      {
+        assertArrayEquals(data,readAll(sd.getInputStream()));
+      }
+    }
+    finally
+    {
+      for (SpooledData sd : spooled)
+      {
+        sd.discard();
+      }
+      BufferPool.configure(BufferPool.DEFAULT_MEMORY_BUDGET,BufferPool.DEFAULT_MAX_DOCUMENT_SIZE);
+    }
+    assertEquals(memoryBefore,BufferPool.getMemoryInUse());
+  }
+
+  @Test
+  public void streamOutlivesDiscard()
+    throws Exception
+  {
+    long memoryBefore = BufferPool.getMemoryInUse();
+    long liveBefore = SpoolFile.getLiveBytes();
+    for (int size : new int[]{40000,BufferPool.getMaxDocumentSize() + 1})
+    {
+      byte[] data = makeData(size);
+      SpooledData spooled = write(data,new Random(size));
+      InputStream is = spooled.getInputStream();
+      spooled.discard();
+      try
+      {
+        spooled.getInputStream();
+        fail("Discarded data should not give out new streams");
+      }
+      catch (IOException e)
+      {
+      }
+      // Nothing is released while the stream is open
+      assertTrue(BufferPool.getMemoryInUse() > memoryBefore || SpoolFile.getLiveBytes() > liveBefore);
+      assertArrayEquals(data,readAll(is));
+      is.close();
+      assertEquals(memoryBefore,BufferPool.getMemoryInUse());
+      assertEquals(liveBefore,SpoolFile.getLiveBytes());
+    }
+  }
+
+  @Test
+  public void spoolIsReused()
+    throws Exception
+  {
+    byte[] data = makeData(BufferPool.getMaxDocumentSize() * 2);
+    write(data,new Random(0L)).discard();
+    long segmentsBefore = SpoolFile.getSegmentsStarted();
+    long fileBytes = SpoolFile.getFileBytes();
+    for (int i = 0; i < 20; i++)
+    {
+      SpooledData spooled = write(data,new Random(i));
+      assertArrayEquals(data,readAll(spooled.getInputStream()));
+      spooled.discard();
+    }
+    // Once everything is released, writing starts over at the beginning of the same file
+    assertEquals(segmentsBefore,SpoolFile.getSegmentsStarted());
+    assertEquals(fileBytes,SpoolFile.getFileBytes());
+  }
+
+  @Test
+  public void concurrentWriters()
+    throws Exception
+  {
+    final int maxDocumentSize = BufferPool.getMaxDocumentSize();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++)
+    {
+      final int seed = t;
+      threads[t] = new Thread()
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            Random random = new Random(seed);
+            List<byte[]> expected = new ArrayList<byte[]>();
+            List<SpooledData> spooled = new ArrayList<SpooledData>();
+            for (int i = 0; i < 20; i++)
+            {
+              byte[] data = new byte[random.nextInt(maxDocumentSize * 2)];
+              random.nextBytes(data);
+              expected.add(data);
+              spooled.add(write(data,random));
+            }
+            for (int i = 0; i < spooled.size(); i++)
+            {
+              assertArrayEquals(expected.get(i),readAll(spooled.get(i).getInputStream()));
+              spooled.get(i).discard();
+            }
+          }
+          catch (Throwable e)
+          {
+            failure.set(e);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads)
+    {
+      thread.join();
+    }
+    if (failure.get() != null)
+      throw new Exception("Writer failed: "+failure.get().getMessage(),failure.get());
+  }
+
+  @Test
+  public void interruptLeavesSpoolUsable()
+    throws Exception
+  {
+    byte[] data = makeData(1000);
+    SpoolFile.Extent extent = SpoolFile.write(ByteBuffer.wrap(data));
+    try
+    {
+      long segmentsBefore = SpoolFile.getSegmentsStarted();
+      byte[] buffer = new byte[data.length];
+      // An interrupted read closes the channel
+      Thread.currentThread().interrupt();
+      try
+      {
+        SpoolFile.read(extent,0L,buffer,0,buffer.length);
+        fail("Expected the interrupted read to fail");
+      }
+      catch (ClosedByInterruptException e)
+      {
+        assertTrue(Thread.interrupted());
+      }
+      // The extent can still be read, and more written to the same file
+      assertEquals(data.length,SpoolFile.read(extent,0L,buffer,0,buffer.length));
+      assertArrayEquals(data,buffer);
+      SpoolFile.Extent other = SpoolFile.write(ByteBuffer.wrap(data));
+      try
+      {
+        Arrays.fill(buffer,(byte)0);
+        assertEquals(data.length,SpoolFile.read(other,0L,buffer,0,buffer.length));
+        assertArrayEquals(data,buffer);
+      }
+      finally
+      {
+        SpoolFile.release(other);
+      }
+      assertEquals(segmentsBefore,SpoolFile.getSegmentsStarted());
+    }
+    finally
+    {
+      Thread.interrupted();
+      SpoolFile.release(extent);
+    }
+  }
+
+  @Test
+  public void documentMixCost()
+    throws Exception
+  {
+    Assume.assumeTrue(Boolean.getBoolean("org.apache.manifoldcf.test.benchmark"));
+    // Crawled pages: most under 100K, some larger, and the occasional large download
+    Random random = new Random(42L);
+    int[] sizes = new int[2000];
+    for (int i = 0; i < sizes.length; i++)
+    {
+      int r = random.nextInt(100);
+      if (r < 85)
+        sizes[i] = 2000 + random.nextInt(98000);
+      else if (r < 98)
+        sizes[i] = 100000 + random.nextInt(400000);
+      else
+        sizes[i] = 1000000 + random.nextInt(3000000);
+    }
+    byte[] data = makeData(4000000);
+
+    for (int pass = 0; pass < 2; pass++)
+    {
+      // A temporary file per document, as fetched data used to be cached
+      long startTime = System.nanoTime();
+      for (int size : sizes)
+      {
+        File tempFile = File.createTempFile("_webcache_","tmp");
+        OutputStream os = new FileOutputStream(tempFile);
+        try
+        {
+          copy(new ByteArrayInputStream(data,0,size),os);
+        }
+        finally
+        {
+          os.close();
+        }
+        InputStream is = new FileInputStream(tempFile);
+        try
+        {
+          copy(is,null);
+        }
+        finally
+        {
+          is.close();
+        }
+        tempFile.delete();
+      }
+      long fileTime = System.nanoTime() - startTime;
+
+      long spooledBefore = SpooledData.getSpooledCount();
+      long inMemoryBefore = SpooledData.getInMemoryCount();
+      long spoolBytesBefore = SpoolFile.getBytesWritten();
+      startTime = System.nanoTime();
+      for (int size : sizes)
+      {
+        SpooledData spooled = new SpooledData();
+        try
+        {
+          copy(new ByteArrayInputStream(data,0,size),spooled);
+          spooled.finish();
+          InputStream is = spooled.getInputStream();
+          try
+          {
+            copy(is,null);
+          }
+          finally
+          {
+            is.close();
+          }
+        }
+        finally
+        {
+          spooled.discard();
+        }
+      }
+      long spooledTime = System.nanoTime() - startTime;
+      if (pass == 1)
+      {
+        assertTrue(sizes.length+" fetched documents: a temporary file each "+(fileTime / 1000000L)+" ms with "+
+          sizes.length+" files; spooled "+(spooledTime / 1000000L)+" ms with "+(SpooledData.getInMemoryCount() - inMemoryBefore)+
+          " in memory, "+(SpooledData.getSpooledCount() - spooledBefore)+" in the spool ("+
+          ((SpoolFile.getBytesWritten() - spoolBytesBefore) / 1024L)+" KB), "+SpoolFile.getSegmentsStarted()+" spool files started, "+
+          (BufferPool.getDirectMemoryAllocated() / 1024L)+" KB off-heap",spooledTime < fileTime);
+      }
+    }
+  }
+
+  /** Write data in pieces of random size, as it comes off a socket */
+  protected static SpooledData write(byte[] data, Random random)
+    throws IOException
+  {
+    SpooledData rval = new SpooledData();
+    int offset = 0;
+    while (offset < data.length)
+    {
+      int amt = Math.min(data.length - offset,1 + random.nextInt(70000));
+      rval.write(data,offset,amt);
+      offset += amt;
+    }
+    rval.finish();
+    return rval;
+  }
+
+  protected static void copy(InputStream is, Object destination)
+    throws IOException
+  {
+    byte[] buffer = new byte[65536];
+    while (true)
+    {
+      int amt = is.read(buffer);
+      if (amt == -1)
+        break;
+      if (destination instanceof OutputStream)
+        ((OutputStream)destination).write(buffer,0,amt);
+      else if (destination instanceof SpooledData)
+        ((SpooledData)destination).write(buffer,0,amt);
+    }
+  }
+
+  protected static byte[] makeData(int size)
+  {
+    byte[] rval = new byte[size];
+    new Random(size).nextBytes(rval);
+    return rval;
+  }
+
+  protected static byte[] readAll(InputStream is)
+    throws IOException
+  {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    try
+    {
+      while (true)
+      {
+        int amt = is.read(buffer);
+        if (amt == -1)
+          break;
+        baos.write(buffer,0,amt);
+      }
+    }
+    finally
+    {
+      is.close();
+    }
+    return baos.toByteArray();
+  }
+
+}
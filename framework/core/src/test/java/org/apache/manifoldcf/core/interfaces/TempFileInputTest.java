@@ -0,0 +1,214 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.interfaces;
+
+import java.util.*;
+import java.io.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Checks that temporary data is kept in pooled chunks while the memory budget allows and goes to files
+* otherwise.  When org.apache.manifoldcf.test.benchmark is true, it also checks that buffering a realistic mix of
+* document sizes with the pool costs less than the old policy of keeping only very small documents in memory.
+*/
+public class TempFileInputTest extends org.apache.manifoldcf.core.tests.BaseHSQLDB
+{
+  @Test
+  public void roundTrip()
+    throws Exception
+  {
+    int maxDocumentSize = BufferPool.getMaxDocumentSize();
+    for (int size : new int[]{0,1,4095,4096,5000,100000,maxDocumentSize,maxDocumentSize + 1,3000000})
+    {
+      byte[] data = makeData(size);
+      TempFileInput input = new TempFileInput(new ByteArrayInputStream(data));
+      try
+      {
+        assertEquals(size <= maxDocumentSize,input.file == null);
+        assertEquals(size,input.getLength());
+        // The stream can be read more than once
+        for (int i = 0; i < 2; i++)
+        {
+          input.doneWithStream();
+          assertArrayEquals(data,readAll(input.getStream()));
+        }
+      }
+      finally
+      {
+        input.discard();
+      }
+      // Length-delimited streams stop where they are told to
+      input = new TempFileInput(new ByteArrayInputStream(data),size / 2);
+      try
+      {
+        assertArrayEquals(Arrays.copyOf(data,size / 2),readAll(input.getStream()));
+      }
+      finally
+      {
+        input.discard();
+      }
+    }
+  }
+
+  @Test
+  public void budgetForcesSpill()
+    throws Exception
+  {
+    long memoryBefore = BufferPool.getMemoryInUse();
+    BufferPool.configure(memoryBefore + 200000L,BufferPool.DEFAULT_MAX_DOCUMENT_SIZE);
+    List<BinaryInput> inputs = new ArrayList<BinaryInput>();
+    try
+    {
+      long spillsBefore = BufferPool.getSpills();
+      byte[] data = makeData(50000);
+      for (int i = 0; i < 5; i++)
+      {
+        inputs.add(new TempFileInput(new ByteArrayInputStream(data)));
+      }
+      // Each document takes 4+4+8+16+32K = 64K of chunks, so only three fit
+      assertNull(((TempFileInput)inputs.get(2)).file);
+      assertNotNull(((TempFileInput)inputs.get(3)).file);
+      assertEquals(spillsBefore + 2,BufferPool.getSpills());
+      for (BinaryInput input : inputs)
+      {
+        assertArrayEquals(data,readAll(input.getStream()));
+      }
+      // A transferred object owns the chunks
+      inputs.get(0).doneWithStream();
+      BinaryInput transferred = inputs.get(0).transfer();
+      inputs.get(0).discard();
+      assertArrayEquals(data,readAll(transferred.getStream()));
+      inputs.set(0,transferred);
+    }
+    finally
+    {
+      for (BinaryInput input : inputs)
+      {
+        input.discard();
+      }
+      BufferPool.configure(BufferPool.DEFAULT_MEMORY_BUDGET,BufferPool.DEFAULT_MAX_DOCUMENT_SIZE);
+    }
+    assertEquals(memoryBefore,BufferPool.getMemoryInUse());
+  }
+
+  @Test
+  public void chunksAreReused()
+    throws Exception
+  {
+    byte[] data = makeData(30000);
+    new TempFileInput(new ByteArrayInputStream(data)).discard();
+    long hitsBefore = BufferPool.getPoolHits();
+    long missesBefore = BufferPool.getPoolMisses();
+    new TempFileInput(new ByteArrayInputStream(data)).discard();
+    assertEquals(missesBefore,BufferPool.getPoolMisses());
+    assertTrue(BufferPool.getPoolHits() > hitsBefore);
+  }
+
+  @Test
+  public void documentMixCost()
+    throws Exception
+  {
+    Assume.assumeTrue(Boolean.getBoolean("org.apache.manifoldcf.test.benchmark"));
+    // Mostly small pages, some larger ones, and the occasional large attachment
+    Random random = new Random(42L);
+    int[] sizes = new int[2000];
+    for (int i = 0; i < sizes.length; i++)
+    {
+      int r = random.nextInt(100);
+      if (r < 70)
+        sizes[i] = 1000 + random.nextInt(15000);
+      else if (r < 95)
+        sizes[i] = 16000 + random.nextInt(240000);
+      else
+        sizes[i] = 1000000 + random.nextInt(3000000);
+    }
+    byte[] data = makeData(4000000);
+
+    for (int pass = 0; pass < 2; pass++)
+    {
+      // The old policy: anything over 8K goes to a file
+      long filesBefore = BufferPool.getTempFiles();
+      long startTime = System.nanoTime();
+      for (int size : sizes)
+      {
+        consume(new TempFileInput(new ByteArrayInputStream(data,0,size),-1L,8192));
+      }
+      long oldTime = System.nanoTime() - startTime;
+      long oldFiles = BufferPool.getTempFiles() - filesBefore;
+
+      filesBefore = BufferPool.getTempFiles();
+      long missesBefore = BufferPool.getPoolMisses();
+      startTime = System.nanoTime();
+      for (int size : sizes)
+      {
+        consume(new TempFileInput(new ByteArrayInputStream(data,0,size)));
+      }
+      long pooledTime = System.nanoTime() - startTime;
+      long pooledFiles = BufferPool.getTempFiles() - filesBefore;
+      if (pass == 1)
+      {
+        String summary = sizes.length+" documents: 8K in-memory limit "+(oldTime / 1000000L)+" ms with "+oldFiles+
+          " temporary files; pooled "+(pooledTime / 1000000L)+" ms with "+pooledFiles+" temporary files and "+
+          (BufferPool.getPoolMisses() - missesBefore)+" new chunks";
+        assertTrue(summary,pooledFiles < oldFiles);
+        assertTrue(summary,pooledTime < oldTime);
+      }
+    }
+  }
+
+  protected static void consume(BinaryInput input)
+    throws Exception
+  {
+    try
+    {
+      InputStream is = input.getStream();
+      byte[] buffer = new byte[65536];
+      while (is.read(buffer) != -1)
+      {
+      }
+    }
+    finally
+    {
+      input.discard();
+    }
+  }
+
+  protected static byte[] makeData(int size)
+  {
+    byte[] rval = new byte[size];
+    new Random(size).nextBytes(rval);
+    return rval;
+  }
+
+  protected static byte[] readAll(InputStream is)
+    throws IOException
+  {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    while (true)
+    {
+      int amt = is.read(buffer);
+      if (amt == -1)
+        break;
+      baos.write(buffer,0,amt);
+    }
+    return baos.toByteArray();
+  }
+
+}
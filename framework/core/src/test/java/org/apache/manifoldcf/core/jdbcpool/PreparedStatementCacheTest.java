@@ -0,0 +1,153 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.jdbcpool;
+
+import java.sql.*;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class PreparedStatementCacheTest
+{
+
+  @BeforeClass
+  public static void loadDriver()
+    throws Exception
+  {
+    Class.forName("org.hsqldb.jdbcDriver");
+  }
+
+  @Test
+  public void reuseAndEviction()
+    throws Exception
+  {
+    ConnectionPool pool = new ConnectionPool("jdbc:hsqldb:mem:stmtcache1","sa","",1,300000L,2,false);
+    WrappedConnection wc = pool.getConnection();
+    execute(wc,"CREATE TABLE t1 (id BIGINT)");
+    PreparedStatementCache cache = wc.getStatementCache();
+    assertNotNull(cache);
+
+    PreparedStatement ps1 = cache.getStatement("SELECT id FROM t1 WHERE id=?");
+    cache.returnStatement("SELECT id FROM t1 WHERE id=?",ps1);
+    assertEquals(0L,pool.getStatementCacheHits());
+    assertEquals(1L,pool.getStatementCacheMisses());
+
+    // The same text gets the same statement, even after the connection goes through the pool
+    wc.release();
+    wc = pool.getConnection();
+    cache = wc.getStatementCache();
+    PreparedStatement ps2 = cache.getStatement("SELECT id FROM t1 WHERE id=?");
+    assertSame(ps1,ps2);
+    assertEquals(1L,pool.getStatementCacheHits());
+    cache.returnStatement("SELECT id FROM t1 WHERE id=?",ps2);
+
+    // Two more statements push the least recently used one out
+    PreparedStatement ps3 = cache.getStatement("SELECT id FROM t1 WHERE id>?");
+    cache.returnStatement("SELECT id FROM t1 WHERE id>?",ps3);
+    PreparedStatement ps4 = cache.getStatement("SELECT id FROM t1 WHERE id<?");
+    cache.returnStatement("SELECT id FROM t1 WHERE id<?",ps4);
+    assertEquals(2,cache.size());
+    assertTrue(ps1.isClosed());
+    assertFalse(ps3.isClosed());
+
+    // A discarded statement is closed, not cached
+    PreparedStatement ps5 = cache.getStatement("SELECT id FROM t1 WHERE id<>?");
+    cache.discardStatement(ps5);
+    assertTrue(ps5.isClosed());
+    assertEquals(2,cache.size());
+
+    wc.release();
+    pool.closePool();
+  }
+
+  @Test
+  public void schemaChange()
+    throws Exception
+  {
+    ConnectionPool pool = new ConnectionPool("jdbc:hsqldb:mem:stmtcache2","sa","",1,300000L,10,false);
+    WrappedConnection wc = pool.getConnection();
+    execute(wc,"CREATE TABLE t2 (id BIGINT)");
+    PreparedStatementCache cache = wc.getStatementCache();
+    PreparedStatement ps1 = cache.getStatement("SELECT id FROM t2");
+    cache.returnStatement("SELECT id FROM t2",ps1);
+
+    assertTrue(PreparedStatementCache.isSchemaChange("  alter table t2 add column name VARCHAR(10)"));
+    assertFalse(PreparedStatementCache.isSchemaChange("SELECT id FROM t2"));
+    assertFalse(PreparedStatementCache.isCacheable("COMMIT"));
+    PreparedStatementCache.noteSchemaChange();
+
+    PreparedStatement ps2 = cache.getStatement("SELECT id FROM t2");
+    assertNotSame(ps1,ps2);
+    assertTrue(ps1.isClosed());
+    cache.returnStatement("SELECT id FROM t2",ps2);
+
+    wc.release();
+    pool.closePool();
+  }
+
+  @Test
+  public void expiry()
+    throws Exception
+  {
+    ConnectionPool pool = new ConnectionPool("jdbc:hsqldb:mem:stmtcache3","sa","",1,0L,10,false);
+    WrappedConnection wc = pool.getConnection();
+    PreparedStatementCache cache = wc.getStatementCache();
+    PreparedStatement ps = cache.getStatement("SELECT COUNT(*) FROM INFORMATION_SCHEMA.SYSTEM_USERS");
+    cache.returnStatement("SELECT COUNT(*) FROM INFORMATION_SCHEMA.SYSTEM_USERS",ps);
+    wc.release();
+
+    // Expiring the connection closes its statements along with it
+    pool.cleanupExpiredConnections(System.currentTimeMillis() + 1000L);
+    assertTrue(ps.isClosed());
+    assertEquals(0,cache.size());
+
+    // A new connection starts with an empty cache
+    wc = pool.getConnection();
+    assertNotSame(cache,wc.getStatementCache());
+    assertEquals(0,wc.getStatementCache().size());
+    wc.release();
+    pool.closePool();
+  }
+
+  @Test
+  public void disabled()
+    throws Exception
+  {
+    ConnectionPool pool = new ConnectionPool("jdbc:hsqldb:mem:stmtcache4","sa","",1,300000L,false);
+    WrappedConnection wc = pool.getConnection();
+    assertNull(wc.getStatementCache());
+    wc.release();
+    pool.closePool();
+  }
+
+  protected static void execute(WrappedConnection wc, String sql)
+    throws SQLException
+  {
+    Statement s = wc.getConnection().createStatement();
+    try
+    {
+      s.execute(sql);
+    }
+    finally
+    {
+      s.close();
+    }
+  }
+
+}
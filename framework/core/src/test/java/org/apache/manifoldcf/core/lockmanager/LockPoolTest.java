@@ -0,0 +1,189 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.core.lockmanager;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Tests the in-JVM lock pool and lock gates: exclusion, cleanup of the pool, and threads that give up waiting.
+*/
+public class LockPoolTest
+{
+  @Test
+  public void writeExclusion()
+    throws Exception
+  {
+    final LockPool pool = new LockPool(new LockObjectFactory());
+    final int threadCount = 8;
+    final int iterations = 20000;
+    final int[] counter = new int[1];
+    final AtomicInteger inside = new AtomicInteger(0);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread[] threads = new Thread[threadCount];
+    for (int t = 0; t < threadCount; t++)
+    {
+      threads[t] = new Thread()
+      {
+        public void run()
+        {
+          try
+          {
+            Long threadID = new Long(getId());
+            for (int i = 0; i < iterations; i++)
+            {
+              enterWriteLock(pool,threadID,"key");
+              try
+              {
+                if (inside.incrementAndGet() != 1)
+                  throw new Exception("Two threads inside write lock");
+                counter[0]++;
+                inside.decrementAndGet();
+              }
+              finally
+              {
+                leaveWriteLock(pool,"key");
+              }
+            }
+          }
+          catch (Throwable e)
+          {
+            failure.set(e);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread t : threads)
+    {
+      t.join();
+    }
+    if (failure.get() != null)
+      throw new Exception("Worker failed: "+failure.get().getMessage(),failure.get());
+    assertEquals(threadCount*iterations,counter[0]);
+    assertTrue("Idle gates should have left the pool",pool.myLocks.isEmpty());
+  }
+
+  @Test
+  public void abandonedWait()
+    throws Exception
+  {
+    final LockPool pool = new LockPool(new LockObjectFactory());
+    Long ownerID = new Long(Thread.currentThread().getId());
+    enterWriteLock(pool,ownerID,"key");
+    // The first waiter takes permission and then waits on the lock object itself
+    final CountDownLatch firstDone = new CountDownLatch(1);
+    Thread first = new Thread()
+    {
+      public void run()
+      {
+        try
+        {
+          enterWriteLock(pool,new Long(getId()),"key");
+          leaveWriteLock(pool,"key");
+          firstDone.countDown();
+        }
+        catch (Exception e)
+        {
+        }
+      }
+    };
+    first.start();
+    waitForTickets(pool,"key",2L);
+    // The second waiter queues behind it for permission, and gives up
+    final CountDownLatch secondDone = new CountDownLatch(1);
+    final AtomicReference<Throwable> secondResult = new AtomicReference<Throwable>();
+    Thread second = new Thread()
+    {
+      public void run()
+      {
+        try
+        {
+          pool.getObject("key").enterWriteLock(new Long(getId()));
+        }
+        catch (Throwable e)
+        {
+          secondResult.set(e);
+        }
+        secondDone.countDown();
+      }
+    };
+    second.start();
+    waitForTickets(pool,"key",3L);
+    second.interrupt();
+    assertTrue(secondDone.await(5L,TimeUnit.SECONDS));
+    assertTrue("Expected InterruptedException, saw "+secondResult.get(),secondResult.get() instanceof InterruptedException);
+    // Releasing the lock lets the first waiter through, past the abandoned ticket
+    leaveWriteLock(pool,"key");
+    assertTrue("First waiter never got the lock",firstDone.await(5L,TimeUnit.SECONDS));
+    assertTrue("Idle gates should have left the pool",pool.myLocks.isEmpty());
+  }
+
+  protected static void waitForTickets(LockPool pool, Object lockKey, long ticketCount)
+    throws Exception
+  {
+    long stopTime = System.currentTimeMillis() + 5000L;
+    // A thread that takes a ticket and then waits leaves it outstanding
+    while (pool.getObject(lockKey).nextTicket.get() < ticketCount)
+    {
+      if (System.currentTimeMillis() > stopTime)
+        throw new Exception("Waiter never queued");
+      Thread.sleep(1L);
+    }
+    // Give it time to actually go to sleep
+    Thread.sleep(100L);
+  }
+
+  // These do what BaseLockManager does: go back to the pool when a gate turns out to have expired.
+
+  protected static void enterWriteLock(LockPool pool, Long threadID, Object lockKey)
+    throws Exception
+  {
+    while (true)
+    {
+      try
+      {
+        pool.getObject(lockKey).enterWriteLock(threadID);
+        return;
+      }
+      catch (ExpiredObjectException e)
+      {
+      }
+    }
+  }
+
+  protected static void leaveWriteLock(LockPool pool, Object lockKey)
+    throws Exception
+  {
+    while (true)
+    {
+      try
+      {
+        pool.getObject(lockKey).leaveWriteLock();
+        return;
+      }
+      catch (ExpiredObjectException e)
+      {
+      }
+    }
+  }
+
+}
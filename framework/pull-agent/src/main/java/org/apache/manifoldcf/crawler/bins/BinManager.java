@@ -24,6 +24,9 @@ import org.apache.manifoldcf.crawler.interfaces.CacheKeyFactory;
 import org.apache.manifoldcf.crawler.system.ManifoldCF;
 import org.apache.manifoldcf.crawler.system.Logging;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.nio.charset.StandardCharsets;
 
 /** This class manages the docbins table.
 * A row in this table represents a document bin.  The count that is kept is the
@@ -38,7 +41,13 @@ import java.util.*;
 * <tr><td>bincounter</td><td>BIGINT</td><td></td></tr>
 * </table>
 * <br><br>
-* 
+*
+* Handing out bin values one transaction at a time makes every document that is added to a busy bin wait on the
+* row lock of that bin.  When a reservation size is configured, each process instead reserves a block of
+* consecutive values for a bin in one transaction, and hands the values out of memory.  The blocks grow, up to
+* the reservation size, for bins that keep asking for values.  Unused values are returned when the process shuts
+* down, provided no other process has advanced the bin counter in the meantime.  Resetting the bins discards the
+* reservations of every process.
 */
 public class BinManager extends org.apache.manifoldcf.core.database.BaseTable implements IBinManager
 {
@@ -48,14 +57,59 @@ public class BinManager extends org.apache.manifoldcf.core.database.BaseTable im
   public final static String connectorClassField = "connectorclass";
   public final static String binNameField = "binname";
   public final static String binCounterField = "bincounter";
-  
+
+  /** Shared data resource holding the bin generation, which changes whenever the bins are reset */
+  protected final static String binsGenerationResource = "_BINS_GENERATION_";
+  /** How often the bin generation is checked, in milliseconds */
+  protected final static long GENERATION_CHECK_INTERVAL = 1000L;
+  /** The maximum number of bins to hold reservations for; other bins go to the database every time */
+  protected final static int MAX_RESERVED_BINS = 10000;
+  /** The number of locks that serialize reservation refills */
+  protected final static int REFILL_LOCK_COUNT = 64;
+
+  /** The reserved blocks of this process, keyed by bin */
+  protected final static ConcurrentMap<BinKey,BinReservation> reservations = new ConcurrentHashMap<BinKey,BinReservation>();
+  /** Locks for refilling reservations, by bin hash */
+  protected final static Object[] refillLocks = new Object[REFILL_LOCK_COUNT];
+  static
+  {
+    for (int i = 0; i < refillLocks.length; i++)
+    {
+      refillLocks[i] = new Object();
+    }
+  }
+  /** Lock protecting the generation fields */
+  protected final static Object generationLock = new Object();
+  /** The bin generation the reservations belong to */
+  protected static String reservationGeneration = null;
+  /** The last time the bin generation was checked */
+  protected static volatile long lastGenerationCheck = 0L;
+
+  /** Lock manager, or null if there are no reservations */
+  protected final ILockManager lockManager;
+  /** The largest block of values to reserve at one time, or 0 to reserve nothing */
+  protected final int maxReservation;
+
   /** Constructor.
   *@param database is the database handle.
   */
   public BinManager(IDBInterface database)
     throws ManifoldCFException
+  {
+    this(database,null,0);
+  }
+
+  /** Constructor.
+  *@param database is the database handle.
+  *@param lockManager is the lock manager, used to notice resets by other processes.
+  *@param maxReservation is the largest block of values to reserve for a bin at one time, or 0 to reserve nothing.
+  */
+  public BinManager(IDBInterface database, ILockManager lockManager, int maxReservation)
+    throws ManifoldCFException
   {
     super(database,"docbins");
+    this.lockManager = lockManager;
+    this.maxReservation = (lockManager == null)?0:maxReservation;
   }
 
   /** Install or upgrade this table.
@@ -128,6 +182,46 @@ public class BinManager extends org.apache.manifoldcf.core.database.BaseTable im
     throws ManifoldCFException
   {
     performDelete("", null, null);
+    if (lockManager != null)
+    {
+      // Tell every process that its reservations are stale
+      String generation = Long.toString(System.currentTimeMillis()) + ":" + Long.toString(System.nanoTime());
+      synchronized (generationLock)
+      {
+        lockManager.writeData(binsGenerationResource,generation.getBytes(StandardCharsets.UTF_8));
+        reservationGeneration = generation;
+        lastGenerationCheck = System.currentTimeMillis();
+        reservations.clear();
+      }
+    }
+  }
+
+  /** Return the unused values of this process's reservations to the database.  A bin counter is only
+  * wound back if no other process has advanced it since the reservation was made.
+  */
+  @Override
+  public void releaseReservedValues()
+    throws ManifoldCFException
+  {
+    Iterator<Map.Entry<BinKey,BinReservation>> iter = reservations.entrySet().iterator();
+    while (iter.hasNext())
+    {
+      Map.Entry<BinKey,BinReservation> entry = iter.next();
+      iter.remove();
+      BinKey key = entry.getKey();
+      BinReservation reservation = entry.getValue();
+      long used = reservation.close();
+      if (used >= reservation.size)
+        continue;
+      ArrayList params = new ArrayList();
+      String query = buildConjunctionClause(params,new ClauseDescription[]{
+        new UnitaryClause(connectorClassField,key.connectorClass),
+        new UnitaryClause(binNameField,key.binName),
+        new UnitaryClause(binCounterField,new Double(reservation.base + (double)reservation.size))});
+      HashMap map = new HashMap();
+      map.put(binCounterField,new Double(reservation.base + (double)used));
+      performUpdate(map," WHERE "+query,params,null);
+    }
   }
 
   /** Get N bin values (and set next one).  If the record does not yet exist, create it with a starting value.
@@ -142,6 +236,28 @@ public class BinManager extends org.apache.manifoldcf.core.database.BaseTable im
   @Override
   public double[] getIncrementBinValues(String connectorClass, String binName, double newBinValue, int count)
     throws ManifoldCFException
+  {
+    // Use a reservation if there is one, but never refill here: the caller's transaction may still be rolled back,
+    // and the reservation would then describe values the database does not know were handed out.
+    if (maxReservation > 0)
+    {
+      double[] rval = takeReserved(connectorClass,binName,newBinValue,count);
+      if (rval != null)
+        return rval;
+    }
+    return readIncrementBinValues(connectorClass,binName,newBinValue,count);
+  }
+
+  /** Get N bin values from the database (and set next one).  If the record does not yet exist, create it with
+  * a starting value.  We expect this to happen within a transaction!!
+  *@param connectorClass is the class name of the connector
+  *@param binName is the name of the bin (256 char max)
+  *@param newBinValue is the value to use if there is no such bin yet.
+  *@param count is the number of values desired.
+  *@return the counter values.
+  */
+  protected double[] readIncrementBinValues(String connectorClass, String binName, double newBinValue, int count)
+    throws ManifoldCFException
   {
     double[] returnValues = new double[count];
     // SELECT FOR UPDATE/MODIFY is the most common path
@@ -195,6 +311,82 @@ public class BinManager extends org.apache.manifoldcf.core.database.BaseTable im
   @Override
   public double[] getIncrementBinValuesInTransaction(String connectorClass, String binName, double newBinValue, int count)
     throws ManifoldCFException
+  {
+    if (maxReservation <= 0)
+      return readIncrementBinValuesInTransaction(connectorClass,binName,newBinValue,count);
+
+    double[] rval = takeReserved(connectorClass,binName,newBinValue,count);
+    if (rval != null)
+      return rval;
+
+    BinKey key = new BinKey(connectorClass,binName);
+    BinReservation current = reservations.get(key);
+    if (current == null && reservations.size() >= MAX_RESERVED_BINS)
+      return readIncrementBinValuesInTransaction(connectorClass,binName,newBinValue,count);
+
+    synchronized (refillLocks[(key.hashCode() & 0x7fffffff) % refillLocks.length])
+    {
+      // Another thread may have refilled while we waited
+      rval = takeReserved(connectorClass,binName,newBinValue,count);
+      if (rval != null)
+        return rval;
+      current = reservations.get(key);
+      // Start with what was asked for, and double for bins that keep coming back
+      long blockSize = count;
+      if (current != null)
+        blockSize = Math.max(blockSize,Math.min((long)maxReservation,current.size * 2L));
+      double[] block = readIncrementBinValuesInTransaction(connectorClass,binName,newBinValue,(int)blockSize);
+      BinReservation reservation = new BinReservation(block[0],blockSize);
+      rval = reservation.take(newBinValue,count);
+      reservations.put(key,reservation);
+      if (Logging.perf.isDebugEnabled())
+        Logging.perf.debug("Reserved "+blockSize+" values for bin '"+binName+"' of connector class '"+connectorClass+"'");
+      return rval;
+    }
+  }
+
+  /** Take values from this process's reservation for a bin.
+  *@return the values, or null if there is no reservation or it does not have enough left.
+  */
+  protected double[] takeReserved(String connectorClass, String binName, double newBinValue, int count)
+    throws ManifoldCFException
+  {
+    checkGeneration();
+    BinReservation reservation = reservations.get(new BinKey(connectorClass,binName));
+    if (reservation == null)
+      return null;
+    return reservation.take(newBinValue,count);
+  }
+
+  /** Discard the reservations if another process has reset the bins.  This is checked at most once per
+  * GENERATION_CHECK_INTERVAL.
+  */
+  protected void checkGeneration()
+    throws ManifoldCFException
+  {
+    long currentTime = System.currentTimeMillis();
+    if (currentTime - lastGenerationCheck < GENERATION_CHECK_INTERVAL)
+      return;
+    synchronized (generationLock)
+    {
+      if (currentTime - lastGenerationCheck < GENERATION_CHECK_INTERVAL)
+        return;
+      lastGenerationCheck = currentTime;
+      byte[] data = lockManager.readData(binsGenerationResource);
+      String generation = (data == null)?null:new String(data,StandardCharsets.UTF_8);
+      if (generation == null && reservationGeneration == null)
+        return;
+      if (generation != null && generation.equals(reservationGeneration))
+        return;
+      reservationGeneration = generation;
+      reservations.clear();
+    }
+  }
+
+  /** Get N bin values from the database, in a retry-able transaction.
+  */
+  protected double[] readIncrementBinValuesInTransaction(String connectorClass, String binName, double newBinValue, int count)
+    throws ManifoldCFException
   {
     while (true)
     {
@@ -202,7 +394,7 @@ public class BinManager extends org.apache.manifoldcf.core.database.BaseTable im
       beginTransaction();
       try
       {
-        return getIncrementBinValues(connectorClass, binName, newBinValue, count);
+        return readIncrementBinValues(connectorClass, binName, newBinValue, count);
       }
       catch (Error e)
       {
@@ -234,4 +426,85 @@ public class BinManager extends org.apache.manifoldcf.core.database.BaseTable im
     }
   }
 
+  /** Key of a bin.
+  */
+  protected static class BinKey
+  {
+    public final String connectorClass;
+    public final String binName;
+
+    public BinKey(String connectorClass, String binName)
+    {
+      this.connectorClass = connectorClass;
+      this.binName = binName;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return connectorClass.hashCode() * 31 + binName.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof BinKey))
+        return false;
+      BinKey other = (BinKey)o;
+      return connectorClass.equals(other.connectorClass) && binName.equals(other.binName);
+    }
+  }
+
+  /** A block of consecutive bin values that this process has reserved in the database.
+  * Values are handed out lock-free, in increasing order.
+  */
+  protected static class BinReservation
+  {
+    /** The first value of the block */
+    public final double base;
+    /** The number of values in the block */
+    public final long size;
+    /** The number of values handed out, or skipped */
+    protected final AtomicLong used = new AtomicLong(0L);
+
+    public BinReservation(double base, long size)
+    {
+      this.base = base;
+      this.size = size;
+    }
+
+    /** Take values from the block.  Values lower than newBinValue are skipped, as the database would.
+    *@return the values, or null if the block does not have enough left.
+    */
+    public double[] take(double newBinValue, int count)
+    {
+      while (true)
+      {
+        long current = used.get();
+        long start = current;
+        if (base + (double)start < newBinValue)
+          start = (long)Math.ceil(newBinValue - base);
+        long end = start + count;
+        if (end > size)
+          return null;
+        if (!used.compareAndSet(current,end))
+          continue;
+        double[] rval = new double[count];
+        for (int i = 0; i < count; i++)
+        {
+          rval[i] = base + (double)(start + i);
+        }
+        return rval;
+      }
+    }
+
+    /** Stop handing out values.
+    *@return the number of values that were used.
+    */
+    public long close()
+    {
+      return Math.min(size,used.getAndSet(size));
+    }
+  }
+
 }
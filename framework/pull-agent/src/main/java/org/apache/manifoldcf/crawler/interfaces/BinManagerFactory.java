@@ -49,7 +49,8 @@ public class BinManagerFactory
         ManifoldCF.getMasterDatabaseUsername(),
         ManifoldCF.getMasterDatabasePassword());
 
-      o = new org.apache.manifoldcf.crawler.bins.BinManager(database);
+      o = new org.apache.manifoldcf.crawler.bins.BinManager(database,LockManagerFactory.make(threadContext),
+        ManifoldCF.getBinReservationSize(threadContext));
       threadContext.save(binManagerName,o);
     }
     return (IBinManager)o;
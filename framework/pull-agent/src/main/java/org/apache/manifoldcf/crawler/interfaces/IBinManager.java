@@ -41,6 +41,12 @@ public interface IBinManager
   public void reset()
     throws ManifoldCFException;
 
+  /** Return the unused values of this process's reserved blocks of bin values to the database.
+  * Called when the process shuts down.
+  */
+  public void releaseReservedValues()
+    throws ManifoldCFException;
+
   /** Get N bin values (and set next one).  If the record does not yet exist, create it with a starting value.
   * We expect this to happen within a transaction!! 
   *@param connectorClass is the class name of the connector
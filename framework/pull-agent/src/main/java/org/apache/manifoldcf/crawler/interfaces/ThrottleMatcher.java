@@ -0,0 +1,238 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.interfaces;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+
+/** This class holds the compiled throttle definitions of a repository connection.
+* Compiling the throttle regular expressions costs far more than using them, so one instance is kept per
+* connection name for the life of the process.  It is replaced when the connection's throttle definitions
+* change, which is detected by comparing them against the connection object that is handed in.
+*
+* The throttles that match a bin, and the bin's resulting maximum fetch rate, are remembered for the most recently
+* used bins, since the same bins come up again and again while a site is crawled.
+*
+* Instances may be shared between threads.
+*/
+public class ThrottleMatcher
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  /** The maximum number of bins whose results are remembered, per connection */
+  protected final static int MAX_REMEMBERED_BINS = 10000;
+
+  /** The cached matchers, keyed by connection name */
+  protected final static ConcurrentMap<String,ThrottleMatcher> matchers = new ConcurrentHashMap<String,ThrottleMatcher>();
+
+  /** The throttle regular expressions, as they appear in the connection */
+  protected final String[] regexps;
+  /** The throttle values, in fetches per millisecond, as they appear in the connection */
+  protected final float[] throttleValues;
+  /** The compiled patterns of the throttles whose regular expressions are valid */
+  protected final Pattern[] patterns;
+  /** The fetch rates, in fetches per millisecond, corresponding to the patterns */
+  protected final double[] maxRates;
+  /** The results for recently seen bins, in least-recently-used order */
+  protected final Map<String,BinThrottles> binResults = new LinkedHashMap<String,BinThrottles>(16,0.75f,true)
+  {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String,BinThrottles> eldest)
+    {
+      return size() > MAX_REMEMBERED_BINS;
+    }
+  };
+
+  /** Constructor.
+  *@param connection is the connection whose throttles are to be compiled.
+  */
+  protected ThrottleMatcher(IRepositoryConnection connection)
+  {
+    regexps = connection.getThrottles();
+    throttleValues = new float[regexps.length];
+    List<Pattern> patternList = new ArrayList<Pattern>();
+    List<Double> rateList = new ArrayList<Double>();
+    for (int i = 0; i < regexps.length; i++)
+    {
+      throttleValues[i] = connection.getThrottleValue(regexps[i]);
+      try
+      {
+        patternList.add(Pattern.compile(regexps[i]));
+        rateList.add(new Double((double)throttleValues[i]));
+      }
+      catch (PatternSyntaxException e)
+      {
+        // Ignore the bad entry; it just won't contribute any throttling.
+      }
+    }
+    patterns = patternList.toArray(new Pattern[0]);
+    maxRates = new double[rateList.size()];
+    for (int i = 0; i < maxRates.length; i++)
+    {
+      maxRates[i] = rateList.get(i).doubleValue();
+    }
+  }
+
+  /** Get the matcher for a connection, compiling it only if the connection's throttles have changed
+  * since the last time it was requested.
+  *@param connection is the repository connection.
+  *@return the matcher.
+  */
+  public static ThrottleMatcher getMatcher(IRepositoryConnection connection)
+  {
+    String connectionName = connection.getName();
+    ThrottleMatcher rval = matchers.get(connectionName);
+    if (rval != null && rval.isCurrent(connection))
+      return rval;
+    // Two threads may both compile a changed connection; either result will do.
+    rval = new ThrottleMatcher(connection);
+    matchers.put(connectionName,rval);
+    return rval;
+  }
+
+  /** Get the number of valid throttles.
+  */
+  public int getThrottleCount()
+  {
+    return patterns.length;
+  }
+
+  /** Get the regular expression for a valid throttle.
+  *@param index is the throttle index.
+  */
+  public String getRegexp(int index)
+  {
+    return patterns[index].pattern();
+  }
+
+  /** Get the maximum fetch rate for a valid throttle.
+  *@param index is the throttle index.
+  *@return the rate, in fetches per millisecond.
+  */
+  public double getMaxRate(int index)
+  {
+    return maxRates[index];
+  }
+
+  /** Find the throttles that apply to a bin.
+  *@param binName is the bin name.
+  *@return the indexes of the throttles whose regular expressions match the bin.  The array is shared, and must
+  *  not be modified.
+  */
+  public int[] findMatchingThrottles(String binName)
+  {
+    return getBinThrottles(binName).matches;
+  }
+
+  /** Find the maximum fetch rate for a bin.  When more than one throttle matches a bin, the lowest rate applies.
+  *@param binName is the bin name.
+  *@return the rate, in fetches per millisecond, or Double.POSITIVE_INFINITY if no throttle matches.
+  */
+  public double findMaxRate(String binName)
+  {
+    return getBinThrottles(binName).maxRate;
+  }
+
+  /** Get the throttles of a bin, from the remembered results if possible.
+  *@param binName is the bin name.
+  *@return the throttles.
+  */
+  protected BinThrottles getBinThrottles(String binName)
+  {
+    BinThrottles rval;
+    synchronized (binResults)
+    {
+      rval = binResults.get(binName);
+    }
+    if (rval != null)
+      return rval;
+    // Match outside of the lock; a bin that two threads evaluate at once just gets the same answer twice.
+    rval = new BinThrottles(computeMatchingThrottles(binName));
+    synchronized (binResults)
+    {
+      binResults.put(binName,rval);
+    }
+    return rval;
+  }
+
+  /** Evaluate the throttles against a bin.
+  *@param binName is the bin name.
+  *@return the indexes of the throttles whose regular expressions match the bin.
+  */
+  protected int[] computeMatchingThrottles(String binName)
+  {
+    int[] matches = new int[patterns.length];
+    int count = 0;
+    for (int i = 0; i < patterns.length; i++)
+    {
+      if (patterns[i].matcher(binName).find())
+        matches[count++] = i;
+    }
+    if (count == matches.length)
+      return matches;
+    int[] rval = new int[count];
+    System.arraycopy(matches,0,rval,0,count);
+    return rval;
+  }
+
+  /** Check whether this matcher still describes the throttles of a connection.
+  *@param connection is the current description of the connection.
+  *@return true if the throttles are unchanged.
+  */
+  protected boolean isCurrent(IRepositoryConnection connection)
+  {
+    String[] currentRegexps = connection.getThrottles();
+    if (currentRegexps.length != regexps.length)
+      return false;
+    for (int i = 0; i < regexps.length; i++)
+    {
+      if (!currentRegexps[i].equals(regexps[i]))
+        return false;
+      if (connection.getThrottleValue(currentRegexps[i]) != throttleValues[i])
+        return false;
+    }
+    return true;
+  }
+
+  /** The throttles that apply to one bin.
+  */
+  protected class BinThrottles
+  {
+    /** The indexes of the matching throttles */
+    public final int[] matches;
+    /** The lowest rate among the matching throttles */
+    public final double maxRate;
+
+    public BinThrottles(int[] matches)
+    {
+      this.matches = matches;
+      double rate = Double.POSITIVE_INFINITY;
+      for (int index : matches)
+      {
+        // The direction of this inequality reflects the fact that the throttling is conservative when more rules are present.
+        if (maxRates[index] < rate)
+          rate = maxRates[index];
+      }
+      this.maxRate = rate;
+    }
+  }
+
+}
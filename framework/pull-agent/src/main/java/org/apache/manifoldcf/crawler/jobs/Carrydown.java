@@ -19,6 +19,7 @@
 package org.apache.manifoldcf.crawler.jobs;
 
 import java.util.*;
+import java.io.*;
 
 import org.apache.manifoldcf.core.interfaces.*;
 import org.apache.manifoldcf.crawler.interfaces.*;
@@ -76,13 +77,25 @@ public class Carrydown extends org.apache.manifoldcf.core.database.BaseTable
     isNewMap.put("E",new Integer(ISNEW_EXISTING));
   }
 
+  /** The number of rows to write with one insert statement */
+  protected static final int INSERT_BATCH_SIZE = 100;
+
+  /** The columns of an inserted row, in order */
+  protected static final String[] insertColumns = new String[]{jobIDField,parentIDHashField,childIDHashField,dataNameField,
+    dataValueHashField,dataValueField,newField,processIDField};
+
+  /** Thread context */
+  protected final IThreadContext threadContext;
+
   /** Constructor.
+  *@param threadContext is the thread context.
   *@param database is the database handle.
   */
-  public Carrydown(IDBInterface database)
+  public Carrydown(IThreadContext threadContext, IDBInterface database)
     throws ManifoldCFException
   {
     super(database,"carrydown");
+    this.threadContext = threadContext;
   }
 
   /** Install or upgrade.
@@ -188,6 +201,7 @@ public class Carrydown extends org.apache.manifoldcf.core.database.BaseTable
     String query = buildConjunctionClause(list,new ClauseDescription[]{
       new UnitaryClause(jobIDField,jobID)});
     performDelete("WHERE "+query,list,null);
+    CarrydownCache.invalidateJob(jobID);
   }
 
   // The strategy here is to leave all rows that have a given document as a parent labelled as "BASE" at the start of the
@@ -221,6 +235,7 @@ public class Carrydown extends org.apache.manifoldcf.core.database.BaseTable
       new UnitaryClause(newField,statusToString(ISNEW_EXISTING)),
       new UnitaryClause(processIDField,processID)});
     performUpdate(map,"WHERE "+query,list,null);
+    CarrydownCache.invalidateAll();
   }
 
   /** Clean up after all process IDs.
@@ -241,6 +256,7 @@ public class Carrydown extends org.apache.manifoldcf.core.database.BaseTable
     query = buildConjunctionClause(list,new ClauseDescription[]{
       new UnitaryClause(newField,statusToString(ISNEW_EXISTING))});
     performUpdate(map,"WHERE "+query,list,null);
+    CarrydownCache.invalidateAll();
   }
   
   /** Reset, at startup time, entire cluster
@@ -345,10 +361,12 @@ public class Carrydown extends org.apache.manifoldcf.core.database.BaseTable
 
     // Go through the list again, and based on the results above, decide to do either an insert or
     // an update.  Keep track of this information also, so we can build the return array when done.
+    // Inserts are written several rows to a statement, and updates several rows to a statement.
 
     HashMap insertHappened = new HashMap();
+    List<Object[]> insertRows = new ArrayList<Object[]>();
+    List<ValueRecord> updateRecords = new ArrayList<ValueRecord>();
 
-    int j = 0;
     Iterator iter = duplicateRemoval.keySet().iterator();
     while (iter.hasNext())
     {
@@ -356,69 +374,45 @@ public class Carrydown extends org.apache.manifoldcf.core.database.BaseTable
 
       String childDocumentIDHash = childDocumentRecord.getDocumentIDHash();
 
-      HashMap map = new HashMap();
-      String dataName = childDocumentRecord.getDataName();
-      String dataValueHash = childDocumentRecord.getDataValueHash();
-      Object dataValue = childDocumentRecord.getDataValue();
-
       if (presentMap.get(childDocumentRecord) == null)
       {
-        map.put(jobIDField,jobID);
-        map.put(parentIDHashField,parentDocumentIDHash);
-        map.put(childIDHashField,childDocumentIDHash);
-        map.put(dataNameField,dataName);
-        if (dataValueHash != null)
+        String dataValueHash = childDocumentRecord.getDataValueHash();
+        insertRows.add(new Object[]{jobID,parentDocumentIDHash,childDocumentIDHash,childDocumentRecord.getDataName(),
+          dataValueHash,(dataValueHash == null)?null:childDocumentRecord.getDataValue(),statusToString(ISNEW_NEW),processID});
+        if (insertRows.size() == INSERT_BATCH_SIZE)
         {
-          map.put(dataValueHashField,dataValueHash);
-          map.put(dataValueField,dataValue);
+          performInsertRows(insertRows);
+          insertRows.clear();
         }
-
-        map.put(newField,statusToString(ISNEW_NEW));
-        map.put(processIDField,processID);
-        performInsert(map,null);
-        noteModifications(1,0,0);
         insertHappened.put(childDocumentIDHash,new Boolean(true));
       }
       else
       {
-        sb = new StringBuilder("WHERE ");
-        ArrayList updateList = new ArrayList();
-        sb.append(buildConjunctionClause(updateList,new ClauseDescription[]{
-          new UnitaryClause(jobIDField,jobID),
-          new UnitaryClause(parentIDHashField,parentDocumentIDHash),
-          new UnitaryClause(childIDHashField,childDocumentIDHash),
-          new UnitaryClause(dataNameField,dataName),
-          (dataValueHash==null)?
-            new NullCheckClause(dataValueHashField,true):
-            new UnitaryClause(dataValueHashField,dataValueHash)}));
-
-        /*
-        sb.append(jobIDField).append("=? AND ")
-          .append(parentIDHashField).append("=? AND ")
-          .append(childIDHashField).append("=? AND ")
-          .append(dataNameField).append("=? AND ");
-
-        updateList.add(jobID);
-        updateList.add(parentDocumentIDHash);
-        updateList.add(childDocumentIDHash);
-        updateList.add(dataName);
-        if (dataValueHash != null)
+        updateRecords.add(childDocumentRecord);
+        if (updateRecords.size() == maxClause)
         {
-          sb.append(dataValueHashField).append("=?");
-          updateList.add(dataValueHash);
+          performUpdateExisting(jobID,parentDocumentIDHash,updateRecords,processID);
+          updateRecords.clear();
         }
-        else
-        {
-          sb.append(dataValueHashField).append(" IS NULL");
-        }
-        */
-            
-        map.put(newField,statusToString(ISNEW_EXISTING));
-        map.put(processIDField,processID);
-        performUpdate(map,sb.toString(),updateList,null);
-        noteModifications(0,1,0);
       }
     }
+    if (insertRows.size() > 0)
+      performInsertRows(insertRows);
+    if (updateRecords.size() > 0)
+      performUpdateExisting(jobID,parentDocumentIDHash,updateRecords,processID);
+
+    if (insertHappened.size() > 0)
+    {
+      // The children with new values must not be answered from the cache
+      String[] changedChildren = new String[insertHappened.size()];
+      int j = 0;
+      iter = insertHappened.keySet().iterator();
+      while (iter.hasNext())
+      {
+        changedChildren[j++] = (String)iter.next();
+      }
+      CarrydownCache.invalidate(jobID,changedChildren);
+    }
 
     boolean[] rval = new boolean[childDocumentIDHashes.length];
     i = 0;
@@ -452,6 +446,75 @@ public class Carrydown extends org.apache.manifoldcf.core.database.BaseTable
     }
   }
   
+  /** Insert rows, all in one statement.  Each row has a value for every one of insertColumns; null values are
+  * written as NULL.
+  */
+  protected void performInsertRows(List<Object[]> rows)
+    throws ManifoldCFException
+  {
+    StringBuilder sb = new StringBuilder("INSERT INTO ");
+    sb.append(getTableName()).append(" (");
+    for (int i = 0; i < insertColumns.length; i++)
+    {
+      if (i > 0)
+        sb.append(",");
+      sb.append(insertColumns[i]);
+    }
+    sb.append(") VALUES ");
+    ArrayList list = new ArrayList();
+    for (int j = 0; j < rows.size(); j++)
+    {
+      Object[] row = rows.get(j);
+      if (j > 0)
+        sb.append(",");
+      sb.append("(");
+      for (int i = 0; i < row.length; i++)
+      {
+        if (i > 0)
+          sb.append(",");
+        if (row[i] == null)
+          sb.append("NULL");
+        else
+        {
+          sb.append("?");
+          list.add(row[i]);
+        }
+      }
+      sb.append(")");
+    }
+    performModification(sb.toString(),list,null);
+    noteModifications(rows.size(),0,0);
+  }
+
+  /** Mark existing rows of a parent as seen again, all in one statement.
+  */
+  protected void performUpdateExisting(Long jobID, String parentDocumentIDHash, List<ValueRecord> records, String processID)
+    throws ManifoldCFException
+  {
+    StringBuilder sb = new StringBuilder("WHERE ");
+    ArrayList updateList = new ArrayList();
+    for (int i = 0; i < records.size(); i++)
+    {
+      ValueRecord record = records.get(i);
+      String dataValueHash = record.getDataValueHash();
+      if (i > 0)
+        sb.append(" OR ");
+      sb.append(buildConjunctionClause(updateList,new ClauseDescription[]{
+        new UnitaryClause(jobIDField,jobID),
+        new UnitaryClause(parentIDHashField,parentDocumentIDHash),
+        new UnitaryClause(childIDHashField,record.getDocumentIDHash()),
+        new UnitaryClause(dataNameField,record.getDataName()),
+        (dataValueHash==null)?
+          new NullCheckClause(dataValueHashField,true):
+          new UnitaryClause(dataValueHashField,dataValueHash)}));
+    }
+    HashMap map = new HashMap();
+    map.put(newField,statusToString(ISNEW_EXISTING));
+    map.put(processIDField,processID);
+    performUpdate(map,sb.toString(),updateList,null);
+    noteModifications(0,records.size(),0);
+  }
+
   /** Revert all records belonging to the specified parent documents to their original,
   * pre-modified, state.
   */
@@ -603,6 +666,7 @@ public class Carrydown extends org.apache.manifoldcf.core.database.BaseTable
 
     if (k > 0)
       performDeleteRecords(jobID,list);
+    CarrydownCache.invalidate(jobID,documentIDHashes);
   }
 
   protected int maxClausePerformDeleteRecords(Long jobID)
@@ -633,10 +697,34 @@ public class Carrydown extends org.apache.manifoldcf.core.database.BaseTable
     noteModifications(0,0,list.size()*2);
   }
 
+  /** Forget any cached values of a document, because it is about to be processed.
+  */
+  public void forgetCachedValues(Long jobID, String documentIdentifierHash)
+  {
+    CarrydownCache.invalidate(jobID,new String[]{documentIdentifierHash});
+  }
+
   /** Get unique values given a document identifier, data name, an job identifier */
   public String[] getDataValues(Long jobID, String documentIdentifierHash, String dataName)
     throws ManifoldCFException
   {
+    int cacheSize = ManifoldCF.getCarrydownCacheSize(threadContext);
+    if (cacheSize > 0)
+    {
+      CarrydownCache.Entry entry = CarrydownCache.lookup(jobID,documentIdentifierHash);
+      boolean hit = (entry != null);
+      if (entry == null)
+      {
+        long generation = CarrydownCache.getGeneration(jobID,documentIdentifierHash);
+        entry = readCacheEntry(jobID,documentIdentifierHash);
+        CarrydownCache.save(jobID,documentIdentifierHash,entry,generation,cacheSize);
+      }
+      String[] rval = entry.getValues(dataName);
+      CarrydownCache.noteLookup(hit && rval != null);
+      if (rval != null)
+        return rval;
+    }
+
     ArrayList list = new ArrayList();
     String query = buildConjunctionClause(list,new ClauseDescription[]{
       new UnitaryClause(jobIDField,jobID),
@@ -659,6 +747,86 @@ public class Carrydown extends org.apache.manifoldcf.core.database.BaseTable
     return rval;
   }
 
+  /** Read every value of a child, for the cache.  Values are read as streams, so that data names with large
+  * values can be left out of the entry without being held in memory.
+  */
+  protected CarrydownCache.Entry readCacheEntry(Long jobID, String documentIdentifierHash)
+    throws ManifoldCFException
+  {
+    ArrayList list = new ArrayList();
+    String query = buildConjunctionClause(list,new ClauseDescription[]{
+      new UnitaryClause(jobIDField,jobID),
+      new UnitaryClause(childIDHashField,documentIdentifierHash)});
+
+    ResultSpecification rs = new ResultSpecification();
+    rs.setForm(dataValueField,ResultSpecification.FORM_STREAM);
+    IResultSet set = getDBInterface().performQuery("SELECT "+dataNameField+","+dataValueHashField+","+dataValueField+" FROM "+getTableName()+" WHERE "+
+      query+" ORDER BY 1 ASC,2 ASC",list,null,null,-1,rs,null);
+
+    CarrydownCache.Entry entry = new CarrydownCache.Entry();
+    String lastDataName = null;
+    String lastDataValueHash = null;
+    for (int i = 0; i < set.getRowCount(); i++)
+    {
+      IResultRow row = set.getRow(i);
+      String dataName = (String)row.getValue(dataNameField);
+      String dataValueHash = (String)row.getValue(dataValueHashField);
+      CharacterInput dataValue = (CharacterInput)row.getValue(dataValueField);
+      try
+      {
+        // The same value may come from several parents; keep the first, as getDataValues() does
+        if (dataValueHash == null)
+          dataValueHash = "";
+        if (dataName.equals(lastDataName) && dataValueHash.equals(lastDataValueHash))
+          continue;
+        lastDataName = dataName;
+        lastDataValueHash = dataValueHash;
+        long length = (dataValue == null)?0L:dataValue.getCharacterLength();
+        if (!entry.canAdd(dataName,length))
+        {
+          entry.markUncached(dataName);
+          continue;
+        }
+        entry.addValue(dataName,(dataValue == null)?"":readString(dataValue));
+      }
+      finally
+      {
+        if (dataValue != null)
+          dataValue.discard();
+      }
+    }
+    return entry;
+  }
+
+  /** Read a character input into a string. */
+  protected static String readString(CharacterInput dataValue)
+    throws ManifoldCFException
+  {
+    try
+    {
+      Reader reader = dataValue.getStream();
+      try
+      {
+        StringBuilder sb = new StringBuilder();
+        char[] buffer = new char[4096];
+        int amt;
+        while ((amt = reader.read(buffer)) != -1)
+        {
+          sb.append(buffer,0,amt);
+        }
+        return sb.toString();
+      }
+      finally
+      {
+        dataValue.doneWithStream();
+      }
+    }
+    catch (IOException e)
+    {
+      throw new ManifoldCFException("IO exception reading carrydown value: "+e.getMessage(),e);
+    }
+  }
+
   /** Get unique values given a document identifier, data name, an job identifier */
   public CharacterInput[] getDataValuesAsFiles(Long jobID, String documentIdentifierHash, String dataName)
     throws ManifoldCFException
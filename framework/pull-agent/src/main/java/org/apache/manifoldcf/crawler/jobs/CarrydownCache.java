@@ -0,0 +1,314 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.jobs;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import org.apache.manifoldcf.crawler.system.Logging;
+
+/** This class is a process-wide, bounded cache of the carrydown values of child documents.  An entry holds every
+* data name and value a child has, read with one query, so a connector that asks for several data names, or for the
+* same name more than once, goes to the database only the first time.  Data names with large values are noted as
+* uncached in the entry, and are read from the database each time they are asked for.
+*
+* Entries are removed when carrydown rows are written for their child, when the child is handed out for processing,
+* and when the job's rows are deleted or the carrydown table is reset at startup.  The hand-out rule is what keeps
+* the cache correct across processes: any change to a child's carrydown data by another process queues the child
+* again, so a processing pass never starts with values cached during an earlier one.
+*/
+public class CarrydownCache
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  /** Data names whose values add up to more characters than this are not cached */
+  protected final static int MAX_NAME_CHARACTERS = 16384;
+  /** The most characters one child's entry may hold */
+  protected final static int MAX_ENTRY_CHARACTERS = 65536;
+  /** Number of invalidation counters; an invalidation of one child only turns away saves of children that share
+  * its counter */
+  protected final static int GENERATION_COUNT = 256;
+  /** How often the hit rate is logged */
+  protected final static long REPORT_INTERVAL = 60000L;
+
+  /** The entries, least recently used first.  Guarded by itself. */
+  protected final static LinkedHashMap<CacheKey,Entry> entries = new LinkedHashMap<CacheKey,Entry>(16,0.75f,true);
+  /** Invalidation counters, by key hash.  Guarded by entries. */
+  protected final static long[] generations = new long[GENERATION_COUNT];
+
+  protected final static AtomicLong hits = new AtomicLong(0L);
+  protected final static AtomicLong misses = new AtomicLong(0L);
+  protected final static AtomicLong lastReportTime = new AtomicLong(0L);
+
+  private CarrydownCache()
+  {
+  }
+
+  /** Look up the values of a child.
+  *@param jobID is the job.
+  *@param childIDHash is the child document identifier hash.
+  *@return the entry, or null if the child is not cached.
+  */
+  public static Entry lookup(Long jobID, String childIDHash)
+  {
+    Entry rval;
+    synchronized (entries)
+    {
+      rval = entries.get(new CacheKey(jobID,childIDHash));
+    }
+    return rval;
+  }
+
+  /** Count a request for carrydown values, and log the hit rate once in a while.
+  *@param hit is true if the values came from the cache.
+  */
+  public static void noteLookup(boolean hit)
+  {
+    if (hit)
+      hits.incrementAndGet();
+    else
+      misses.incrementAndGet();
+    reportIfDue();
+  }
+
+  /** Get the invalidation counter for a child.  Call this before reading the child's values from the database, and
+  * pass the result to save().
+  */
+  public static long getGeneration(Long jobID, String childIDHash)
+  {
+    CacheKey key = new CacheKey(jobID,childIDHash);
+    synchronized (entries)
+    {
+      return generations[key.getGenerationIndex()];
+    }
+  }
+
+  /** Save the entry of a child, unless its values may have changed since they were read.
+  *@param jobID is the job.
+  *@param childIDHash is the child document identifier hash.
+  *@param entry is the entry.
+  *@param generation is the invalidation counter from before the values were read.
+  *@param maxEntries is the most children to cache.
+  */
+  public static void save(Long jobID, String childIDHash, Entry entry, long generation, int maxEntries)
+  {
+    CacheKey key = new CacheKey(jobID,childIDHash);
+    synchronized (entries)
+    {
+      if (generations[key.getGenerationIndex()] != generation)
+        return;
+      entries.put(key,entry);
+      Iterator<CacheKey> iter = entries.keySet().iterator();
+      while (entries.size() > maxEntries && iter.hasNext())
+      {
+        iter.next();
+        iter.remove();
+      }
+    }
+  }
+
+  /** Remove the entries of some children.
+  */
+  public static void invalidate(Long jobID, String[] childIDHashes)
+  {
+    synchronized (entries)
+    {
+      for (String childIDHash : childIDHashes)
+      {
+        CacheKey key = new CacheKey(jobID,childIDHash);
+        generations[key.getGenerationIndex()]++;
+        entries.remove(key);
+      }
+    }
+  }
+
+  /** Remove the entries of a job.
+  */
+  public static void invalidateJob(Long jobID)
+  {
+    synchronized (entries)
+    {
+      bumpAll();
+      Iterator<CacheKey> iter = entries.keySet().iterator();
+      while (iter.hasNext())
+      {
+        if (iter.next().getJobID().equals(jobID))
+          iter.remove();
+      }
+    }
+  }
+
+  /** Remove every entry.
+  */
+  public static void invalidateAll()
+  {
+    synchronized (entries)
+    {
+      bumpAll();
+      entries.clear();
+    }
+  }
+
+  /** Get the number of requests answered from the cache. */
+  public static long getHits()
+  {
+    return hits.get();
+  }
+
+  /** Get the number of requests that went to the database. */
+  public static long getMisses()
+  {
+    return misses.get();
+  }
+
+  /** Get the number of children cached. */
+  public static int getSize()
+  {
+    synchronized (entries)
+    {
+      return entries.size();
+    }
+  }
+
+  protected static void bumpAll()
+  {
+    for (int i = 0; i < generations.length; i++)
+    {
+      generations[i]++;
+    }
+  }
+
+  /** Log the hit rate, at most once a minute. */
+  protected static void reportIfDue()
+  {
+    if (!Logging.perf.isDebugEnabled())
+      return;
+    long now = System.currentTimeMillis();
+    long last = lastReportTime.get();
+    if (now - last < REPORT_INTERVAL || !lastReportTime.compareAndSet(last,now))
+      return;
+    long hitCount = hits.get();
+    long total = hitCount + misses.get();
+    Logging.perf.debug("Carrydown cache: "+hitCount+" hits in "+total+" requests ("+
+      ((total == 0L)?0L:(hitCount * 100L / total))+"%), "+getSize()+" children cached");
+  }
+
+  /** The carrydown values of one child */
+  public static class Entry
+  {
+    protected final Map<String,List<String>> values = new HashMap<String,List<String>>();
+    protected final Map<String,Integer> nameCharacters = new HashMap<String,Integer>();
+    protected final Set<String> uncachedNames = new HashSet<String>();
+    protected int characters = 0;
+
+    public Entry()
+    {
+    }
+
+    /** Check whether a value of a given length can be added.
+    *@return false if the data name must be marked as uncached instead.
+    */
+    public boolean canAdd(String dataName, long length)
+    {
+      if (uncachedNames.contains(dataName))
+        return false;
+      Integer current = nameCharacters.get(dataName);
+      long nameTotal = ((current == null)?0L:current.longValue()) + length;
+      return nameTotal <= MAX_NAME_CHARACTERS && characters + length <= MAX_ENTRY_CHARACTERS;
+    }
+
+    /** Add a value.  Values must be added in the order they are to be returned, with no duplicates.
+    */
+    public void addValue(String dataName, String value)
+    {
+      List<String> list = values.get(dataName);
+      if (list == null)
+      {
+        list = new ArrayList<String>();
+        values.put(dataName,list);
+      }
+      list.add(value);
+      Integer current = nameCharacters.get(dataName);
+      nameCharacters.put(dataName,new Integer(((current == null)?0:current.intValue()) + value.length()));
+      characters += value.length();
+    }
+
+    /** Note that the values of a data name are too large to cache.
+    */
+    public void markUncached(String dataName)
+    {
+      uncachedNames.add(dataName);
+      List<String> list = values.remove(dataName);
+      Integer current = nameCharacters.remove(dataName);
+      if (current != null)
+        characters -= current.intValue();
+    }
+
+    /** Get the values of a data name.
+    *@return a new array of the values, or null if the data name's values are not cached.
+    */
+    public String[] getValues(String dataName)
+    {
+      if (uncachedNames.contains(dataName))
+        return null;
+      List<String> list = values.get(dataName);
+      if (list == null)
+        return new String[0];
+      return list.toArray(new String[list.size()]);
+    }
+  }
+
+  /** The key of a child's entry */
+  protected static class CacheKey
+  {
+    protected final Long jobID;
+    protected final String childIDHash;
+
+    public CacheKey(Long jobID, String childIDHash)
+    {
+      this.jobID = jobID;
+      this.childIDHash = childIDHash;
+    }
+
+    public Long getJobID()
+    {
+      return jobID;
+    }
+
+    public int getGenerationIndex()
+    {
+      return (hashCode() & Integer.MAX_VALUE) % GENERATION_COUNT;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return jobID.hashCode() * 31 + childIDHash.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof CacheKey))
+        return false;
+      CacheKey other = (CacheKey)o;
+      return other.jobID.equals(jobID) && other.childIDHash.equals(childIDHash);
+    }
+  }
+
+}
@@ -125,11 +125,18 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
   public static final String distanceField = "distance";
   public static final String markForDeathField = "deathmark";
 
+  /** The columns written by performInsertRows(), in order */
+  protected static final String[] insertColumns = new String[]{idField,jobIDField,linkTypeField,parentIDHashField,
+    distanceField,markForDeathField};
+
   // Mark for death status
   public static final int MARK_NORMAL = 0;
   public static final int MARK_QUEUED = 1;
   public static final int MARK_DELETING = 2;
 
+  /** Rows read at a time by queries that stream their results */
+  protected static final int STREAMING_FETCH_SIZE = 1000;
+
   protected static Map markMap;
 
   static
@@ -629,6 +636,20 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
     // cached in it the answers from the previous round of calculation.  That round had
     // a different set of marked nodes than the current round.
 
+    // When a great deal is queued, it is cheaper to calculate every hop count for the job in memory,
+    // provided the job's links fit.
+    int maxLinks = ManifoldCF.getHopCountInMemoryMaxLinks(threadContext);
+    int minQueue = Math.max(1,ManifoldCF.getHopCountInMemoryMinQueue(threadContext));
+    if (maxLinks > 0 && countQueued(jobID,minQueue) >= minQueue)
+    {
+      HopCountGraph graph = loadGraph(jobID,maxLinks);
+      if (graph != null)
+      {
+        recalculateAll(jobID,legalLinkTypes,hopcountMethod,graph);
+        return true;
+      }
+    }
+
     ArrayList list = new ArrayList();
 
     // Pick off up to n queue items at a time.  We don't want to pick off too many (because
@@ -674,6 +695,243 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
     return false;
   }
 
+  /** Count the queued hop count rows for a job, up to a limit.
+  *@return the number of queued rows, or the limit if there are at least that many.
+  */
+  protected int countQueued(Long jobID, int limit)
+    throws ManifoldCFException
+  {
+    ArrayList list = new ArrayList();
+    String query = buildConjunctionClause(list,new ClauseDescription[]{
+      new UnitaryClause(jobIDField,jobID),
+      new UnitaryClause(markForDeathField,markToString(MARK_QUEUED))});
+    IResultSet set = performQuery("SELECT "+idField+" FROM "+getTableName()+" WHERE "+query+" "+
+      constructOffsetLimitClause(0,limit),list,null,null,limit);
+    return set.getRowCount();
+  }
+
+  /** Read a job's links into memory.
+  *@param maxLinks is the most links to read.
+  *@return the graph, or null if the job has more than maxLinks links.
+  */
+  protected HopCountGraph loadGraph(Long jobID, int maxLinks)
+    throws ManifoldCFException
+  {
+    long startTime = System.currentTimeMillis();
+    HopCountGraph graph = new HopCountGraph();
+    ArrayList list = new ArrayList();
+    String query = buildConjunctionClause(list,new ClauseDescription[]{
+      new UnitaryClause(intrinsicLinkManager.jobIDField,jobID)});
+    IResultCursor cursor = performStreamingQuery("SELECT "+intrinsicLinkManager.childIDHashField+","+intrinsicLinkManager.linkTypeField+","+
+      intrinsicLinkManager.parentIDHashField+" FROM "+intrinsicLinkManager.getTableName()+" WHERE "+query,list,STREAMING_FETCH_SIZE);
+    try
+    {
+      IResultRow row;
+      while ((row = cursor.getNextRow()) != null)
+      {
+        if (graph.getLinkCount() == maxLinks)
+        {
+          if (Logging.perf.isDebugEnabled())
+            Logging.perf.debug("Job "+jobID+" has more than "+maxLinks+" links; calculating hop counts in the database");
+          return null;
+        }
+        graph.addLink((String)row.getValue(intrinsicLinkManager.childIDHashField),
+          (String)row.getValue(intrinsicLinkManager.parentIDHashField),
+          (String)row.getValue(intrinsicLinkManager.linkTypeField));
+      }
+    }
+    finally
+    {
+      cursor.close();
+    }
+    graph.compact();
+    if (Logging.perf.isDebugEnabled())
+      Logging.perf.debug("Read "+graph.getLinkCount()+" links between "+graph.getDocumentCount()+" documents for job "+jobID+
+        " in "+(System.currentTimeMillis() - startTime)+" ms");
+    return graph;
+  }
+
+  /** Calculate every hop count for a job from its links in memory, and write the ones that differ from what is
+  * recorded.  Every queued row is taken off the queue.  Delete dependencies are rewritten for the rows whose
+  * distance changes, as the shortest path the calculation found; rows whose distance does not change keep theirs,
+  * which still describe a shortest path.
+  */
+  protected void recalculateAll(Long jobID, String[] legalLinkTypes, int hopcountMethod, HopCountGraph graph)
+    throws ManifoldCFException
+  {
+    long startTime = System.currentTimeMillis();
+    boolean keepDependencies = (hopcountMethod != IJobDescription.HOPCOUNT_NEVERDELETE);
+    int updateCount = 0;
+    int insertCount = 0;
+    int deleteCount = 0;
+    int maxClause = maxClausesUpdateRowIds();
+    for (String linkType : legalLinkTypes)
+    {
+      graph.calculateDistances(linkType);
+
+      // Compare against what is recorded.  Rows are grouped by their new distance, so each group is one statement.
+      Map<Integer,List<Long>> distanceRows = new HashMap<Integer,List<Long>>();
+      Map<Long,Integer> pathRows = new HashMap<Long,Integer>();
+      List<Long> deleteRows = new ArrayList<Long>();
+      BitSet recorded = new BitSet(graph.getDocumentCount());
+
+      ArrayList list = new ArrayList();
+      String query = buildConjunctionClause(list,new ClauseDescription[]{
+        new UnitaryClause(jobIDField,jobID),
+        new UnitaryClause(linkTypeField,linkType)});
+      IResultCursor cursor = performStreamingQuery("SELECT "+idField+","+parentIDHashField+","+distanceField+","+markForDeathField+
+        " FROM "+getTableName()+" WHERE "+query,list,STREAMING_FETCH_SIZE);
+      try
+      {
+        IResultRow row;
+        while ((row = cursor.getNextRow()) != null)
+        {
+          Long id = (Long)row.getValue(idField);
+          int recordedDistance = (int)((Long)row.getValue(distanceField)).longValue();
+          boolean queued = stringToMark((String)row.getValue(markForDeathField)) != MARK_NORMAL;
+          int document = graph.findDocument((String)row.getValue(parentIDHashField));
+          int distance = HopCountGraph.INFINITY;
+          if (document != -1)
+          {
+            recorded.set(document);
+            distance = graph.getDistance(document);
+          }
+          // Unless deletions are tracked, a recorded distance is never made worse, even if the links behind it are gone
+          if (hopcountMethod != IJobDescription.HOPCOUNT_ACCURATE && recordedDistance >= 0 && recordedDistance < distance)
+            distance = recordedDistance;
+
+          if (distance == HopCountGraph.INFINITY)
+          {
+            if (queued || recordedDistance >= 0)
+              deleteRows.add(id);
+          }
+          else if (distance != recordedDistance || queued)
+          {
+            Integer key = new Integer(distance);
+            List<Long> ids = distanceRows.get(key);
+            if (ids == null)
+            {
+              ids = new ArrayList<Long>();
+              distanceRows.put(key,ids);
+            }
+            ids.add(id);
+            if (distance != recordedDistance && keepDependencies)
+              pathRows.put(id,new Integer(document));
+          }
+        }
+      }
+      finally
+      {
+        cursor.close();
+      }
+
+      // Rows that can no longer be reached go away
+      for (int i = 0; i < deleteRows.size(); i += maxClause)
+      {
+        List<Long> chunk = deleteRows.subList(i,Math.min(deleteRows.size(),i + maxClause));
+        if (keepDependencies)
+          deleteDepsManager.deleteOwnerRows(chunk.toArray(new Long[0]));
+        ArrayList deleteList = new ArrayList();
+        String deleteQuery = buildConjunctionClause(deleteList,new ClauseDescription[]{
+          new MultiClause(idField,chunk)});
+        performDelete("WHERE "+deleteQuery,deleteList,null);
+      }
+      deleteCount += deleteRows.size();
+
+      // Rows with a new distance, or that were queued, are updated a group at a time
+      for (Map.Entry<Integer,List<Long>> entry : distanceRows.entrySet())
+      {
+        List<Long> ids = entry.getValue();
+        HashMap map = new HashMap();
+        map.put(distanceField,new Long(entry.getKey().longValue()));
+        map.put(markForDeathField,markToString(MARK_NORMAL));
+        for (int i = 0; i < ids.size(); i += maxClause)
+        {
+          ArrayList updateList = new ArrayList();
+          String updateQuery = buildConjunctionClause(updateList,new ClauseDescription[]{
+            new MultiClause(idField,ids.subList(i,Math.min(ids.size(),i + maxClause)))});
+          performUpdate(map,"WHERE "+updateQuery,updateList,null);
+        }
+        updateCount += ids.size();
+      }
+
+      // Rows whose distance changed get the dependencies of the path that was found
+      PendingRows pendingRows = new PendingRows(jobID,linkType,maxClause);
+      if (pathRows.size() > 0)
+      {
+        List<Long> ids = new ArrayList<Long>(pathRows.keySet());
+        for (int i = 0; i < ids.size(); i += maxClause)
+        {
+          deleteDepsManager.deleteOwnerRows(ids.subList(i,Math.min(ids.size(),i + maxClause)).toArray(new Long[0]));
+        }
+        for (Map.Entry<Long,Integer> entry : pathRows.entrySet())
+        {
+          pendingRows.addPath(entry.getKey(),graph.getPath(entry.getValue().intValue()));
+        }
+      }
+
+      // Documents that are linked to and can be reached need a row, if they do not have one
+      for (int document = 0; document < graph.getDocumentCount(); document++)
+      {
+        if (document == HopCountGraph.ROOT || recorded.get(document) || !graph.isLinkTarget(document) ||
+          graph.getDistance(document) == HopCountGraph.INFINITY)
+          continue;
+        Long id = new Long(IDFactory.make(threadContext));
+        pendingRows.addHopCount(id,graph.getDocumentHash(document),graph.getDistance(document));
+        insertCount++;
+        if (keepDependencies)
+          pendingRows.addPath(id,graph.getPath(document));
+      }
+      pendingRows.flush();
+    }
+    noteModifications(insertCount,updateCount,deleteCount);
+
+    if (Logging.perf.isDebugEnabled())
+      Logging.perf.debug("Calculated hop counts in memory for job "+jobID+": "+updateCount+" updated, "+insertCount+" added, "+
+        deleteCount+" removed in "+(System.currentTimeMillis() - startTime)+" ms");
+  }
+
+  /** Insert hop count rows, all in one statement.
+  *@param rows are the rows, each with a value for every one of insertColumns.
+  */
+  protected void performInsertRows(List<Object[]> rows)
+    throws ManifoldCFException
+  {
+    StringBuilder sb = new StringBuilder("INSERT INTO ");
+    sb.append(getTableName()).append(" (");
+    for (int i = 0; i < insertColumns.length; i++)
+    {
+      if (i > 0)
+        sb.append(",");
+      sb.append(insertColumns[i]);
+    }
+    sb.append(") VALUES ");
+    ArrayList list = new ArrayList();
+    for (int j = 0; j < rows.size(); j++)
+    {
+      Object[] row = rows.get(j);
+      if (j > 0)
+        sb.append(",");
+      sb.append("(");
+      for (int i = 0; i < row.length; i++)
+      {
+        if (i > 0)
+          sb.append(",");
+        sb.append("?");
+        list.add(row[i]);
+      }
+      sb.append(")");
+    }
+    performModification(sb.toString(),list,null);
+  }
+
+  /** Calculate max clauses for updates by row id.
+  */
+  protected int maxClausesUpdateRowIds()
+  {
+    return findConjunctionClauseMax(new ClauseDescription[]{});
+  }
+
   /** Calculate max clauses */
   protected int maxClausePerformFindMissingRecords(Long jobID, String[] affectedLinkTypes)
   {
@@ -1824,6 +2082,79 @@ public class HopCount extends org.apache.manifoldcf.core.database.BaseTable
     }
   }
 
+  /** Hop count rows and delete dependencies written by a recalculation, held until there are enough of them to
+  * write in one statement.  Hop count rows are always written before the dependencies that they own.
+  */
+  protected class PendingRows
+  {
+    protected final Long jobID;
+    protected final String linkType;
+    protected final int maxRows;
+    protected final List<Object[]> hopCountRows = new ArrayList<Object[]>();
+    protected final List<Long> dependencyOwners = new ArrayList<Long>();
+    protected final List<DeleteDependency> dependencies = new ArrayList<DeleteDependency>();
+
+    public PendingRows(Long jobID, String linkType, int maxRows)
+    {
+      this.jobID = jobID;
+      this.linkType = linkType;
+      this.maxRows = maxRows;
+    }
+
+    /** Add a new hop count row.
+    */
+    public void addHopCount(Long id, String parentIDHash, int distance)
+      throws ManifoldCFException
+    {
+      hopCountRows.add(new Object[]{id,jobID,linkType,parentIDHash,new Long((long)distance),markToString(MARK_NORMAL)});
+      if (hopCountRows.size() >= maxRows)
+        writeHopCounts();
+    }
+
+    /** Add the delete dependencies of a hop count row, as the path to its document.
+    */
+    public void addPath(Long ownerID, DeleteDependency[] path)
+      throws ManifoldCFException
+    {
+      for (DeleteDependency dd : path)
+      {
+        dependencyOwners.add(ownerID);
+        dependencies.add(dd);
+        if (dependencies.size() >= maxRows)
+          writeDependencies();
+      }
+    }
+
+    /** Write everything that is still pending.
+    */
+    public void flush()
+      throws ManifoldCFException
+    {
+      writeDependencies();
+    }
+
+    protected void writeHopCounts()
+      throws ManifoldCFException
+    {
+      if (hopCountRows.size() == 0)
+        return;
+      performInsertRows(hopCountRows);
+      hopCountRows.clear();
+    }
+
+    protected void writeDependencies()
+      throws ManifoldCFException
+    {
+      // The owners of the dependencies must exist first
+      writeHopCounts();
+      if (dependencies.size() == 0)
+        return;
+      deleteDepsManager.writeDependencies(jobID,dependencyOwners,dependencies);
+      dependencyOwners.clear();
+      dependencies.clear();
+    }
+  }
+
   /** A class describing a document identifier and a link type, to be used in looking up the appropriate node in
   * the hash.
   */
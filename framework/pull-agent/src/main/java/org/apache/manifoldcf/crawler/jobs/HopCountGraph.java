@@ -0,0 +1,375 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.jobs;
+
+import java.util.*;
+
+/** This class holds the link graph of a job in memory, in primitive arrays, so that exact hop counts can be
+* calculated for every document at once.
+*
+* Documents are numbered in the order they are added, and document 0 is the root (the empty document identifier hash).
+* Links use the conventions of the intrinsiclink table: a link goes from a "child" (the document the link was found in)
+* to a "parent" (the document the link refers to).  Once all links are added, compact() arranges them by child, so that
+* a walk outward from the root visits the links of each document together.
+*
+* The distance of a document for a link type is the smallest number of links of that type on any path from the root;
+* links of other types are free.  Distances are calculated with a breadth-first walk that puts documents reached by
+* free links at the front of its queue, and documents reached by counted links at the back.
+*/
+public class HopCountGraph
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  /** The distance of a document that cannot be reached */
+  public static final int INFINITY = Integer.MAX_VALUE;
+
+  /** The document number of the root */
+  public static final int ROOT = 0;
+
+  // Document identifier hashes, by document number
+  protected String[] documentHashes = new String[1024];
+  protected int documentCount = 0;
+  // Open-addressed hash table of document numbers plus one; zero marks an empty slot
+  protected int[] slots = new int[2048];
+
+  // Link types, by number
+  protected final List<String> linkTypes = new ArrayList<String>();
+  protected final Map<String,Integer> linkTypeNumbers = new HashMap<String,Integer>();
+
+  // Links as they are added
+  protected int[] linkChildren = new int[1024];
+  protected int[] linkParents = new int[1024];
+  protected short[] linkTypeNumbersByLink = new short[1024];
+  protected int linkCount = 0;
+
+  // Links arranged by child, after compact(): the links of document d are firstLink[d] to firstLink[d+1]-1
+  protected int[] firstLink = null;
+  protected int[] linkTargets = null;
+  protected short[] linkTargetTypes = null;
+  // Documents that are the parent of at least one link
+  protected BitSet linkTargetSet = null;
+
+  // The result of the last calculation
+  protected int[] distances = null;
+  protected int[] predecessors = null;
+  protected short[] predecessorTypes = null;
+
+  /** Constructor. */
+  public HopCountGraph()
+  {
+    addDocument("");
+  }
+
+  /** Get the number of a document, adding the document if it is not yet known.
+  *@param documentIDHash is the document identifier hash; null or empty means the root.
+  *@return the document number.
+  */
+  public int addDocument(String documentIDHash)
+  {
+    if (documentIDHash == null)
+      documentIDHash = "";
+    int slot = findSlot(documentIDHash);
+    if (slots[slot] != 0)
+      return slots[slot] - 1;
+    if (firstLink != null)
+      throw new IllegalStateException("Cannot add documents after compact()");
+    if (documentCount == documentHashes.length)
+      documentHashes = Arrays.copyOf(documentHashes,documentCount * 2);
+    int documentNumber = documentCount++;
+    documentHashes[documentNumber] = documentIDHash;
+    slots[slot] = documentNumber + 1;
+    // Keep the table no more than half full
+    if (documentCount * 2 > slots.length)
+      rehash();
+    return documentNumber;
+  }
+
+  /** Find the number of a document.
+  *@param documentIDHash is the document identifier hash; null or empty means the root.
+  *@return the document number, or -1 if the document has no links.
+  */
+  public int findDocument(String documentIDHash)
+  {
+    if (documentIDHash == null)
+      documentIDHash = "";
+    return slots[findSlot(documentIDHash)] - 1;
+  }
+
+  /** Get the identifier hash of a document.
+  */
+  public String getDocumentHash(int documentNumber)
+  {
+    return documentHashes[documentNumber];
+  }
+
+  /** Get the number of documents, including the root. */
+  public int getDocumentCount()
+  {
+    return documentCount;
+  }
+
+  /** Get the number of links. */
+  public int getLinkCount()
+  {
+    return linkCount;
+  }
+
+  /** Add a link.
+  *@param childIDHash is the hash of the document the link was found in; null or empty for a seed.
+  *@param parentIDHash is the hash of the document the link refers to.
+  *@param linkType is the link type; null or empty for a seed.
+  */
+  public void addLink(String childIDHash, String parentIDHash, String linkType)
+  {
+    if (firstLink != null)
+      throw new IllegalStateException("Cannot add links after compact()");
+    int child = addDocument(childIDHash);
+    int parent = addDocument(parentIDHash);
+    if (linkCount == linkChildren.length)
+    {
+      int newSize = linkCount * 2;
+      linkChildren = Arrays.copyOf(linkChildren,newSize);
+      linkParents = Arrays.copyOf(linkParents,newSize);
+      linkTypeNumbersByLink = Arrays.copyOf(linkTypeNumbersByLink,newSize);
+    }
+    linkChildren[linkCount] = child;
+    linkParents[linkCount] = parent;
+    linkTypeNumbersByLink[linkCount] = findLinkType(linkType);
+    linkCount++;
+  }
+
+  /** Arrange the links by child.  No documents or links can be added afterwards.
+  */
+  public void compact()
+  {
+    if (firstLink != null)
+      return;
+    firstLink = new int[documentCount + 1];
+    for (int i = 0; i < linkCount; i++)
+    {
+      firstLink[linkChildren[i] + 1]++;
+    }
+    for (int d = 0; d < documentCount; d++)
+    {
+      firstLink[d + 1] += firstLink[d];
+    }
+    int[] next = Arrays.copyOf(firstLink,documentCount);
+    linkTargets = new int[linkCount];
+    linkTargetTypes = new short[linkCount];
+    linkTargetSet = new BitSet(documentCount);
+    for (int i = 0; i < linkCount; i++)
+    {
+      int position = next[linkChildren[i]]++;
+      linkTargets[position] = linkParents[i];
+      linkTargetTypes[position] = linkTypeNumbersByLink[i];
+      linkTargetSet.set(linkParents[i]);
+    }
+    // The links as added are no longer needed, nor is spare room at the end of the document list
+    linkChildren = null;
+    linkParents = null;
+    linkTypeNumbersByLink = null;
+    documentHashes = Arrays.copyOf(documentHashes,documentCount);
+  }
+
+  /** Check whether a document is the parent of any link, and so should have hop count rows.
+  */
+  public boolean isLinkTarget(int documentNumber)
+  {
+    return linkTargetSet.get(documentNumber);
+  }
+
+  /** Calculate the distance of every document from the root, counting links of one type.
+  *@param linkType is the link type to count.
+  */
+  public void calculateDistances(String linkType)
+  {
+    compact();
+    if (distances == null)
+    {
+      distances = new int[documentCount];
+      predecessors = new int[documentCount];
+      predecessorTypes = new short[documentCount];
+    }
+    Arrays.fill(distances,INFINITY);
+    Arrays.fill(predecessors,-1);
+    Integer countedType = linkTypeNumbers.get((linkType == null)?"":linkType);
+    int counted = (countedType == null)?-1:countedType.intValue();
+
+    IntDeque queue = new IntDeque(Math.max(16,documentCount));
+    distances[ROOT] = 0;
+    queue.addFirst(ROOT);
+    while (!queue.isEmpty())
+    {
+      int document = queue.removeFirst();
+      int distance = distances[document];
+      int end = firstLink[document + 1];
+      for (int i = firstLink[document]; i < end; i++)
+      {
+        int target = linkTargets[i];
+        boolean isCounted = linkTargetTypes[i] == counted;
+        int newDistance = isCounted?distance + 1:distance;
+        if (newDistance < distances[target])
+        {
+          distances[target] = newDistance;
+          predecessors[target] = document;
+          predecessorTypes[target] = linkTargetTypes[i];
+          if (isCounted)
+            queue.addLast(target);
+          else
+            queue.addFirst(target);
+        }
+      }
+    }
+  }
+
+  /** Get a document's distance, as of the last calculation.
+  *@return the distance, or INFINITY if the document cannot be reached.
+  */
+  public int getDistance(int documentNumber)
+  {
+    return distances[documentNumber];
+  }
+
+  /** Get the links on a shortest path from the root to a document, as of the last calculation.
+  * These are the delete dependencies of the document's hop count.
+  *@return the links, starting with the one that refers to the document.
+  */
+  public DeleteDependency[] getPath(int documentNumber)
+  {
+    if (distances[documentNumber] == INFINITY)
+      return new DeleteDependency[0];
+    List<DeleteDependency> rval = new ArrayList<DeleteDependency>();
+    int document = documentNumber;
+    while (document != ROOT)
+    {
+      int predecessor = predecessors[document];
+      rval.add(new DeleteDependency(linkTypes.get(predecessorTypes[document]),documentHashes[document],documentHashes[predecessor]));
+      document = predecessor;
+    }
+    return rval.toArray(new DeleteDependency[0]);
+  }
+
+  protected short findLinkType(String linkType)
+  {
+    if (linkType == null)
+      linkType = "";
+    Integer number = linkTypeNumbers.get(linkType);
+    if (number == null)
+    {
+      if (linkTypes.size() > Short.MAX_VALUE)
+        throw new IllegalStateException("Too many link types");
+      number = new Integer(linkTypes.size());
+      linkTypes.add(linkType);
+      linkTypeNumbers.put(linkType,number);
+    }
+    return (short)number.intValue();
+  }
+
+  protected int findSlot(String documentIDHash)
+  {
+    int mask = slots.length - 1;
+    int slot = mix(documentIDHash.hashCode()) & mask;
+    while (true)
+    {
+      int entry = slots[slot];
+      if (entry == 0 || documentHashes[entry - 1].equals(documentIDHash))
+        return slot;
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  protected void rehash()
+  {
+    slots = new int[slots.length * 2];
+    int mask = slots.length - 1;
+    for (int d = 0; d < documentCount; d++)
+    {
+      int slot = mix(documentHashes[d].hashCode()) & mask;
+      while (slots[slot] != 0)
+      {
+        slot = (slot + 1) & mask;
+      }
+      slots[slot] = d + 1;
+    }
+  }
+
+  protected static int mix(int hashCode)
+  {
+    int h = hashCode ^ (hashCode >>> 16);
+    h *= 0x85EBCA6B;
+    h ^= h >>> 13;
+    h *= 0xC2B2AE35;
+    return h ^ (h >>> 16);
+  }
+
+  /** A growable double-ended queue of ints */
+  protected static class IntDeque
+  {
+    protected int[] elements;
+    protected int head = 0;
+    protected int size = 0;
+
+    public IntDeque(int capacity)
+    {
+      elements = new int[Integer.highestOneBit(capacity - 1) << 1];
+    }
+
+    public boolean isEmpty()
+    {
+      return size == 0;
+    }
+
+    public void addFirst(int value)
+    {
+      ensureRoom();
+      head = (head - 1) & (elements.length - 1);
+      elements[head] = value;
+      size++;
+    }
+
+    public void addLast(int value)
+    {
+      ensureRoom();
+      elements[(head + size) & (elements.length - 1)] = value;
+      size++;
+    }
+
+    public int removeFirst()
+    {
+      int value = elements[head];
+      head = (head + 1) & (elements.length - 1);
+      size--;
+      return value;
+    }
+
+    protected void ensureRoom()
+    {
+      if (size < elements.length)
+        return;
+      int[] newElements = new int[elements.length * 2];
+      for (int i = 0; i < size; i++)
+      {
+        newElements[i] = elements[(head + i) & (elements.length - 1)];
+      }
+      elements = newElements;
+      head = 0;
+    }
+  }
+
+}
@@ -241,4 +241,49 @@ public class HopDeleteDeps extends org.apache.manifoldcf.core.database.BaseTable
     noteModifications(1,0,0);
   }
 
+  /** Write a set of delete dependencies, all in one statement.
+  *@param jobID is the job the dependencies belong to.
+  *@param ownerIDs are the owning hopcount row ids, one for each dependency.
+  *@param dependencies are the dependencies.
+  */
+  public void writeDependencies(Long jobID, List<Long> ownerIDs, List<DeleteDependency> dependencies)
+    throws ManifoldCFException
+  {
+    if (dependencies.size() == 0)
+      return;
+    StringBuilder sb = new StringBuilder("INSERT INTO ");
+    sb.append(getTableName()).append(" (").append(jobIDField).append(",").append(ownerIDField).append(",")
+      .append(linkTypeField).append(",").append(parentIDHashField).append(",").append(childIDHashField)
+      .append(") VALUES ");
+    ArrayList list = new ArrayList();
+    for (int i = 0; i < dependencies.size(); i++)
+    {
+      DeleteDependency dd = dependencies.get(i);
+      if (i > 0)
+        sb.append(",");
+      sb.append("(?,?,");
+      list.add(jobID);
+      list.add(ownerIDs.get(i));
+      // Empty link types and child hashes are stored as null, as writeDependency() does
+      if (dd.getLinkType().length() > 0)
+      {
+        sb.append("?,");
+        list.add(dd.getLinkType());
+      }
+      else
+        sb.append("NULL,");
+      sb.append("?,");
+      list.add(dd.getParentIDHash());
+      if (dd.getChildIDHash().length() > 0)
+      {
+        sb.append("?)");
+        list.add(dd.getChildIDHash());
+      }
+      else
+        sb.append("NULL)");
+    }
+    performModification(sb.toString(),list,null);
+    noteModifications(dependencies.size(),0,0);
+  }
+
 }
@@ -76,7 +76,7 @@ public class JobManager implements IJobManager
     jobs = new Jobs(threadContext,database);
     jobQueue = new JobQueue(threadContext,database);
     hopCount = new HopCount(threadContext,database);
-    carryDown = new Carrydown(database);
+    carryDown = new Carrydown(threadContext,database);
     eventManager = new EventManager(database);
     outputMgr = OutputConnectionManagerFactory.make(threadContext);
     connectionMgr = RepositoryConnectionManagerFactory.make(threadContext);
@@ -970,7 +970,10 @@ public class JobManager implements IJobManager
     throws ManifoldCFException
   {
     ManifoldCF.noteConfigurationChange();
+    boolean isNew = jobDescription.getIsNew();
     jobs.save(jobDescription);
+    if (isNew)
+      jobQueue.createJobPartition(jobDescription.getID());
   }
 
   /** See if there's a reference to a connection name.
@@ -2723,8 +2726,10 @@ public class JobManager implements IJobManager
 
     ThrottleLimit vList = new ThrottleLimit(n);
 
+    // The active jobs are cached, and only requeried when some job's status changes.
     IResultSet jobconnections = jobs.getActiveJobConnections();
     Set<String> connectionSet = new HashSet<String>();
+    Set<Long> prioritySet = new HashSet<Long>();
     int i = 0;
     while (i < jobconnections.getRowCount())
     {
@@ -2733,6 +2738,9 @@ public class JobManager implements IJobManager
       String connectionName = (String)row.getValue("connectionname");
       vList.addJob(jobid,connectionName);
       connectionSet.add(connectionName);
+      Long priority = (Long)row.getValue("priority");
+      if (priority != null)
+        prioritySet.add(priority);
     }
 
     // Find the active connection names.  We'll load these, and then get throttling info
@@ -2771,12 +2779,13 @@ public class JobManager implements IJobManager
     for (IRepositoryConnection connection : connections)
     {
       String connectionName = connection.getName();
-      // Check if throttled...
-      String[] throttles = connection.getThrottles();
-      for (String throttle : throttles)
+      // Check if throttled.  The throttle expressions are compiled only when the connection's throttles change.
+      ThrottleMatcher throttleMatcher = ThrottleMatcher.getMatcher(connection);
+      int throttleCount = throttleMatcher.getThrottleCount();
+      int[] throttleLimits = new int[throttleCount];
+      for (int k = 0; k < throttleCount; k++)
       {
-        // The key is the regexp value itself
-        float throttleValue = connection.getThrottleValue(throttle);
+        double throttleValue = throttleMatcher.getMaxRate(k);
         // For the given connection, set the fetch limit per bin.  This is calculated using the time interval
         // and the desired fetch rate.  The fractional remainder is used to conditionally provide an "extra fetch"
         // on a weighted random basis.
@@ -2784,15 +2793,17 @@ public class JobManager implements IJobManager
         // In the future, the connection may specify tuples which pair a regexp describing a set of bins against
         // a fetch rate.  In that case, each fetch rate would need to be turned into a precise maximum
         // count.
-        double fetchesPerTimeInterval = (double)throttleValue * (double)interval;
+        double fetchesPerTimeInterval = throttleValue * (double)interval;
         // Actual amount will be the integer value of this, plus an additional 1 if the random number aligns
         int fetches = (int)fetchesPerTimeInterval;
         fetchesPerTimeInterval -= (double)fetches;
         if (random.nextDouble() <= fetchesPerTimeInterval)
           fetches++;
-        // Save the limit in the ThrottleLimit structure
-        vList.addLimit(connectionName,throttle,fetches);
+        throttleLimits[k] = fetches;
       }
+      // Save the limits in the ThrottleLimit structure
+      if (throttleCount > 0)
+        vList.addLimits(connectionName,throttleMatcher,throttleLimits);
       // For the overall connection, we also have a limit which is based on the number of connections there are actually available.
       Double weightedRawFetchCount = rawFetchCounts.get(connectionName);
       double adjustedFetchCount = weightedRawFetchCount.doubleValue() * fetchCountAdjustmentFactor;
@@ -2865,7 +2876,7 @@ public class JobManager implements IJobManager
 
     while (!isDone && currentPriority <= 10)
     {
-      if (jobs.hasPriorityJobs(currentPriority))
+      if (prioritySet.contains(new Long((long)currentPriority)))
       {
         Long currentPriorityValue = new Long((long)currentPriority);
         fetchAndProcessDocuments(answers,currentTimeValue,currentPriorityValue,vList,connections,processID);
@@ -3146,6 +3157,8 @@ public class JobManager implements IJobManager
 
               // Set status to "ACTIVE".
               jobQueue.updateActiveRecord(id,status,processID);
+              // Carrydown values cached during an earlier pass may have changed since
+              carryDown.forgetCachedValues(dd.getJobID(),dd.getDocumentIdentifierHash());
 
               answers.add(dd);
             }
@@ -3248,28 +3261,41 @@ public class JobManager implements IJobManager
       database.beginTransaction();
       try
       {
-        // Do one row at a time, to avoid deadlocking things
-        for (String docIDHash : docIDHashes)
+        // Lock and read the rows a chunk at a time, taking the chunks in hash order, to avoid deadlocking things.
+        // Within a chunk the rows are locked in whatever order the query plan reads them, unless the database
+        // locks rows as it returns them, as PostgreSQL does; the ORDER BY makes that hash order too.  Any
+        // deadlock that remains is handled by the retry loop.
+        int maxClause = database.findConjunctionClauseMax(new ClauseDescription[]{});
+        for (int start = 0; start < docIDHashes.length; start += maxClause)
         {
-          // Get the DocumentDescription object
-          DocumentDescription dd = documentDescriptions[indexMap.get(docIDHash).intValue()];
+          int end = Math.min(docIDHashes.length,start + maxClause);
+          List<Long> chunkIDs = new ArrayList<Long>(end - start);
+          for (int j = start; j < end; j++)
+          {
+            // Get the DocumentDescription object
+            DocumentDescription dd = documentDescriptions[indexMap.get(docIDHashes[j]).intValue()];
+            chunkIDs.add(dd.getID());
+            TrackerClass.notePreread(dd.getID());
+          }
 
-          // Query for the status
+          // Query for the statuses
           ArrayList list = new ArrayList();
           String query = database.buildConjunctionClause(list,new ClauseDescription[]{
-            new UnitaryClause(jobQueue.idField,dd.getID())});
-          TrackerClass.notePreread(dd.getID());
-          IResultSet set = database.performQuery("SELECT "+jobQueue.statusField+" FROM "+jobQueue.getTableName()+" WHERE "+
-            query+" FOR UPDATE",list,null,null);
-          TrackerClass.noteRead(dd.getID());
-          if (set.getRowCount() > 0)
+            new MultiClause(jobQueue.idField,chunkIDs)});
+          IResultSet set = database.performQuery("SELECT "+jobQueue.idField+","+jobQueue.statusField+" FROM "+jobQueue.getTableName()+" WHERE "+
+            query+" ORDER BY "+jobQueue.docHashField+","+jobQueue.jobIDField+" FOR UPDATE",list,null,null);
+          Long[] recIDs = new Long[set.getRowCount()];
+          int[] statuses = new int[set.getRowCount()];
+          for (int j = 0; j < recIDs.length; j++)
           {
-            IResultRow row = set.getRow(0);
+            IResultRow row = set.getRow(j);
+            recIDs[j] = (Long)row.getValue(jobQueue.idField);
+            TrackerClass.noteRead(recIDs[j]);
             // Grab the status
-            int status = jobQueue.stringToStatus((String)row.getValue(jobQueue.statusField));
-            // Update the jobqueue table
-            jobQueue.updateCompletedRecord(dd.getID(),status);
+            statuses[j] = jobQueue.stringToStatus((String)row.getValue(jobQueue.statusField));
           }
+          // Update the jobqueue table
+          jobQueue.updateCompletedRecordMultiple(recIDs,statuses);
         }
         TrackerClass.notePrecommit();
         database.performCommit();
@@ -3835,12 +3861,7 @@ public class JobManager implements IJobManager
       try
       {
         // Going through ids in order should greatly reduce or eliminate chances of deadlock occurring.  We thus need to pay attention to the sorted order.
-        i = 0;
-        while (i < ids.length)
-        {
-          jobQueue.setRequeuedStatus(ids[i],executeTimesNew[i],actionsNew[i],-1L,-1);
-          i++;
-        }
+        jobQueue.setRequeuedStatusMultiple(ids,executeTimesNew,actionsNew,null,null);
 
         TrackerClass.notePrecommit();
         database.performCommit();
@@ -3964,12 +3985,7 @@ public class JobManager implements IJobManager
       try
       {
         // Going through ids in order should greatly reduce or eliminate chances of deadlock occurring.  We thus need to pay attention to the sorted order.
-        i = 0;
-        while (i < ids.length)
-        {
-          jobQueue.setRequeuedStatus(ids[i],executeTimes[i],actions[i],(failTimes==null)?-1L:failTimes[i],(failCounts==null)?-1:failCounts[i]);
-          i++;
-        }
+        jobQueue.setRequeuedStatusMultiple(ids,executeTimes,actions,failTimes,failCounts);
 
         database.performCommit();
         break;
@@ -5179,11 +5195,19 @@ public class JobManager implements IJobManager
       Logging.perf.debug("Waiting to add "+Integer.toString(reorderedDocIDHashes.length)+" docs and hopcounts for job "+jobID.toString()+" parent identifier "+parentIdentifierHash);
     }
 
+    // Documents the filter has never seen need not be looked for before they are inserted
+    QueuedDocumentFilter filter = jobQueue.getDocumentFilter(jobID);
+    // Cleared after an insert the filter allowed may have failed; the filter still learns from the rows found
+    boolean useFilterShortcut = true;
+
     // Postgres gets all screwed up if we permit multiple threads into the hopcount code,
     // and allows one transaction to see the effects of another transaction before it's been committed.
     while (true)
     {
       long sleepAmt = 0L;
+      int savedQueries = 0;
+      int truePositives = 0;
+      int falsePositives = 0;
       database.beginTransaction(database.TRANSACTION_SERIALIZED);
       try
       {
@@ -5197,6 +5221,17 @@ public class JobManager implements IJobManager
         for (int z = 0; z < reorderedDocIDHashes.length; z++)
         {
           String docIDHash = reorderedDocIDHashes[z];
+          boolean mightBeQueued = (filter == null || filter.mightContain(docIDHash));
+
+          if (useFilterShortcut && !mightBeQueued)
+          {
+            // No row for this document has been seen by this process, so insert one straight away.  If another
+            // process has one after all, the insert fails on the unique index and we try again looking for every
+            // document.
+            savedQueries++;
+            jobQueue.insertNewRecord(jobID,docIDHash,reorderedDocumentIdentifiers[z],reorderedDocumentPriorities[z],0L,reorderedDocumentPrerequisites[z]);
+            continue;
+          }
 
           StringBuilder sb = new StringBuilder("SELECT ");
           ArrayList list = new ArrayList();
@@ -5224,9 +5259,18 @@ public class JobManager implements IJobManager
             Long checkTimeValue = (Long)row.getValue(jobQueue.checkTimeField);
 
             existingRows.put(docIDHash,new JobqueueRecord(rowID,status,checkTimeValue));
+            if (filter != null)
+            {
+              if (mightBeQueued)
+                truePositives++;
+              // The row may have come from another process; the filter should know of it from now on.
+              filter.add(docIDHash);
+            }
           }
           else
           {
+            if (filter != null && mightBeQueued)
+              falsePositives++;
             // Not found.  Attempt an insert instead.  This may fail due to constraints, but if this happens, the whole transaction will be retried.
             jobQueue.insertNewRecord(jobID,docIDHash,reorderedDocumentIdentifiers[z],reorderedDocumentPriorities[z],0L,reorderedDocumentPrerequisites[z]);
           }
@@ -5268,10 +5312,15 @@ public class JobManager implements IJobManager
         TrackerClass.notePrecommit();
         database.performCommit();
         TrackerClass.noteCommit();
+
+        if (filter != null)
+          QueuedDocumentFilter.noteLookups(savedQueries,truePositives,falsePositives);
         
         if (Logging.perf.isDebugEnabled())
           Logging.perf.debug("Took "+new Long(System.currentTimeMillis()-startTime).toString()+" ms to add "+Integer.toString(reorderedDocIDHashes.length)+
-          " docs and hopcounts for job "+jobID.toString()+" parent identifier hash "+parentIdentifierHash);
+          " docs and hopcounts for job "+jobID.toString()+" parent identifier hash "+parentIdentifierHash+
+          ((filter == null)?"":"; filter saved "+savedQueries+" existence queries (process totals: "+QueuedDocumentFilter.getSavedQueries()+
+          " saved, "+QueuedDocumentFilter.getFalsePositives()+" false positives, "+QueuedDocumentFilter.getConflicts()+" retries)"));
 
         return;
       }
@@ -5282,6 +5331,13 @@ public class JobManager implements IJobManager
         if (e.getErrorCode() == e.DATABASE_TRANSACTION_ABORT)
         {
           sleepAmt = getRandomAmount();
+          if (savedQueries > 0)
+          {
+            // An insert the filter allowed may be what failed; look for every document the next time, so that the
+            // filter learns of the rows another process inserted
+            QueuedDocumentFilter.noteConflict();
+            useFilterShortcut = false;
+          }
           if (Logging.perf.isDebugEnabled())
             Logging.perf.debug("Aborted transaction adding "+Integer.toString(reorderedDocIDHashes.length)+
             " docs and hopcounts for job "+jobID.toString()+" parent identifier hash "+parentIdentifierHash+": "+e.getMessage()+"; sleeping for "+new Long(sleepAmt).toString()+" ms",e);
@@ -7353,12 +7409,13 @@ public class JobManager implements IJobManager
         {
         case Jobs.STATUS_NOTIFYINGOFDELETION:
           ManifoldCF.noteConfigurationChange();
-          // Remove documents from job queue
-          jobQueue.deleteAllJobRecords(jobID);
           // Remove carrydowns for the job
           carryDown.deleteOwner(jobID);
           // Nothing is in a critical section - so this should be OK.
           hopCount.deleteOwner(jobID);
+          // Remove documents from job queue.  This comes last, because if the job has its own partition, dropping
+          // it locks the whole job queue until we commit.
+          jobQueue.deleteAllJobRecords(jobID);
           jobs.delete(jobID);
           
           Logging.jobs.info("Removed job "+jobID);          
@@ -8456,6 +8513,8 @@ public class JobManager implements IJobManager
           resetJobs.add(jobDesc);
               
           jobs.finishJob(jobID,currentTime);
+          // Nothing will be added to the job until it runs again, so free its filter
+          QueuedDocumentFilter.discardFilter(jobID);
           Logging.jobs.info("Job "+jobID+" now completed");
         }
       }
@@ -9719,24 +9778,23 @@ public class JobManager implements IJobManager
         maxSetSize = setSize;
     }
 
-    /** Add a document limit for a specified connection.  This is the limit across all matching bins; if any
-    * individual matching bin exceeds that limit, then documents that belong to that bin will be excluded.
+    /** Add the document limits for a specified connection.  Each limit applies across all bins matching the
+    * corresponding throttle; if any individual matching bin exceeds that limit, then documents that belong to that
+    * bin will be excluded.
     *@param connectionName is the connection name.
-    *@param regexp is the regular expression, which we will match against various bins.
-    *@param upperLimit is the maximum count associated with the specified job.
+    *@param throttleMatcher is the compiled set of throttles for the connection.
+    *@param upperLimits are the maximum counts, one per throttle in the matcher.
     */
-    public void addLimit(String connectionName, String regexp, int upperLimit)
+    public void addLimits(String connectionName, ThrottleMatcher throttleMatcher, int[] upperLimits)
     {
       if (Logging.perf.isDebugEnabled())
-        Logging.perf.debug(" Adding fetch limit of "+Integer.toString(upperLimit)+" fetches for expression '"+regexp+"' for connection '"+connectionName+"'");
-
-      ThrottleJobItem ji = connectionMap.get(connectionName);
-      if (ji == null)
       {
-        ji = new ThrottleJobItem();
-        connectionMap.put(connectionName,ji);
+        for (int i = 0; i < upperLimits.length; i++)
+        {
+          Logging.perf.debug(" Adding fetch limit of "+Integer.toString(upperLimits[i])+" fetches for expression '"+throttleMatcher.getRegexp(i)+"' for connection '"+connectionName+"'");
+        }
       }
-      ji.addLimit(regexp,upperLimit);
+      connectionMap.put(connectionName,new ThrottleJobItem(throttleMatcher,upperLimits));
     }
 
     /** Set a connection-based total document limit.
@@ -10010,31 +10068,22 @@ public class JobManager implements IJobManager
   */
   protected static class ThrottleJobItem
   {
-    /** These are the bin limits.  This is an array of ThrottleLimitSpec objects. */
-    protected List<ThrottleLimitSpec> throttleLimits = new ArrayList<ThrottleLimitSpec>();
+    /** These are the compiled throttles. */
+    protected final ThrottleMatcher throttleMatcher;
+    /** These are the bin limits, one per throttle in the matcher. */
+    protected final int[] throttleLimits;
     /** This is a map of the bins and their current counts. If an entry doesn't exist, it's considered to be
     * the same as maxBinCount. */
     protected final Map<String,MutableInteger> binCounts = new HashMap<String,MutableInteger>();
 
-    /** Constructor. */
-    public ThrottleJobItem()
-    {
-    }
-
-    /** Add a bin limit.
-    *@param regexp is the regular expression describing the bins to which the limit applies to.
-    *@param maxCount is the maximum number of fetches allowed for that bin.
+    /** Constructor.
+    *@param throttleMatcher is the compiled set of throttles for the connection.
+    *@param throttleLimits are the maximum number of fetches allowed, one per throttle.
     */
-    public void addLimit(String regexp, int maxCount)
+    public ThrottleJobItem(ThrottleMatcher throttleMatcher, int[] throttleLimits)
     {
-      try
-      {
-        throttleLimits.add(new ThrottleLimitSpec(regexp,maxCount));
-      }
-      catch (PatternSyntaxException e)
-      {
-        // Ignore the bad entry; it just won't contribute any throttling.
-      }
+      this.throttleMatcher = throttleMatcher;
+      this.throttleLimits = throttleLimits;
     }
 
     /** Create a duplicate of this item.
@@ -10042,11 +10091,10 @@ public class JobManager implements IJobManager
     */
     public ThrottleJobItem duplicate()
     {
-      ThrottleJobItem rval = new ThrottleJobItem();
-      rval.throttleLimits = throttleLimits;
+      ThrottleJobItem rval = new ThrottleJobItem(throttleMatcher,throttleLimits);
       for (String key : binCounts.keySet())
       {
-        this.binCounts.put(key,binCounts.get(key).duplicate());
+        rval.binCounts.put(key,binCounts.get(key).duplicate());
       }
       return rval;
     }
@@ -10118,53 +10166,17 @@ public class JobManager implements IJobManager
       // If the same bin is matched by more than one regexp, I now take the MINIMUM value, since this seems to be
       // more what the world wants to do (restrict, rather than increase, fetch rates).
       int maxCount = -1;
-      int i = 0;
-      while (i < throttleLimits.size())
+      for (int index : throttleMatcher.findMatchingThrottles(binName))
       {
-        ThrottleLimitSpec spec = throttleLimits.get(i++);
-        Pattern p = spec.getRegexp();
-        Matcher m = p.matcher(binName);
-        if (m.find())
-        {
-          int limit = spec.getMaxCount();
-          if (maxCount == -1 || limit < maxCount)
-            maxCount = limit;
-        }
+        int limit = throttleLimits[index];
+        if (maxCount == -1 || limit < maxCount)
+          maxCount = limit;
       }
 
       return maxCount;
     }
   }
 
-  /** This is a class which describes an individual throttle limit, in fetches. */
-  protected static class ThrottleLimitSpec
-  {
-    /** Regexp */
-    protected final Pattern regexp;
-    /** The fetch limit for all bins matching that regexp */
-    protected final int maxCount;
-
-    /** Constructor */
-    public ThrottleLimitSpec(String regexp, int maxCount)
-      throws PatternSyntaxException
-    {
-      this.regexp = Pattern.compile(regexp);
-      this.maxCount = maxCount;
-    }
-
-    /** Get the regexp. */
-    public Pattern getRegexp()
-    {
-      return regexp;
-    }
-
-    /** Get the max count */
-    public int getMaxCount()
-    {
-      return maxCount;
-    }
-  }
-
   /** Mutable integer class.
   */
   protected static class MutableInteger
@@ -78,6 +78,14 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
   public final static int ACTION_RESCAN = 0;
   public final static int ACTION_REMOVE = 1;
 
+  // Partitioning modes
+  public final static int PARTITIONING_NONE = 0;
+  public final static int PARTITIONING_JOB = 1;
+  public final static int PARTITIONING_HASH = 2;
+
+  /** Rows read at a time by queries that stream through a job's records */
+  protected final static int STREAMING_FETCH_SIZE = 1000;
+
   // Need priority status
   public final static int NEEDPRIORITY_FALSE = 0;
   public final static int NEEDPRIORITY_INPROGRESS = 1;
@@ -125,6 +133,11 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
   public static final String seedingProcessIDField = "seedingprocessid";
   public static final String needPriorityField = "needpriority";
   public static final String needPriorityProcessIDField = "needpriorityprocessid";
+
+  /** All the fields, in table order */
+  protected static final String[] allFields = new String[]{idField,jobIDField,docHashField,docIDField,
+    checkTimeField,failTimeField,failCountField,statusField,isSeedField,docPriorityField,checkActionField,
+    processIDField,seedingProcessIDField,needPriorityField,needPriorityProcessIDField};
   
   public static final double noDocPriorityValue = 1e9;
   public static final Double nullDocPriority = new Double(noDocPriorityValue + 1.0);
@@ -199,6 +212,28 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
   public void install(String jobsTable, String jobsColumn)
     throws ManifoldCFException
   {
+    install(jobsTable,jobsColumn,partitioningFromString(ManifoldCF.getJobQueuePartitioning(threadContext)),
+      ManifoldCF.getJobQueueHashPartitions(threadContext));
+  }
+
+  /** Install or upgrade, with a specific partitioning layout.  If the table already exists with a different
+  * layout, its contents are migrated to the requested one.
+  *@param jobsTable is the name of the jobs table.
+  *@param jobsColumn is the name of the jobs id column.
+  *@param partitioning is the partitioning mode, one of the PARTITIONING_xxx values.
+  *@param hashPartitionCount is the number of partitions to use for PARTITIONING_HASH.
+  */
+  public void install(String jobsTable, String jobsColumn, int partitioning, int hashPartitionCount)
+    throws ManifoldCFException
+  {
+    if (partitioning != PARTITIONING_NONE && !getDBInterface().supportsTablePartitioning())
+    {
+      Logging.jobs.warn("Database does not support table partitioning; the job queue will not be partitioned");
+      partitioning = PARTITIONING_NONE;
+    }
+    if (partitioning == PARTITIONING_HASH && hashPartitionCount < 1)
+      throw new ManifoldCFException("Illegal number of job queue hash partitions: "+hashPartitionCount);
+
     // Standard practice to use outer loop to allow retry in case of upgrade.
     while (true)
     {
@@ -206,32 +241,24 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
       Map existing = getTableSchema(null,null);
       if (existing == null)
       {
-        HashMap map = new HashMap();
-        map.put(idField,new ColumnDescription("BIGINT",true,false,null,null,false));
-        map.put(jobIDField,new ColumnDescription("BIGINT",false,false,jobsTable,jobsColumn,false));
-        // this is the local document identifier.
-        map.put(docHashField,new ColumnDescription("VARCHAR(40)",false,false,null,null,false));
-        map.put(docIDField,new ColumnDescription("LONGTEXT",false,false,null,null,false));
-        map.put(checkTimeField,new ColumnDescription("BIGINT",false,true,null,null,false));
-        map.put(failTimeField,new ColumnDescription("BIGINT",false,true,null,null,false));
-        map.put(failCountField,new ColumnDescription("BIGINT",false,true,null,null,false));
-        map.put(statusField,new ColumnDescription("CHAR(1)",false,false,null,null,false));
-        map.put(isSeedField,new ColumnDescription("CHAR(1)",false,true,null,null,false));
-        map.put(docPriorityField,new ColumnDescription("FLOAT",false,true,null,null,false));
-        map.put(checkActionField,new ColumnDescription("CHAR(1)",false,true,null,null,false));
-        map.put(processIDField,new ColumnDescription("VARCHAR(16)",false,true,null,null,false));
-        map.put(seedingProcessIDField,new ColumnDescription("VARCHAR(16)",false,true,null,null,false));
-        map.put(needPriorityField,new ColumnDescription("CHAR(1)",false,true,null,null,false));
-        map.put(needPriorityProcessIDField,new ColumnDescription("VARCHAR(16)",false,true,null,null,false));
-        performCreate(map,null);
+        createTable(jobsTable,jobsColumn,partitioning,hashPartitionCount);
       }
       else
       {
         // Upgrade; null docpriority fields bashed to 'infinity', so they don't slow down MySQL
+
+        // Change of partitioning layout
+        List<String> partitions = getTablePartitions(null,null);
+        if (!layoutMatches(partitions,partitioning,hashPartitionCount))
+        {
+          migrateLayout(jobsTable,jobsColumn,partitioning,hashPartitionCount);
+          continue;
+        }
       }
 
-      // Secondary table installation
-      prereqEventManager.install(getTableName(),idField);
+      // Secondary table installation.  A partitioned table cannot have a unique constraint on the id column
+      // alone, so the prerequisite events can't declare a reference to it.
+      prereqEventManager.install((partitioning == PARTITIONING_NONE)?getTableName():null,idField);
 
       // Handle indexes
       IndexDescription uniqueIndex = new IndexDescription(true,new String[]{docHashField,jobIDField});
@@ -298,6 +325,157 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
     }
   }
 
+  /** Create the table, with the specified partitioning layout.
+  */
+  protected void createTable(String jobsTable, String jobsColumn, int partitioning, int hashPartitionCount)
+    throws ManifoldCFException
+  {
+    HashMap map = new HashMap();
+    map.put(idField,new ColumnDescription("BIGINT",true,false,null,null,false));
+    map.put(jobIDField,new ColumnDescription("BIGINT",false,false,jobsTable,jobsColumn,false));
+    // this is the local document identifier.
+    map.put(docHashField,new ColumnDescription("VARCHAR(40)",false,false,null,null,false));
+    map.put(docIDField,new ColumnDescription("LONGTEXT",false,false,null,null,false));
+    map.put(checkTimeField,new ColumnDescription("BIGINT",false,true,null,null,false));
+    map.put(failTimeField,new ColumnDescription("BIGINT",false,true,null,null,false));
+    map.put(failCountField,new ColumnDescription("BIGINT",false,true,null,null,false));
+    map.put(statusField,new ColumnDescription("CHAR(1)",false,false,null,null,false));
+    map.put(isSeedField,new ColumnDescription("CHAR(1)",false,true,null,null,false));
+    map.put(docPriorityField,new ColumnDescription("FLOAT",false,true,null,null,false));
+    map.put(checkActionField,new ColumnDescription("CHAR(1)",false,true,null,null,false));
+    map.put(processIDField,new ColumnDescription("VARCHAR(16)",false,true,null,null,false));
+    map.put(seedingProcessIDField,new ColumnDescription("VARCHAR(16)",false,true,null,null,false));
+    map.put(needPriorityField,new ColumnDescription("CHAR(1)",false,true,null,null,false));
+    map.put(needPriorityProcessIDField,new ColumnDescription("VARCHAR(16)",false,true,null,null,false));
+    switch (partitioning)
+    {
+    case PARTITIONING_NONE:
+      performCreate(map,null);
+      break;
+    case PARTITIONING_JOB:
+      performCreatePartitioned(map,jobIDField,0,null);
+      break;
+    case PARTITIONING_HASH:
+      performCreatePartitioned(map,jobIDField,hashPartitionCount,null);
+      break;
+    default:
+      throw new ManifoldCFException("Unknown partitioning mode: "+partitioning);
+    }
+  }
+
+  /** Check whether the existing table has the specified partitioning layout.
+  *@param partitions are the table's current partitions, or null if it is not partitioned.
+  */
+  protected boolean layoutMatches(List<String> partitions, int partitioning, int hashPartitionCount)
+  {
+    switch (partitioning)
+    {
+    case PARTITIONING_NONE:
+      return partitions == null;
+    case PARTITIONING_JOB:
+      return partitions != null && partitions.contains(getDefaultPartitionName());
+    case PARTITIONING_HASH:
+      return partitions != null && !partitions.contains(getDefaultPartitionName()) &&
+        partitions.size() == hashPartitionCount;
+    default:
+      return false;
+    }
+  }
+
+  /** Move the table to a different partitioning layout.  The current table is renamed out of the way, the
+  * table is created anew (with a partition for every job, if partitioning by job), and the rows are copied over.
+  * The prerequisite event table refers to this one, so it is rebuilt too.  Indexes are left for install() to add,
+  * since building them after the copy is cheaper than maintaining them during it.
+  */
+  protected void migrateLayout(String jobsTable, String jobsColumn, int partitioning, int hashPartitionCount)
+    throws ManifoldCFException
+  {
+    Logging.jobs.info("Migrating job queue to "+partitioningToString(partitioning)+" partitioning layout; this may take a while");
+    long startTime = System.currentTimeMillis();
+    String oldTableName = getTableName()+"_old";
+    beginTransaction();
+    try
+    {
+      getDBInterface().performRename(getTableName(),oldTableName,null);
+      createTable(jobsTable,jobsColumn,partitioning,hashPartitionCount);
+      if (partitioning == PARTITIONING_JOB)
+      {
+        IResultSet set = performQuery("SELECT "+jobsColumn+" FROM "+jobsTable,null,null,null);
+        for (int i = 0; i < set.getRowCount(); i++)
+        {
+          Long jobID = (Long)set.getRow(i).getValue(jobsColumn);
+          performAddPartition(getJobPartitionName(jobID),jobID,null);
+        }
+      }
+      StringBuilder columns = new StringBuilder();
+      for (String field : allFields)
+      {
+        if (columns.length() > 0)
+          columns.append(",");
+        columns.append(field);
+      }
+      performModification("INSERT INTO "+getTableName()+" ("+columns+") SELECT "+columns+" FROM "+oldTableName,null,null);
+      prereqEventManager.rebuild((partitioning == PARTITIONING_NONE)?getTableName():null,idField);
+      getDBInterface().performDrop(oldTableName,null);
+    }
+    catch (ManifoldCFException e)
+    {
+      signalRollback();
+      throw e;
+    }
+    catch (Error e)
+    {
+      signalRollback();
+      throw e;
+    }
+    finally
+    {
+      endTransaction();
+    }
+    Logging.jobs.info("Job queue migration complete in "+new Long(System.currentTimeMillis()-startTime)+" ms");
+  }
+
+  /** Give a newly created job its own partition, if the table is partitioned by job.
+  * Otherwise the job's documents would land in the default partition, and could not be dropped in one go.
+  *@param jobID is the job identifier.
+  */
+  public void createJobPartition(Long jobID)
+    throws ManifoldCFException
+  {
+    List<String> partitions = getTablePartitions(null,null);
+    if (partitions == null || !partitions.contains(getDefaultPartitionName()))
+      return;
+    String partitionName = getJobPartitionName(jobID);
+    if (partitions.contains(partitionName))
+      return;
+    // A partition can't be created for a job that already has rows in the default partition; leave those there.
+    ArrayList list = new ArrayList();
+    String query = buildConjunctionClause(list,new ClauseDescription[]{
+      new UnitaryClause(jobIDField,jobID)});
+    IResultSet set = performQuery("SELECT "+idField+" FROM "+getTableName()+
+      " WHERE "+query+" "+constructOffsetLimitClause(0,1),list,null,null,1);
+    if (set.getRowCount() > 0)
+    {
+      Logging.jobs.warn("Job "+jobID+" already has queued documents, so it will not get its own job queue partition");
+      return;
+    }
+    performAddPartition(partitionName,jobID,null);
+  }
+
+  /** Get the name of the partition that holds a job's documents, when partitioning by job.
+  */
+  protected String getJobPartitionName(Long jobID)
+  {
+    return getTableName()+"_j"+jobID.toString();
+  }
+
+  /** Get the name of the partition that holds documents of jobs that have no partition of their own.
+  */
+  protected String getDefaultPartitionName()
+  {
+    return getTableName()+"_default";
+  }
+
   /** Get the 'getNextDocuments' index hint.
   */
   public String getGetNextDocumentsIndexHint()
@@ -900,10 +1078,21 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
     list.add(jobID);
     // Clean out prereqevents table first
     prereqEventManager.deleteRows(getTableName()+" t0","t0."+idField,"t0."+jobIDField+"=?",list);
-    list.clear();
-    String query = buildConjunctionClause(list,new ClauseDescription[]{
-      new UnitaryClause(jobIDField,jobID)});
-    performDelete("WHERE "+query,list,null);
+    List<String> partitions = getTablePartitions(null,null);
+    String partitionName = getJobPartitionName(jobID);
+    if (partitions != null && partitions.contains(partitionName))
+    {
+      // Dropping the partition is far cheaper than deleting the rows, and leaves nothing to vacuum.
+      performDropPartition(partitionName,null);
+    }
+    else
+    {
+      list.clear();
+      String query = buildConjunctionClause(list,new ClauseDescription[]{
+        new UnitaryClause(jobIDField,jobID)});
+      performDelete("WHERE "+query,list,null);
+    }
+    QueuedDocumentFilter.discardFilter(jobID);
     noteModifications(0,0,1);
   }
 
@@ -1033,6 +1222,71 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
     TrackerClass.noteRecordChange(recID, newStatus, "Note completion");
   }
 
+  /** Note completion of a set of documents.  This is the set-based equivalent of updateCompletedRecord(); the rows
+  * are updated with one statement per target status, rather than one per row.
+  *@param recIDs are the record ids.
+  *@param currentStatuses are the current statuses of the records, in the same order.
+  */
+  public void updateCompletedRecordMultiple(Long[] recIDs, int[] currentStatuses)
+    throws ManifoldCFException
+  {
+    List<Long> completedIDs = new ArrayList<Long>();
+    List<Long> rescanIDs = new ArrayList<Long>();
+    for (int i = 0; i < recIDs.length; i++)
+    {
+      switch (currentStatuses[i])
+      {
+      case STATUS_ACTIVE:
+      case STATUS_ACTIVEPURGATORY:
+        completedIDs.add(recIDs[i]);
+        break;
+      case STATUS_ACTIVENEEDRESCAN:
+      case STATUS_ACTIVENEEDRESCANPURGATORY:
+        rescanIDs.add(recIDs[i]);
+        break;
+      default:
+        TrackerClass.printForensics(recIDs[i], currentStatuses[i]);
+        throw new ManifoldCFException("Unexpected jobqueue status - record id "+recIDs[i].toString()+", expecting active status, saw "+Integer.toString(currentStatuses[i]));
+      }
+    }
+
+    if (completedIDs.size() > 0)
+    {
+      HashMap map = new HashMap();
+      map.put(statusField,statusToString(STATUS_COMPLETE));
+      map.put(processIDField,null);
+      map.put(checkTimeField,null);
+      map.put(checkActionField,null);
+      map.put(failTimeField,null);
+      map.put(failCountField,null);
+      // Remove document priority; we don't want to pollute the queue.  See CONNECTORS-290.
+      map.put(docPriorityField,nullDocPriority);
+      map.put(needPriorityField,needPriorityToString(NEEDPRIORITY_FALSE));
+      performUpdateMultiple(map,completedIDs);
+      for (Long recID : completedIDs)
+      {
+        TrackerClass.noteRecordChange(recID, STATUS_COMPLETE, "Note completion");
+      }
+    }
+
+    if (rescanIDs.size() > 0)
+    {
+      HashMap map = new HashMap();
+      map.put(statusField,statusToString(STATUS_PENDINGPURGATORY));
+      map.put(processIDField,null);
+      map.put(checkTimeField,new Long(0L));
+      map.put(checkActionField,actionToString(ACTION_RESCAN));
+      map.put(failTimeField,null);
+      map.put(failCountField,null);
+      // Leave doc priority unchanged.
+      performUpdateMultiple(map,rescanIDs);
+      for (Long recID : rescanIDs)
+      {
+        TrackerClass.noteRecordChange(recID, STATUS_PENDINGPURGATORY, "Note completion");
+      }
+    }
+  }
+
   /** Either mark a record as hopcountremoved, or set status to "rescan", depending on the
   * record's state.
   */
@@ -1151,6 +1405,88 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
     TrackerClass.noteRecordChange(id, STATUS_PENDINGPURGATORY, "Set requeued status");
   }
 
+  /** Set the status of a set of documents to be requeued.  This is the set-based equivalent of setRequeuedStatus().
+  * Rows that share the same check time, action, fail time and fail count are updated with a single statement;
+  * in practice most rows of a worker batch do.
+  *@param ids are the record ids.
+  *@param checkTimes are the check times, in the same order.
+  *@param actions are the actions, in the same order.
+  *@param failTimes are the fail times, or null if there are none.
+  *@param failCounts are the fail counts, or null if there are none.
+  */
+  public void setRequeuedStatusMultiple(Long[] ids, Long[] checkTimes, int[] actions,
+    long[] failTimes, int[] failCounts)
+    throws ManifoldCFException
+  {
+    // Group the ids by the values they are to receive, keeping the order of the first appearance of each group
+    Map<String,List<Integer>> groups = new LinkedHashMap<String,List<Integer>>();
+    for (int i = 0; i < ids.length; i++)
+    {
+      long failTime = (failTimes == null)?-1L:failTimes[i];
+      int failCount = (failCounts == null)?-1:failCounts[i];
+      String key = ((checkTimes[i] == null)?"":checkTimes[i].toString()) + ":" + actions[i] + ":" + failTime + ":" + failCount;
+      List<Integer> group = groups.get(key);
+      if (group == null)
+      {
+        group = new ArrayList<Integer>();
+        groups.put(key,group);
+      }
+      group.add(new Integer(i));
+    }
+
+    for (List<Integer> group : groups.values())
+    {
+      int first = group.get(0).intValue();
+      long failTime = (failTimes == null)?-1L:failTimes[first];
+      int failCount = (failCounts == null)?-1:failCounts[first];
+      HashMap map = new HashMap();
+      map.put(statusField,statusToString(STATUS_PENDINGPURGATORY));
+      map.put(processIDField,null);
+      map.put(checkTimeField,checkTimes[first]);
+      map.put(checkActionField,actionToString(actions[first]));
+      if (failTime == -1L)
+        map.put(failTimeField,null);
+      else
+        map.put(failTimeField,new Long(failTime));
+      if (failCount == -1)
+        map.put(failCountField,null);
+      else
+        map.put(failCountField,new Long(failCount));
+      // This does not need to set docPriorityField, because we want to preserve whatever
+      // priority was in place from before.
+      List<Long> groupIDs = new ArrayList<Long>(group.size());
+      for (Integer index : group)
+      {
+        groupIDs.add(ids[index.intValue()]);
+      }
+      performUpdateMultiple(map,groupIDs);
+      for (Long id : groupIDs)
+      {
+        TrackerClass.noteRecordChange(id, STATUS_PENDINGPURGATORY, "Set requeued status");
+      }
+    }
+  }
+
+  /** Apply the same update to a set of rows, identified by id.  The ids are split into chunks that each fit in
+  * a single conjunction clause, and are updated in the order given.
+  *@param map is the map of column values to set.
+  *@param ids are the record ids.
+  */
+  protected void performUpdateMultiple(Map map, List<Long> ids)
+    throws ManifoldCFException
+  {
+    int maxClause = findConjunctionClauseMax(new ClauseDescription[]{});
+    for (int start = 0; start < ids.size(); start += maxClause)
+    {
+      List<Long> chunk = ids.subList(start,Math.min(ids.size(),start + maxClause));
+      ArrayList list = new ArrayList();
+      String query = buildConjunctionClause(list,new ClauseDescription[]{
+        new MultiClause(idField,chunk)});
+      performUpdate(map,"WHERE "+query,list,null);
+    }
+    noteModifications(0,ids.size(),0);
+  }
+
   /** Set the status of a document to "being deleted".
   */
   public void setDeletingStatus(Long id, String processID)
@@ -1399,6 +1735,7 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
     map.put(docPriorityField,new Double(desiredDocPriority.getDocumentPriority()));
     map.put(needPriorityField,needPriorityToString(NEEDPRIORITY_FALSE));
     performInsert(map,null);
+    QueuedDocumentFilter.noteInserted(jobID,docHash);
     prereqEventManager.addRows(recordID,prereqEvents);
     noteModifications(1,0,0);
     TrackerClass.noteRecordChange(recordID, STATUS_PENDING, "Create initial");
@@ -1550,6 +1887,65 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
     performUpdate(map,"WHERE "+query,list,null);
   }
 
+  /** Get this process's filter of the document identifier hashes a job has queued, building it if there is none.
+  * Do not call this inside a transaction.
+  *@param jobID is the job identifier.
+  *@return the filter, or null if documents of the job must be looked for in the database.
+  */
+  public QueuedDocumentFilter getDocumentFilter(Long jobID)
+    throws ManifoldCFException
+  {
+    int maxDocuments = ManifoldCF.getQueueFilterMaxDocuments(threadContext);
+    if (maxDocuments <= 0)
+      return null;
+    QueuedDocumentFilter filter = QueuedDocumentFilter.findFilter(jobID);
+    if (filter != null)
+      return filter.isReady()?filter:null;
+
+    long startTime = System.currentTimeMillis();
+    ArrayList list = new ArrayList();
+    String query = buildConjunctionClause(list,new ClauseDescription[]{
+      new UnitaryClause(jobIDField,jobID)});
+    IResultSet set = performQuery("SELECT "+constructCountClause(docHashField)+" AS doccount FROM "+getTableName()+
+      " WHERE "+query,list,null,null);
+    long queuedDocuments = ((Long)set.getRow(0).getValue("doccount")).longValue();
+    filter = QueuedDocumentFilter.startFilter(jobID,queuedDocuments,maxDocuments);
+    if (filter == null)
+      return null;
+
+    // Rows inserted from here on are added to the filter as they are inserted, so reading the ones already there
+    // completes it.
+    boolean filled = false;
+    try
+    {
+      IResultCursor cursor = performStreamingQuery("SELECT "+docHashField+" FROM "+getTableName()+" WHERE "+query,
+        list,STREAMING_FETCH_SIZE);
+      try
+      {
+        IResultRow row;
+        while ((row = cursor.getNextRow()) != null)
+        {
+          filter.add((String)row.getValue(docHashField));
+        }
+      }
+      finally
+      {
+        cursor.close();
+      }
+      filled = true;
+    }
+    finally
+    {
+      if (!filled)
+        QueuedDocumentFilter.discardFilter(jobID);
+    }
+    filter.finish();
+    if (Logging.perf.isDebugEnabled())
+      Logging.perf.debug("Built queued document filter for job "+jobID+": "+filter.getDocumentCount()+" documents, sized for "+
+        filter.getCapacity()+", in "+(System.currentTimeMillis()-startTime)+" ms");
+    return filter;
+  }
+
   /** Get all the current seeds.
   * Returns the seed document identifiers for a job.
   *@param jobID is the job identifier.
@@ -1724,6 +2120,7 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
     map.put(docPriorityField,new Double(desiredDocPriority.getDocumentPriority()));
     map.put(needPriorityField,needPriorityToString(NEEDPRIORITY_FALSE));
     performInsert(map,null);
+    QueuedDocumentFilter.noteInserted(jobID,docIDHash);
     prereqEventManager.addRows(recordID,prereqEvents);
     noteModifications(1,0,0);
     TrackerClass.noteRecordChange(recordID, STATUS_PENDING, "Create new");
@@ -1820,6 +2217,42 @@ public class JobQueue extends org.apache.manifoldcf.core.database.BaseTable
     }
   }
   
+  /** Convert a partitioning property value to a partitioning mode.
+  *@param value is the property value.
+  *@return the mode.
+  */
+  public static int partitioningFromString(String value)
+    throws ManifoldCFException
+  {
+    if (value.equals("none"))
+      return PARTITIONING_NONE;
+    else if (value.equals("job"))
+      return PARTITIONING_JOB;
+    else if (value.equals("hash"))
+      return PARTITIONING_HASH;
+    throw new ManifoldCFException("Unknown job queue partitioning value: '"+value+"'; expected none, job, or hash");
+  }
+
+  /** Convert a partitioning mode to a partitioning property value.
+  *@param partitioning is the mode.
+  *@return the property value.
+  */
+  public static String partitioningToString(int partitioning)
+    throws ManifoldCFException
+  {
+    switch (partitioning)
+    {
+    case PARTITIONING_NONE:
+      return "none";
+    case PARTITIONING_JOB:
+      return "job";
+    case PARTITIONING_HASH:
+      return "hash";
+    default:
+      throw new ManifoldCFException("Bad partitioning value: "+Integer.toString(partitioning));
+    }
+  }
+
   /** Convert status field value to integer.
   *@param value is the string.
   *@return the integer.
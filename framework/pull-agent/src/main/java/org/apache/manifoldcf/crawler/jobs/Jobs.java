@@ -722,19 +722,20 @@ public class Jobs extends org.apache.manifoldcf.core.database.BaseTable
     }
   }
 
-  /** Get a list of active job identifiers and their associated connection names.
-  *@return a resultset with "jobid" and "connectionname" fields.
+  /** Get a list of active job identifiers and their associated connection names and priorities.
+  *@return a resultset with "jobid", "connectionname", and "priority" fields.
   */
   public IResultSet getActiveJobConnections()
     throws ManifoldCFException
   {
+    // This is cached against the job status key, so it is only requeried when a job starts, stops, or changes.
     ArrayList list = new ArrayList();
     String query = buildConjunctionClause(list,new ClauseDescription[]{
       new MultiClause(statusField,new Object[]{
         statusToString(STATUS_ACTIVE),
         statusToString(STATUS_ACTIVESEEDING)})});
-    return performQuery("SELECT "+idField+" AS jobid,"+connectionNameField+" AS connectionname FROM "+getTableName()+" WHERE "+
-      query,list,null,null);
+    return performQuery("SELECT "+idField+" AS jobid,"+connectionNameField+" AS connectionname,"+priorityField+" AS priority FROM "+getTableName()+" WHERE "+
+      query,list,new StringSet(getJobStatusKey()),null);
   }
 
   /** Get unique connection names for all active jobs.
@@ -108,6 +108,23 @@ public class PrereqEventManager extends org.apache.manifoldcf.core.database.Base
     }
   }
 
+  /** Rebuild this table so that it references a different owner table, keeping its rows.  This is needed
+  * when the owner table is replaced, since the old owner table cannot be dropped while this one refers to it.
+  * Call this in a transaction, after the rows of the new owner table are in place.
+  *@param ownerTableName is the owner table to reference, or null if the reference should not be enforced.
+  *@param ownerColumn is the owner column.
+  */
+  public void rebuild(String ownerTableName, String ownerColumn)
+    throws ManifoldCFException
+  {
+    String oldTableName = getTableName()+"_old";
+    getDBInterface().performRename(getTableName(),oldTableName,null);
+    install(ownerTableName,ownerColumn);
+    performModification("INSERT INTO "+getTableName()+" ("+ownerField+","+eventNameField+") SELECT "+
+      ownerField+","+eventNameField+" FROM "+oldTableName,null,null);
+    getDBInterface().performDrop(oldTableName,null);
+  }
+
   /** Uninstall.
   */
   public void deinstall()
@@ -0,0 +1,300 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.jobs;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/** This class is a Bloom filter of the document identifier hashes a job has in the job queue, kept by each
+* process for each job.  When the filter says a hash is absent, the document is certainly new to this process,
+* so adding a reference to it can go straight to an insert without first looking for an existing row.  When the
+* filter says a hash may be present, the row is looked for as usual.
+*
+* The filter is built from the job queue the first time it is wanted, and is told of every row this process inserts
+* afterwards.  Rows inserted by other processes, or by transactions that had not committed when the filter was read,
+* are unknown to it; the insert of such a document fails on the job queue's unique index, and the transaction is
+* retried without the filter.  Rows that turn up when the database is checked are added to the filter, so it learns
+* of them.  Removing rows never makes the filter wrong, only less selective.
+*
+* A filter that fills past the capacity it was sized for is dropped, and built again larger the next time it is
+* wanted.  A job with more documents than the configured limit is left unfiltered until its filter is discarded.
+*/
+public class QueuedDocumentFilter
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  /** Bits per document.  With seven hash functions this gives about one false positive in 120 lookups of new
+  * documents when the filter is full. */
+  protected final static int BITS_PER_DOCUMENT = 10;
+  protected final static int HASH_COUNT = 7;
+  /** The smallest number of documents a filter is sized for */
+  protected final static int MIN_CAPACITY = 65536;
+
+  /** The filters of this process, by job */
+  protected final static Map<Long,QueuedDocumentFilter> filters = new HashMap<Long,QueuedDocumentFilter>();
+
+  /** Lookups the filter answered, saving an existence query */
+  protected final static AtomicLong savedQueries = new AtomicLong(0L);
+  /** Lookups that went to the database and found a row */
+  protected final static AtomicLong truePositives = new AtomicLong(0L);
+  /** Lookups that went to the database and found nothing */
+  protected final static AtomicLong falsePositives = new AtomicLong(0L);
+  /** Transactions that skipped existence queries and were then aborted, so were retried without the filter */
+  protected final static AtomicLong conflicts = new AtomicLong(0L);
+
+  protected final Long jobID;
+  protected final int capacity;
+  protected final int maxDocuments;
+  protected final long bitCount;
+  protected final AtomicLongArray bits;
+  protected final AtomicInteger documentCount = new AtomicInteger(0);
+  protected volatile boolean ready = false;
+
+  /** Constructor.
+  *@param jobID is the job.
+  *@param capacity is the number of documents to size the filter for, or 0 for a job that is not filtered.
+  *@param maxDocuments is the most documents a filter may be sized for.
+  */
+  protected QueuedDocumentFilter(Long jobID, int capacity, int maxDocuments)
+  {
+    this.jobID = jobID;
+    this.capacity = capacity;
+    this.maxDocuments = maxDocuments;
+    this.bitCount = ((long)capacity * BITS_PER_DOCUMENT + 63L) & ~63L;
+    this.bits = new AtomicLongArray((int)(bitCount >> 6));
+  }
+
+  /** Find the filter of a job, in whatever state it is in.
+  *@return the filter, or null if this process has none for the job.
+  */
+  public static QueuedDocumentFilter findFilter(Long jobID)
+  {
+    synchronized (filters)
+    {
+      return filters.get(jobID);
+    }
+  }
+
+  /** Start building the filter of a job.  The filter is told of inserts from the time it is started, but is not
+  * used for lookups until it is finished.
+  *@param jobID is the job.
+  *@param queuedDocuments is the number of documents the job has in the queue.
+  *@param maxDocuments is the most documents a filter may be sized for.
+  *@return the new filter, which the caller must fill and then finish or discard, or null if the job already has a
+  * filter, or has too many documents to have one.
+  */
+  public static QueuedDocumentFilter startFilter(Long jobID, long queuedDocuments, int maxDocuments)
+  {
+    synchronized (filters)
+    {
+      if (filters.get(jobID) != null)
+        return null;
+      if (queuedDocuments >= maxDocuments)
+      {
+        filters.put(jobID,new QueuedDocumentFilter(jobID,0,maxDocuments));
+        return null;
+      }
+      // Leave room for the job to double in size before the filter must be built again
+      int capacity = (int)Math.min((long)maxDocuments,Math.max((long)MIN_CAPACITY,queuedDocuments * 2L));
+      QueuedDocumentFilter filter = new QueuedDocumentFilter(jobID,capacity,maxDocuments);
+      filters.put(jobID,filter);
+      return filter;
+    }
+  }
+
+  /** Discard the filter of a job, if this process has one.
+  */
+  public static void discardFilter(Long jobID)
+  {
+    synchronized (filters)
+    {
+      filters.remove(jobID);
+    }
+  }
+
+  /** Note that a row was inserted into the job queue.
+  *@param jobID is the job.
+  *@param docIDHash is the document identifier hash.
+  */
+  public static void noteInserted(Long jobID, String docIDHash)
+  {
+    QueuedDocumentFilter filter = findFilter(jobID);
+    if (filter != null)
+      filter.add(docIDHash);
+  }
+
+  /** Note the lookups a committed transaction made.
+  *@param saved is the number of lookups the filter answered, saving an existence query.
+  *@param found is the number of lookups that went to the database and found a row.
+  *@param notFound is the number of lookups that went to the database and found nothing.
+  */
+  public static void noteLookups(int saved, int found, int notFound)
+  {
+    savedQueries.addAndGet(saved);
+    truePositives.addAndGet(found);
+    falsePositives.addAndGet(notFound);
+  }
+
+  /** Note that a transaction that skipped existence queries was aborted, and will be retried without the filter. */
+  public static void noteConflict()
+  {
+    conflicts.incrementAndGet();
+  }
+
+  /** Get the number of existence queries the filters have saved. */
+  public static long getSavedQueries()
+  {
+    return savedQueries.get();
+  }
+
+  /** Get the number of lookups that went to the database and found a row. */
+  public static long getTruePositives()
+  {
+    return truePositives.get();
+  }
+
+  /** Get the number of lookups that went to the database and found nothing. */
+  public static long getFalsePositives()
+  {
+    return falsePositives.get();
+  }
+
+  /** Get the number of transactions that skipped existence queries and had to be retried without the filter. */
+  public static long getConflicts()
+  {
+    return conflicts.get();
+  }
+
+  /** Get the fraction of lookups of new documents that the filters did not answer.
+  */
+  public static double getFalsePositiveRate()
+  {
+    long fp = falsePositives.get();
+    long total = fp + savedQueries.get();
+    return (total == 0L)?0.0:(double)fp / (double)total;
+  }
+
+  /** Mark the filter as filled, so that it is used for lookups. */
+  public void finish()
+  {
+    ready = true;
+  }
+
+  /** Check whether the filter can be used for lookups. */
+  public boolean isReady()
+  {
+    return ready && capacity > 0;
+  }
+
+  /** Get the number of documents the filter was sized for. */
+  public int getCapacity()
+  {
+    return capacity;
+  }
+
+  /** Get the number of distinct documents added to the filter. */
+  public int getDocumentCount()
+  {
+    return documentCount.get();
+  }
+
+  /** Add a document identifier hash.
+  */
+  public void add(String docIDHash)
+  {
+    if (capacity == 0)
+      return;
+    long h = hash(docIDHash);
+    int h1 = (int)h;
+    int h2 = (int)(h >>> 32) | 1;
+    boolean changed = false;
+    for (int i = 0; i < HASH_COUNT; i++)
+    {
+      long bit = (((long)h1 + (long)i * (long)h2) & Long.MAX_VALUE) % bitCount;
+      int word = (int)(bit >> 6);
+      long mask = 1L << (int)(bit & 63L);
+      while (true)
+      {
+        long value = bits.get(word);
+        if ((value & mask) != 0L)
+          break;
+        if (bits.compareAndSet(word,value,value | mask))
+        {
+          changed = true;
+          break;
+        }
+      }
+    }
+    // A document that set no new bit is (almost always) one the filter already holds
+    if (changed && documentCount.incrementAndGet() > capacity)
+      overflow();
+  }
+
+  /** Check whether a document identifier hash may have been added.
+  *@return false if the hash was certainly never added.
+  */
+  public boolean mightContain(String docIDHash)
+  {
+    if (capacity == 0)
+      return true;
+    long h = hash(docIDHash);
+    int h1 = (int)h;
+    int h2 = (int)(h >>> 32) | 1;
+    for (int i = 0; i < HASH_COUNT; i++)
+    {
+      long bit = (((long)h1 + (long)i * (long)h2) & Long.MAX_VALUE) % bitCount;
+      if ((bits.get((int)(bit >> 6)) & (1L << (int)(bit & 63L))) == 0L)
+        return false;
+    }
+    return true;
+  }
+
+  /** Drop a filter that has filled past its capacity. */
+  protected void overflow()
+  {
+    synchronized (filters)
+    {
+      if (filters.get(jobID) != this)
+        return;
+      if (capacity >= maxDocuments)
+        filters.put(jobID,new QueuedDocumentFilter(jobID,0,maxDocuments));
+      else
+        filters.remove(jobID);
+    }
+  }
+
+  /** Hash a string to 64 bits (FNV-1a, followed by a finalizer so that similar hashes spread out). */
+  protected static long hash(String value)
+  {
+    long h = 0xcbf29ce484222325L;
+    int length = value.length();
+    for (int i = 0; i < length; i++)
+    {
+      h ^= value.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+}
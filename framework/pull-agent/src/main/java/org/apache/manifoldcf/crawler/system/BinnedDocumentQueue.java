@@ -0,0 +1,326 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.system;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.crawler.interfaces.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** This is a document queue that does not serialize worker threads on a single monitor.
+* Queued document sets are bucketed by job priority and by the bins of their first document.  Within
+* a bucket, sets are kept in the order the stuffer thread produced them, which is document priority order.
+* The buckets are spread over a number of stripes, so that adding sets to different buckets does not
+* contend on one lock.
+*
+* Only the head of each bucket is rated, and sets are removed with a non-blocking poll, so a worker
+* never holds a lock while choosing its work.  Every set is numbered as it is added; among heads that
+* rate the same, the one whose job has the highest priority wins, and then the one added first, so
+* ties go in the stuffer's order as they do in the base queue.  Adding a set to a bucket and retiring an empty bucket
+* both happen with the bucket's stripe locked, so that a set is never added to a bucket that is no
+* longer in its stripe.  The monitor is only used to put workers to sleep when the queue is empty.
+*/
+public class BinnedDocumentQueue extends DocumentQueue
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  /** The stripes.  Each one maps a bucket key to the FIFO of sets in that bucket. */
+  protected final ConcurrentMap<String,Queue<QueuedSet>>[] stripes;
+  /** The number given to the next set added */
+  protected final AtomicLong nextSequence = new AtomicLong(0L);
+  /** The number of sets currently on the queue */
+  protected final AtomicInteger setCount = new AtomicInteger(0);
+  /** The number of worker threads waiting for something to be queued */
+  protected final AtomicInteger waiterCount = new AtomicInteger(0);
+  /** The monitor that idle workers sleep on */
+  protected final Object waitLock = new Object();
+  /** This flag gets set to 'true' if the queue is being cleared due to a reset */
+  protected volatile boolean resetting = false;
+
+  /** Constructor.
+  *@param stripeCount is the number of stripes the buckets are spread across.
+  */
+  @SuppressWarnings("unchecked")
+  public BinnedDocumentQueue(int stripeCount)
+  {
+    if (stripeCount < 1)
+      stripeCount = 1;
+    stripes = new ConcurrentMap[stripeCount];
+    for (int i = 0; i < stripeCount; i++)
+    {
+      stripes[i] = new ConcurrentHashMap<String,Queue<QueuedSet>>();
+    }
+  }
+
+  /** Wake up all threads waiting on this queue.  This happens at the beginning of a reset.
+  */
+  @Override
+  public void reset()
+  {
+    synchronized (waitLock)
+    {
+      resetting = true;
+      waitLock.notifyAll();
+    }
+  }
+
+  /** Clear the queue.  This happens during a reset.
+  */
+  @Override
+  public void clear()
+  {
+    synchronized (waitLock)
+    {
+      for (ConcurrentMap<String,Queue<QueuedSet>> stripe : stripes)
+      {
+        synchronized (stripe)
+        {
+          stripe.clear();
+        }
+      }
+      setCount.set(0);
+      resetting = false;
+    }
+    noteQueueDrained();
+  }
+
+  /** Get the number of document sets on the queue.
+  */
+  @Override
+  public int getSize()
+  {
+    return setCount.get();
+  }
+
+  /** Check if "empty".
+  *@param n is the low-water mark; if the number falls below this, then this method will return true.
+  */
+  @Override
+  public boolean checkIfEmpty(int n)
+  {
+    return setCount.get() <= n;
+  }
+
+  /** Add a document to the queue.
+  *@param dd is the document description.
+  */
+  @Override
+  public void addDocument(QueuedDocumentSet dd)
+  {
+    int priority = getJobPriority(dd);
+    String bucketKey = makeBucketKey(priority,dd);
+    QueuedSet queuedSet = new QueuedSet(dd,priority,nextSequence.getAndIncrement());
+    ConcurrentMap<String,Queue<QueuedSet>> stripe = stripes[stripeIndex(bucketKey)];
+    boolean wasEmpty = (setCount.incrementAndGet() == 1);
+    synchronized (stripe)
+    {
+      Queue<QueuedSet> bucket = stripe.get(bucketKey);
+      if (bucket == null)
+      {
+        bucket = new ConcurrentLinkedQueue<QueuedSet>();
+        stripe.put(bucketKey,bucket);
+      }
+      bucket.offer(queuedSet);
+    }
+    if (wasEmpty)
+      noteQueueFilled();
+    if (waiterCount.get() > 0)
+    {
+      synchronized (waitLock)
+      {
+        waitLock.notify();
+      }
+    }
+  }
+
+  /** Pull the best-rated document set off the queue, but wait if there is
+  * nothing there.
+  *@param overlapCalculator performs analysis of the document sets on the queue so that we can
+  * pick the best one.
+  *@return the document set.
+  */
+  @Override
+  public QueuedDocumentSet getDocument(QueueTracker overlapCalculator)
+    throws InterruptedException
+  {
+    return getDocument(overlapCalculator,Thread.currentThread().getName());
+  }
+
+  /** Pull the best-rated document set off the queue, but wait if there is
+  * nothing there.
+  *@param overlapCalculator performs analysis of the document sets on the queue so that we can
+  * pick the best one.
+  *@param workerID is the identifier of the worker thread asking.  Every worker is offered the same choice,
+  * so it is not used.
+  *@return the document set.
+  */
+  @Override
+  public QueuedDocumentSet getDocument(QueueTracker overlapCalculator, String workerID)
+    throws InterruptedException
+  {
+    while (true)
+    {
+      // If we are being reset, return null
+      if (resetting)
+        return null;
+
+      QueuedDocumentSet rval = pollBest(overlapCalculator);
+      if (rval != null)
+      {
+        takenCount.incrementAndGet();
+        if (setCount.decrementAndGet() == 0)
+          noteQueueDrained();
+        return rval;
+      }
+
+      // Nothing available; go to sleep until something is added or we are reset.
+      synchronized (waitLock)
+      {
+        waiterCount.incrementAndGet();
+        try
+        {
+          if (!resetting && setCount.get() == 0)
+            waitLock.wait();
+        }
+        finally
+        {
+          waiterCount.decrementAndGet();
+        }
+      }
+    }
+  }
+
+  /** Find and remove the best-rated bucket head.
+  * The rule is the same as for the base queue: the highest rating wins, and ties go to the set
+  * the stuffer queued first, after sets of higher priority jobs.
+  *@return the set, or null if there was nothing to take.
+  */
+  protected QueuedDocumentSet pollBest(QueueTracker overlapCalculator)
+  {
+    while (setCount.get() > 0)
+    {
+      Queue<QueuedSet> bestBucket = null;
+      QueuedSet bestSet = null;
+      double bestRating = Double.NEGATIVE_INFINITY;
+      for (ConcurrentMap<String,Queue<QueuedSet>> stripe : stripes)
+      {
+        for (Map.Entry<String,Queue<QueuedSet>> entry : stripe.entrySet())
+        {
+          Queue<QueuedSet> bucket = entry.getValue();
+          QueuedSet head = bucket.peek();
+          if (head == null)
+          {
+            // Retire empty buckets so that the scan stays proportional to the number of live bins
+            retireBucket(stripe,entry.getKey(),bucket);
+            continue;
+          }
+          double rating = head.set.calculateAssignmentRating(overlapCalculator);
+          if (bestSet == null || rating > bestRating || (rating == bestRating && head.comesBefore(bestSet)))
+          {
+            bestBucket = bucket;
+            bestSet = head;
+            bestRating = rating;
+          }
+        }
+      }
+
+      if (bestSet == null)
+        return null;
+
+      // Another worker may have beaten us to this set.  Anything else in the same bucket has the same
+      // bins and job priority, and was queued later, so it is the next best; if the bucket has been
+      // drained, pick again.
+      QueuedSet rval = bestBucket.poll();
+      if (rval != null)
+        return rval.set;
+    }
+    return null;
+  }
+
+  /** Remove a bucket from its stripe, if it is still empty.
+  */
+  protected void retireBucket(ConcurrentMap<String,Queue<QueuedSet>> stripe, String bucketKey,
+    Queue<QueuedSet> bucket)
+  {
+    synchronized (stripe)
+    {
+      if (bucket.isEmpty())
+        stripe.remove(bucketKey,bucket);
+    }
+  }
+
+  /** Calculate which stripe a bucket lives in.
+  */
+  protected int stripeIndex(String bucketKey)
+  {
+    return (bucketKey.hashCode() & Integer.MAX_VALUE) % stripes.length;
+  }
+
+  /** Get the priority of a document set's job.  Lower numbers are higher priorities.
+  */
+  protected static int getJobPriority(QueuedDocumentSet dd)
+  {
+    IJobDescription job = dd.getJobDescription();
+    return (job == null)?0:job.getPriority();
+  }
+
+  /** Build the bucket key for a document set.  This consists of the job priority and the bins of
+  * the first document in the set.
+  */
+  protected static String makeBucketKey(int priority, QueuedDocumentSet dd)
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append(Integer.toString(priority)).append(":");
+    if (dd.getCount() > 0)
+    {
+      for (String binName : dd.getDocument(0).getBinNames())
+      {
+        // Bin names are connector-defined, so escape the separator
+        sb.append(binName.replace("\\","\\\\").replace(",","\\,")).append(",");
+      }
+    }
+    return sb.toString();
+  }
+
+  /** A document set on the queue, with what orders it among sets that rate the same */
+  protected static class QueuedSet
+  {
+    public final QueuedDocumentSet set;
+    public final int priority;
+    public final long sequence;
+
+    public QueuedSet(QueuedDocumentSet set, int priority, long sequence)
+    {
+      this.set = set;
+      this.priority = priority;
+      this.sequence = sequence;
+    }
+
+    /** Check whether this set goes before another that rates the same.
+    */
+    public boolean comesBefore(QueuedSet other)
+    {
+      if (priority != other.priority)
+        return priority < other.priority;
+      return sequence < other.sequence;
+    }
+  }
+
+}
@@ -379,7 +379,11 @@ public class CrawlerAgent implements IAgent
     QueueTracker queueTracker = new QueueTracker();
 
 
-    DocumentQueue documentQueue = new DocumentQueue();
+    DocumentQueue documentQueue;
+    if (ManifoldCF.getUseBinnedDocumentQueue(threadContext))
+      documentQueue = new BinnedDocumentQueue(Math.min(numWorkerThreads,Runtime.getRuntime().availableProcessors()));
+    else
+      documentQueue = new DocumentQueue();
     DocumentDeleteQueue documentDeleteQueue = new DocumentDeleteQueue();
     DocumentCleanupQueue documentCleanupQueue = new DocumentCleanupQueue();
     DocumentCleanupQueue expireQueue = new DocumentCleanupQueue();
@@ -396,7 +400,8 @@ public class CrawlerAgent implements IAgent
     finisherThread = new FinisherThread(processID);
     notificationThread = new JobNotificationThread(new NotificationResetManager(processID),processID);
     jobDeleteThread = new JobDeleteThread(processID);
-    stufferThread = new StufferThread(documentQueue,numWorkerThreads,workerResetManager,queueTracker,blockingDocuments,lowWaterFactor,stuffAmtFactor,processID);
+    stufferThread = new StufferThread(documentQueue,numWorkerThreads,workerResetManager,queueTracker,blockingDocuments,lowWaterFactor,stuffAmtFactor,
+      ManifoldCF.getUsePipelinedStuffing(threadContext),processID);
     expireStufferThread = new ExpireStufferThread(expireQueue,numExpireThreads,workerResetManager,processID);
     setPriorityThread = new SetPriorityThread(numWorkerThreads,blockingDocuments,processID);
     historyCleanupThread = new HistoryCleanupThread(processID);
@@ -785,6 +790,8 @@ public class CrawlerAgent implements IAgent
     // Threads are down; release connectors
     RepositoryConnectorPoolFactory.make(threadContext).flushUnusedConnectors();
     NotificationConnectorPoolFactory.make(threadContext).flushUnusedConnectors();
+    // Give back bin values that were reserved but never used
+    BinManagerFactory.make(threadContext).releaseReservedValues();
     numWorkerThreads = 0;
     numDeleteThreads = 0;
     numExpireThreads = 0;
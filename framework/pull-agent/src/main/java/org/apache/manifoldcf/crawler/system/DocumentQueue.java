@@ -21,6 +21,7 @@ package org.apache.manifoldcf.crawler.system;
 import org.apache.manifoldcf.core.interfaces.*;
 import org.apache.manifoldcf.crawler.interfaces.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 
 /** This class describes a document queue, which has a "stuffer" thread and many "reader" threads.
 * The queue manages thread synchronization so that (a) the "stuffer" thread blocks until queue is empty, and
@@ -36,6 +37,15 @@ public class DocumentQueue
   // This flag gets set to 'true' if the queue is being cleared due to a reset
   protected boolean resetFlag = false;
 
+  // Running count of document sets handed to worker threads
+  protected final AtomicLong takenCount = new AtomicLong(0L);
+  // Accumulated time, in milliseconds, that the queue has been empty
+  protected long emptyTime = 0L;
+  // Time the queue last became empty, or -1 if it isn't empty
+  protected long emptySince = -1L;
+  // Lock protecting the empty time accounting
+  protected final Object emptyTimeLock = new Object();
+
   /** Constructor.
   */
   public DocumentQueue()
@@ -61,6 +71,70 @@ public class DocumentQueue
     {
       queue.clear();
       resetFlag = false;
+      noteQueueDrained();
+    }
+  }
+
+  /** Get the number of document sets on the queue.
+  */
+  public int getSize()
+  {
+    synchronized (queue)
+    {
+      return queue.size();
+    }
+  }
+
+  /** Get the number of document sets that have been handed to worker threads since the queue was created.
+  * Sampling this over time yields the rate at which the worker threads are draining the queue.
+  */
+  public long getTakenCount()
+  {
+    return takenCount.get();
+  }
+
+  /** Get the accumulated time, in milliseconds, that the queue has spent empty since the first document set
+  * was removed.  Time spent empty is time that worker threads may have been waiting for work.
+  */
+  public long getEmptyTime()
+  {
+    synchronized (emptyTimeLock)
+    {
+      if (emptySince == -1L)
+        return emptyTime;
+      return emptyTime + (currentTime() - emptySince);
+    }
+  }
+
+  /** Get the current time, in milliseconds, for the empty time accounting.
+  */
+  protected long currentTime()
+  {
+    return System.currentTimeMillis();
+  }
+
+  /** Note that a document set was removed and the queue may now be empty.
+  */
+  protected void noteQueueDrained()
+  {
+    synchronized (emptyTimeLock)
+    {
+      if (emptySince == -1L && getSize() == 0)
+        emptySince = currentTime();
+    }
+  }
+
+  /** Note that a document set was added to a queue that may have been empty.
+  */
+  protected void noteQueueFilled()
+  {
+    synchronized (emptyTimeLock)
+    {
+      if (emptySince != -1L && getSize() > 0)
+      {
+        emptyTime += currentTime() - emptySince;
+        emptySince = -1L;
+      }
     }
   }
 
@@ -87,6 +161,8 @@ public class DocumentQueue
     {
       queue.add(dd);
       queue.notify();
+      if (queue.size() == 1)
+        noteQueueFilled();
     }
   }
 
@@ -132,9 +208,26 @@ public class DocumentQueue
       }
       // Pull off the best one.  DON'T REORDER!!
       QueuedDocumentSet rval = queue.remove(bestIndex);
+      takenCount.incrementAndGet();
+      if (queue.size() == 0)
+        noteQueueDrained();
       return rval;
     }
   }
 
+  /** Pull the best-rated document set off the queue on behalf of a specific worker thread, but wait if
+  * there is nothing there.  Queue implementations that partition their work by worker use the worker
+  * identifier; this one does not.
+  *@param overlapCalculator performs analysis of the document sets on the queue so that we can
+  * pick the best one.
+  *@param workerID is the identifier of the worker thread that is asking.
+  *@return the document set.
+  */
+  public QueuedDocumentSet getDocument(QueueTracker overlapCalculator, String workerID)
+    throws InterruptedException
+  {
+    return getDocument(overlapCalculator);
+  }
+
 
 }
@@ -59,6 +59,15 @@ public class ManifoldCF extends org.apache.manifoldcf.agents.system.ManifoldCF
   protected static final String expireThreadCountProperty = "org.apache.manifoldcf.crawler.expirethreads";
   protected static final String lowWaterFactorProperty = "org.apache.manifoldcf.crawler.lowwaterfactor";
   protected static final String stuffAmtFactorProperty = "org.apache.manifoldcf.crawler.stuffamountfactor";
+  protected static final String binnedDocumentQueueProperty = "org.apache.manifoldcf.crawler.binneddocumentqueue";
+  protected static final String pipelinedStuffingProperty = "org.apache.manifoldcf.crawler.pipelinedstuffing";
+  protected static final String jobQueuePartitioningProperty = "org.apache.manifoldcf.crawler.jobqueue.partitioning";
+  protected static final String jobQueueHashPartitionsProperty = "org.apache.manifoldcf.crawler.jobqueue.hashpartitions";
+  protected static final String binReservationSizeProperty = "org.apache.manifoldcf.crawler.binreservationsize";
+  protected static final String hopCountInMemoryMaxLinksProperty = "org.apache.manifoldcf.crawler.hopcount.inmemory.maxlinks";
+  protected static final String hopCountInMemoryMinQueueProperty = "org.apache.manifoldcf.crawler.hopcount.inmemory.minqueue";
+  protected static final String queueFilterMaxDocumentsProperty = "org.apache.manifoldcf.crawler.queuefilter.maxdocuments";
+  protected static final String carrydownCacheSizeProperty = "org.apache.manifoldcf.crawler.carrydowncache.size";
   protected static final String connectorsConfigurationFileProperty = "org.apache.manifoldcf.connectorsconfigurationfile";
   protected static final String databaseSuperuserNameProperty = "org.apache.manifoldcf.dbsuperusername";
   protected static final String databaseSuperuserPasswordProperty = "org.apache.manifoldcf.dbsuperuserpassword";
@@ -1036,6 +1045,83 @@ public class ManifoldCF extends org.apache.manifoldcf.agents.system.ManifoldCF
     return LockManagerFactory.getIntProperty(threadContext,cleanupThreadCountProperty,10);
   }
   
+  /** Find out whether the worker threads should use the binned, lock-free document queue.
+  */
+  public static boolean getUseBinnedDocumentQueue(IThreadContext threadContext)
+    throws ManifoldCFException
+  {
+    return LockManagerFactory.getBooleanProperty(threadContext,binnedDocumentQueueProperty,false);
+  }
+
+  /** Find out whether the stuffer thread should start its queries ahead of need, sized by the measured drain rate.
+  */
+  public static boolean getUsePipelinedStuffing(IThreadContext threadContext)
+    throws ManifoldCFException
+  {
+    return LockManagerFactory.getBooleanProperty(threadContext,pipelinedStuffingProperty,false);
+  }
+
+  /** Find out how the job queue table should be partitioned.
+  *@return "none", "job" (one partition per job), or "hash" (a fixed number of partitions, by job hash).
+  */
+  public static String getJobQueuePartitioning(IThreadContext threadContext)
+    throws ManifoldCFException
+  {
+    return LockManagerFactory.getStringProperty(threadContext,jobQueuePartitioningProperty,"none");
+  }
+
+  /** Find out how many partitions the job queue table should have, when it is partitioned by job hash.
+  */
+  public static int getJobQueueHashPartitions(IThreadContext threadContext)
+    throws ManifoldCFException
+  {
+    return LockManagerFactory.getIntProperty(threadContext,jobQueueHashPartitionsProperty,16);
+  }
+
+  /** Find out the largest block of document bin values a process may reserve at one time.
+  *@return the block size, or 0 if bin values should be obtained from the database one request at a time.
+  */
+  public static int getBinReservationSize(IThreadContext threadContext)
+    throws ManifoldCFException
+  {
+    return LockManagerFactory.getIntProperty(threadContext,binReservationSizeProperty,0);
+  }
+
+  /** Find out the most links a job may have for its hop counts to be calculated in memory.
+  *@return the most links, or 0 if hop counts should always be calculated in the database.
+  */
+  public static int getHopCountInMemoryMaxLinks(IThreadContext threadContext)
+    throws ManifoldCFException
+  {
+    return LockManagerFactory.getIntProperty(threadContext,hopCountInMemoryMaxLinksProperty,0);
+  }
+
+  /** Find out how many hop counts must be queued for recalculation before they are calculated in memory.
+  */
+  public static int getHopCountInMemoryMinQueue(IThreadContext threadContext)
+    throws ManifoldCFException
+  {
+    return LockManagerFactory.getIntProperty(threadContext,hopCountInMemoryMinQueueProperty,1000);
+  }
+
+  /** Find out the most documents a job may have for this process to keep a filter of the documents it has queued.
+  *@return the most documents, or 0 if queued documents should always be looked for in the database.
+  */
+  public static int getQueueFilterMaxDocuments(IThreadContext threadContext)
+    throws ManifoldCFException
+  {
+    return LockManagerFactory.getIntProperty(threadContext,queueFilterMaxDocumentsProperty,0);
+  }
+
+  /** Find out how many documents this process may cache carrydown values for.
+  *@return the most documents, or 0 if carrydown values should always be read from the database.
+  */
+  public static int getCarrydownCacheSize(IThreadContext threadContext)
+    throws ManifoldCFException
+  {
+    return LockManagerFactory.getIntProperty(threadContext,carrydownCacheSizeProperty,1000);
+  }
+
   /** Requeue documents due to carrydown.
   */
   public static void requeueDocumentsDueToCarrydown(IJobManager jobManager,
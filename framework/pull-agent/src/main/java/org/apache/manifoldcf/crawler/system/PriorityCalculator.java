@@ -22,7 +22,6 @@ import org.apache.manifoldcf.core.interfaces.*;
 import org.apache.manifoldcf.agents.interfaces.*;
 import org.apache.manifoldcf.crawler.interfaces.*;
 import java.util.*;
-import java.util.regex.*;
 
 /** This class calculates a document priority given all the required inputs.
 * It is not thread safe, but calls classes that are (e.g. QueueTracker).
@@ -189,86 +188,13 @@ public class PriorityCalculator implements IPriorityCalculator
   */
   protected static double[] calculateMaxFetchRates(String[] binNames, IRepositoryConnection connection)
   {
-    ThrottleLimits tl = new ThrottleLimits(connection);
-    return tl.getMaximumRates(binNames);
-  }
-
-  /** This class represents the throttle limits out of the connection specification */
-  protected static class ThrottleLimits
-  {
-    protected List<ThrottleLimitSpec> specs = new ArrayList<ThrottleLimitSpec>();
-
-    public ThrottleLimits(IRepositoryConnection connection)
+    ThrottleMatcher throttleMatcher = ThrottleMatcher.getMatcher(connection);
+    double[] rval = new double[binNames.length];
+    for (int j = 0; j < binNames.length; j++)
     {
-      String[] throttles = connection.getThrottles();
-      int i = 0;
-      while (i < throttles.length)
-      {
-        try
-        {
-          specs.add(new ThrottleLimitSpec(throttles[i],(double)connection.getThrottleValue(throttles[i])));
-        }
-        catch (PatternSyntaxException e)
-        {
-        }
-        i++;
-      }
-    }
-
-    public double[] getMaximumRates(String[] binNames)
-    {
-      double[] rval = new double[binNames.length];
-      for (int j = 0 ; j < binNames.length ; j++)
-      {
-        String binName = binNames[j];
-        double maxRate = Double.POSITIVE_INFINITY;
-        for (ThrottleLimitSpec spec : specs)
-        {
-          Pattern p = spec.getRegexp();
-          Matcher m = p.matcher(binName);
-          if (m.find())
-          {
-            double rate = spec.getMaxRate();
-            // The direction of this inequality reflects the fact that the throttling is conservative when more rules are present.
-            if (rate < maxRate)
-              maxRate = rate;
-          }
-        }
-        rval[j] = maxRate;
-      }
-      return rval;
-    }
-
-  }
-
-  /** This is a class which describes an individual throttle limit, in fetches per millisecond. */
-  protected static class ThrottleLimitSpec
-  {
-    /** Regexp */
-    protected final Pattern regexp;
-    /** The fetch limit for all bins matching that regexp, in fetches per millisecond */
-    protected final double maxRate;
-
-    /** Constructor */
-    public ThrottleLimitSpec(String regexp, double maxRate)
-      throws PatternSyntaxException
-    {
-      this.regexp = Pattern.compile(regexp);
-      this.maxRate = maxRate;
-    }
-
-    /** Get the regexp. */
-    public Pattern getRegexp()
-    {
-      return regexp;
-    }
-
-    /** Get the max count */
-    public double getMaxRate()
-    {
-      return maxRate;
+      rval[j] = throttleMatcher.findMaxRate(binNames[j]);
     }
+    return rval;
   }
 
 }
-
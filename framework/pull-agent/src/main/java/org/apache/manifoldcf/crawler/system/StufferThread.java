@@ -37,6 +37,19 @@ public class StufferThread extends Thread
   /** Datum which contains the last time, in milliseconds since epoch, that any stuffer thread in the cluster
       successfully fired. */
   protected final static String stufferThreadLastTimeDatumName = "_STUFFERTHREAD_LASTTIME";
+
+  /** In pipelined mode, how often to check the queue, in milliseconds */
+  protected final static long pipelinedPollInterval = 100L;
+  /** In pipelined mode, the shortest interval over which the drain rate is measured, in milliseconds */
+  protected final static long drainSampleInterval = 1000L;
+  /** In pipelined mode, how many stuffing cycle times' worth of work to leave queued when the next query starts */
+  protected final static double prefetchSafetyFactor = 1.5;
+  /** In pipelined mode, how many stuffing cycle times' worth of work each batch should contain */
+  protected final static double batchCycleMultiple = 4.0;
+  /** In pipelined mode, the most documents stuffed at once, as a multiple of the lowest amount */
+  protected final static int highestStuffAmtMultiple = 32;
+  /** How often to log queue statistics, in milliseconds */
+  protected final static long statisticsLogInterval = 60000L;
   
   // Local data
   
@@ -56,14 +69,20 @@ public class StufferThread extends Thread
   protected final BlockingDocuments blockingDocuments;
   /** Process ID */
   protected final String processID;
+  /** True if the next batch is fetched while the worker threads are still draining the current one */
+  protected final boolean pipelined;
+  /** This is the highest number of entries we will stuff at any one time in pipelined mode */
+  protected final int highestStuffAmt;
   
   /** Constructor.
   *@param documentQueue is the document queue we'll be stuffing.
   *@param n represents the number of threads that will be processing queued stuff, NOT the
   * number of documents to be done at once!
+  *@param pipelined is true if the stuffer should size its batches and time its queries from the measured
+  * rate at which the worker threads drain the queue, so that the next query runs before the queue empties.
   */
   public StufferThread(DocumentQueue documentQueue, int n, WorkerResetManager resetManager, QueueTracker qt,
-    BlockingDocuments blockingDocuments, float lowWaterFactor, float stuffSizeFactor, String processID)
+    BlockingDocuments blockingDocuments, float lowWaterFactor, float stuffSizeFactor, boolean pipelined, String processID)
     throws ManifoldCFException
   {
     super();
@@ -75,6 +94,8 @@ public class StufferThread extends Thread
     this.queueTracker = qt;
     this.blockingDocuments = blockingDocuments;
     this.processID = processID;
+    this.pipelined = pipelined;
+    this.highestStuffAmt = lowestStuffAmt * highestStuffAmtMultiple;
     setName("Stuffer thread");
     setDaemon(true);
     // The priority of this thread is higher than most others.  We want stuffing to proceed even if the machine
@@ -120,6 +141,19 @@ public class StufferThread extends Thread
       long lastQueueEnd = -1L;
       boolean lastQueueFullResults = false;
 
+      // Parameters we need in pipelined mode.  The drain rate is in document sets per millisecond, and is a
+      // running average; the cycle time is the running average of how long it takes to query for and queue a batch.
+      double drainRate = -1.0;
+      long lastDrainSampleTime = System.currentTimeMillis();
+      long lastDrainSampleCount = documentQueue.getTakenCount();
+      double stuffCycleTime = -1.0;
+      double documentsPerSet = 1.0;
+      long lastStuffEmptyTime = documentQueue.getEmptyTime();
+
+      // Statistics logging
+      long lastStatisticsTime = System.currentTimeMillis();
+      long lastStatisticsEmptyTime = documentQueue.getEmptyTime();
+
       // Loop
       while (true)
       {
@@ -132,28 +166,88 @@ public class StufferThread extends Thread
           // Check if we're okay
           resetManager.waitForReset(threadContext);
 
-          // System.out.println("Waiting...");
-          // Wait until queue is below low water mark.
-          boolean isEmpty = documentQueue.checkIfEmpty(lowWaterMark);
-          if (isEmpty == false)
+          long currentTime = System.currentTimeMillis();
+          if (currentTime - lastStatisticsTime >= statisticsLogInterval)
           {
-            ManifoldCF.sleep(1000L);
-            continue;
+            long currentEmptyTime = documentQueue.getEmptyTime();
+            if (Logging.perf.isDebugEnabled())
+            {
+              Logging.perf.debug("Stuffer thread: Document queue was empty for "+Long.toString(currentEmptyTime - lastStatisticsEmptyTime)+
+                " of the last "+Long.toString(currentTime - lastStatisticsTime)+" ms; current size is "+Integer.toString(documentQueue.getSize())+
+                " document sets; stuffing amount is "+Integer.toString(stuffAmt));
+            }
+            lastStatisticsTime = currentTime;
+            lastStatisticsEmptyTime = currentEmptyTime;
           }
-          long queueNeededTime = System.currentTimeMillis();
 
-          Logging.threads.debug("Document stuffer thread woke up");
+          if (pipelined)
+          {
+            // Update the drain rate
+            if (currentTime - lastDrainSampleTime >= drainSampleInterval)
+            {
+              long takenCount = documentQueue.getTakenCount();
+              double sampleRate = ((double)(takenCount - lastDrainSampleCount)) / ((double)(currentTime - lastDrainSampleTime));
+              if (drainRate < 0.0)
+                drainRate = sampleRate;
+              else
+                drainRate = 0.75 * drainRate + 0.25 * sampleRate;
+              lastDrainSampleTime = currentTime;
+              lastDrainSampleCount = takenCount;
+            }
+
+            // Start the next query while there is still enough on the queue to keep the worker threads busy until
+            // the query's results are queued.
+            int prefetchMark = lowWaterMark;
+            if (drainRate > 0.0 && stuffCycleTime > 0.0)
+              prefetchMark = Math.max(lowWaterMark,(int)(drainRate * stuffCycleTime * prefetchSafetyFactor));
+            if (documentQueue.checkIfEmpty(prefetchMark) == false)
+            {
+              ManifoldCF.sleep(pipelinedPollInterval);
+              continue;
+            }
 
-          // Adjust stuffAmt based on how well we did in the last queuing attempt keeping up with the worker threads.
-          if (lastQueueFullResults)
+            Logging.threads.debug("Document stuffer thread woke up");
+
+            // Size the batch so that it lasts several cycle times at the current drain rate.  If the queue ran dry since
+            // the last batch, the measured rate understates demand, so grow as the classic mode does.
+            long currentEmptyTime = documentQueue.getEmptyTime();
+            int newStuffAmt = stuffAmt;
+            if (drainRate > 0.0 && stuffCycleTime > 0.0)
+              newStuffAmt = (int)(drainRate * documentsPerSet * stuffCycleTime * batchCycleMultiple);
+            if (lastQueueFullResults && currentEmptyTime > lastStuffEmptyTime)
+              newStuffAmt = Math.max(newStuffAmt,stuffAmt * 2);
+            lastStuffEmptyTime = currentEmptyTime;
+            if (newStuffAmt < lowestStuffAmt)
+              newStuffAmt = lowestStuffAmt;
+            if (newStuffAmt > highestStuffAmt)
+              newStuffAmt = highestStuffAmt;
+            stuffAmt = newStuffAmt;
+          }
+          else
           {
-            if (lastQueueEnd - lastQueueStart >= queueNeededTime - lastQueueEnd)
-              stuffAmt *= 2;
-            else if (lastQueueEnd - lastQueueStart < 4 * (queueNeededTime - lastQueueEnd))
+            // System.out.println("Waiting...");
+            // Wait until queue is below low water mark.
+            boolean isEmpty = documentQueue.checkIfEmpty(lowWaterMark);
+            if (isEmpty == false)
+            {
+              ManifoldCF.sleep(1000L);
+              continue;
+            }
+            long queueNeededTime = System.currentTimeMillis();
+
+            Logging.threads.debug("Document stuffer thread woke up");
+
+            // Adjust stuffAmt based on how well we did in the last queuing attempt keeping up with the worker threads.
+            if (lastQueueFullResults)
             {
-              stuffAmt /= 2;
-              if (stuffAmt < lowestStuffAmt)
-                stuffAmt = lowestStuffAmt;
+              if (lastQueueEnd - lastQueueStart >= queueNeededTime - lastQueueEnd)
+                stuffAmt *= 2;
+              else if (lastQueueEnd - lastQueueStart < 4 * (queueNeededTime - lastQueueEnd))
+              {
+                stuffAmt /= 2;
+                if (stuffAmt < lowestStuffAmt)
+                  stuffAmt = lowestStuffAmt;
+              }
             }
           }
 
@@ -281,6 +375,7 @@ public class StufferThread extends Thread
             z++;
           }
 
+          int setsQueued = 0;
           String[][] descBinNames = new String[descs.length][];
           int[] descMaxDocuments = new int[descs.length];
           try
@@ -395,6 +490,7 @@ public class StufferThread extends Thread
               //      Logging.threads.debug("Queuing "+Integer.toString(set.size())+" documents in one request");
               QueuedDocumentSet qds = new QueuedDocumentSet(set,jobs[i],connections[i]);
               documentQueue.addDocument(qds);
+              setsQueued++;
               set.clear();
             }
           }
@@ -408,10 +504,21 @@ public class StufferThread extends Thread
             {
               QueuedDocumentSet set = new QueuedDocumentSet(x,jobs[i],connections[i]);
               documentQueue.addDocument(set);
+              setsQueued++;
               documentSets.remove(jobID);
             }
           }
 
+          // Note how long the whole cycle took, from the start of the query until the results were queued, and
+          // how big the sets were.  Pipelined mode uses these to decide when to start the next query.
+          double cycleTime = (double)(System.currentTimeMillis() - lastQueueStart);
+          if (stuffCycleTime < 0.0)
+            stuffCycleTime = cycleTime;
+          else
+            stuffCycleTime = 0.75 * stuffCycleTime + 0.25 * cycleTime;
+          if (setsQueued > 0)
+            documentsPerSet = ((double)descs.length) / ((double)setsQueued);
+
           // If we don't wait here, the other threads don't seem to have a chance to queue anything else up.
           //Thread.yield();
         }
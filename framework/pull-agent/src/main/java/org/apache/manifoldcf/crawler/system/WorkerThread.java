@@ -118,7 +118,7 @@ public class WorkerThread extends Thread
           // we update its status, even if there is an exception!!!
 
           // See if there is anything on the queue for me
-          QueuedDocumentSet qds = documentQueue.getDocument(queueTracker);
+          QueuedDocumentSet qds = documentQueue.getDocument(queueTracker,id);
           if (qds == null)
             // It's a reset, so recycle
             continue;
@@ -396,40 +396,64 @@ public class WorkerThread extends Thread
                       ServiceInterruption serviceInterruption = null;
                       try
                       {
-                        connector.processDocuments(documentIDs,existingVersions,job.getSpecification(),activity,jobType,isDefaultAuthority);
+                        try
+                        {
+                          connector.processDocuments(documentIDs,existingVersions,job.getSpecification(),activity,jobType,isDefaultAuthority);
                         
-                        // Now do everything that the connector might have done if we were not doing it for it.
+                          // Now do everything that the connector might have done if we were not doing it for it.
 
-                        // Right now, that's just getting rid of untouched components.
-                        for (QueuedDocument qd : activeDocuments)
-                        {
-                          String documentIdentifier = qd.getDocumentDescription().getDocumentIdentifier();
-                          if (!activity.wasDocumentAborted(documentIdentifier) && !activity.wasDocumentDeleted(documentIdentifier))
+                          // Right now, that's just getting rid of untouched components.
+                          for (QueuedDocument qd : activeDocuments)
                           {
-                            String documentIdentifierHash = qd.getDocumentDescription().getDocumentIdentifierHash();
-                            // In order to be able to loop over all the components that the incremental ingester knows about, we need to know
-                            // what the FIRST output is.
-                            DocumentIngestStatusSet set = qd.getLastIngestedStatus(ingester.getFirstIndexedOutputConnectionName(pipelineConnections));
-                            if (set != null)
+                            String documentIdentifier = qd.getDocumentDescription().getDocumentIdentifier();
+                            if (!activity.wasDocumentAborted(documentIdentifier) && !activity.wasDocumentDeleted(documentIdentifier))
                             {
-                              Iterator<String> componentHashes = set.componentIterator();
-                              while (componentHashes.hasNext())
+                              String documentIdentifierHash = qd.getDocumentDescription().getDocumentIdentifierHash();
+                              // In order to be able to loop over all the components that the incremental ingester knows about, we need to know
+                              // what the FIRST output is.
+                              DocumentIngestStatusSet set = qd.getLastIngestedStatus(ingester.getFirstIndexedOutputConnectionName(pipelineConnections));
+                              if (set != null)
                               {
-                                String componentHash = componentHashes.next();
-                                // Check whether we've indexed or not
-                                if (!activity.wasDocumentComponentTouched(documentIdentifier,
-                                  componentHash))
+                                Iterator<String> componentHashes = set.componentIterator();
+                                while (componentHashes.hasNext())
                                 {
-                                  // This component must be removed.
-                                  ingester.documentRemove(
-                                    pipelineConnections,
-                                    connectionName,documentIdentifierHash,componentHash,
-                                    ingestLogger);
+                                  String componentHash = componentHashes.next();
+                                  // Check whether we've indexed or not
+                                  if (!activity.wasDocumentComponentTouched(documentIdentifier,
+                                    componentHash))
+                                  {
+                                    // This component must be removed.
+                                    ingester.documentRemove(
+                                      pipelineConnections,
+                                      connectionName,documentIdentifierHash,componentHash,
+                                      ingestLogger);
+                                  }
                                 }
                               }
                             }
                           }
                         }
+                        catch (Throwable e)
+                        {
+                          // The sends must be over before the batch is dealt with, but the batch is dealt with for what
+                          // went wrong first
+                          try
+                          {
+                            ingester.waitForSends();
+                          }
+                          catch (Throwable sendFailure)
+                          {
+                            e.addSuppressed(sendFailure);
+                          }
+                          throw e;
+                        }
+                        // Documents handed to asynchronous output stages must be sent before the outcome of this batch
+                        // is decided.  A failed send is thrown here, so the documents are retried as they would be if
+                        // the send had failed synchronously.  A rejected document has had its version recorded, just as
+                        // when a synchronous output rejects it, so nothing more needs doing.
+                        String[] rejectedHashes = ingester.waitForSends();
+                        if (rejectedHashes.length > 0 && Logging.threads.isDebugEnabled())
+                          Logging.threads.debug("Asynchronous output rejected "+rejectedHashes.length+" document(s) of job "+job.getID());
 
                         // Done with connector functionality!
                       }
@@ -1877,12 +1901,13 @@ public class WorkerThread extends Thread
         resultDescription,childIdentifiers);
     }
 
-    /** Flush the outstanding references into the database.
+    /** Flush the outstanding references and recorded document versions into the database.
     */
     public void flush()
       throws ManifoldCFException
     {
       processDocumentReferences();
+      ingester.flushDocumentRecords();
     }
 
     /** Process outstanding document references, in batch.
@@ -0,0 +1,131 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.interfaces;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.crawler.repository.RepositoryConnection;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Checks the bin results of the shared throttle matcher and its replacement when a connection's throttles change.
+* When the org.apache.manifoldcf.test.benchmark property is true, also checks that remembered lookups cost less than
+* compiling the throttles for every document.
+*/
+public class TestThrottleMatcher
+{
+  @Test
+  public void binRates()
+    throws Exception
+  {
+    RepositoryConnection connection = makeConnection("Rates");
+    connection.addThrottleValue("^[^\\.]","Terminal domains",8.0f);
+    connection.addThrottleValue("^foo\\.example\\.com","One host",4.0f);
+    connection.addThrottleValue("[","Bad expression",1.0f);
+    ThrottleMatcher matcher = ThrottleMatcher.getMatcher(connection);
+    assertEquals(2,matcher.getThrottleCount());
+    // The lowest matching rate wins, and asking again gives the same answer
+    for (int i = 0; i < 2; i++)
+    {
+      assertEquals(4.0,matcher.findMaxRate("foo.example.com"),0.0);
+      assertEquals(8.0,matcher.findMaxRate("bar.example.com"),0.0);
+      assertEquals(Double.POSITIVE_INFINITY,matcher.findMaxRate(".example.com"),0.0);
+      assertEquals(2,matcher.findMatchingThrottles("foo.example.com").length);
+      assertEquals(0,matcher.findMatchingThrottles(".com").length);
+    }
+    // More bins than are remembered still get correct answers
+    for (int i = 0; i < ThrottleMatcher.MAX_REMEMBERED_BINS + 100; i++)
+    {
+      assertEquals(8.0,matcher.findMaxRate("host"+i+".example.com"),0.0);
+    }
+    assertEquals(4.0,matcher.findMaxRate("foo.example.com"),0.0);
+  }
+
+  @Test
+  public void replacedOnChange()
+    throws Exception
+  {
+    RepositoryConnection connection = makeConnection("Changes");
+    connection.addThrottleValue("^[^\\.]","Terminal domains",8.0f);
+    ThrottleMatcher first = ThrottleMatcher.getMatcher(connection);
+    assertSame(first,ThrottleMatcher.getMatcher(connection.duplicate()));
+    assertEquals(8.0,first.findMaxRate("foo.example.com"),0.0);
+
+    connection.clearThrottleValues();
+    connection.addThrottleValue("^[^\\.]","Terminal domains",2.0f);
+    ThrottleMatcher second = ThrottleMatcher.getMatcher(connection);
+    assertNotSame(first,second);
+    assertEquals(2.0,second.findMaxRate("foo.example.com"),0.0);
+    assertSame(second,ThrottleMatcher.getMatcher(connection));
+  }
+
+  @Test
+  public void lookupCost()
+    throws Exception
+  {
+    Assume.assumeTrue(Boolean.getBoolean("org.apache.manifoldcf.test.benchmark"));
+    RepositoryConnection connection = makeConnection("Cost");
+    for (int i = 0; i < 20; i++)
+    {
+      connection.addThrottleValue("^host"+i+"\\.[a-z0-9]+\\.com$","Host "+i,(float)(i + 1));
+    }
+    String[] bins = new String[200];
+    for (int i = 0; i < bins.length; i++)
+    {
+      bins[i] = "host"+(i % 20)+".site"+(i % 7)+".com";
+    }
+    int documentCount = 20000;
+
+    // What the priority calculation used to do: compile every throttle for each document
+    long startTime = System.nanoTime();
+    double checksum = 0.0;
+    for (int i = 0; i < documentCount; i++)
+    {
+      ThrottleMatcher fresh = new ThrottleMatcher(connection);
+      double rate = Double.POSITIVE_INFINITY;
+      for (int index : fresh.computeMatchingThrottles(bins[i % bins.length]))
+      {
+        rate = Math.min(rate,fresh.getMaxRate(index));
+      }
+      checksum += rate;
+    }
+    long compileTime = System.nanoTime() - startTime;
+
+    startTime = System.nanoTime();
+    double sharedChecksum = 0.0;
+    for (int i = 0; i < documentCount; i++)
+    {
+      sharedChecksum += ThrottleMatcher.getMatcher(connection).findMaxRate(bins[i % bins.length]);
+    }
+    long sharedTime = System.nanoTime() - startTime;
+
+    assertEquals(checksum,sharedChecksum,0.0);
+    assertTrue("Throttle lookups for "+documentCount+" documents: compiled each time "+(compileTime / 1000000L)+
+      " ms, shared matcher "+(sharedTime / 1000000L)+" ms",sharedTime < compileTime);
+  }
+
+  protected static RepositoryConnection makeConnection(String name)
+  {
+    RepositoryConnection connection = new RepositoryConnection();
+    connection.setName(name);
+    connection.setClassName("org.apache.manifoldcf.crawler.tests.TestingRepositoryConnector");
+    return connection;
+  }
+
+}
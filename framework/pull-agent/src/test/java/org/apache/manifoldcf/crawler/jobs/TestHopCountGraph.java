@@ -0,0 +1,203 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.jobs;
+
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Checks in-memory hop count calculation against a plain relaxation over the same links, checks the paths
+* it reports, and loads and calculates a synthetic link graph.  The graph has ten thousand links unless the system
+* property "hopcount.benchmark.links" says otherwise, or one million when org.apache.manifoldcf.test.benchmark is
+* true.
+*/
+public class TestHopCountGraph
+{
+  protected final static String[] LINK_TYPES = new String[]{"link","redirect"};
+
+  @Test
+  public void smallGraph()
+    throws Exception
+  {
+    HopCountGraph graph = new HopCountGraph();
+    graph.addLink("","A","");
+    graph.addLink("A","B","link");
+    graph.addLink("B","C","redirect");
+    graph.addLink("C","D","link");
+    graph.addLink("A","D","redirect");
+    // A loop that cannot be reached
+    graph.addLink("X","Y","link");
+    graph.addLink("Y","X","link");
+
+    graph.calculateDistances("link");
+    assertEquals(0,graph.getDistance(graph.findDocument("A")));
+    assertEquals(1,graph.getDistance(graph.findDocument("B")));
+    assertEquals(1,graph.getDistance(graph.findDocument("C")));
+    assertEquals(0,graph.getDistance(graph.findDocument("D")));
+    assertEquals(HopCountGraph.INFINITY,graph.getDistance(graph.findDocument("X")));
+    assertEquals(-1,graph.findDocument("unknown"));
+    assertTrue(graph.isLinkTarget(graph.findDocument("B")));
+    assertFalse(graph.isLinkTarget(HopCountGraph.ROOT));
+
+    DeleteDependency[] path = graph.getPath(graph.findDocument("D"));
+    assertEquals(2,path.length);
+    assertEquals(new DeleteDependency("redirect","D","A"),path[0]);
+    assertEquals(new DeleteDependency("","A",""),path[1]);
+    assertEquals(0,graph.getPath(graph.findDocument("X")).length);
+
+    graph.calculateDistances("redirect");
+    assertEquals(0,graph.getDistance(graph.findDocument("B")));
+    assertEquals(1,graph.getDistance(graph.findDocument("C")));
+    assertEquals(1,graph.getDistance(graph.findDocument("D")));
+  }
+
+  @Test
+  public void matchesRelaxation()
+    throws Exception
+  {
+    Random random = new Random(17L);
+    for (int trial = 0; trial < 50; trial++)
+    {
+      int documentCount = 2 + random.nextInt(200);
+      int linkCount = random.nextInt(documentCount * 4);
+      int[] children = new int[linkCount];
+      int[] parents = new int[linkCount];
+      int[] types = new int[linkCount];
+      HopCountGraph graph = new HopCountGraph();
+      for (int i = 0; i < linkCount; i++)
+      {
+        // Document 0 is the root; a few links come from it
+        children[i] = (random.nextInt(10) == 0)?0:1 + random.nextInt(documentCount - 1);
+        parents[i] = 1 + random.nextInt(documentCount - 1);
+        types[i] = random.nextInt(LINK_TYPES.length);
+        graph.addLink(makeHash(children[i]),makeHash(parents[i]),(children[i] == 0)?"":LINK_TYPES[types[i]]);
+      }
+
+      for (int t = 0; t < LINK_TYPES.length; t++)
+      {
+        int[] expected = new int[documentCount];
+        Arrays.fill(expected,HopCountGraph.INFINITY);
+        expected[0] = 0;
+        boolean changed = true;
+        while (changed)
+        {
+          changed = false;
+          for (int i = 0; i < linkCount; i++)
+          {
+            if (expected[children[i]] == HopCountGraph.INFINITY)
+              continue;
+            int distance = expected[children[i]] + ((children[i] != 0 && types[i] == t)?1:0);
+            if (distance < expected[parents[i]])
+            {
+              expected[parents[i]] = distance;
+              changed = true;
+            }
+          }
+        }
+
+        graph.calculateDistances(LINK_TYPES[t]);
+        for (int d = 1; d < documentCount; d++)
+        {
+          int document = graph.findDocument(makeHash(d));
+          if (document == -1)
+          {
+            assertEquals(HopCountGraph.INFINITY,expected[d]);
+            continue;
+          }
+          assertEquals(expected[d],graph.getDistance(document));
+          // The path must be made of real links, end at the root, and count to the distance
+          DeleteDependency[] path = graph.getPath(document);
+          if (expected[d] == HopCountGraph.INFINITY)
+          {
+            assertEquals(0,path.length);
+            continue;
+          }
+          int counted = 0;
+          String current = makeHash(d);
+          for (DeleteDependency dd : path)
+          {
+            assertEquals(current,dd.getParentIDHash());
+            if (dd.getLinkType().equals(LINK_TYPES[t]))
+              counted++;
+            current = dd.getChildIDHash();
+          }
+          assertEquals("",current);
+          assertEquals(expected[d],counted);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void largeGraph()
+    throws Exception
+  {
+    int linkCount = Integer.getInteger("hopcount.benchmark.links",
+      Boolean.getBoolean("org.apache.manifoldcf.test.benchmark")?1000000:10000).intValue();
+    int documentCount = Math.max(100,linkCount / 10);
+    String[] hashes = new String[documentCount];
+    for (int d = 0; d < documentCount; d++)
+    {
+      hashes[d] = makeHash(d + 1);
+    }
+
+    // A site-like graph: most links stay near the page they are on, some go anywhere, and one in ten is a redirect
+    Random random = new Random(42L);
+    HopCountGraph graph = new HopCountGraph();
+    for (int d = 0; d < 100; d++)
+    {
+      graph.addLink("",hashes[random.nextInt(documentCount)],"");
+    }
+    for (int i = 100; i < linkCount; i++)
+    {
+      int child = random.nextInt(documentCount);
+      int parent = (random.nextInt(4) == 0)?random.nextInt(documentCount):Math.min(documentCount - 1,Math.max(0,child + random.nextInt(200) - 100));
+      graph.addLink(hashes[child],hashes[parent],(random.nextInt(10) == 0)?"redirect":"link");
+    }
+    graph.compact();
+
+    int reached = 0;
+    for (String linkType : LINK_TYPES)
+    {
+      graph.calculateDistances(linkType);
+      for (int d = 0; d < graph.getDocumentCount(); d++)
+      {
+        int distance = graph.getDistance(d);
+        if (distance != HopCountGraph.INFINITY)
+          reached++;
+      }
+    }
+    assertEquals(linkCount,graph.getLinkCount());
+    assertTrue(reached > 0);
+  }
+
+  protected static String makeHash(int document)
+  {
+    if (document == 0)
+      return "";
+    StringBuilder sb = new StringBuilder(Integer.toHexString(document * 0x9E3779B1).toUpperCase(Locale.ROOT));
+    sb.append('-').append(document);
+    while (sb.length() < 40)
+    {
+      sb.append('0');
+    }
+    return sb.toString();
+  }
+
+}
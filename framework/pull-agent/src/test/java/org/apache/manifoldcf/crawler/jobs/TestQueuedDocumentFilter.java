@@ -0,0 +1,170 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.jobs;
+
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Checks the queued document filter.  When org.apache.manifoldcf.test.benchmark is true, it also measures how many
+* existence queries the filter would save on a crawl where most links lead to documents that are already queued, and
+* checks that few of the documents it cannot rule out turn out to be new.
+*/
+public class TestQueuedDocumentFilter
+{
+  @Test
+  public void noFalseNegatives()
+    throws Exception
+  {
+    Long jobID = new Long(1L);
+    QueuedDocumentFilter filter = QueuedDocumentFilter.startFilter(jobID,10000L,1000000);
+    assertNotNull(filter);
+    assertFalse(filter.isReady());
+    // A second builder is turned away while the first is working
+    assertNull(QueuedDocumentFilter.startFilter(jobID,10000L,1000000));
+    for (int i = 0; i < 10000; i++)
+    {
+      filter.add(makeHash(i));
+    }
+    filter.finish();
+    assertTrue(filter.isReady());
+    // Inserts after the filter is built are noted too
+    QueuedDocumentFilter.noteInserted(jobID,makeHash(-1));
+
+    for (int i = 0; i < 10000; i++)
+    {
+      assertTrue(filter.mightContain(makeHash(i)));
+    }
+    assertTrue(filter.mightContain(makeHash(-1)));
+    int positives = 0;
+    for (int i = 10000; i < 110000; i++)
+    {
+      if (filter.mightContain(makeHash(i)))
+        positives++;
+    }
+    // The filter is far from full, so false positives are rare
+    assertTrue("False positives: "+positives,positives < 100);
+    QueuedDocumentFilter.discardFilter(jobID);
+    assertNull(QueuedDocumentFilter.findFilter(jobID));
+  }
+
+  @Test
+  public void overflowAndLimit()
+    throws Exception
+  {
+    Long jobID = new Long(2L);
+    QueuedDocumentFilter filter = QueuedDocumentFilter.startFilter(jobID,0L,1000000);
+    filter.finish();
+    int capacity = filter.getCapacity();
+    // A few new documents set no new bits, so go well past the capacity
+    for (int i = 0; i < capacity * 2; i++)
+    {
+      QueuedDocumentFilter.noteInserted(jobID,makeHash(i));
+    }
+    // Filled past capacity: dropped, to be built again larger
+    assertNull(QueuedDocumentFilter.findFilter(jobID));
+
+    // A job bigger than the limit is marked as unfiltered, and is not built again
+    assertNull(QueuedDocumentFilter.startFilter(jobID,2000000L,1000000));
+    QueuedDocumentFilter marker = QueuedDocumentFilter.findFilter(jobID);
+    assertNotNull(marker);
+    assertFalse(marker.isReady());
+    assertTrue(marker.mightContain(makeHash(0)));
+    assertNull(QueuedDocumentFilter.startFilter(jobID,0L,1000000));
+    QueuedDocumentFilter.discardFilter(jobID);
+  }
+
+  @Test
+  public void repeatedLinks()
+    throws Exception
+  {
+    Assume.assumeTrue(Boolean.getBoolean("org.apache.manifoldcf.test.benchmark"));
+    // A crawl of a site whose pages each have 60 links, most of them to navigation pages and documents already
+    // queued.  Each link is one lookup in addDocuments.
+    Long jobID = new Long(3L);
+    int pageCount = 50000;
+    Random random = new Random(7L);
+    Set<String> queued = new HashSet<String>();
+    QueuedDocumentFilter filter = QueuedDocumentFilter.startFilter(jobID,0L,10000000);
+    filter.finish();
+    long lookups = 0L;
+    long saved = 0L;
+    long falsePositives = 0L;
+    int discovered = 0;
+    for (int page = 0; page < pageCount; page++)
+    {
+      for (int link = 0; link < 60; link++)
+      {
+        String hash;
+        int kind = random.nextInt(100);
+        if (kind < 40)
+          // Navigation shared by every page
+          hash = makeHash(1000000000 + random.nextInt(200));
+        else if (kind < 85 && discovered > 0)
+          // A page found before
+          hash = makeHash(random.nextInt(discovered));
+        else
+          hash = makeHash(discovered++);
+        lookups++;
+        QueuedDocumentFilter current = QueuedDocumentFilter.findFilter(jobID);
+        if (current == null)
+        {
+          // Dropped on overflow; build it again from what is queued, as the job queue would
+          current = QueuedDocumentFilter.startFilter(jobID,queued.size(),10000000);
+          for (String q : queued)
+          {
+            current.add(q);
+          }
+          current.finish();
+        }
+        if (!current.mightContain(hash))
+        {
+          saved++;
+          assertTrue(queued.add(hash));
+          QueuedDocumentFilter.noteInserted(jobID,hash);
+        }
+        else if (queued.add(hash))
+        {
+          falsePositives++;
+          QueuedDocumentFilter.noteInserted(jobID,hash);
+        }
+      }
+    }
+    QueuedDocumentFilter current = QueuedDocumentFilter.findFilter(jobID);
+    assertEquals(queued.size(),saved + falsePositives);
+    assertTrue(lookups+" link lookups, "+queued.size()+" distinct documents: "+saved+" existence queries saved ("+
+      (saved * 100L / lookups)+"% of lookups), false positive rate "+
+      String.format(Locale.ROOT,"%.3f",(double)falsePositives / (double)(saved + falsePositives))+"; filter sized for "+
+      current.getCapacity()+" documents ("+(current.getCapacity() * 10L / 8L / 1024L)+" KB)",
+      (double)falsePositives / (double)(saved + falsePositives) < 0.05);
+    QueuedDocumentFilter.discardFilter(jobID);
+  }
+
+  protected static String makeHash(int document)
+  {
+    StringBuilder sb = new StringBuilder(Integer.toHexString(document * 0x9E3779B1).toUpperCase(Locale.ROOT));
+    sb.append(Integer.toHexString(document).toUpperCase(Locale.ROOT));
+    while (sb.length() < 40)
+    {
+      sb.append('0');
+    }
+    return sb.toString();
+  }
+
+}
@@ -0,0 +1,383 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.system;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.agents.interfaces.*;
+import org.apache.manifoldcf.crawler.interfaces.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Checks that the binned document queue hands out every set exactly once, that it still
+* balances bins, and that it is no slower than the classic queue under contention.  The
+* comparison only runs when the org.apache.manifoldcf.test.benchmark property is true.
+*/
+public class TestDocumentQueue
+{
+  @Test
+  public void binBalancing()
+    throws Exception
+  {
+    BinnedDocumentQueue queue = new BinnedDocumentQueue(4);
+    QueueTracker qt = new QueueTracker();
+    for (int i = 0; i < 10; i++)
+    {
+      queue.addDocument(makeSet(i,"hot"));
+    }
+    assertFalse(queue.checkIfEmpty(9));
+    assertTrue(queue.checkIfEmpty(10));
+
+    // Make the hot bin busy
+    QueuedDocumentSet first = queue.getDocument(qt,"0");
+    assertEquals("0",first.getDocument(0).getDocumentDescription().getDocumentIdentifier());
+    qt.beginProcessing(first.getDocument(0).getBinNames());
+
+    // A cold bin queued later must be chosen next, just as with the classic queue
+    queue.addDocument(makeSet(10,"cold"));
+    QueuedDocumentSet second = queue.getDocument(qt,"1");
+    assertEquals("cold",second.getDocument(0).getBinNames()[0]);
+    // Within a bin, order is preserved
+    QueuedDocumentSet third = queue.getDocument(qt,"2");
+    assertEquals("1",third.getDocument(0).getDocumentDescription().getDocumentIdentifier());
+  }
+
+  @Test
+  public void tiesGoInPriorityAndQueueOrder()
+    throws Exception
+  {
+    // Every bin is idle, so every set rates the same; enough bins that hash order would differ
+    BinnedDocumentQueue queue = new BinnedDocumentQueue(4);
+    QueueTracker qt = new QueueTracker();
+    List<String> expected = new ArrayList<String>();
+    List<String> lowPriority = new ArrayList<String>();
+    for (int i = 0; i < 40; i++)
+    {
+      int priority = (i % 3 == 0)?7:3;
+      queue.addDocument(makeSet(i,"host"+i,makeJob(priority)));
+      if (priority == 3)
+        expected.add(Integer.toString(i));
+      else
+        lowPriority.add(Integer.toString(i));
+    }
+    expected.addAll(lowPriority);
+    List<String> taken = new ArrayList<String>();
+    for (int i = 0; i < 40; i++)
+    {
+      taken.add(queue.getDocument(qt,Integer.toString(i)).getDocument(0).getDocumentDescription().getDocumentIdentifier());
+    }
+    assertEquals(expected,taken);
+  }
+
+  @Test
+  public void resetWakesWorkers()
+    throws Exception
+  {
+    final BinnedDocumentQueue queue = new BinnedDocumentQueue(2);
+    final QueueTracker qt = new QueueTracker();
+    final AtomicReference<Object> result = new AtomicReference<Object>();
+    Thread t = new Thread()
+      {
+        public void run()
+        {
+          try
+          {
+            QueuedDocumentSet qds = queue.getDocument(qt,"0");
+            result.set((qds == null)?"null":qds);
+          }
+          catch (InterruptedException e)
+          {
+            result.set(e);
+          }
+        }
+      };
+    t.start();
+    // Wait until the worker is asleep on the empty queue
+    long deadline = System.currentTimeMillis() + 10000L;
+    while (queue.waiterCount.get() == 0 && System.currentTimeMillis() < deadline)
+    {
+      Thread.yield();
+    }
+    assertEquals(1,queue.waiterCount.get());
+    queue.reset();
+    t.join(60000L);
+    assertEquals("null",result.get());
+    queue.clear();
+    queue.addDocument(makeSet(0,"a"));
+    assertNotNull(queue.getDocument(qt,"0"));
+  }
+
+  @Test
+  public void emptyTimeAccounting()
+    throws Exception
+  {
+    final AtomicLong clock = new AtomicLong(1000L);
+    DocumentQueue[] queues = new DocumentQueue[]{
+      new DocumentQueue()
+      {
+        @Override
+        protected long currentTime()
+        {
+          return clock.get();
+        }
+      },
+      new BinnedDocumentQueue(2)
+      {
+        @Override
+        protected long currentTime()
+        {
+          return clock.get();
+        }
+      }};
+    for (DocumentQueue queue : queues)
+    {
+      QueueTracker qt = new QueueTracker();
+      queue.addDocument(makeSet(0,"a"));
+      queue.addDocument(makeSet(1,"b"));
+      assertEquals(2,queue.getSize());
+      queue.getDocument(qt,"0");
+      queue.getDocument(qt,"0");
+      assertEquals(2L,queue.getTakenCount());
+      clock.addAndGet(50L);
+      assertEquals(50L,queue.getEmptyTime());
+      queue.addDocument(makeSet(2,"a"));
+      clock.addAndGet(20L);
+      // Not empty, so no more time accumulates
+      assertEquals(50L,queue.getEmptyTime());
+    }
+  }
+
+  @Test
+  public void addRacesBucketRetirement()
+    throws Exception
+  {
+    // Several threads add to one bin while workers drain it, so its bucket keeps emptying and being
+    // retired while sets are added to it.  Retirement yields first, to widen the window for the race.
+    final BinnedDocumentQueue queue = new BinnedDocumentQueue(1)
+      {
+        @Override
+        protected void retireBucket(ConcurrentMap<String,Queue<QueuedSet>> stripe, String bucketKey,
+          Queue<QueuedSet> bucket)
+        {
+          Thread.yield();
+          super.retireBucket(stripe,bucketKey,bucket);
+        }
+      };
+    final QueueTracker qt = new QueueTracker();
+    final int numAdders = 4;
+    final int setsPerAdder = 50000;
+    final int numSets = numAdders * setsPerAdder;
+    final AtomicInteger taken = new AtomicInteger(0);
+    final Set<String> seen = Collections.synchronizedSet(new HashSet<String>());
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread[] threads = new Thread[numAdders + 4];
+    for (int i = 0; i < numAdders; i++)
+    {
+      final int adderNumber = i;
+      threads[i] = new Thread()
+        {
+          public void run()
+          {
+            for (int j = 0; j < setsPerAdder; j++)
+            {
+              queue.addDocument(makeSet(adderNumber * setsPerAdder + j,"hot"));
+            }
+          }
+        };
+    }
+    for (int i = numAdders; i < threads.length; i++)
+    {
+      final String workerID = Integer.toString(i);
+      threads[i] = new Thread()
+        {
+          public void run()
+          {
+            try
+            {
+              while (true)
+              {
+                QueuedDocumentSet qds = queue.getDocument(qt,workerID);
+                if (qds == null)
+                  break;
+                if (!seen.add(qds.getDocument(0).getDocumentDescription().getDocumentIdentifier()))
+                  throw new IllegalStateException("Set handed out twice");
+                if (taken.incrementAndGet() == numSets)
+                  queue.reset();
+              }
+            }
+            catch (Throwable e)
+            {
+              failure.set(e);
+            }
+          }
+        };
+    }
+    for (Thread t : threads)
+    {
+      t.start();
+    }
+    for (Thread t : threads)
+    {
+      t.join(60000L);
+    }
+    // A set added to a retired bucket would never be handed out, and the workers would not finish
+    queue.reset();
+    for (Thread t : threads)
+    {
+      t.join(10000L);
+      assertFalse(t.isAlive());
+    }
+    assertNull(failure.get());
+    assertEquals(numSets,taken.get());
+    assertEquals(numSets,seen.size());
+    assertEquals(0,queue.getSize());
+  }
+
+  @Test
+  public void everySetOnce()
+    throws Exception
+  {
+    runContention(new DocumentQueue(),8,2000,80,300);
+    runContention(new BinnedDocumentQueue(Runtime.getRuntime().availableProcessors()),8,2000,80,300);
+  }
+
+  @Test
+  public void contention()
+    throws Exception
+  {
+    Assume.assumeTrue(Boolean.getBoolean("org.apache.manifoldcf.test.benchmark"));
+    // Contention between workers needs processors for them to run on
+    Assume.assumeTrue(Runtime.getRuntime().availableProcessors() >= 4);
+    int numThreads = 32;
+    int numSets = 20000;
+    // Warm both up
+    runContention(new DocumentQueue(),numThreads,numSets,numThreads * 10,300);
+    runContention(new BinnedDocumentQueue(Runtime.getRuntime().availableProcessors()),numThreads,numSets,numThreads * 10,300);
+    long classicTime = runContention(new DocumentQueue(),numThreads,numSets,numThreads * 10,300);
+    long binnedTime = runContention(new BinnedDocumentQueue(Runtime.getRuntime().availableProcessors()),numThreads,numSets,numThreads * 10,300);
+    assertTrue(numSets+" sets across "+numThreads+" workers: DocumentQueue "+classicTime+" ms, BinnedDocumentQueue "+
+      binnedTime+" ms",binnedTime <= classicTime);
+  }
+
+  /** Run worker threads against a queue while a stuffer keeps it filled.
+  *@param batchSize is the number of sets the stuffer adds whenever the queue falls to half that.
+  *@param binCount is the number of distinct bins, one per web host.
+  *@return the elapsed time in milliseconds.
+  */
+  protected static long runContention(final DocumentQueue queue, int numThreads, final int numSets, int batchSize, int binCount)
+    throws Exception
+  {
+    final QueueTracker qt = new QueueTracker();
+    final AtomicInteger taken = new AtomicInteger(0);
+    final Set<String> seen = Collections.synchronizedSet(new HashSet<String>());
+    Thread[] workers = new Thread[numThreads];
+    for (int i = 0; i < numThreads; i++)
+    {
+      final String workerID = Integer.toString(i);
+      workers[i] = new Thread()
+        {
+          public void run()
+          {
+            try
+            {
+              while (true)
+              {
+                QueuedDocumentSet qds = queue.getDocument(qt,workerID);
+                if (qds == null)
+                  break;
+                qt.beginProcessing(qds.getDocument(0).getBinNames());
+                qt.endProcessing(qds.getDocument(0).getBinNames());
+                assertTrue(seen.add(qds.getDocument(0).getDocumentDescription().getDocumentIdentifier()));
+                if (taken.incrementAndGet() == numSets)
+                  queue.reset();
+              }
+            }
+            catch (InterruptedException e)
+            {
+            }
+          }
+        };
+    }
+
+    long startTime = System.currentTimeMillis();
+    for (Thread t : workers)
+    {
+      t.start();
+    }
+    // A stuffer that keeps the queue near the low water mark
+    Random random = new Random(42L);
+    int added = 0;
+    while (added < numSets)
+    {
+      if (queue.checkIfEmpty(batchSize / 2))
+      {
+        for (int j = 0; j < batchSize && added < numSets; j++)
+        {
+          QueuedDocumentSet qds = makeSet(added++,"host"+random.nextInt(binCount));
+          qt.addRecord(qds.getDocument(0).getBinNames());
+          queue.addDocument(qds);
+        }
+      }
+      else
+        Thread.yield();
+    }
+    for (Thread t : workers)
+    {
+      t.join(60000L);
+      assertFalse(t.isAlive());
+    }
+    long elapsed = System.currentTimeMillis() - startTime;
+    assertEquals(numSets,taken.get());
+    assertEquals(numSets,seen.size());
+    assertEquals(0,queue.getSize());
+    return elapsed;
+  }
+
+  protected static QueuedDocumentSet makeSet(int i, String binName)
+  {
+    return makeSet(i,binName,null);
+  }
+
+  protected static QueuedDocumentSet makeSet(int i, String binName, IJobDescription job)
+  {
+    DocumentDescription dd = new DocumentDescription(new Long(i),new Long(1L),"hash"+i,Integer.toString(i));
+    List<QueuedDocument> list = new ArrayList<QueuedDocument>();
+    list.add(new QueuedDocument(dd,new HashMap<String,DocumentIngestStatusSet>(),new String[]{binName}));
+    return new QueuedDocumentSet(list,job,null);
+  }
+
+  /** Make a job description that only knows its priority */
+  protected static IJobDescription makeJob(final int priority)
+  {
+    return (IJobDescription)java.lang.reflect.Proxy.newProxyInstance(IJobDescription.class.getClassLoader(),
+      new Class[]{IJobDescription.class},
+      new java.lang.reflect.InvocationHandler()
+      {
+        public Object invoke(Object proxy, java.lang.reflect.Method method, Object[] args)
+        {
+          if (method.getName().equals("getPriority"))
+            return new Integer(priority);
+          throw new UnsupportedOperationException(method.getName());
+        }
+      });
+  }
+
+}
@@ -0,0 +1,190 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.tests;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.crawler.bins.BinManager;
+import org.apache.manifoldcf.crawler.system.ManifoldCF;
+
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Checks the block reservations of the bin manager, and compares the statements issued by a link-heavy crawl
+* whose documents all fall into a single bin, with and without reservations.
+*/
+public class BinManagerReservationHSQLDBTest extends BaseHSQLDB
+{
+  protected final static String connectorClass = "org.apache.manifoldcf.crawler.tests.TestingRepositoryConnector";
+
+  /** Method to get database implementation class */
+  @Override
+  protected String getDatabaseImplementationClass()
+    throws Exception
+  {
+    return "org.apache.manifoldcf.crawler.tests.StatementCountingHSQLDB";
+  }
+
+  @Test
+  public void valuesIncreaseAndRespectMinimum()
+    throws Exception
+  {
+    BinManager binManager = makeBinManager(100);
+    binManager.reset();
+    double last = -1.0;
+    double minimum = 0.0;
+    for (int i = 0; i < 1000; i++)
+    {
+      if (i % 97 == 0)
+        minimum = last + 10.5;
+      double[] values = binManager.getIncrementBinValuesInTransaction(connectorClass,"bin",minimum,(i % 7) + 1);
+      for (double value : values)
+      {
+        assertTrue("Values must increase: "+value+" after "+last,value > last);
+        assertTrue("Value "+value+" is below minimum "+minimum,value >= minimum);
+        last = value;
+      }
+    }
+    // Values handed out in the caller's transaction come from the reservation too
+    double[] values = binManager.getIncrementBinValues(connectorClass,"bin",0.0,1);
+    assertTrue(values[0] > last);
+    last = values[0];
+
+    // Returning the unused values leaves the counter just past the last value handed out
+    binManager.releaseReservedValues();
+    values = makeBinManager(0).getIncrementBinValuesInTransaction(connectorClass,"bin",0.0,1);
+    assertEquals(last + 1.0,values[0],0.0);
+  }
+
+  @Test
+  public void releaseDoesNotRewindOtherProcesses()
+    throws Exception
+  {
+    BinManager binManager = makeBinManager(1000);
+    binManager.reset();
+    binManager.getIncrementBinValuesInTransaction(connectorClass,"bin",0.0,10);
+    binManager.getIncrementBinValuesInTransaction(connectorClass,"bin",0.0,10);
+    // Another process, which does not reserve, advances the counter past our block
+    double[] other = makeBinManager(0).getIncrementBinValuesInTransaction(connectorClass,"bin",0.0,1);
+    binManager.releaseReservedValues();
+    double[] values = makeBinManager(0).getIncrementBinValuesInTransaction(connectorClass,"bin",0.0,1);
+    assertEquals(other[0] + 1.0,values[0],0.0);
+  }
+
+  @Test
+  public void resetDiscardsReservations()
+    throws Exception
+  {
+    BinManager binManager = makeBinManager(1000);
+    binManager.reset();
+    for (int i = 0; i < 5; i++)
+    {
+      binManager.getIncrementBinValuesInTransaction(connectorClass,"bin",0.0,10);
+    }
+    binManager.reset();
+    double[] values = binManager.getIncrementBinValuesInTransaction(connectorClass,"bin",0.0,1);
+    assertEquals(0.0,values[0],0.0);
+  }
+
+  @Test
+  public void concurrentValuesAreUnique()
+    throws Exception
+  {
+    final BinManager binManager = makeBinManager(500);
+    binManager.reset();
+    final int threadCount = 8;
+    final List<double[]> results = Collections.synchronizedList(new ArrayList<double[]>());
+    final Throwable[] failure = new Throwable[1];
+    Thread[] threads = new Thread[threadCount];
+    for (int t = 0; t < threadCount; t++)
+    {
+      threads[t] = new Thread()
+      {
+        public void run()
+        {
+          try
+          {
+            BinManager myBinManager = makeBinManager(500);
+            for (int i = 0; i < 500; i++)
+            {
+              results.add(myBinManager.getIncrementBinValuesInTransaction(connectorClass,"bin",0.0,3));
+            }
+          }
+          catch (Throwable e)
+          {
+            failure[0] = e;
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads)
+    {
+      thread.join();
+    }
+    if (failure[0] != null)
+      throw new Exception("Worker failed: "+failure[0].getMessage(),failure[0]);
+    Set<Double> seen = new HashSet<Double>();
+    for (double[] values : results)
+    {
+      for (double value : values)
+      {
+        assertTrue("Duplicate value "+value,seen.add(new Double(value)));
+      }
+    }
+    assertEquals(threadCount * 500 * 3,seen.size());
+    binManager.releaseReservedValues();
+  }
+
+  @Test
+  public void singleBinAddStatements()
+    throws Exception
+  {
+    // Each fetched page adds its links, all on one host, a batch at a time
+    final int pageCount = 500;
+    final int linksPerPage = 20;
+    int[] reservationSizes = new int[]{0,10000};
+    long[] statements = new long[reservationSizes.length];
+    for (int r = 0; r < reservationSizes.length; r++)
+    {
+      BinManager binManager = makeBinManager(reservationSizes[r]);
+      binManager.reset();
+      long startCount = StatementCountingHSQLDB.getStatementCount();
+      for (int page = 0; page < pageCount; page++)
+      {
+        binManager.getIncrementBinValuesInTransaction(connectorClass,"www.example.com",0.0,linksPerPage);
+      }
+      statements[r] = StatementCountingHSQLDB.getStatementCount() - startCount;
+      binManager.releaseReservedValues();
+    }
+    assertTrue("Reservations should save most statements: "+statements[1]+" vs "+statements[0],statements[1] * 10 < statements[0]);
+  }
+
+  protected static BinManager makeBinManager(int maxReservation)
+    throws ManifoldCFException
+  {
+    IThreadContext tc = ThreadContextFactory.make();
+    IDBInterface database = DBInterfaceFactory.make(tc,
+      ManifoldCF.getMasterDatabaseName(),
+      ManifoldCF.getMasterDatabaseUsername(),
+      ManifoldCF.getMasterDatabasePassword());
+    return new BinManager(database,LockManagerFactory.make(tc),maxReservation);
+  }
+
+}
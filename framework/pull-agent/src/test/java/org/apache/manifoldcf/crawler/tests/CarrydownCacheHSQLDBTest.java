@@ -0,0 +1,265 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.tests;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.agents.interfaces.*;
+import org.apache.manifoldcf.crawler.interfaces.*;
+import org.apache.manifoldcf.crawler.jobs.Carrydown;
+import org.apache.manifoldcf.crawler.jobs.CarrydownCache;
+import org.apache.manifoldcf.crawler.system.ManifoldCF;
+
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Checks that carrydown values written in batches and read through the cache are the values in the table, and
+* counts the statements an RSS-style read of seven data names per document costs, with the cache and without it.
+*/
+public class CarrydownCacheHSQLDBTest extends ConnectorBaseHSQLDB
+{
+  protected final static String[] DATA_NAMES = new String[]{"pubdate","source","title","authorname","authoremail","category","description"};
+
+  protected IThreadContext tc;
+  protected IDBInterface database;
+  protected Carrydown carrydown;
+  protected Long jobID;
+
+  /** Method to get database implementation class */
+  @Override
+  protected String getDatabaseImplementationClass()
+    throws Exception
+  {
+    return "org.apache.manifoldcf.crawler.tests.StatementCountingHSQLDB";
+  }
+
+  @Override
+  protected String[] getConnectorClasses()
+  {
+    return new String[]{"org.apache.manifoldcf.crawler.tests.TestingRepositoryConnector"};
+  }
+
+  @Override
+  protected String[] getConnectorNames()
+  {
+    return new String[]{"TestingConnector"};
+  }
+
+  @Override
+  protected String[] getOutputClasses()
+  {
+    return new String[]{"org.apache.manifoldcf.agents.tests.TestingOutputConnector"};
+  }
+
+  @Override
+  protected String[] getOutputNames()
+  {
+    return new String[]{"NullOutput"};
+  }
+
+  @Before
+  public void createJob()
+    throws Exception
+  {
+    tc = ThreadContextFactory.make();
+    database = DBInterfaceFactory.make(tc,
+      ManifoldCF.getMasterDatabaseName(),
+      ManifoldCF.getMasterDatabaseUsername(),
+      ManifoldCF.getMasterDatabasePassword());
+    carrydown = new Carrydown(tc,database);
+
+    IRepositoryConnectionManager mgr = RepositoryConnectionManagerFactory.make(tc);
+    IRepositoryConnection conn = mgr.create();
+    conn.setName("Carrydown Connection");
+    conn.setDescription("Carrydown Connection");
+    conn.setClassName("org.apache.manifoldcf.crawler.tests.TestingRepositoryConnector");
+    conn.setMaxConnections(10);
+    mgr.save(conn);
+
+    IOutputConnectionManager outputMgr = OutputConnectionManagerFactory.make(tc);
+    IOutputConnection outputConn = outputMgr.create();
+    outputConn.setName("Null Connection");
+    outputConn.setDescription("Null Connection");
+    outputConn.setClassName("org.apache.manifoldcf.agents.tests.TestingOutputConnector");
+    outputConn.setMaxConnections(10);
+    outputMgr.save(outputConn);
+
+    IJobManager jobManager = JobManagerFactory.make(tc);
+    IJobDescription job = jobManager.createJob();
+    job.setDescription("Carrydown Job");
+    job.setConnectionName("Carrydown Connection");
+    job.addPipelineStage(-1,true,"Null Connection","");
+    job.setType(job.TYPE_SPECIFIED);
+    job.setStartMethod(job.START_DISABLE);
+    job.setHopcountMode(job.HOPCOUNT_ACCURATE);
+    jobManager.save(job);
+    jobID = job.getID();
+  }
+
+  @Test
+  public void valuesMatchTable()
+    throws Exception
+  {
+    String[] children = makeChildren(50);
+    boolean[] inserted = record("parent1",children,"a");
+    for (boolean b : inserted)
+    {
+      assertTrue(b);
+    }
+    // Recording the same values again inserts nothing
+    inserted = record("parent1",children,"a");
+    for (boolean b : inserted)
+    {
+      assertFalse(b);
+    }
+    // A second parent adds a value to every child, and repeats one
+    record("parent2",children,"b");
+
+    for (String child : children)
+    {
+      for (String dataName : DATA_NAMES)
+      {
+        String[] values = carrydown.getDataValues(jobID,child,dataName);
+        assertEquals(2,values.length);
+        Set<String> valueSet = new HashSet<String>(Arrays.asList(values));
+        assertTrue(valueSet.contains(dataName+" a "+child));
+        assertTrue(valueSet.contains(dataName+" b "+child));
+      }
+      assertEquals(0,carrydown.getDataValues(jobID,child,"missing").length);
+    }
+  }
+
+  @Test
+  public void cacheFollowsChanges()
+    throws Exception
+  {
+    String child = "child";
+    record("parent1",new String[]{child},"a");
+    assertEquals(1,carrydown.getDataValues(jobID,child,"title").length);
+
+    // A new value from another parent is seen at once
+    record("parent2",new String[]{child},"b");
+    assertEquals(2,carrydown.getDataValues(jobID,child,"title").length);
+
+    // Large values are not cached, but still come back
+    StringBuilder sb = new StringBuilder();
+    while (sb.length() < 20000)
+    {
+      sb.append("0123456789");
+    }
+    String large = sb.toString();
+    carrydown.recordCarrydownData(jobID,"parent3",child,new String[]{"data"},
+      new String[][]{new String[]{ManifoldCF.hash(large)}},new Object[][]{new Object[]{large}},"process");
+    for (int i = 0; i < 2; i++)
+    {
+      String[] values = carrydown.getDataValues(jobID,child,"data");
+      assertEquals(1,values.length);
+      assertEquals(large,values[0]);
+    }
+
+    // Parent2 is processed again and no longer links to the child, so its values are deleted when its processing
+    // is done; the child's cached values are forgotten when it is next handed out
+    carrydown.restoreRecords(jobID,new String[]{"parent1","parent2","parent3"});
+    carrydown.restoreRecords(jobID,new String[]{"parent2"});
+    carrydown.forgetCachedValues(jobID,child);
+    assertEquals(1,carrydown.getDataValues(jobID,child,"title").length);
+
+    carrydown.deleteOwner(jobID);
+    assertEquals(0,carrydown.getDataValues(jobID,child,"title").length);
+  }
+
+  @Test
+  public void statementsPerDocument()
+    throws Exception
+  {
+    int childCount = 500;
+    String[] children = makeChildren(childCount);
+
+    // One parent's links, written in batches
+    long startCount = StatementCountingHSQLDB.getStatementCount();
+    record("feed",children,"a");
+    long writeStatements = StatementCountingHSQLDB.getStatementCount() - startCount;
+
+    // Each document reads all seven data names, as the RSS connector does
+    long hitsBefore = CarrydownCache.getHits();
+    long missesBefore = CarrydownCache.getMisses();
+    startCount = StatementCountingHSQLDB.getStatementCount();
+    readAll(children,false);
+    long cachedStatements = StatementCountingHSQLDB.getStatementCount() - startCount;
+    long hits = CarrydownCache.getHits() - hitsBefore;
+    long misses = CarrydownCache.getMisses() - missesBefore;
+
+    // The same reads with the cache emptied before each one, which costs a query per data name as before
+    startCount = StatementCountingHSQLDB.getStatementCount();
+    readAll(children,true);
+    long uncachedStatements = StatementCountingHSQLDB.getStatementCount() - startCount;
+
+    assertTrue(writeStatements < childCount);
+    assertEquals((long)childCount,cachedStatements);
+    assertEquals((long)childCount,misses);
+    assertEquals((long)childCount * (DATA_NAMES.length - 1),hits);
+    assertEquals((long)childCount * DATA_NAMES.length,uncachedStatements);
+  }
+
+  protected void readAll(String[] children, boolean forget)
+    throws Exception
+  {
+    for (String child : children)
+    {
+      for (String dataName : DATA_NAMES)
+      {
+        if (forget)
+          carrydown.forgetCachedValues(jobID,child);
+        assertEquals(1,carrydown.getDataValues(jobID,child,dataName).length);
+      }
+    }
+  }
+
+  protected boolean[] record(String parent, String[] children, String valueTag)
+    throws Exception
+  {
+    String[][] dataNames = new String[children.length][];
+    String[][][] dataValueHashes = new String[children.length][][];
+    Object[][][] dataValues = new Object[children.length][][];
+    for (int i = 0; i < children.length; i++)
+    {
+      dataNames[i] = DATA_NAMES;
+      dataValueHashes[i] = new String[DATA_NAMES.length][];
+      dataValues[i] = new Object[DATA_NAMES.length][];
+      for (int j = 0; j < DATA_NAMES.length; j++)
+      {
+        String value = DATA_NAMES[j]+" "+valueTag+" "+children[i];
+        dataValueHashes[i][j] = new String[]{ManifoldCF.hash(value)};
+        dataValues[i][j] = new Object[]{value};
+      }
+    }
+    return carrydown.recordCarrydownDataMultiple(jobID,parent,children,dataNames,dataValueHashes,dataValues,"process");
+  }
+
+  protected static String[] makeChildren(int count)
+  {
+    String[] rval = new String[count];
+    for (int i = 0; i < count; i++)
+    {
+      rval[i] = "child"+i;
+    }
+    return rval;
+  }
+
+}
@@ -0,0 +1,211 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.tests;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.agents.interfaces.*;
+import org.apache.manifoldcf.crawler.interfaces.*;
+import org.apache.manifoldcf.crawler.jobs.JobQueue;
+import org.apache.manifoldcf.crawler.system.ManifoldCF;
+
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+
+/** Checks that the bulk status transitions of the job manager are set-based, by counting the statements they
+* issue for various batch sizes.
+*/
+public class JobQueueBulkUpdateHSQLDBTest extends ConnectorBaseHSQLDB
+{
+  protected final static int documentCount = 1000;
+
+  /** Method to get database implementation class */
+  @Override
+  protected String getDatabaseImplementationClass()
+    throws Exception
+  {
+    return "org.apache.manifoldcf.crawler.tests.StatementCountingHSQLDB";
+  }
+
+  @Override
+  protected String[] getConnectorClasses()
+  {
+    return new String[]{"org.apache.manifoldcf.crawler.tests.TestingRepositoryConnector"};
+  }
+
+  @Override
+  protected String[] getConnectorNames()
+  {
+    return new String[]{"TestingConnector"};
+  }
+
+  @Override
+  protected String[] getOutputClasses()
+  {
+    return new String[]{"org.apache.manifoldcf.agents.tests.TestingOutputConnector"};
+  }
+
+  @Override
+  protected String[] getOutputNames()
+  {
+    return new String[]{"NullOutput"};
+  }
+
+  @Test
+  public void bulkStatusTransitions()
+    throws Exception
+  {
+    IThreadContext tc = ThreadContextFactory.make();
+    IDBInterface database = DBInterfaceFactory.make(tc,
+      ManifoldCF.getMasterDatabaseName(),
+      ManifoldCF.getMasterDatabaseUsername(),
+      ManifoldCF.getMasterDatabasePassword());
+
+    IRepositoryConnectionManager mgr = RepositoryConnectionManagerFactory.make(tc);
+    IRepositoryConnection conn = mgr.create();
+    conn.setName("Bulk Connection");
+    conn.setDescription("Bulk Connection");
+    conn.setClassName("org.apache.manifoldcf.crawler.tests.TestingRepositoryConnector");
+    conn.setMaxConnections(10);
+    mgr.save(conn);
+
+    IOutputConnectionManager outputMgr = OutputConnectionManagerFactory.make(tc);
+    IOutputConnection outputConn = outputMgr.create();
+    outputConn.setName("Null Connection");
+    outputConn.setDescription("Null Connection");
+    outputConn.setClassName("org.apache.manifoldcf.agents.tests.TestingOutputConnector");
+    outputConn.setMaxConnections(10);
+    outputMgr.save(outputConn);
+
+    IJobManager jobManager = JobManagerFactory.make(tc);
+    IJobDescription job = jobManager.createJob();
+    job.setDescription("Bulk Job");
+    job.setConnectionName("Bulk Connection");
+    job.addPipelineStage(-1,true,"Null Connection","");
+    job.setType(job.TYPE_SPECIFIED);
+    job.setStartMethod(job.START_DISABLE);
+    job.setHopcountMode(job.HOPCOUNT_ACCURATE);
+    jobManager.save(job);
+    Long jobID = job.getID();
+
+    DocumentDescription[] documents = new DocumentDescription[documentCount];
+    for (int i = 0; i < documentCount; i++)
+    {
+      String hash = ManifoldCF.hash("doc"+i);
+      Map<String,Object> map = new HashMap<String,Object>();
+      map.put(JobQueue.idField,new Long(i));
+      map.put(JobQueue.jobIDField,jobID);
+      map.put(JobQueue.docHashField,hash);
+      map.put(JobQueue.docIDField,"doc"+i);
+      map.put(JobQueue.statusField,JobQueue.statusToString(JobQueue.STATUS_ACTIVE));
+      map.put(JobQueue.isSeedField,JobQueue.seedstatusToString(JobQueue.SEEDSTATUS_SEED));
+      map.put(JobQueue.checkTimeField,new Long(0L));
+      map.put(JobQueue.checkActionField,JobQueue.actionToString(JobQueue.ACTION_RESCAN));
+      map.put(JobQueue.docPriorityField,JobQueue.nullDocPriority);
+      map.put(JobQueue.needPriorityField,JobQueue.needPriorityToString(JobQueue.NEEDPRIORITY_FALSE));
+      database.performInsert("jobqueue",map,null);
+      documents[i] = new DocumentDescription(new Long(i),jobID,hash,"doc"+i);
+    }
+
+    int[] batchSizes = new int[]{1,10,100,1000};
+    for (int batchSize : batchSizes)
+    {
+      // Completion
+      setAllStatus(database,jobID,JobQueue.STATUS_ACTIVE);
+      long startCount = StatementCountingHSQLDB.getStatementCount();
+      for (int start = 0; start < documentCount; start += batchSize)
+      {
+        jobManager.markDocumentCompletedMultiple(makeBatch(documents,start,batchSize));
+      }
+      long completeStatements = StatementCountingHSQLDB.getStatementCount() - startCount;
+      checkAllStatus(database,jobID,JobQueue.STATUS_COMPLETE);
+
+      // Requeue, all with the same time and action, as a worker thread does for a continuous job
+      setAllStatus(database,jobID,JobQueue.STATUS_ACTIVE);
+      startCount = StatementCountingHSQLDB.getStatementCount();
+      for (int start = 0; start < documentCount; start += batchSize)
+      {
+        DocumentDescription[] batch = makeBatch(documents,start,batchSize);
+        Long[] executeTimes = new Long[batch.length];
+        int[] actions = new int[batch.length];
+        for (int i = 0; i < batch.length; i++)
+        {
+          executeTimes[i] = new Long(12345L);
+          actions[i] = IJobManager.ACTION_RESCAN;
+        }
+        jobManager.requeueDocumentMultiple(batch,executeTimes,actions);
+      }
+      long requeueStatements = StatementCountingHSQLDB.getStatementCount() - startCount;
+      checkAllStatus(database,jobID,JobQueue.STATUS_PENDINGPURGATORY);
+
+      // Reset after a service interruption
+      setAllStatus(database,jobID,JobQueue.STATUS_ACTIVE);
+      startCount = StatementCountingHSQLDB.getStatementCount();
+      for (int start = 0; start < documentCount; start += batchSize)
+      {
+        jobManager.resetDocumentMultiple(makeBatch(documents,start,batchSize),12345L,IJobManager.ACTION_RESCAN,-1L,-1);
+      }
+      long resetStatements = StatementCountingHSQLDB.getStatementCount() - startCount;
+      checkAllStatus(database,jobID,JobQueue.STATUS_PENDINGPURGATORY);
+
+      // Row-at-a-time updates would cost at least one statement per document; set-based ones should cost a small fraction
+      if (batchSize >= 100)
+      {
+        if (completeStatements >= documentCount / 4)
+          throw new Exception("Too many statements marking documents complete: "+completeStatements);
+        if (requeueStatements >= documentCount / 4)
+          throw new Exception("Too many statements requeuing documents: "+requeueStatements);
+        if (resetStatements >= documentCount / 4)
+          throw new Exception("Too many statements resetting documents: "+resetStatements);
+      }
+    }
+  }
+
+  protected static DocumentDescription[] makeBatch(DocumentDescription[] documents, int start, int batchSize)
+  {
+    int end = Math.min(documents.length,start + batchSize);
+    DocumentDescription[] rval = new DocumentDescription[end - start];
+    System.arraycopy(documents,start,rval,0,rval.length);
+    return rval;
+  }
+
+  protected static void setAllStatus(IDBInterface database, Long jobID, int status)
+    throws Exception
+  {
+    Map<String,Object> map = new HashMap<String,Object>();
+    map.put(JobQueue.statusField,JobQueue.statusToString(status));
+    List list = new ArrayList();
+    list.add(jobID);
+    database.performUpdate("jobqueue",map,"WHERE "+JobQueue.jobIDField+"=?",list,null);
+  }
+
+  protected static void checkAllStatus(IDBInterface database, Long jobID, int status)
+    throws Exception
+  {
+    List list = new ArrayList();
+    list.add(jobID);
+    list.add(JobQueue.statusToString(status));
+    IResultSet set = database.performQuery("SELECT COUNT(*) AS cnt FROM jobqueue WHERE "+JobQueue.jobIDField+"=? AND "+
+      JobQueue.statusField+"=?",list,null,null);
+    long actual = ((Number)set.getRow(0).getValue("cnt")).longValue();
+    if (actual != documentCount)
+      throw new Exception("Expected "+documentCount+" documents with status "+JobQueue.statusToString(status)+"; saw "+actual);
+  }
+
+}
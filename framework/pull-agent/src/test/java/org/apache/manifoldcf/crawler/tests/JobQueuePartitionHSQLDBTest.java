@@ -0,0 +1,80 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.tests;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.agents.interfaces.*;
+
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+
+/** This is a test of job queue partitioning.  HSQLDB has no declarative partitioning, so the partitions are
+* emulated by PartitioningHSQLDB; what is tested is the logic that decides when to create, migrate, and drop them.
+*/
+public class JobQueuePartitionHSQLDBTest extends ConnectorBaseHSQLDB
+{
+  protected JobQueuePartitionTester tester;
+
+  public JobQueuePartitionHSQLDBTest()
+  {
+    super();
+    tester = new JobQueuePartitionTester();
+  }
+
+  /** Method to get database implementation class */
+  @Override
+  protected String getDatabaseImplementationClass()
+    throws Exception
+  {
+    return "org.apache.manifoldcf.crawler.tests.PartitioningHSQLDB";
+  }
+
+  @Override
+  protected String[] getConnectorClasses()
+  {
+    return new String[]{"org.apache.manifoldcf.crawler.tests.TestingRepositoryConnector"};
+  }
+
+  @Override
+  protected String[] getConnectorNames()
+  {
+    return new String[]{"TestingConnector"};
+  }
+
+  @Override
+  protected String[] getOutputClasses()
+  {
+    return new String[]{"org.apache.manifoldcf.agents.tests.TestingOutputConnector"};
+  }
+
+  @Override
+  protected String[] getOutputNames()
+  {
+    return new String[]{"NullOutput"};
+  }
+
+  @Test
+  public void partitionTestRun()
+    throws Exception
+  {
+    tester.executeTest();
+  }
+
+}
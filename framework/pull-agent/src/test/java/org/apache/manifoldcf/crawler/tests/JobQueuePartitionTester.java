@@ -0,0 +1,197 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.tests;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.agents.interfaces.*;
+import org.apache.manifoldcf.crawler.interfaces.*;
+import org.apache.manifoldcf.crawler.jobs.JobQueue;
+import org.apache.manifoldcf.crawler.jobs.Jobs;
+import org.apache.manifoldcf.crawler.jobs.PrereqEventManager;
+import org.apache.manifoldcf.crawler.system.ManifoldCF;
+
+import java.io.*;
+import java.util.*;
+
+/** This is a test of job queue partitioning: migration between layouts, partition creation for new jobs,
+* and job deletion by partition drop.
+*/
+public class JobQueuePartitionTester
+{
+  public JobQueuePartitionTester()
+  {
+  }
+
+  public void executeTest()
+    throws Exception
+  {
+    IThreadContext tc = ThreadContextFactory.make();
+    IDBInterface database = DBInterfaceFactory.make(tc,
+      ManifoldCF.getMasterDatabaseName(),
+      ManifoldCF.getMasterDatabaseUsername(),
+      ManifoldCF.getMasterDatabasePassword());
+
+    IRepositoryConnectionManager mgr = RepositoryConnectionManagerFactory.make(tc);
+    IRepositoryConnection conn = mgr.create();
+    conn.setName("Partition Connection");
+    conn.setDescription("Partition Connection");
+    conn.setClassName("org.apache.manifoldcf.crawler.tests.TestingRepositoryConnector");
+    conn.setMaxConnections(10);
+    mgr.save(conn);
+
+    IOutputConnectionManager outputMgr = OutputConnectionManagerFactory.make(tc);
+    IOutputConnection outputConn = outputMgr.create();
+    outputConn.setName("Null Connection");
+    outputConn.setDescription("Null Connection");
+    outputConn.setClassName("org.apache.manifoldcf.agents.tests.TestingOutputConnector");
+    outputConn.setMaxConnections(10);
+    outputMgr.save(outputConn);
+
+    IJobManager jobManager = JobManagerFactory.make(tc);
+    JobQueue jobQueue = new JobQueue(tc,database);
+
+    // The table starts out unpartitioned
+    if (database.getTablePartitions(jobQueue.getTableName(),null,null) != null)
+      throw new Exception("Job queue should not be partitioned by default");
+    Long jobA = createJob(jobManager,"Job A");
+    addRows(database,jobA,0,10);
+    addPrereqEvent(database,new Long(0L),"event");
+
+    // Migrate to a partition per job
+    jobQueue.install("jobs",Jobs.idField,JobQueue.PARTITIONING_JOB,0);
+    List<String> partitions = database.getTablePartitions(jobQueue.getTableName(),null,null);
+    if (partitions == null || !partitions.contains("jobqueue_default") || !partitions.contains("jobqueue_j"+jobA))
+      throw new Exception("Expected default and job partitions after migration; saw "+partitions);
+    checkRowCount(database,jobA,10);
+    checkPrereqEventCount(database,1);
+
+    // A new job gets its own partition
+    Long jobB = createJob(jobManager,"Job B");
+    partitions = database.getTablePartitions(jobQueue.getTableName(),null,null);
+    if (!partitions.contains("jobqueue_j"+jobB))
+      throw new Exception("Expected a partition for new job; saw "+partitions);
+    addRows(database,jobB,100,5);
+    addPrereqEvent(database,new Long(100L),"event");
+    checkRowCount(database,jobB,5);
+
+    // Deleting the job's records drops its partition, and leaves the other job alone
+    jobQueue.deleteAllJobRecords(jobB);
+    partitions = database.getTablePartitions(jobQueue.getTableName(),null,null);
+    if (partitions.contains("jobqueue_j"+jobB))
+      throw new Exception("Expected job partition to be dropped; saw "+partitions);
+    checkRowCount(database,jobB,0);
+    checkRowCount(database,jobA,10);
+    checkPrereqEventCount(database,1);
+
+    // Installing again with the same layout changes nothing
+    jobQueue.install("jobs",Jobs.idField,JobQueue.PARTITIONING_JOB,0);
+    checkRowCount(database,jobA,10);
+
+    // Migrate to hash partitions
+    jobQueue.install("jobs",Jobs.idField,JobQueue.PARTITIONING_HASH,4);
+    partitions = database.getTablePartitions(jobQueue.getTableName(),null,null);
+    if (partitions == null || partitions.size() != 4 || partitions.contains("jobqueue_default"))
+      throw new Exception("Expected four hash partitions; saw "+partitions);
+    checkRowCount(database,jobA,10);
+    checkPrereqEventCount(database,1);
+
+    // Jobs don't get their own partition with hash partitioning, and deletion falls back to deleting rows
+    Long jobC = createJob(jobManager,"Job C");
+    addRows(database,jobC,200,3);
+    jobQueue.deleteAllJobRecords(jobC);
+    checkRowCount(database,jobC,0);
+    checkRowCount(database,jobA,10);
+    if (database.getTablePartitions(jobQueue.getTableName(),null,null).size() != 4)
+      throw new Exception("Hash partitions should not change on job deletion");
+
+    // And back to a single table
+    jobQueue.install("jobs",Jobs.idField,JobQueue.PARTITIONING_NONE,0);
+    if (database.getTablePartitions(jobQueue.getTableName(),null,null) != null)
+      throw new Exception("Job queue should no longer be partitioned");
+    checkRowCount(database,jobA,10);
+    checkPrereqEventCount(database,1);
+    jobQueue.deleteAllJobRecords(jobA);
+    checkRowCount(database,jobA,0);
+    checkPrereqEventCount(database,0);
+  }
+
+  protected static Long createJob(IJobManager jobManager, String description)
+    throws Exception
+  {
+    IJobDescription job = jobManager.createJob();
+    job.setDescription(description);
+    job.setConnectionName("Partition Connection");
+    job.addPipelineStage(-1,true,"Null Connection","");
+    job.setType(job.TYPE_SPECIFIED);
+    job.setStartMethod(job.START_DISABLE);
+    job.setHopcountMode(job.HOPCOUNT_ACCURATE);
+    jobManager.save(job);
+    return job.getID();
+  }
+
+  protected static void addRows(IDBInterface database, Long jobID, int firstID, int count)
+    throws Exception
+  {
+    for (int i = firstID; i < firstID + count; i++)
+    {
+      Map<String,Object> map = new HashMap<String,Object>();
+      map.put(JobQueue.idField,new Long(i));
+      map.put(JobQueue.jobIDField,jobID);
+      map.put(JobQueue.docHashField,"hash"+i);
+      map.put(JobQueue.docIDField,"doc"+i);
+      map.put(JobQueue.statusField,JobQueue.statusToString(JobQueue.STATUS_PENDING));
+      map.put(JobQueue.isSeedField,JobQueue.seedstatusToString(JobQueue.SEEDSTATUS_SEED));
+      map.put(JobQueue.checkTimeField,new Long(0L));
+      map.put(JobQueue.checkActionField,JobQueue.actionToString(JobQueue.ACTION_RESCAN));
+      map.put(JobQueue.docPriorityField,JobQueue.nullDocPriority);
+      map.put(JobQueue.needPriorityField,JobQueue.needPriorityToString(JobQueue.NEEDPRIORITY_FALSE));
+      database.performInsert("jobqueue",map,null);
+    }
+  }
+
+  protected static void addPrereqEvent(IDBInterface database, Long owner, String eventName)
+    throws Exception
+  {
+    Map<String,Object> map = new HashMap<String,Object>();
+    map.put(PrereqEventManager.ownerField,owner);
+    map.put(PrereqEventManager.eventNameField,eventName);
+    database.performInsert("prereqevents",map,null);
+  }
+
+  protected static void checkRowCount(IDBInterface database, Long jobID, long expected)
+    throws Exception
+  {
+    List list = new ArrayList();
+    list.add(jobID);
+    IResultSet set = database.performQuery("SELECT COUNT(*) AS cnt FROM jobqueue WHERE "+JobQueue.jobIDField+"=?",list,null,null);
+    long actual = ((Number)set.getRow(0).getValue("cnt")).longValue();
+    if (actual != expected)
+      throw new Exception("Expected "+expected+" job queue rows for job "+jobID+"; saw "+actual);
+  }
+
+  protected static void checkPrereqEventCount(IDBInterface database, long expected)
+    throws Exception
+  {
+    IResultSet set = database.performQuery("SELECT COUNT(*) AS cnt FROM prereqevents",null,null,null);
+    long actual = ((Number)set.getRow(0).getValue("cnt")).longValue();
+    if (actual != expected)
+      throw new Exception("Expected "+expected+" prerequisite event rows; saw "+actual);
+  }
+
+}
@@ -0,0 +1,181 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.tests;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.core.database.DBInterfaceHSQLDB;
+import java.util.*;
+
+/** This is an HSQLDB database interface that pretends to support table partitioning, so that the logic
+* which manages partitions can be tested without a PostgreSQL server.  Partitions exist only as bookkeeping;
+* all rows stay in the parent table, and dropping a list partition deletes the rows with its value.
+* Creating a list partition fails if rows with its value already exist, as it does in PostgreSQL.
+*
+* The bookkeeping is static, because each thread context gets its own database interface instance.
+*/
+public class PartitioningHSQLDB extends DBInterfaceHSQLDB
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  /** Partitioned tables, keyed by table name */
+  protected static final Map<String,PartitionedTable> partitionedTables = new HashMap<String,PartitionedTable>();
+
+  public PartitioningHSQLDB(IThreadContext tc, String databaseName, String userName, String password)
+    throws ManifoldCFException
+  {
+    super(tc,databaseName,userName,password);
+  }
+
+  @Override
+  public boolean supportsTablePartitioning()
+    throws ManifoldCFException
+  {
+    return true;
+  }
+
+  @Override
+  public void performCreatePartitioned(String tableName, Map<String,ColumnDescription> columnMap,
+    String partitionColumn, int hashPartitionCount, StringSet invalidateKeys)
+    throws ManifoldCFException
+  {
+    performCreate(tableName,columnMap,invalidateKeys);
+    PartitionedTable pt = new PartitionedTable(partitionColumn);
+    if (hashPartitionCount == 0)
+      pt.partitions.put(tableName+"_default",null);
+    else
+    {
+      for (int i = 0; i < hashPartitionCount; i++)
+      {
+        pt.partitions.put(tableName+"_h"+i,null);
+      }
+    }
+    synchronized (partitionedTables)
+    {
+      partitionedTables.put(tableName,pt);
+    }
+  }
+
+  @Override
+  public void performAddPartition(String tableName, String partitionName, Object value, StringSet invalidateKeys)
+    throws ManifoldCFException
+  {
+    PartitionedTable pt = getPartitionedTable(tableName);
+    List list = new ArrayList();
+    list.add(value);
+    IResultSet set = performQuery("SELECT COUNT(*) AS cnt FROM "+tableName+" WHERE "+pt.partitionColumn+"=?",list,null,null);
+    if (((Long)set.getRow(0).getValue("cnt")).longValue() > 0L)
+      throw new ManifoldCFException("Default partition of "+tableName+" already contains rows for "+value);
+    synchronized (partitionedTables)
+    {
+      if (pt.partitions.containsKey(partitionName))
+        throw new ManifoldCFException("Partition "+partitionName+" already exists");
+      pt.partitions.put(partitionName,value);
+    }
+  }
+
+  @Override
+  public void performDropPartition(String tableName, String partitionName, StringSet invalidateKeys)
+    throws ManifoldCFException
+  {
+    PartitionedTable pt = getPartitionedTable(tableName);
+    Object value;
+    synchronized (partitionedTables)
+    {
+      if (!pt.partitions.containsKey(partitionName))
+        throw new ManifoldCFException("No such partition: "+partitionName);
+      value = pt.partitions.remove(partitionName);
+    }
+    if (value != null)
+    {
+      List list = new ArrayList();
+      list.add(value);
+      performDelete(tableName,"WHERE "+pt.partitionColumn+"=?",list,invalidateKeys);
+    }
+  }
+
+  @Override
+  public List<String> getTablePartitions(String tableName, StringSet cacheKeys, String queryClass)
+    throws ManifoldCFException
+  {
+    synchronized (partitionedTables)
+    {
+      PartitionedTable pt = partitionedTables.get(tableName);
+      if (pt == null)
+        return null;
+      return new ArrayList<String>(pt.partitions.keySet());
+    }
+  }
+
+  @Override
+  public void performRename(String tableName, String newTableName, StringSet invalidateKeys)
+    throws ManifoldCFException
+  {
+    super.performRename(tableName,newTableName,invalidateKeys);
+    synchronized (partitionedTables)
+    {
+      PartitionedTable pt = partitionedTables.remove(tableName);
+      if (pt != null)
+      {
+        PartitionedTable renamed = new PartitionedTable(pt.partitionColumn);
+        for (Map.Entry<String,Object> entry : pt.partitions.entrySet())
+        {
+          renamed.partitions.put(newTableName+entry.getKey().substring(tableName.length()),entry.getValue());
+        }
+        partitionedTables.put(newTableName,renamed);
+      }
+    }
+  }
+
+  @Override
+  public void performDrop(String tableName, StringSet invalidateKeys)
+    throws ManifoldCFException
+  {
+    super.performDrop(tableName,invalidateKeys);
+    synchronized (partitionedTables)
+    {
+      partitionedTables.remove(tableName);
+    }
+  }
+
+  protected static PartitionedTable getPartitionedTable(String tableName)
+    throws ManifoldCFException
+  {
+    synchronized (partitionedTables)
+    {
+      PartitionedTable pt = partitionedTables.get(tableName);
+      if (pt == null)
+        throw new ManifoldCFException("Table "+tableName+" is not partitioned");
+      return pt;
+    }
+  }
+
+  /** The bookkeeping for one partitioned table */
+  protected static class PartitionedTable
+  {
+    public final String partitionColumn;
+    /** Partition names, mapped to their list value, or to null for default and hash partitions */
+    public final Map<String,Object> partitions = new HashMap<String,Object>();
+
+    public PartitionedTable(String partitionColumn)
+    {
+      this.partitionColumn = partitionColumn;
+    }
+  }
+
+}
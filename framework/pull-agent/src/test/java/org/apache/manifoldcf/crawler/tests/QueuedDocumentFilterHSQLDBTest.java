@@ -0,0 +1,180 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.tests;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.agents.interfaces.*;
+import org.apache.manifoldcf.crawler.interfaces.*;
+import org.apache.manifoldcf.crawler.jobs.JobQueue;
+import org.apache.manifoldcf.crawler.jobs.QueuedDocumentFilter;
+import org.apache.manifoldcf.crawler.system.ManifoldCF;
+
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/** Checks that addDocuments learns of a document another process queued behind the queued document filter's back,
+* so that only the first link to it costs an aborted transaction.
+*/
+public class QueuedDocumentFilterHSQLDBTest extends ConnectorBaseHSQLDB
+{
+  protected IThreadContext tc;
+  protected IDBInterface database;
+  protected IJobManager jobManager;
+  protected Long jobID;
+
+  @Override
+  protected String[] getConnectorClasses()
+  {
+    return new String[]{"org.apache.manifoldcf.crawler.tests.TestingRepositoryConnector"};
+  }
+
+  @Override
+  protected String[] getConnectorNames()
+  {
+    return new String[]{"TestingConnector"};
+  }
+
+  @Override
+  protected String[] getOutputClasses()
+  {
+    return new String[]{"org.apache.manifoldcf.agents.tests.TestingOutputConnector"};
+  }
+
+  @Override
+  protected String[] getOutputNames()
+  {
+    return new String[]{"NullOutput"};
+  }
+
+  @Override
+  protected void writeProperties(StringBuilder output)
+    throws Exception
+  {
+    super.writeProperties(output);
+    output.append(
+      "  <property name=\"org.apache.manifoldcf.crawler.queuefilter.maxdocuments\" value=\"100000\"/>\n"
+    );
+  }
+
+  @Before
+  public void createJob()
+    throws Exception
+  {
+    tc = ThreadContextFactory.make();
+    database = DBInterfaceFactory.make(tc,
+      ManifoldCF.getMasterDatabaseName(),
+      ManifoldCF.getMasterDatabaseUsername(),
+      ManifoldCF.getMasterDatabasePassword());
+
+    IRepositoryConnectionManager mgr = RepositoryConnectionManagerFactory.make(tc);
+    IRepositoryConnection conn = mgr.create();
+    conn.setName("Filter Connection");
+    conn.setDescription("Filter Connection");
+    conn.setClassName("org.apache.manifoldcf.crawler.tests.TestingRepositoryConnector");
+    conn.setMaxConnections(10);
+    mgr.save(conn);
+
+    IOutputConnectionManager outputMgr = OutputConnectionManagerFactory.make(tc);
+    IOutputConnection outputConn = outputMgr.create();
+    outputConn.setName("Null Connection");
+    outputConn.setDescription("Null Connection");
+    outputConn.setClassName("org.apache.manifoldcf.agents.tests.TestingOutputConnector");
+    outputConn.setMaxConnections(10);
+    outputMgr.save(outputConn);
+
+    jobManager = JobManagerFactory.make(tc);
+    IJobDescription job = jobManager.createJob();
+    job.setDescription("Filter Job");
+    job.setConnectionName("Filter Connection");
+    job.addPipelineStage(-1,true,"Null Connection","");
+    job.setType(job.TYPE_SPECIFIED);
+    job.setStartMethod(job.START_DISABLE);
+    job.setHopcountMode(job.HOPCOUNT_ACCURATE);
+    jobManager.save(job);
+    jobID = job.getID();
+  }
+
+  @After
+  public void discardFilter()
+  {
+    if (jobID != null)
+      QueuedDocumentFilter.discardFilter(jobID);
+  }
+
+  @Test
+  public void rowFromAnotherProcessIsLearned()
+    throws Exception
+  {
+    // The first addition builds the filter
+    addDocument("first");
+    QueuedDocumentFilter filter = QueuedDocumentFilter.findFilter(jobID);
+    assertNotNull(filter);
+
+    // Another process queues a document; this process's filter never hears of it
+    String otherHash = ManifoldCF.hash("other");
+    Map<String,Object> map = new HashMap<String,Object>();
+    map.put(JobQueue.idField,new Long(IDFactory.make(tc)));
+    map.put(JobQueue.jobIDField,jobID);
+    map.put(JobQueue.docHashField,otherHash);
+    map.put(JobQueue.docIDField,"other");
+    map.put(JobQueue.statusField,JobQueue.statusToString(JobQueue.STATUS_PENDING));
+    map.put(JobQueue.checkTimeField,new Long(0L));
+    map.put(JobQueue.checkActionField,JobQueue.actionToString(JobQueue.ACTION_RESCAN));
+    map.put(JobQueue.docPriorityField,JobQueue.nullDocPriority);
+    map.put(JobQueue.needPriorityField,JobQueue.needPriorityToString(JobQueue.NEEDPRIORITY_FALSE));
+    database.performInsert("jobqueue",map,null);
+    assertFalse(filter.mightContain(otherHash));
+
+    // The insert the filter allows fails, and the retry finds the row
+    long conflicts = QueuedDocumentFilter.getConflicts();
+    addDocument("other");
+    assertEquals(conflicts + 1L,QueuedDocumentFilter.getConflicts());
+    assertTrue(filter.mightContain(otherHash));
+
+    // The next link to the document looks for it rather than trying the insert again
+    addDocument("other");
+    assertEquals(conflicts + 1L,QueuedDocumentFilter.getConflicts());
+
+    List list = new ArrayList();
+    list.add(jobID);
+    list.add(otherHash);
+    IResultSet set = database.performQuery("SELECT "+JobQueue.idField+" FROM jobqueue WHERE "+JobQueue.jobIDField+"=? AND "+
+      JobQueue.docHashField+"=?",list,null,null);
+    assertEquals(1,set.getRowCount());
+  }
+
+  protected void addDocument(String documentIdentifier)
+    throws Exception
+  {
+    IPriorityCalculator priority = new IPriorityCalculator()
+      {
+        @Override
+        public double getDocumentPriority()
+        {
+          return 1.0;
+        }
+      };
+    jobManager.addDocuments("process",jobID,new String[0],
+      new String[]{ManifoldCF.hash(documentIdentifier)},new String[]{documentIdentifier},
+      null,null,IJobDescription.HOPCOUNT_ACCURATE,new String[][]{new String[0]},new Object[][][]{new Object[0][]},
+      new IPriorityCalculator[]{priority},new String[][]{new String[0]});
+  }
+
+}
@@ -0,0 +1,58 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.crawler.tests;
+
+import org.apache.manifoldcf.core.interfaces.*;
+import org.apache.manifoldcf.core.database.DBInterfaceHSQLDB;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/** This is an HSQLDB database interface that counts the statements it sends to the database, so that tests
+* can check how many round trips an operation costs.  The count is static, because each thread context gets its
+* own database interface instance.
+*/
+public class StatementCountingHSQLDB extends DBInterfaceHSQLDB
+{
+  public static final String _rcsid = "@(#)$Id$";
+
+  protected static final AtomicLong statementCount = new AtomicLong(0L);
+
+  public StatementCountingHSQLDB(IThreadContext tc, String databaseName, String userName, String password)
+    throws ManifoldCFException
+  {
+    super(tc,databaseName,userName,password);
+  }
+
+  /** Get the number of statements executed so far.
+  */
+  public static long getStatementCount()
+  {
+    return statementCount.get();
+  }
+
+  @Override
+  protected IResultSet executeUncachedQuery(String query, List params, boolean bResults, int maxResults,
+    ResultSpecification spec, ILimitChecker returnLimit)
+    throws ManifoldCFException
+  {
+    statementCount.incrementAndGet();
+    return super.executeUncachedQuery(query,params,bResults,maxResults,spec,returnLimit);
+  }
+
+}